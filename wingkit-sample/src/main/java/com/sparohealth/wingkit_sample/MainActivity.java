@@ -54,6 +54,8 @@ public class MainActivity extends AppCompatActivity {
                             @Override
                             public void onSuccessResponse(JSONObject result) {
                                 Log.d("Main", result.toString());
+                                // send any recordings whose upload was cut off the last time the app ran
+                                application.client.resumePendingUploads();
                                 Intent intent = new Intent(getApplicationContext(), DemographicsActivity.class);
                                 startActivity(intent);
                                 finish();
@@ -28,8 +28,12 @@ import com.sparohealth.wingkit.classes.Client;
 import com.sparohealth.wingkit.classes.ReachabilityMonitor;
 import com.sparohealth.wingkit.classes.SensorMonitor;
 import com.sparohealth.wingkit.classes.TestSession;
+import com.sparohealth.wingkit.classes.events.DeliveryPolicy;
+import com.sparohealth.wingkit.classes.events.EventListener;
+import com.sparohealth.wingkit.classes.events.Subscription;
 import com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionManager;
 import com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionRecorder;
+import com.sparohealth.wingkit.classes.scheduling.MainThreadExecutor;
 import com.sparohealth.wingkit_sample.shapes.CircleAnimation;
 import com.sparohealth.wingkit_sample.shapes.CircleView;
 import org.json.JSONException;
@@ -50,6 +54,7 @@ public class TestScreenActivity extends AppCompatActivity implements Reachabilit
     private String [] permissions = {Manifest.permission.RECORD_AUDIO};
     private static final int REQUEST_RECORD_AUDIO_PERMISSION = 200;
     TestSessionRecorder recorder;
+    Subscription signalStrengthSubscription;
     //    TestSession testSession = null;
     TestSessionManager sessionManager = null;
 
@@ -124,46 +129,18 @@ public class TestScreenActivity extends AppCompatActivity implements Reachabilit
 
             @Override
             public void signalStrengthChanged(final Double newStrength) {
-                int scale = (int)(0 - baselineAmplitude);
-
-                if (Math.abs(baselineAmplitude) > Math.abs(newStrength) && newStrength != 0) {
-                    int diff = (int)Math.abs(newStrength - baselineAmplitude);
-                    double percentage = ((double)diff / (double)scale);
-
-                    Log.d(TAG, "Calculated percentage growth of " + String.valueOf(percentage * 100));
-
-                    final int newRadius = (int)(baseRadius + (baseRadius * percentage * 3));
-
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            CircleAnimation animation;
-                            //update the circle based on strength
-                            animation = new CircleAnimation(circle, newRadius);
-
-                            animation.setDuration(100);
-                            circle.startAnimation(animation);
-                        }
-                    });
-                }
-                else {
-                    Log.d(TAG, "Resetting radius to base value " + String.valueOf(baseRadius));
-
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            CircleAnimation animation;
-                            //update the circle based on strength
-                            animation = new CircleAnimation(circle, baseRadius);
-
-                            animation.setDuration(100);
-                            circle.startAnimation(animation);
-                        }
-                    });
-
-                }
+                // the circle is driven by the per-frame signal strength subscription below
             }
         });
+        // take at most one reading per frame, on the UI thread, so the capture loop never waits on the UI
+        signalStrengthSubscription = recorder.getSignalStrengthEvents().subscribe(new EventListener<Double>() {
+            @Override
+            public void onEvent(Double newStrength) {
+                updateCircle(newStrength);
+            }
+        }, DeliveryPolicy.perFrame(), new MainThreadExecutor());
+        // compare recordings against the ambient noise measured in the pre-test checks
+        recorder.setNoiseBaseline(getIntent().hasExtra("baseline") ? baselineAmplitude : Double.NaN);
         circle = new CircleView(this);
         baseRadius = circle.getRadius();
 
@@ -254,7 +231,7 @@ public class TestScreenActivity extends AppCompatActivity implements Reachabilit
                     Log.d(TAG, "Client.createTestSession recieved - " + result.toString());
 
                     Gson gson = new Gson();
-                    sessionManager.testSession = gson.fromJson(result.toString(),TestSession.class);
+                    sessionManager.setTestSession(gson.fromJson(result.toString(),TestSession.class));
 
                     activity.runOnUiThread(new Runnable() {
                         @Override
@@ -447,8 +424,30 @@ public class TestScreenActivity extends AppCompatActivity implements Reachabilit
 //        }
     }
 
+    /**
+     * Resize the circle to follow the signal strength. Runs on the UI thread.
+     * @param newStrength The signal strength reading (dB)
+     */
+    private void updateCircle(Double newStrength) {
+        int scale = (int)(0 - baselineAmplitude);
+        int newRadius = baseRadius;
+
+        if (Math.abs(baselineAmplitude) > Math.abs(newStrength) && newStrength != 0) {
+            int diff = (int)Math.abs(newStrength - baselineAmplitude);
+            double percentage = ((double)diff / (double)scale);
+
+            newRadius = (int)(baseRadius + (baseRadius * percentage * 3));
+        }
+
+        //update the circle based on strength
+        CircleAnimation animation = new CircleAnimation(circle, newRadius);
+        animation.setDuration(100);
+        circle.startAnimation(animation);
+    }
+
     protected void onDestroy() {
         super.onDestroy();
+        signalStrengthSubscription.cancel();
         unregisterReceiver(application.reachabilityMonitor);
         unregisterReceiver(application.sensorMonitor);
         application.reachabilityMonitor.setDelegate(null);
@@ -487,7 +486,7 @@ public class TestScreenActivity extends AppCompatActivity implements Reachabilit
         alert.setCancelable(false);
 
         if (status == null) {
-            switch(sessionManager.state) {
+            switch(sessionManager.getState()) {
                 case noTest: {
                     break;
                 }
@@ -544,7 +543,7 @@ public class TestScreenActivity extends AppCompatActivity implements Reachabilit
                         public void onClick(DialogInterface dialogInterface, int i) {
                             dialogInterface.dismiss();
                             Gson gson = new Gson();
-                            String testResults = gson.toJson(sessionManager.testSession, TestSession.class);
+                            String testResults = gson.toJson(sessionManager.getTestSession(), TestSession.class);
                             Intent intent = new Intent(getApplicationContext(), TestResultsActivity.class);
                             intent.putExtra("json", testResults);
                             activity.startActivity(intent);
@@ -560,7 +559,7 @@ public class TestScreenActivity extends AppCompatActivity implements Reachabilit
                         public void onClick(DialogInterface dialogInterface, int i) {
                             dialogInterface.dismiss();
                             Gson gson = new Gson();
-                            String testResults = gson.toJson(sessionManager.testSession, TestSession.class);
+                            String testResults = gson.toJson(sessionManager.getTestSession(), TestSession.class);
                             Intent intent = new Intent(getApplicationContext(), TestResultsActivity.class);
                             intent.putExtra("json", testResults);
                             activity.startActivity(intent);
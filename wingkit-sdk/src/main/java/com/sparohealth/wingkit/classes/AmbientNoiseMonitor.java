@@ -2,10 +2,14 @@ package com.sparohealth.wingkit.classes;
 
 import android.content.Context;
 import android.media.MediaRecorder;
+
+import com.sparohealth.wingkit.classes.events.EventStream;
+import com.sparohealth.wingkit.classes.scheduling.PooledScheduler;
+import com.sparohealth.wingkit.classes.scheduling.ScheduledTask;
+import com.sparohealth.wingkit.classes.scheduling.Scheduler;
+
 import java.io.File;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * Monitor ambient noise levels to determine if there is too much background noise for a successful lung function test
@@ -13,6 +17,7 @@ import java.util.TimerTask;
 public class AmbientNoiseMonitor {
     private double mAmplitudeSample = 0;
     private int mAmplitudeSampleCount = 0;
+    /// The recorder of the running session, or null when the monitor is stopped.
     private MediaRecorder recorder = null;
     // The object that acts as the delegate of the monitor.
     private AmbientNoiseMonitorDelegate delegate = null;
@@ -24,7 +29,12 @@ public class AmbientNoiseMonitor {
     /// Indicates whether the monitor is active or not.
     public boolean isActive = false;
     final long noiseCheckInterval = 250;
-    Timer timer = new Timer();
+    /// The scheduler running the periodic noise check.
+    private final Scheduler scheduler;
+    /// The periodic noise check, or null when the monitor is not running.
+    private ScheduledTask noiseCheckTask = null;
+    /// Stream of ambient noise readings (dB).
+    private final EventStream<Double> noiseLevelEvents;
 
     /**
      * Get the baseline noise level recorded by AmbientNoiseMonitor
@@ -39,8 +49,26 @@ public class AmbientNoiseMonitor {
      * @param callback Callback delegate for status update events
      */
     public AmbientNoiseMonitor (AmbientNoiseMonitorDelegate callback){
+        this(callback, PooledScheduler.getDefault());
+    }
+
+    /**
+     * Initialize the Ambient Noise Monitor
+     * @param callback Callback delegate for status update events
+     * @param scheduler The scheduler used for the periodic noise check
+     */
+    public AmbientNoiseMonitor (AmbientNoiseMonitorDelegate callback, Scheduler scheduler){
         delegate = callback;
-        recorder = new MediaRecorder();
+        this.scheduler = scheduler;
+        this.noiseLevelEvents = new EventStream<>(scheduler, true);
+    }
+
+    /**
+     * Create the recorder for a session. A released recorder cannot be prepared again, so every start gets a new one.
+     * @return recorder
+     */
+    MediaRecorder createRecorder() {
+        return new MediaRecorder();
     }
 
     /**
@@ -61,59 +89,88 @@ public class AmbientNoiseMonitor {
     /**
     * Stops an audio session and stops the timer
     * */
-    public void stop(){
+    public synchronized void stop(){
+        stopTimer();
+        // if the monitor IS NOT running, there is nothing to release
+        if (recorder == null) {
+            return;
+        }
         try {
-            timer.cancel();
             recorder.stop();
-            recorder.reset();
-            recorder.release();
         }
         catch (RuntimeException e) {
-
+            // stop() throws when no audio was captured yet; the recorder is released regardless
         }
+        recorder.reset();
+        recorder.release();
+        recorder = null;
     }
 
     /**
     * Starts measuring the amount of Ambient Noise
     * @throws IOException
     */
-    public void start(Context newCtx) throws IOException {
+    public synchronized void start(Context newCtx) throws IOException {
+        // if the monitor IS already running, leave it as is
+        if (recorder != null) {
+            return;
+        }
         currentContext = newCtx;
 
+        recorder = createRecorder();
         try {
             configureSession();
             recorder.prepare();
             recorder.start();
-            startTimer();
         }
-        catch (IOException ex){
+        catch (IOException | RuntimeException ex){
+            recorder.release();
+            recorder = null;
             throw ex;
         }
-
+        startTimer();
     }
 
     /**
-    * Starts a timer with the task of checking the ambient noise every interval -- done on a seperate thread
+    * Starts a timer with the task of checking the ambient noise every interval -- done on a scheduler thread
     */
-    public void startTimer(){
-        //create new timer that checks for noise every x milliseconds
-        TimerTask task = new TimerTask() {
+    public synchronized void startTimer(){
+        // if the check IS already running, leave it as is
+        if (noiseCheckTask != null) {
+            return;
+        }
+
+        //check for noise every x milliseconds
+        noiseCheckTask = scheduler.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
                 checkAmbientNoise();
             }
-        };
-
-        //schedule task
-        timer.scheduleAtFixedRate(task,0,noiseCheckInterval);
+        }, 0, noiseCheckInterval);
+    }
 
+    /**
+     * Stops the periodic noise check
+     */
+    private synchronized void stopTimer() {
+        if (noiseCheckTask != null) {
+            noiseCheckTask.cancel();
+            noiseCheckTask = null;
+        }
     }
 
     /**
     * Checks whether the ambient noise is above a threshold
     */
     private void checkAmbientNoise(){
-        double currentAmpVal = recorder.getMaxAmplitude();
+        double currentAmpVal;
+        synchronized (this) {
+            // if the monitor HAS been stopped since this check was queued...
+            if (recorder == null) {
+                return;
+            }
+            currentAmpVal = recorder.getMaxAmplitude();
+        }
         double currentDBval = 20 * Math.log10( currentAmpVal/ 32767.0);
 
         // if the current noise level is NOT the max negative value...
@@ -127,6 +184,7 @@ public class AmbientNoiseMonitor {
         if (currentDBval != lastDecibelVal && currentAmpVal > 0){
             isBelowThreshold = currentDBval < noiseThreshold;
             lastDecibelVal = currentDBval;
+            noiseLevelEvents.publish(currentDBval);
 
             if (delegate != null)
                 delegate.ambientNoiseMonitorDidChangeState(this);
@@ -134,6 +192,15 @@ public class AmbientNoiseMonitor {
 
     }
 
+    /**
+     * Return the stream of ambient noise readings (dB). A reading is published whenever the level
+     * changes; compare it with {@link #getNoiseThreshold()} to decide if the environment is quiet enough.
+     * @return noise level stream
+     */
+    public EventStream<Double> getNoiseLevelEvents() {
+        return noiseLevelEvents;
+    }
+
     /**
      * Return the noise threshold value
      * @return Noise threshold
@@ -2,58 +2,104 @@ package com.sparohealth.wingkit.classes;
 import android.content.Context;
 import android.util.Log;
 
-import com.amazonaws.auth.CognitoCachingCredentialsProvider;
-import com.amazonaws.auth.CognitoCredentialsProvider;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.JsonObjectRequest;
 import com.android.volley.toolbox.Volley;
 import com.google.gson.Gson;
+import com.sparohealth.wingkit.classes.async.RequestLimiter;
+import com.sparohealth.wingkit.classes.async.WingFuture;
+import com.sparohealth.wingkit.classes.history.HistoryStore;
+import com.sparohealth.wingkit.classes.network.HttpEngine;
+import com.sparohealth.wingkit.classes.network.HttpRequest;
+import com.sparohealth.wingkit.classes.network.HttpResponse;
+import com.sparohealth.wingkit.classes.network.HttpStatusException;
+import com.sparohealth.wingkit.classes.scheduling.MainThreadExecutor;
+import com.sparohealth.wingkit.classes.scheduling.PooledScheduler;
+import com.sparohealth.wingkit.classes.scheduling.Scheduler;
+import com.sparohealth.wingkit.classes.trends.TrendEngine;
+import com.sparohealth.wingkit.classes.upload.AwsSdkUploader;
+import com.sparohealth.wingkit.classes.upload.CognitoIdentityClient;
+import com.sparohealth.wingkit.classes.upload.LightweightS3Uploader;
+import com.sparohealth.wingkit.classes.upload.RecordingUploader;
+import com.sparohealth.wingkit.classes.upload.UploadCallback;
+import com.sparohealth.wingkit.classes.upload.UploadJournal;
+import com.sparohealth.wingkit.classes.upload.UploadProgressListener;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Client handles all Wing REST API service calls
+ * Client handles all Wing REST API service calls.
+ *
+ * A single Client can be shared by several test sessions and called from any thread. It holds
+ * no per-session state (that lives in each session's
+ * {@link com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionContext}), and the
+ * authentication token is swapped atomically when it is refreshed.
  */
 public class Client {
-    private String BASE_API_URL = "https://3rd-party-api.mywing.io/v2";
+    private final String baseApiUrl;
 
-    private static RequestQueue requestQueue;
-    private Context appContext;
-    private String token = "";
-    private static String testsessionId = "";
-    private String patientId = "";
-    private OAuthCredentials oAuthCredentials;
-    private String clientId = "";
-    private String clientSecret = "";
+    /// The Volley queue, or null when the shared HTTP stack is used for the API calls.
+    private final RequestQueue requestQueue;
+    private final Context appContext;
+    private final AtomicReference<String> token = new AtomicReference<>("");
+    private final OAuthCredentials oAuthCredentials;
+    private final String clientId;
+    private final String clientSecret;
+
+    /// Callbacks waiting on the authentication request in flight, or null when none is running.
+    private List<WingApiCallback> pendingAuthCallbacks = null;
+    private final Object authLock = new Object();
 
     //AWS vars
-    private static int[] defaultAcceptableStatusCodes = new int[]{200,300};
-    private String identityPoolId = "us-east-1:af3df912-5e61-40dc-9c5e-651f7e0b3789";
-    private Regions cognitoRegion = Regions.US_EAST_1;
+    private final String identityPoolId = "us-east-1:af3df912-5e61-40dc-9c5e-651f7e0b3789";
+    private final String cognitoRegion = "us-east-1";
+
+    private final RecordingUploader uploader;
+
+    /// Keeps recordings until they are uploaded, or null when uploads are not resumable.
+    private final UploadJournal uploadJournal;
+
+    /// Keeps the retrieved test sessions, or null when no history is kept.
+    private final HistoryStore historyStore;
+
+    /// Keeps the trends of the sessions added to the history, or null when no trends are kept.
+    private final TrendEngine trendEngine;
 
-    private CognitoCredentialsProvider credentialsProvider;
-    private AmazonS3 s3;
-    private TransferUtility transferUtility;
+    /// Stores sessions and rebuilds the trends one task at a time on a thread of its own, so a rebuild
+    /// streaming the whole history holds no thread of the shared scheduler. Null when no history is kept.
+    private final Scheduler historyScheduler;
+
+    /// The shared HTTP stack, or null when Volley is used for the API calls.
+    private final HttpEngine httpEngine;
+
+    /// Answers test session polls that find nothing changed without parsing the session again.
+    private final TestSessionSync sessionSync = new TestSessionSync();
+
+    /// Bounds the pages of test session history fetched at once.
+    private final RequestLimiter pageLimiter;
+    private final int prefetchPages;
+    private final Executor callbackExecutor;
+    private final Scheduler scheduler;
 
     /**
      * Initialize and set up the Client object
@@ -62,58 +108,151 @@ public class Client {
      * @param clientSecret The OAuth clientSecret value
      */
     public Client(Context context, String clientId, String clientSecret) {
+        this(context, clientId, clientSecret, new ClientConfiguration());
+    }
+
+    /**
+     * Initialize and set up the Client object
+     * @param context The application context
+     * @param clientId The OAuth clientId value
+     * @param clientSecret The OAuth clientSecret value
+     * @param configuration Optional client settings
+     */
+    public Client(Context context, String clientId, String clientSecret, ClientConfiguration configuration) {
         this.appContext = context;
         this.clientId = clientId;
         this.clientSecret = clientSecret;
-        requestQueue =  Volley.newRequestQueue(appContext);
         oAuthCredentials = new OAuthCredentials(clientId,clientSecret);
-        setupAWS();
+
+        baseApiUrl = configuration.baseApiUrl;
+
+        callbackExecutor = configuration.callbackExecutor != null ? configuration.callbackExecutor : new MainThreadExecutor();
+        scheduler = configuration.scheduler != null ? configuration.scheduler : PooledScheduler.getDefault();
+
+        // if the shared HTTP stack IS enabled...
+        if (configuration.useSharedHttpStack) {
+            httpEngine = new HttpEngine(configuration.httpThreadPoolSize, configuration.connectTimeoutMs, configuration.readTimeoutMs);
+            requestQueue = null;
+        }
+        else {
+            httpEngine = null;
+            requestQueue =  Volley.newRequestQueue(appContext);
+        }
+        // without a context there is nowhere to keep the journal
+        uploadJournal = configuration.resumableUploads && appContext != null
+                ? new UploadJournal(new File(appContext.getFilesDir(), "wingkit-uploads"),
+                        configuration.uploadJournalMaxAgeMs, configuration.uploadJournalMaxAttempts)
+                : null;
+        historyStore = configuration.keepHistory && appContext != null
+                ? new HistoryStore(new File(appContext.getFilesDir(), "wingkit-history"))
+                : null;
+        trendEngine = configuration.keepTrends && historyStore != null
+                ? new TrendEngine(new File(appContext.getFilesDir(), "wingkit-trends"))
+                : null;
+        historyScheduler = historyStore != null ? new PooledScheduler(1) : null;
+        // if the trends ARE new, they start from the history kept so far
+        if (trendEngine != null && !new File(appContext.getFilesDir(), "wingkit-trends").exists()) {
+            historyScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    rebuildTrends();
+                }
+            }, 0);
+        }
+        pageLimiter = new RequestLimiter(configuration.pageRequestConcurrency);
+        prefetchPages = configuration.prefetchPages;
+        uploader = setupUploader(configuration);
     }
 
     /**
      * Authenticates the application with the Wing API using the assigned Client ID/Secret.
+     * Concurrent calls share a single login request, and every caller is notified when it finishes.
      * @param callback Callback object for sending success/error messages to the calling object
      * @throws JSONException
      */
     public void authenticate(final WingApiCallback callback) throws JSONException {
-        String endpoint = BASE_API_URL + "/accounts/login";
+        String endpoint = baseApiUrl + "/accounts/login";
         JSONObject params = new JSONObject();
 
         params.put("clientId",oAuthCredentials.id);
         params.put("clientSecret",oAuthCredentials.secret);
 
-        JsonObjectRequest newRequest = new JsonObjectRequest
-                (Request.Method.POST, endpoint, params, new Response.Listener<JSONObject>() {
-                    @Override
-                    public void onResponse(JSONObject response) {
-                        Log.d("Client",response.toString());
-                        try {
-                            token = response.getString("token");
-                            callback.onSuccessResponse(response);
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                            callback.onErrorResponse(e);
-                        }
-                    }
-                }, new Response.ErrorListener() {
-                    @Override
-                    public void onErrorResponse(VolleyError error) {
-                        Log.d("Client",error.getMessage());
-                        callback.onErrorResponse(error);
-                    }
-                }){
+        Map<String, String>  headers = new HashMap<String, String>();
+        headers.put("Accept", "application/json");
+        headers.put("Content-Type", "application/json");
 
-            //add headers
+        synchronized (authLock) {
+            // if a login IS already in flight, wait for its result
+            if (pendingAuthCallbacks != null) {
+                pendingAuthCallbacks.add(callback);
+                return;
+            }
+            pendingAuthCallbacks = new ArrayList<>();
+            pendingAuthCallbacks.add(callback);
+        }
+
+        sendJsonRequest(Request.Method.POST, endpoint, params, headers).addCallback(adapt(new WingApiCallback() {
             @Override
-            public Map<String, String> getHeaders() throws AuthFailureError {
-                Map<String, String>  headers = new HashMap<String, String>();
-                headers.put("Accept", "application/json");
-                headers.put("Content-Type", "application/json");
+            public void onSuccessResponse(JSONObject response) {
+                Log.d("Client",response.toString());
+                try {
+                    token.set(response.getString("token"));
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    onErrorResponse(e);
+                    return;
+                }
+                for (WingApiCallback pending : takePendingAuthCallbacks()) {
+                    pending.onSuccessResponse(response);
+                }
+            }
 
-                return headers;
-            }};
+            @Override
+            public void onErrorResponse(Exception error) {
+                Log.d("Client",String.valueOf(error.getMessage()));
+                for (WingApiCallback pending : takePendingAuthCallbacks()) {
+                    pending.onErrorResponse(error);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Authenticates the application with the Wing API using the assigned Client ID/Secret.
+     * Cancelling the returned future only detaches this caller; a login shared with other callers keeps running.
+     * @return A future that succeeds once the client holds a token
+     * @throws JSONException
+     */
+    public WingFuture<Void> authenticate() throws JSONException {
+        final WingFuture<Void> future = new WingFuture<>();
+        authenticate(new WingApiCallback() {
+            @Override
+            public void onSuccessResponse(JSONObject result) {
+                future.complete(null);
+            }
+
+            @Override
+            public void onErrorResponse(Exception error) {
+                future.fail(error);
+            }
+        });
+        return future;
+    }
 
-        getRequestQueue().add(newRequest);
+    private List<WingApiCallback> takePendingAuthCallbacks() {
+        synchronized (authLock) {
+            List<WingApiCallback> callbacks = pendingAuthCallbacks;
+            pendingAuthCallbacks = null;
+            return callbacks;
+        }
+    }
+
+    /**
+     * Indicate if the client holds an authentication token
+     * @return authenticated status
+     */
+    public boolean isAuthenticated() {
+        return !token.get().isEmpty();
     }
 
     /**
@@ -129,7 +268,27 @@ public class Client {
      * @return boolean
      */
     public void createTestSession(PatientData patientData, String timezone, final double latitude, final double longitude, final Integer altitude, final Integer floor, final Integer guessedResult, final WingApiCallback callback) throws JSONException {
-        String endpoint = BASE_API_URL + "/test-sessions";
+        postTestSession(patientData).addCallback(adapt(callback));
+    }
+
+    /**
+     * Creates a new WING test session
+     * @param patientData The patient taking the test
+     * @param timezone
+     * @param latitude
+     * @param longitude
+     * @param altitude
+     * @param floor
+     * @param guessedResult
+     * @return A future for the created test session; cancelling it cancels the request
+     * @throws JSONException
+     */
+    public WingFuture<TestSession> createTestSession(PatientData patientData, String timezone, double latitude, double longitude, Integer altitude, Integer floor, Integer guessedResult) throws JSONException {
+        return postTestSession(patientData).map(parser(TestSession.class));
+    }
+
+    private WingFuture<JSONObject> postTestSession(PatientData patientData) throws JSONException {
+        String endpoint = baseApiUrl + "/test-sessions";
         JSONObject params = new JSONObject();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.ENGLISH);
         String formattedDate = sdf.format(new Date());
@@ -141,34 +300,7 @@ public class Client {
         params.put("localTimezone", formattedDate);
         params.put("patient",patientObj);
 
-        JsonObjectRequest newRequest = new JsonObjectRequest
-                (Request.Method.POST, endpoint, params, new Response.Listener<JSONObject>() {
-                    //response callback
-                    @Override
-                    public void onResponse(JSONObject response) {
-                        callback.onSuccessResponse(response);
-                    }
-                }, new Response.ErrorListener() {
-                    //Error callback
-                    @Override
-                    public void onErrorResponse(VolleyError error) {
-                        // TODO: 11/6/2017
-                        Log.d("err",error.toString());
-                        callback.onErrorResponse(error);
-                    }
-                }){
-
-            //add headers
-            @Override
-            public Map<String, String> getHeaders() throws AuthFailureError {
-                Map<String, String>  headers = new HashMap<String, String>();
-                headers.put("Authorization", token);
-                headers.put("Content-Type", "application/json");
-                return headers;
-            }
-        };
-
-        getRequestQueue().add(newRequest);
+        return sendJsonRequest(Request.Method.POST, endpoint, params, authorizedHeaders());
     }
 
 
@@ -180,46 +312,277 @@ public class Client {
      * @return boolean
      */
     public void retrieveTestSession(final String sessionId,final String patientId, final WingApiCallback callback){
-        String endpoint = BASE_API_URL + "/patients/"+patientId+"/test-sessions/"+sessionId;
+        getTestSession(sessionId, patientId).addCallback(adapt(callback));
+    }
 
-        //setup a request
-        JsonObjectRequest newRequest = new JsonObjectRequest
-                (Request.Method.GET, endpoint, null, new Response.Listener<JSONObject>() {
-                    //response callback
-                    @Override
-                    public void onResponse(JSONObject response) {
-                        callback.onSuccessResponse(response);
+    /**
+     * Retrieves a users WING test session. The session is stored in the history when one is kept.
+     *
+     * With the shared HTTP stack, polls are conditional: a session that has not changed since it was
+     * last retrieved is not parsed again, nor stored again, and tests that had finished processing are
+     * reused rather than parsed (see {@link TestSessionSync}).
+     * @param sessionId The test session id
+     * @param patientId The patient id
+     * @return A future for the test session; cancelling it cancels the request
+     */
+    public WingFuture<TestSession> retrieveTestSession(String sessionId, String patientId) {
+        if (httpEngine != null) {
+            return syncTestSession(sessionId, patientId);
+        }
+        WingFuture<TestSession> session = getTestSession(sessionId, patientId).map(parser(TestSession.class));
+        // if the history IS kept...
+        if (historyStore != null) {
+            session.addCallback(new WingFuture.Callback<TestSession>() {
+                @Override
+                public void onSuccess(TestSession result) {
+                    recordInHistory(result);
+                }
+
+                @Override
+                public void onFailure(Exception error) {
+                }
+            });
+        }
+        return session;
+    }
+
+    /**
+     * Store a test session in the history on the history thread, when a history is kept
+     * @param session The session; it is not changed afterwards
+     */
+    public void recordInHistory(final TestSession session) {
+        if (historyStore == null || session.id == null || session.patientId == null) {
+            return;
+        }
+        historyScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (trendEngine == null) {
+                        historyStore.put(session);
+                        return;
                     }
-                }, new Response.ErrorListener() {
-                    //Error callback
-                    @Override
-                    public void onErrorResponse(VolleyError error) {
-                        Log.d("err",error.toString());
-                        callback.onErrorResponse(error);
+                    // the tests already counted are those finished in the stored copy
+                    TestSession previous = historyStore.get(session.id);
+                    historyStore.put(session);
+                    try {
+                        trendEngine.add(session, previous);
+                        trendEngine.save();
+                    } catch (IOException e) {
+                        Log.e("Client", "Unable to update the trends - " + e.getMessage());
+                        rebuildTrends();
                     }
-                }){
-            //add headers
+                } catch (IOException e) {
+                    Log.e("Client", "Unable to store the test session - " + e.getMessage());
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Return the history of retrieved test sessions
+     * @return history store, or null when {@link ClientConfiguration#keepHistory} is off
+     */
+    public HistoryStore getHistoryStore() {
+        return historyStore;
+    }
+
+    /**
+     * Return the trends of the sessions in the history
+     * @return trend engine, or null when {@link ClientConfiguration#keepTrends} or
+     * {@link ClientConfiguration#keepHistory} is off
+     */
+    public TrendEngine getTrendEngine() {
+        return trendEngine;
+    }
+
+    /**
+     * Recompute the trends from the history, when they are new or could not be read. Runs on the
+     * history thread, like {@link #recordInHistory}, so no session is stored between the rebuild and the save.
+     */
+    private void rebuildTrends() {
+        try {
+            trendEngine.rebuild(historyStore);
+            trendEngine.save();
+        } catch (IOException e) {
+            Log.e("Client", "Unable to rebuild the trends - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Poll a test session through the shared {@link HttpEngine}, parsing and storing only what has changed
+     */
+    private WingFuture<TestSession> syncTestSession(final String sessionId, String patientId) {
+        final WingFuture<TestSession> future = new WingFuture<>();
+        HttpRequest request = new HttpRequest("GET", baseApiUrl + "/patients/"+patientId+"/test-sessions/"+sessionId);
+        request.headers.putAll(authorizedHeaders());
+        sessionSync.prepare(sessionId, request);
+
+        final HttpEngine.Call call = httpEngine.enqueue(request, new HttpEngine.Callback() {
             @Override
-            public Map<String, String> getHeaders() throws AuthFailureError {
-                Map<String, String>  headers = new HashMap<String, String>();
-                headers.put("Authorization", token);
-                headers.put("Content-Type", "application/json");
+            public void onResponse(HttpResponse response) {
+                // if the server returned an error status...
+                if (!response.isSuccessful() && response.statusCode != 304) {
+                    deliverError(future, new HttpStatusException(response));
+                    return;
+                }
 
-                return headers;
+                TestSessionSync.Poll poll;
+                try {
+                    poll = sessionSync.read(sessionId, response);
+                } catch (IOException | RuntimeException e) {
+                    deliverError(future, e);
+                    return;
+                }
+                // an unchanged session is already in the history
+                if (poll.changed) {
+                    recordInHistory(poll.session);
+                }
+                deliverSuccess(future, poll.session);
             }
-        };
-        getRequestQueue().add(newRequest);
+
+            @Override
+            public void onFailure(IOException error) {
+                deliverError(future, error);
+            }
+        });
+        future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Page through a patient's test sessions, fetching pages ahead as configured
+     * @param patientId The patient id
+     * @param pageSize The most sessions on a page
+     * @return pager
+     */
+    public TestSessionPager pageTestSessions(String patientId, int pageSize) {
+        return new TestSessionPager(this, patientId, pageSize, prefetchPages);
     }
 
     /**
-     * method to retrieve the current network request queue
-     * @return RequestQueue
+     * Method to retrieve a page of a patient's test sessions. At most
+     * {@link ClientConfiguration#pageRequestConcurrency} pages are fetched at once; the others wait.
+     * @param patientId The patient id
+     * @param page The page, from 1
+     * @param pageSize The most sessions on a page
+     * @return A future for the page's sessions; fewer than the page size on the last page
      */
-    private RequestQueue getRequestQueue() {
-        if (requestQueue == null) {
-            requestQueue = Volley.newRequestQueue(appContext);
+    public WingFuture<List<TestSession>> listTestSessions(String patientId, int page, final int pageSize) {
+        final String endpoint = baseApiUrl + "/patients/"+patientId+"/test-sessions?page="+page+"&limit="+pageSize;
+
+        WingFuture<List<TestSession>> sessions = pageLimiter.submit(new RequestLimiter.Call<List<TestSession>>() {
+            @Override
+            public WingFuture<List<TestSession>> start() {
+                return httpEngine != null ? fetchPageWithHttpEngine(endpoint, pageSize) : fetchPageWithVolley(endpoint, pageSize);
+            }
+        });
+        // if the history IS kept...
+        if (historyStore != null) {
+            sessions.addCallback(new WingFuture.Callback<List<TestSession>>() {
+                @Override
+                public void onSuccess(List<TestSession> result) {
+                    for (TestSession session : result) {
+                        recordInHistory(session);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception error) {
+                }
+            });
         }
-        return requestQueue;
+        return sessions;
+    }
+
+    private WingFuture<List<TestSession>> fetchPageWithHttpEngine(String endpoint, final int pageSize) {
+        final WingFuture<List<TestSession>> future = new WingFuture<>();
+        HttpRequest request = new HttpRequest("GET", endpoint);
+        request.headers.putAll(authorizedHeaders());
+
+        final HttpEngine.Call call = httpEngine.enqueue(request, new HttpEngine.Callback() {
+            @Override
+            public void onResponse(HttpResponse response) {
+                // if the server returned an error status...
+                if (!response.isSuccessful()) {
+                    deliverError(future, new HttpStatusException(response));
+                    return;
+                }
+
+                try {
+                    deliverSuccess(future, TestSessionPager.parse(response.body, pageSize));
+                } catch (IOException | RuntimeException e) {
+                    deliverError(future, e);
+                }
+            }
+
+            @Override
+            public void onFailure(IOException error) {
+                deliverError(future, error);
+            }
+        });
+        future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        });
+        return future;
+    }
+
+    private WingFuture<List<TestSession>> fetchPageWithVolley(String endpoint, final int pageSize) {
+        final WingFuture<List<TestSession>> future = new WingFuture<>();
+        final Map<String, String> headers = authorizedHeaders();
+
+        final Request<List<TestSession>> newRequest = new Request<List<TestSession>>(Request.Method.GET, endpoint, new Response.ErrorListener() {
+            //Error callback
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                Log.d("err",error.toString());
+                future.fail(error);
+            }
+        }) {
+            //add headers
+            @Override
+            public Map<String, String> getHeaders() throws AuthFailureError {
+                return headers;
+            }
+
+            // parsed on Volley's network thread, one session at a time
+            @Override
+            protected Response<List<TestSession>> parseNetworkResponse(NetworkResponse response) {
+                try {
+                    return Response.success(TestSessionPager.parse(response.data, pageSize), HttpHeaderParser.parseCacheHeaders(response));
+                } catch (IOException | RuntimeException e) {
+                    return Response.error(new ParseError(e));
+                }
+            }
+
+            @Override
+            protected void deliverResponse(List<TestSession> response) {
+                future.complete(response);
+            }
+        };
+
+        future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                newRequest.cancel();
+            }
+        });
+        requestQueue.add(newRequest);
+        return future;
+    }
+
+    private WingFuture<JSONObject> getTestSession(String sessionId, String patientId) {
+        String endpoint = baseApiUrl + "/patients/"+patientId+"/test-sessions/"+sessionId;
+
+        return sendJsonRequest(Request.Method.GET, endpoint, null, authorizedHeaders());
     }
 
     /**
@@ -230,43 +593,202 @@ public class Client {
         return appContext;
     }
 
-    public void createUploadTarget(final String testSessionId, final String patientId, final WingApiCallback callback) {
-        String endpoint = BASE_API_URL + "/patients/"+patientId+"/test-sessions/"+testSessionId+"/upload";
+    /**
+     * Return the scheduler used for the client's delayed and periodic work
+     * @return scheduler
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Return the executor that API callbacks are delivered on
+     * @return callback executor
+     */
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * Build the headers sent with every authorized API request
+     * @return header map
+     */
+    private Map<String, String> authorizedHeaders() {
+        Map<String, String>  headers = new HashMap<String, String>();
+        headers.put("Authorization", token.get());
+        headers.put("Content-Type", "application/json");
+        return headers;
+    }
+
+    /**
+     * Send a JSON API request through the configured HTTP stack
+     * @param method A Volley {@link Request.Method} value
+     * @param endpoint The absolute endpoint URL
+     * @param params The JSON body, or null
+     * @param headers The request headers
+     * @return A future for the response body; cancelling it cancels the request
+     */
+    private WingFuture<JSONObject> sendJsonRequest(int method, String endpoint, JSONObject params, final Map<String, String> headers) {
+        final WingFuture<JSONObject> future = new WingFuture<>();
 
-        //setup a request
-        JsonObjectRequest newRequest = new JsonObjectRequest
-                (Request.Method.GET, endpoint, null, new Response.Listener<JSONObject>() {
+        // if the shared HTTP stack IS enabled...
+        if (httpEngine != null) {
+            sendWithHttpEngine(method, endpoint, params, headers, future);
+            return future;
+        }
 
+        final JsonObjectRequest newRequest = new JsonObjectRequest
+                (method, endpoint, params, new Response.Listener<JSONObject>() {
                     //response callback
                     @Override
                     public void onResponse(JSONObject response) {
-                        callback.onSuccessResponse(response);
+                        future.complete(response);
                     }
-
                 }, new Response.ErrorListener() {
-
                     //Error callback
                     @Override
                     public void onErrorResponse(VolleyError error) {
                         Log.d("err",error.toString());
-                        callback.onErrorResponse(error);
+                        future.fail(error);
                     }
                 }){
-
-
             //add headers
             @Override
             public Map<String, String> getHeaders() throws AuthFailureError {
-                Map<String, String>  headers = new HashMap<String, String>();
-                headers.put("Authorization", token);
-                headers.put("Content-Type", "application/json");
-
                 return headers;
             }
+        };
+
+        future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                // Volley drops the response of a cancelled request, so the listeners above are never called
+                newRequest.cancel();
+            }
+        });
+        requestQueue.add(newRequest);
+        return future;
+    }
+
+    /**
+     * Send a JSON API request through the shared {@link HttpEngine}
+     */
+    private void sendWithHttpEngine(int method, String endpoint, JSONObject params, Map<String, String> headers, final WingFuture<JSONObject> future) {
+        HttpRequest request = new HttpRequest(httpMethodName(method), endpoint);
+        request.headers.putAll(headers);
+        if (params != null) {
+            request.body(params.toString());
+        }
+
+        final HttpEngine.Call call = httpEngine.enqueue(request, new HttpEngine.Callback() {
+            @Override
+            public void onResponse(HttpResponse response) {
+                // if the server returned an error status...
+                if (!response.isSuccessful()) {
+                    deliverError(future, new HttpStatusException(response));
+                    return;
+                }
+
+                try {
+                    String body = response.bodyString();
+                    deliverSuccess(future, body.isEmpty() ? new JSONObject() : new JSONObject(body));
+                } catch (JSONException e) {
+                    deliverError(future, e);
+                }
+            }
+
+            @Override
+            public void onFailure(IOException error) {
+                deliverError(future, error);
+            }
+        });
+        future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        });
+    }
+
+    private static String httpMethodName(int method) {
+        switch (method) {
+            case Request.Method.POST:
+                return "POST";
+            case Request.Method.PUT:
+                return "PUT";
+            case Request.Method.DELETE:
+                return "DELETE";
+            default:
+                return "GET";
+        }
+    }
+
+    private <T> void deliverSuccess(final WingFuture<T> future, final T result) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(result);
+            }
+        });
+    }
+
+    private void deliverError(final WingFuture<?> future, final Exception error) {
+        Log.d("err", error.toString());
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.fail(error);
+            }
+        });
+    }
+
+    /**
+     * Adapt a {@link WingApiCallback} to receive the result of a JSON request future
+     */
+    private static WingFuture.Callback<JSONObject> adapt(final WingApiCallback callback) {
+        return new WingFuture.Callback<JSONObject>() {
+            @Override
+            public void onSuccess(JSONObject result) {
+                callback.onSuccessResponse(result);
+            }
 
+            @Override
+            public void onFailure(Exception error) {
+                callback.onErrorResponse(error);
+            }
         };
+    }
 
-        getRequestQueue().add(newRequest);
+    /**
+     * Parse a JSON response into one of the SDK's model classes
+     */
+    private static <T> WingFuture.Function<JSONObject, T> parser(final Class<T> type) {
+        return new WingFuture.Function<JSONObject, T>() {
+            @Override
+            public T apply(JSONObject input) {
+                return new Gson().fromJson(input.toString(), type);
+            }
+        };
+    }
+
+    public void createUploadTarget(final String testSessionId, final String patientId, final WingApiCallback callback) {
+        getUploadTarget(testSessionId, patientId).addCallback(adapt(callback));
+    }
+
+    /**
+     * Creates a new upload target for a test recording
+     * @param testSessionId The test session id
+     * @param patientId The patient id
+     * @return A future for the upload target; cancelling it cancels the request
+     */
+    public WingFuture<UploadTarget> createUploadTarget(String testSessionId, String patientId) {
+        return getUploadTarget(testSessionId, patientId).map(parser(UploadTarget.class));
+    }
+
+    private WingFuture<JSONObject> getUploadTarget(String testSessionId, String patientId) {
+        String endpoint = baseApiUrl + "/patients/"+patientId+"/test-sessions/"+testSessionId+"/upload";
+
+        return sendJsonRequest(Request.Method.GET, endpoint, null, authorizedHeaders());
     }
 
     /**
@@ -277,74 +799,115 @@ public class Client {
      * @throws JSONException
      */
     public void uploadFile(String filePath, UploadTarget target, final WingApiCallback callback) {
-        File newFile = new File(filePath);
-
-//        new Thread(new Runnable() {
-//            @Override
-//            public void run() {
-//                try {
-//                    Thread.sleep(500);
-//                } catch (InterruptedException e) {
-//                    e.printStackTrace();
-//                }
-//                callback.onErrorResponse(new Exception("Test Error"));
-//            }
-//        }).start();
-
-        TransferObserver observer = transferUtility.upload(
-                target.bucket,     /* The bucket to upload to */
-                target.key,    /* The key for the Uploaded object */
-                newFile,        /* The file where the data to upload exists */
-                new ObjectMetadata(),   /* An empty meta data object */
-                null,       /* The ACL list for the upload */
-                new TransferListener() { /* changed to set the transfer listener inside of the upload method  TSP 1/23/18 */
-                    @Override
-                    public void onStateChanged(int id, TransferState state) {
-                        try {
-                            // if the transfer state is COMPLETED...  TSP 1/17/18
-                            if (state == TransferState.COMPLETED) {
-                                callback.onSuccessResponse(new JSONObject().put("Upload Callback", "Success"));
-                            }
-                            // if the transfer state is FAILED...  TSP 1/17/18
-                            else if (state == TransferState.FAILED) {
-                                throw new Exception("Upload Failed!");
-                            }
-                            // if the transfer state is CANCELED...  TSP 1/17/18
-                            else if (state == TransferState.CANCELED) {
-                                throw new Exception("Upload Cancelled!");
-                            }
-                            // if the transfer state is anything else...  TSP 1/17/18
-                            else {
-                                // do nothing
-                            }
-                        } catch (JSONException ex) {
-                            callback.onErrorResponse(ex);
-                        } catch (Exception ex) {
-                            callback.onErrorResponse(ex);
-                        }
-                    }
+        uploadFile(filePath, target).map(new WingFuture.Function<Void, JSONObject>() {
+            @Override
+            public JSONObject apply(Void input) throws JSONException {
+                return new JSONObject().put("Upload Callback", "Success");
+            }
+        }).addCallback(adapt(callback));
+    }
 
-                    @Override
-                    public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
-                        // TODO - does there need to be a callback method for reporting the upload progress?  TSP 1/17/18
-                    }
+    /**
+     * Upload a test recording to be processed. Cancelling the returned future stops the result from
+     * being delivered; a transfer that has already started runs to completion.
+     * @param filePath The absolute path to the file being uploaded
+     * @param target The upload target object
+     * @return A future that succeeds once the recording is stored
+     */
+    public WingFuture<Void> uploadFile(String filePath, UploadTarget target) {
+        return uploadFile(filePath, target, (UploadProgressListener) null);
+    }
 
+    /**
+     * Upload a test recording to be processed, reporting its progress. With resumable uploads a copy
+     * of the recording is kept in the upload journal until it is stored; the file at the given path is left alone.
+     * @param filePath The absolute path to the file being uploaded, or null to resume the journal's copy for the target
+     * @param target The upload target object
+     * @param progress Receives the upload progress on the callback executor, at most a few times a second; or null
+     * @return A future that succeeds once the recording is stored
+     */
+    public WingFuture<Void> uploadFile(String filePath, UploadTarget target, final UploadProgressListener progress) {
+        final WingFuture<Void> future = new WingFuture<>();
+        UploadProgressListener delivered = progress == null ? null : new UploadProgressListener() {
+            @Override
+            public void onProgress(final long bytesSent, final long bytesTotal) {
+                getCallbackExecutor().execute(new Runnable() {
                     @Override
-                    public void onError(int id, Exception ex) {
-                        callback.onErrorResponse(ex);
+                    public void run() {
+                        progress.onProgress(bytesSent, bytesTotal);
                     }
-                }
-        );
+                });
+            }
+        };
+        uploader.upload(filePath == null ? null : new File(filePath), target, delivered, new UploadCallback() {
+            @Override
+            public void onSuccess() {
+                deliverSuccess(future, null);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                deliverError(future, error);
+            }
+        });
+        return future;
     }
 
-    private void setupAWS(){
-        credentialsProvider = new CognitoCachingCredentialsProvider(getAppContext(),identityPoolId,cognitoRegion);
-        s3 = new AmazonS3Client(credentialsProvider);
-        transferUtility = new TransferUtility(s3, getAppContext());
+    /**
+     * Resume the uploads that were interrupted by a dropped connection or by the app being killed, e.g. at app start.
+     * Uploads past {@link ClientConfiguration#uploadJournalMaxAttempts} or {@link ClientConfiguration#uploadJournalMaxAgeMs} are dropped instead.
+     * @return A future that succeeds once every pending recording is stored
+     */
+    public WingFuture<Void> resumePendingUploads() {
+        List<WingFuture<Void>> uploads = new ArrayList<>();
+        // if there IS an upload journal...
+        if (uploadJournal != null) {
+            for (UploadJournal.Entry entry : uploadJournal.pending()) {
+                uploads.add(uploadFile(null, entry.target));
+            }
+        }
+        return WingFuture.allOf(uploads.toArray(new WingFuture<?>[uploads.size()]));
     }
 
+    /**
+     * Create the uploader selected by the configuration
+     * @param configuration The client settings
+     * @return the recording uploader
+     */
+    private RecordingUploader setupUploader(ClientConfiguration configuration){
+        boolean awsSdkPresent = isAwsSdkPresent();
+        if (configuration.uploaderType == ClientConfiguration.UploaderType.awsSdk && !awsSdkPresent) {
+            Log.w("Client", "The AWS Mobile SDK is not in the app; uploading with the lightweight uploader");
+        }
+        // if the lightweight uploader IS selected, or the AWS SDK is not there...
+        if (configuration.uploaderType == ClientConfiguration.UploaderType.lightweight || !awsSdkPresent) {
+            // uploads get a single thread of their own unless the shared HTTP stack is enabled
+            HttpEngine uploadEngine = httpEngine != null ? httpEngine
+                    : new HttpEngine(1, configuration.connectTimeoutMs, configuration.readTimeoutMs);
+            CognitoIdentityClient cognitoClient = new CognitoIdentityClient(uploadEngine, cognitoRegion, identityPoolId, configuration.cognitoEndpoint);
+            return new LightweightS3Uploader(uploadEngine, cognitoClient, cognitoRegion, configuration.s3Endpoint,
+                    uploadJournal, LightweightS3Uploader.MINIMUM_PART_SIZE);
+        }
+        else {
+            return new AwsSdkUploader(getAppContext(), identityPoolId, cognitoRegion, httpEngine, uploadJournal);
+        }
+    }
+    /**
+     * Check whether the app includes the AWS Mobile SDK, which the SDK does not bring in itself
+     * @return true when the classes the {@link AwsSdkUploader} uses can be loaded
+     */
+    private static boolean isAwsSdkPresent() {
+        try {
+            Class.forName("com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility", false, Client.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+
     public void createPatient(PatientData newPatient){
-        String endpoint = BASE_API_URL + "/patients/";
+        String endpoint = baseApiUrl + "/patients/";
     }
 
     public class OAuthCredentials {
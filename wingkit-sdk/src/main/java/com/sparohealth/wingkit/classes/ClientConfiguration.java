@@ -0,0 +1,82 @@
+package com.sparohealth.wingkit.classes;
+
+import com.sparohealth.wingkit.classes.scheduling.Scheduler;
+import com.sparohealth.wingkit.classes.upload.UploadJournal;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Optional settings used when creating a {@link Client}
+ */
+public class ClientConfiguration {
+    /// The base URL of the Wing REST API.
+    public String baseApiUrl = "https://3rd-party-api.mywing.io/v2";
+
+    /// Route both the REST API calls and the recording uploads through one shared {@link com.sparohealth.wingkit.classes.network.HttpEngine}
+    /// instead of Volley and a separate upload stack.
+    public boolean useSharedHttpStack = false;
+
+    /// The maximum number of threads (and concurrent requests) used by the shared HTTP stack.
+    public int httpThreadPoolSize = 2;
+
+    /// The connection timeout used by the shared HTTP stack, in milliseconds.
+    public int connectTimeoutMs = 15000;
+
+    /// The read timeout used by the shared HTTP stack, in milliseconds.
+    public int readTimeoutMs = 30000;
+
+    /// The executor that API callbacks are delivered on when using the shared HTTP stack.
+    /// When null, callbacks are posted to the main thread like Volley does.
+    public Executor callbackExecutor = null;
+
+    /// The scheduler used for the client's delayed and periodic work (e.g. processing polls).
+    /// When null, the shared {@link com.sparohealth.wingkit.classes.scheduling.PooledScheduler#getDefault()} is used.
+    public Scheduler scheduler = null;
+
+    /// The implementation used to upload test recordings. The AWS Mobile SDK is not a dependency of this SDK: apps choosing
+    /// {@link UploaderType#awsSdk} add com.amazonaws:aws-android-sdk-core and -s3 themselves, and without them the lightweight
+    /// uploader is used instead.
+    public UploaderType uploaderType = UploaderType.awsSdk;
+
+    /// The Cognito Identity endpoint used by the lightweight uploader, or null for the public AWS endpoint.
+    public String cognitoEndpoint = null;
+
+    /// A path-style S3 endpoint used by the lightweight uploader, or null for the public AWS endpoint.
+    public String s3Endpoint = null;
+
+    /// Keep a copy of each recording in an upload journal in the app's files directory until it is stored, so
+    /// uploads interrupted by a dropped connection or by the app being killed can be resumed.
+    public boolean resumableUploads = true;
+
+    /// The time after which a journaled upload that has not been stored is given up and its copy deleted.
+    public long uploadJournalMaxAgeMs = UploadJournal.DEFAULT_MAX_AGE_MS;
+
+    /// The number of attempts after which a journaled upload that has not been stored is given up and its copy deleted.
+    public int uploadJournalMaxAttempts = UploadJournal.DEFAULT_MAX_ATTEMPTS;
+
+    /// Keep the test sessions the client retrieves in a {@link com.sparohealth.wingkit.classes.history.HistoryStore} in the
+    /// app's files directory, so a patient's history can be listed and charted without fetching it again.
+    public boolean keepHistory = false;
+
+    /// Keep running trends of each patient's results in a {@link com.sparohealth.wingkit.classes.trends.TrendEngine},
+    /// updated as sessions are added to the history. Needs {@link #keepHistory}.
+    public boolean keepTrends = false;
+
+    /// The most pages of test session history fetched at once, across all of the client's pagers.
+    public int pageRequestConcurrency = 2;
+
+    /// The pages a {@link TestSessionPager} fetches ahead of the one being shown.
+    public int prefetchPages = 1;
+
+    /**
+     * Recording uploader implementations
+     */
+    public enum UploaderType {
+        /// Upload with the AWS Mobile SDK (Cognito credentials provider and TransferUtility).
+        awsSdk,
+
+        /// Upload with the SDK's own Cognito client, SigV4 signer and streaming PUT. No AWS SDK classes are loaded,
+        /// so apps using only this uploader can exclude the com.amazonaws dependencies from their build.
+        lightweight
+    }
+}
@@ -7,6 +7,8 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.util.Log;
 
+import com.sparohealth.wingkit.classes.events.EventStream;
+
 /**
  * Monitors network availability to determine if uploading a test recording is possible
  */
@@ -16,6 +18,8 @@ public class ReachabilityMonitor extends BroadcastReceiver {
     ConnectivityManager connManager;
     public boolean isConnected = false;
     private Context appContext = null;
+    /// Stream of connectivity changes.
+    private final EventStream<Boolean> reachabilityEvents = new EventStream<>(true);
 
     /**
      * Set the callback delegate for the {@link ReachabilityMonitor}
@@ -35,6 +39,14 @@ public class ReachabilityMonitor extends BroadcastReceiver {
         updateConnectionStatus();
     }
 
+    /**
+     * Return the stream of connectivity changes (true when connected). New subscribers receive the current status.
+     * @return reachability stream
+     */
+    public EventStream<Boolean> getReachabilityEvents() {
+        return reachabilityEvents;
+    }
+
     private void updateConnectionStatus(){
 
         try {
@@ -50,6 +62,7 @@ public class ReachabilityMonitor extends BroadcastReceiver {
                 Log.d("Network", "Internet Dis-connected");
                 isConnected = false;
             }
+            reachabilityEvents.publish(isConnected);
 
         }catch (Exception ex){
             Log.d("updateConnectionStatus",ex.getMessage());
@@ -68,8 +81,8 @@ public class ReachabilityMonitor extends BroadcastReceiver {
 
         //send update
         try {
+            updateConnectionStatus();
             if (delegate != null){
-                updateConnectionStatus();
                 delegate.reachabilityMonitorDidChangeReachability(this);
             }
         }catch (Exception ex){
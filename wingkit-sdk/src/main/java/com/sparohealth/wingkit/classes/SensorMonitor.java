@@ -5,6 +5,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.media.AudioManager;
 
+import com.sparohealth.wingkit.classes.events.EventStream;
+
 /**
  *
  * Monitors the plugged in state of the sensor. Notifies its delegate whenever the state of the changes
@@ -16,6 +18,8 @@ public class SensorMonitor extends BroadcastReceiver{
     private boolean isActive = false;
     private boolean isPluggedIn = false;
     private boolean isMicrophone = false;
+    /// Stream of sensor availability changes.
+    private final EventStream<Boolean> sensorEvents = new EventStream<>(true);
 
     /**
      * Init method
@@ -30,6 +34,15 @@ public class SensorMonitor extends BroadcastReceiver{
         this.delegate = delegate;
     }
 
+    /**
+     * Return the stream of sensor availability changes (true when the sensor is plugged in).
+     * New subscribers receive the current availability once it is known.
+     * @return sensor stream
+     */
+    public EventStream<Boolean> getSensorEvents() {
+        return sensorEvents;
+    }
+
     /**
      * Updates the state of the Recording device
      */
@@ -50,7 +63,7 @@ public class SensorMonitor extends BroadcastReceiver{
     @Override
     public void onReceive(Context context, Intent intent) {
 
-        if (delegate != null && AudioManager.ACTION_HEADSET_PLUG == intent.getAction()){
+        if (AudioManager.ACTION_HEADSET_PLUG.equals(intent.getAction())){
             //update state
             int state = intent.getIntExtra("state", -1);
             int microphone = intent.getIntExtra("microphone", -1);
@@ -80,7 +93,10 @@ public class SensorMonitor extends BroadcastReceiver{
             }
 
             //send a notification of state changing
-            delegate.sensorStateDidChange(this);
+            sensorEvents.publish(verifySensorIsAvailable());
+            if (delegate != null) {
+                delegate.sensorStateDidChange(this);
+            }
         }
     }
 
@@ -0,0 +1,207 @@
+package com.sparohealth.wingkit.classes;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.sparohealth.wingkit.classes.async.WingFuture;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * {@link TestSessionPager} pages through a patient's test sessions with
+ * {@link Client#listTestSessions(String, int, int)}, so a history screen holds one page at a time
+ * rather than the whole history.
+ *
+ * Once a page arrives, the pages after it are fetched ahead (up to
+ * {@link ClientConfiguration#prefetchPages}) while it is shown; pages are never fetched further ahead
+ * than that, however quickly they arrive. A page shorter than the page size is the last. If a page
+ * fails, it and the pages fetched after it are dropped and asked for again by the next call to
+ * {@link #next()}; the error is only seen if the page had already been handed out.
+ *
+ * Pages are handed out in order and are called back on the client's callback executor.
+ */
+public class TestSessionPager {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /// Shares Gson's reflective adapters across pages.
+    private static final Gson GSON = new Gson();
+
+    private final Client client;
+    private final String patientId;
+    private final int pageSize;
+    private final int prefetchPages;
+
+    /// The next page to ask for, from 1.
+    private int nextPage = 1;
+    /// The pages asked for and not yet handed out, in order.
+    private final Deque<Page> requested = new ArrayDeque<>();
+    /// Indicates the last page has arrived, or the pager was cancelled.
+    private boolean finished = false;
+    private boolean cancelled = false;
+
+    /**
+     * A page asked for
+     */
+    private static class Page {
+        final int number;
+        final WingFuture<List<TestSession>> sessions;
+
+        Page(int number, WingFuture<List<TestSession>> sessions) {
+            this.number = number;
+            this.sessions = sessions;
+        }
+    }
+
+    /**
+     * Initialize the {@link TestSessionPager}. Nothing is fetched until {@link #next()} is called.
+     * @param client The client used for the requests
+     * @param patientId The patient id
+     * @param pageSize The most sessions on a page
+     * @param prefetchPages The pages fetched ahead of the one handed out
+     */
+    public TestSessionPager(Client client, String patientId, int pageSize, int prefetchPages) {
+        if (pageSize < 1 || prefetchPages < 0) {
+            throw new IllegalArgumentException("Invalid page size " + pageSize + " or prefetch " + prefetchPages);
+        }
+        this.client = client;
+        this.patientId = patientId;
+        this.pageSize = pageSize;
+        this.prefetchPages = prefetchPages;
+    }
+
+    /**
+     * Return the next page
+     * @return A future for the page's sessions; empty once the history has been paged through
+     */
+    public synchronized WingFuture<List<TestSession>> next() {
+        if (requested.isEmpty()) {
+            if (finished) {
+                return WingFuture.succeeded(Collections.<TestSession>emptyList());
+            }
+            request();
+        }
+        Page page = requested.poll();
+        // if the page HAS arrived, the ones after it can be fetched now
+        if (page.sessions.isSuccessful()) {
+            prefetch();
+        }
+        return page.sessions;
+    }
+
+    /**
+     * Indicate if there may be more sessions, i.e. the last page has not been handed out
+     * @return true until the last page has been handed out
+     */
+    public synchronized boolean hasMore() {
+        return !finished || !requested.isEmpty();
+    }
+
+    /**
+     * Stop paging, cancelling the pages fetched ahead
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        finished = true;
+        dropAfter(0);
+    }
+
+    private void request() {
+        int number = nextPage++;
+        final WingFuture<List<TestSession>> fetched = client.listTestSessions(patientId, number, pageSize);
+        final Page page = new Page(number, new WingFuture<List<TestSession>>());
+        requested.add(page);
+        page.sessions.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                fetched.cancel();
+            }
+        });
+        // the page is handed on once the pager has caught up with it, so a caller never sees it first
+        fetched.addCallback(new WingFuture.Callback<List<TestSession>>() {
+            @Override
+            public void onSuccess(List<TestSession> sessions) {
+                synchronized (TestSessionPager.this) {
+                    // if this IS the last page...
+                    if (sessions.size() < pageSize) {
+                        finished = true;
+                        dropAfter(page.number);
+                    }
+                    else {
+                        prefetch();
+                    }
+                }
+                page.sessions.complete(sessions);
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                if (!(error instanceof CancellationException)) {
+                    synchronized (TestSessionPager.this) {
+                        // a page fetched ahead is dropped and asked for again when it is wanted; one already
+                        // handed out reports the error, and the next call asks for it again
+                        if (!cancelled) {
+                            dropAfter(page.number - 1);
+                            nextPage = page.number;
+                            finished = false;
+                        }
+                    }
+                }
+                page.sessions.fail(error);
+            }
+        });
+    }
+
+    /**
+     * Fetch pages ahead until {@link #prefetchPages} are waiting to be handed out
+     */
+    private void prefetch() {
+        while (!finished && requested.size() < prefetchPages) {
+            request();
+        }
+    }
+
+    /**
+     * Cancel and forget the pages after the given one
+     */
+    private void dropAfter(int number) {
+        for (Iterator<Page> pages = requested.iterator(); pages.hasNext(); ) {
+            Page page = pages.next();
+            if (page.number > number) {
+                pages.remove();
+                page.sessions.cancel();
+            }
+        }
+    }
+
+    /**
+     * Read a page of sessions, a JSON array, one session at a time
+     * @param body The response body
+     * @param pageSize The expected number of sessions
+     * @return sessions
+     * @throws IOException if the page cannot be read
+     */
+    static List<TestSession> parse(byte[] body, int pageSize) throws IOException {
+        TypeAdapter<TestSession> adapter = GSON.getAdapter(TestSession.class);
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), UTF8));
+        try {
+            List<TestSession> sessions = new ArrayList<>(pageSize);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                sessions.add(adapter.read(reader));
+            }
+            reader.endArray();
+            return sessions;
+        } finally {
+            reader.close();
+        }
+    }
+}
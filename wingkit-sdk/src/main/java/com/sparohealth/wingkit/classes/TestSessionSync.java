@@ -0,0 +1,233 @@
+package com.sparohealth.wingkit.classes;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.sparohealth.wingkit.classes.network.HttpRequest;
+import com.sparohealth.wingkit.classes.network.HttpResponse;
+import com.sparohealth.wingkit.classes.network.HttpStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * {@link TestSessionSync} makes polling a test session cheap when little or nothing has changed since
+ * the last poll.
+ *
+ * It remembers the last copy of each recently polled session with the response's ETag and a checksum
+ * of its body. A poll sends the ETag in If-None-Match; a 304, or a body identical to the last one when
+ * the server sends no ETag, is answered with a copy of the remembered session without parsing anything.
+ * A changed body is parsed, but the tests that had already finished processing (complete or error,
+ * which the server no longer changes) are reused from the last copy: their JSON, exhale curve included,
+ * is skipped rather than parsed.
+ *
+ * Sessions returned are copies, so callers may change them; the {@link Test} objects are shared.
+ */
+class TestSessionSync {
+    /// The most sessions remembered. A client polls one session at a time, or a few.
+    static final int CAPACITY = 8;
+    private static final int NOT_MODIFIED = 304;
+
+    private final Map<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private final Gson gson;
+    /// The finished tests of the session being parsed, by id.
+    private final Map<String, Test> finishedTests = new HashMap<>();
+
+    /**
+     * The last copy of a session
+     */
+    private static class Snapshot {
+        final String etag;
+        final long checksum;
+        final int length;
+        final TestSession session;
+
+        Snapshot(String etag, long checksum, int length, TestSession session) {
+            this.etag = etag;
+            this.checksum = checksum;
+            this.length = length;
+            this.session = session;
+        }
+    }
+
+    /**
+     * The answer to a poll
+     */
+    static class Poll {
+        final TestSession session;
+        /// Whether the session differs from the last copy; false for a 304 or an identical body.
+        final boolean changed;
+
+        Poll(TestSession session, boolean changed) {
+            this.session = session;
+            this.changed = changed;
+        }
+    }
+
+    TestSessionSync() {
+        gson = new GsonBuilder().registerTypeAdapterFactory(new TypeAdapterFactory() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+                if (type.getRawType() != Test.class) {
+                    return null;
+                }
+                return (TypeAdapter<T>) new FinishedTestAdapter(gson.getDelegateAdapter(this, TypeToken.get(Test.class)),
+                        gson.getAdapter(JsonElement.class));
+            }
+        }).create();
+    }
+
+    /**
+     * Ask the server to answer a poll with 304 if the session has not changed
+     * @param sessionId The session id
+     * @param request The poll request
+     */
+    synchronized void prepare(String sessionId, HttpRequest request) {
+        Snapshot snapshot = snapshots.get(sessionId);
+        if (snapshot != null && snapshot.etag != null) {
+            request.header("If-None-Match", snapshot.etag);
+        }
+    }
+
+    /**
+     * Read the answer to a poll
+     * @param sessionId The session id
+     * @param response A successful or 304 response
+     * @return the session, and whether it changed
+     * @throws IOException if the session cannot be read
+     */
+    synchronized Poll read(String sessionId, HttpResponse response) throws IOException {
+        Snapshot previous = snapshots.get(sessionId);
+        if (response.statusCode == NOT_MODIFIED) {
+            // if the session WAS forgotten since the request was sent...
+            if (previous == null) {
+                throw new HttpStatusException(response);
+            }
+            return new Poll(copy(previous.session), false);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(response.body, 0, response.body.length);
+        String etag = response.header("ETag");
+        // if the body IS the same as last time...
+        if (previous != null && previous.length == response.body.length && previous.checksum == crc.getValue()) {
+            snapshots.put(sessionId, new Snapshot(etag, previous.checksum, previous.length, previous.session));
+            return new Poll(copy(previous.session), false);
+        }
+
+        finishedTests.clear();
+        if (previous != null) {
+            addFinished(previous.session.bestTest);
+            for (int i = 0; previous.session.tests != null && i < previous.session.tests.size(); i++) {
+                addFinished(previous.session.tests.get(i));
+            }
+        }
+        TestSession session;
+        try {
+            session = gson.fromJson(new InputStreamReader(new ByteArrayInputStream(response.body), Charset.forName("UTF-8")), TestSession.class);
+        } finally {
+            finishedTests.clear();
+        }
+        if (session == null) {
+            throw new IOException("Empty test session");
+        }
+        snapshots.put(sessionId, new Snapshot(etag, crc.getValue(), response.body.length, copy(session)));
+        return new Poll(session, true);
+    }
+
+    private void addFinished(Test test) {
+        if (test != null && test.id != null && test.status != null
+                && (test.status.equalsIgnoreCase(Test.TestStatus.complete.name()) || test.status.equalsIgnoreCase(Test.TestStatus.error.name()))) {
+            finishedTests.put(test.id, test);
+        }
+    }
+
+    /**
+     * Copy a session and its lists, sharing the tests
+     */
+    private static TestSession copy(TestSession session) {
+        TestSession copy = new TestSession();
+        copy.id = session.id;
+        copy.patientId = session.patientId;
+        copy.startedAt = session.startedAt;
+        copy.endedAt = session.endedAt;
+        copy.lungFunctionZone = session.lungFunctionZone;
+        copy.respiratoryState = session.respiratoryState;
+        copy.referenceMetric = session.referenceMetric;
+        copy.pefPredicted = session.pefPredicted;
+        copy.fev1Predicted = session.fev1Predicted;
+        copy.latitude = session.latitude;
+        copy.longitude = session.longitude;
+        copy.altitude = session.altitude;
+        copy.floor = session.floor;
+        copy.bestTestChoice = session.bestTestChoice;
+        copy.bestTest = session.bestTest;
+        copy.tests = session.tests != null ? new ArrayList<>(session.tests) : null;
+        copy.breathDuration = session.breathDuration;
+        copy.uploads = session.uploads != null ? new ArrayList<>(session.uploads) : null;
+        return copy;
+    }
+
+    /**
+     * Reads a test, returning the last copy instead once its id shows it had finished processing
+     */
+    private class FinishedTestAdapter extends TypeAdapter<Test> {
+        private final TypeAdapter<Test> delegate;
+        private final TypeAdapter<JsonElement> elements;
+
+        FinishedTestAdapter(TypeAdapter<Test> delegate, TypeAdapter<JsonElement> elements) {
+            this.delegate = delegate;
+            this.elements = elements;
+        }
+
+        @Override
+        public void write(JsonWriter out, Test value) throws IOException {
+            delegate.write(out, value);
+        }
+
+        @Override
+        public Test read(JsonReader in) throws IOException {
+            if (finishedTests.isEmpty() || in.peek() != JsonToken.BEGIN_OBJECT) {
+                return delegate.read(in);
+            }
+            JsonObject object = new JsonObject();
+            Test finished = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                // the rest of a finished test is skipped without being parsed
+                if (finished != null) {
+                    in.skipValue();
+                    continue;
+                }
+                JsonElement value = elements.read(in);
+                object.add(name, value);
+                if (name.equals("id") && value.isJsonPrimitive()) {
+                    finished = finishedTests.get(value.getAsString());
+                }
+            }
+            in.endObject();
+            return finished != null ? finished : delegate.fromJsonTree(object);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * {@link EffortClassification} describes the shape of a blow, as found by {@link EffortClassifier}
+ */
+public class EffortClassification {
+    /**
+     * Effort problems that usually make the server reject a test
+     */
+    public enum Issue {
+        /// No blow was found.
+        noBlow,
+
+        /// Peak flow was reached too long after the start of the blow.
+        slowStart,
+
+        /// Too much air was exhaled before the blow really started.
+        hesitantStart,
+
+        /// The flow rose again after the peak, early in the blow.
+        cough,
+
+        /// The blow was too short or ended abruptly.
+        earlyStop
+    }
+
+    /// The issues found.
+    public final Set<Issue> issues;
+    /// The issues found that the configuration rejects for.
+    public final Set<Issue> rejectedIssues;
+    /// Time from the back-extrapolated start to peak flow (ms).
+    public final long timeToPeakMs;
+    /// Share of the volume exhaled before the back-extrapolated start.
+    public final double extrapolatedVolumeFraction;
+    /// Duration of the blow (ms).
+    public final long blowDurationMs;
+
+    EffortClassification(EnumSet<Issue> issues, EnumSet<Issue> rejectedIssues, long timeToPeakMs,
+                         double extrapolatedVolumeFraction, long blowDurationMs) {
+        this.issues = Collections.unmodifiableSet(issues);
+        this.rejectedIssues = Collections.unmodifiableSet(rejectedIssues);
+        this.timeToPeakMs = timeToPeakMs;
+        this.extrapolatedVolumeFraction = extrapolatedVolumeFraction;
+        this.blowDurationMs = blowDurationMs;
+    }
+
+    /**
+     * Indicate if the given issue was found
+     * @param issue The issue
+     * @return issue status
+     */
+    public boolean hasIssue(Issue issue) {
+        return issues.contains(issue);
+    }
+
+    /**
+     * Indicate if the blow should be uploaded, i.e. none of the issues found is rejected by the configuration
+     * @return upload status
+     */
+    public boolean isAcceptable() {
+        return rejectedIssues.isEmpty();
+    }
+}
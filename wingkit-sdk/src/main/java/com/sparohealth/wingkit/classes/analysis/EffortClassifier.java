@@ -0,0 +1,171 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * {@link EffortClassifier} checks the shape of a blow for a slow or hesitant start, a cough early in
+ * the blow and an early stop. It follows the envelope while the recording is captured, tracking the
+ * peak, the steepest rise and any rebound after the peak frame by frame, so {@link #classify()}
+ * only has to look at the end of the blow once capture stops.
+ *
+ * Use one classifier per recording, fed from one thread.
+ */
+public class EffortClassifier {
+    /// Flow below this fraction of PEF after the peak ends the blow.
+    private static final double END_OF_BLOW_FRACTION = 0.05;
+
+    /// The thresholds in use.
+    private final EffortConfiguration configuration;
+    /// The envelope to flow mapping.
+    private final FlowCalibration calibration;
+
+    /// The envelope rate, known after the first frame.
+    private int rateHz = 0;
+    /// Flow per envelope frame.
+    private double[] flow = new double[1024];
+    /// The number of frames consumed.
+    private int count = 0;
+    /// The first frame with flow, or -1.
+    private int firstFlow = -1;
+    /// Peak flow so far.
+    private double peak = 0;
+    /// The frame of peak flow.
+    private int peakIndex = -1;
+    /// The steepest rise so far and the frame it starts at.
+    private double steepest = 0;
+    private int steepestIndex = -1;
+    /// The steepest rise before the current peak and the frame it starts at.
+    private double peakSteepest = 0;
+    private int peakSteepestIndex = -1;
+    /// The lowest flow since the peak or the last rebound.
+    private double valley = 0;
+    /// The frames where the flow rose again after the peak.
+    private int[] rebounds = new int[8];
+    private int reboundCount = 0;
+
+    /**
+     * Initialize the {@link EffortClassifier}
+     * @param configuration The thresholds to use
+     * @param calibration The envelope to flow mapping
+     */
+    public EffortClassifier(EffortConfiguration configuration, FlowCalibration calibration) {
+        this.configuration = configuration;
+        this.calibration = calibration;
+    }
+
+    /**
+     * Consume the envelope frames added since the last call
+     * @param envelope The envelope of the recording being captured
+     */
+    public void consume(FlowEnvelope envelope) {
+        rateHz = envelope.getRateHz();
+        int size = envelope.size();
+        float[] values = envelope.getValues();
+        for (int i = count; i < size; i++) {
+            addFrame(calibration.flow(values[i]));
+        }
+    }
+
+    /**
+     * Classify the blow from the frames consumed so far
+     * @return classification
+     */
+    public EffortClassification classify() {
+        EnumSet<EffortClassification.Issue> issues = EnumSet.noneOf(EffortClassification.Issue.class);
+        // if there IS no blow...
+        if (peakIndex < 0 || peak <= 0) {
+            issues.add(EffortClassification.Issue.noBlow);
+            return result(issues, 0, 0, 0);
+        }
+        double rate = rateHz;
+        double start = FlowEstimator.tangentStart(flow, peakSteepestIndex, peakSteepest, firstFlow, peakIndex);
+
+        double endLevel = peak * END_OF_BLOW_FRACTION;
+        int end = peakIndex + 1;
+        for (int i = count - 1; i > peakIndex; i--) {
+            if (flow[i] > endLevel) {
+                end = i + 1;
+                break;
+            }
+        }
+
+        long timeToPeakMs = Math.round((peakIndex - start) * 1000 / rate);
+        if (timeToPeakMs > configuration.maximumTimeToPeakMs) {
+            issues.add(EffortClassification.Issue.slowStart);
+        }
+
+        double extrapolated = FlowEstimator.volume(flow, firstFlow, start, rate);
+        double total = FlowEstimator.volume(flow, start, end, rate) + extrapolated;
+        double extrapolatedFraction = total > 0 ? extrapolated / total : 0;
+        if (extrapolatedFraction > configuration.maximumExtrapolatedVolumeFraction) {
+            issues.add(EffortClassification.Issue.hesitantStart);
+        }
+
+        double coughWindowEnd = start + configuration.coughWindowMs * rate / 1000;
+        for (int i = 0; i < reboundCount; i++) {
+            // only rebounds after the final peak count; earlier ones were part of the rise
+            if (rebounds[i] > peakIndex && rebounds[i] < coughWindowEnd) {
+                issues.add(EffortClassification.Issue.cough);
+            }
+        }
+
+        long blowDurationMs = Math.round((end - start) * 1000 / rate);
+        boolean recordingCutBlow = flow[count - 1] > endLevel;
+        if (blowDurationMs < configuration.minimumBlowDurationMs) {
+            issues.add(EffortClassification.Issue.earlyStop);
+        }
+        // if the blow ended on its own, check how suddenly
+        else if (!recordingCutBlow) {
+            int window = (int) Math.max(1, configuration.abruptEndWindowMs * rate / 1000);
+            for (int i = Math.max(peakIndex, end - window); i < end; i++) {
+                if (flow[i] > configuration.abruptEndFraction * peak) {
+                    issues.add(EffortClassification.Issue.earlyStop);
+                    break;
+                }
+            }
+        }
+        return result(issues, timeToPeakMs, extrapolatedFraction, blowDurationMs);
+    }
+
+    private EffortClassification result(EnumSet<EffortClassification.Issue> issues, long timeToPeakMs,
+                                        double extrapolatedFraction, long blowDurationMs) {
+        EnumSet<EffortClassification.Issue> rejected = EnumSet.copyOf(issues);
+        rejected.retainAll(configuration.rejectedIssues);
+        return new EffortClassification(issues, rejected, timeToPeakMs, extrapolatedFraction, blowDurationMs);
+    }
+
+    private void addFrame(double value) {
+        int index = count;
+        if (index == flow.length) {
+            flow = Arrays.copyOf(flow, flow.length * 2);
+        }
+        flow[index] = value;
+        count++;
+
+        if (firstFlow < 0 && value > 0) {
+            firstFlow = index;
+        }
+        if (index > 0 && value - flow[index - 1] > steepest) {
+            steepest = value - flow[index - 1];
+            steepestIndex = index - 1;
+        }
+
+        // if this IS a new peak, the rise before it is the one used for the start
+        if (value > peak) {
+            peak = value;
+            peakIndex = index;
+            peakSteepest = steepest;
+            peakSteepestIndex = steepestIndex;
+            valley = value;
+        } else if (value < valley) {
+            valley = value;
+        } else if (value - valley > configuration.coughRiseFraction * peak) {
+            if (reboundCount == rebounds.length) {
+                rebounds = Arrays.copyOf(rebounds, rebounds.length * 2);
+            }
+            rebounds[reboundCount++] = index;
+            valley = value;
+        }
+    }
+}
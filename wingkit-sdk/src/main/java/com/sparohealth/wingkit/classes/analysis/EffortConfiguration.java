@@ -0,0 +1,34 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import java.util.EnumSet;
+
+/**
+ * Settings used by {@link EffortClassifier}. The defaults follow the usual spirometry acceptability
+ * criteria; deployments can relax or tighten them, or report an issue without rejecting for it.
+ */
+public class EffortConfiguration {
+    /// Blows taking longer than this from the back-extrapolated start to peak flow are slow starts.
+    public long maximumTimeToPeakMs = 120;
+
+    /// Blows with a larger share of their volume before the back-extrapolated start are hesitant starts.
+    public double maximumExtrapolatedVolumeFraction = 0.05;
+
+    /// A flow rise of this fraction of PEF after the peak counts as a cough.
+    public double coughRiseFraction = 0.2;
+
+    /// Coughs are only looked for this long after the start of the blow.
+    public long coughWindowMs = 1000;
+
+    /// Blows shorter than this are early stops.
+    public long minimumBlowDurationMs = 1000;
+
+    /// Blows whose flow falls from above this fraction of PEF to the end of the blow within
+    /// {@link #abruptEndWindowMs} are early stops.
+    public double abruptEndFraction = 0.25;
+
+    /// The window used to detect an abrupt end.
+    public long abruptEndWindowMs = 50;
+
+    /// The issues that make {@link EffortClassification#isAcceptable()} false. Issues not in the set are still reported.
+    public EnumSet<EffortClassification.Issue> rejectedIssues = EnumSet.allOf(EffortClassification.Issue.class);
+}
@@ -0,0 +1,162 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+/**
+ * {@link EnvelopeExtractor} turns 16-bit PCM into a {@link FlowEnvelope} as it is captured. Each
+ * envelope frame is the RMS of the samples it covers after a DC-blocking filter, so the output rate
+ * does not have to divide the sample rate evenly.
+ *
+ * It does not allocate while processing and costs a few operations per sample, so it can run
+ * directly in the capture loop. Not thread safe; feed it from one thread.
+ */
+public class EnvelopeExtractor {
+    /// The default number of envelope values per second.
+    public static final int DEFAULT_RATE_HZ = 100;
+    /// The pole of the DC-blocking filter (about 35 Hz at 44.1 kHz).
+    private static final double DC_BLOCK_POLE = 0.995;
+    /// The full scale of a 16-bit sample.
+    private static final double FULL_SCALE = 32768.0;
+
+    /// The PCM sample rate.
+    private final int sampleRate;
+    /// The envelope being written.
+    private final FlowEnvelope envelope;
+
+    /// The number of input samples consumed.
+    private long samplesConsumed = 0;
+    /// The input sample count at which the current frame ends.
+    private long frameEnd;
+    /// The sum of squares of the current frame.
+    private double frameSumSquares = 0;
+    /// The number of samples in the current frame.
+    private int frameSamples = 0;
+    /// The previous input sample, for the DC-blocking filter.
+    private double previousInput = 0;
+    /// The previous output sample, for the DC-blocking filter.
+    private double previousOutput = 0;
+    /// The low byte of a sample split across two byte buffers, or -1.
+    private int pendingLowByte = -1;
+
+    /**
+     * Initialize the {@link EnvelopeExtractor}
+     * @param sampleRate The PCM sample rate (Hz)
+     * @param envelope The envelope to write to. Its rate sets the frame length.
+     */
+    public EnvelopeExtractor(int sampleRate, FlowEnvelope envelope) {
+        if (sampleRate < envelope.getRateHz()) {
+            throw new IllegalArgumentException("sampleRate must be at least the envelope rate");
+        }
+        this.sampleRate = sampleRate;
+        this.envelope = envelope;
+        this.frameEnd = frameBoundary(1);
+    }
+
+    /**
+     * Create an envelope sized for a recording of the given length and an extractor writing to it
+     * @param sampleRate The PCM sample rate (Hz)
+     * @param rateHz The number of envelope values per second
+     * @param expectedDurationMs The expected recording length; the envelope grows if it runs longer
+     * @return extractor
+     */
+    public static EnvelopeExtractor create(int sampleRate, int rateHz, long expectedDurationMs) {
+        int capacity = (int) (expectedDurationMs * rateHz / 1000) + rateHz;
+        return new EnvelopeExtractor(sampleRate, new FlowEnvelope(rateHz, capacity));
+    }
+
+    /**
+     * Return the envelope being written
+     * @return envelope
+     */
+    public FlowEnvelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Return the PCM sample rate
+     * @return sample rate (Hz)
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Process little-endian 16-bit PCM bytes, as read from AudioRecord
+     * @param pcm The buffer
+     * @param offset The first byte to process
+     * @param length The number of bytes to process
+     * @return the number of envelope values completed
+     */
+    public int process(byte[] pcm, int offset, int length) {
+        int before = envelope.size();
+        int index = offset;
+        int end = offset + length;
+        // if the previous buffer ended halfway through a sample...
+        if (pendingLowByte >= 0 && index < end) {
+            addSample((short) (pendingLowByte | (pcm[index++] << 8)));
+            pendingLowByte = -1;
+        }
+        for (; index + 1 < end; index += 2) {
+            addSample((short) ((pcm[index] & 0xff) | (pcm[index + 1] << 8)));
+        }
+        if (index < end) {
+            pendingLowByte = pcm[index] & 0xff;
+        }
+        return envelope.size() - before;
+    }
+
+    /**
+     * Process 16-bit PCM samples
+     * @param samples The buffer
+     * @param offset The first sample to process
+     * @param length The number of samples to process
+     * @return the number of envelope values completed
+     */
+    public int process(short[] samples, int offset, int length) {
+        int before = envelope.size();
+        for (int index = offset; index < offset + length; index++) {
+            addSample(samples[index]);
+        }
+        return envelope.size() - before;
+    }
+
+    /**
+     * Clear the extractor and its envelope for a new recording
+     */
+    public void reset() {
+        envelope.reset();
+        samplesConsumed = 0;
+        frameEnd = frameBoundary(1);
+        frameSumSquares = 0;
+        frameSamples = 0;
+        previousInput = 0;
+        previousOutput = 0;
+        pendingLowByte = -1;
+    }
+
+    private void addSample(short sample) {
+        double input = sample / FULL_SCALE;
+        double output = input - previousInput + DC_BLOCK_POLE * previousOutput;
+        previousInput = input;
+        previousOutput = output;
+
+        frameSumSquares += output * output;
+        frameSamples++;
+        samplesConsumed++;
+
+        // if the current frame IS complete...
+        if (samplesConsumed == frameEnd) {
+            envelope.append((float) Math.sqrt(frameSumSquares / frameSamples));
+            frameSumSquares = 0;
+            frameSamples = 0;
+            frameEnd = frameBoundary(envelope.size() + 1);
+        }
+    }
+
+    /**
+     * Return the input sample count at which the given envelope frame ends
+     * @param frameCount The one-based frame number
+     * @return sample count
+     */
+    private long frameBoundary(long frameCount) {
+        return frameCount * sampleRate / envelope.getRateHz();
+    }
+}
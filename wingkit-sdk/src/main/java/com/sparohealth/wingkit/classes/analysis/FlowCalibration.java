@@ -0,0 +1,101 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+/**
+ * {@link FlowCalibration} maps envelope values to flow with a power law,
+ * flow = gain * (envelope - noiseFloor) ^ exponent. Fit it against server results with
+ * {@link #fit} so the estimates come out in the same units as {@link com.sparohealth.wingkit.classes.Test#pef}.
+ */
+public class FlowCalibration {
+    /**
+     * A rough model for the Wing sensor (flow in L/s) that has not been fitted to server results.
+     * Estimates made with it are flagged {@link FlowEstimate.Flag#uncalibrated}.
+     */
+    public static final FlowCalibration UNCALIBRATED = new FlowCalibration(14.6, 0.5, 0.002, 0.5, false);
+
+    /// The flow at an envelope value of 1.0 above the noise floor.
+    public final double gain;
+    /// The power law exponent.
+    public final double exponent;
+    /// Envelope values at or below this level are treated as no flow.
+    public final double noiseFloor;
+    /// The expected relative error of a flow value (e.g. 0.1 for +/-10%), from the fit residuals.
+    public final double relativeUncertainty;
+    /// Indicates the calibration was fitted to server results.
+    public final boolean fitted;
+
+    /**
+     * Initialize the {@link FlowCalibration}
+     * @param gain The flow at an envelope value of 1.0 above the noise floor
+     * @param exponent The power law exponent
+     * @param noiseFloor The envelope level treated as no flow
+     * @param relativeUncertainty The expected relative error of a flow value
+     * @param fitted Indicates the calibration was fitted to server results
+     */
+    public FlowCalibration(double gain, double exponent, double noiseFloor, double relativeUncertainty, boolean fitted) {
+        this.gain = gain;
+        this.exponent = exponent;
+        this.noiseFloor = noiseFloor;
+        this.relativeUncertainty = relativeUncertainty;
+        this.fitted = fitted;
+    }
+
+    /**
+     * Convert an envelope value to flow
+     * @param envelope The envelope value
+     * @return flow
+     */
+    public double flow(double envelope) {
+        double level = envelope - noiseFloor;
+        return level > 0 ? gain * Math.pow(level, exponent) : 0;
+    }
+
+    /**
+     * Fit gain and exponent by least squares in log space, from the envelope peak of each recording
+     * and the PEF the server reported for it
+     * @param envelopePeaks The peak envelope value of each recording
+     * @param referencePefs The server's PEF for each recording
+     * @param noiseFloor The envelope level treated as no flow
+     * @return calibration
+     */
+    public static FlowCalibration fit(double[] envelopePeaks, double[] referencePefs, double noiseFloor) {
+        if (envelopePeaks.length != referencePefs.length || envelopePeaks.length < 2) {
+            throw new IllegalArgumentException("at least two matching peaks and PEF values are required");
+        }
+        int count = envelopePeaks.length;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < count; i++) {
+            double level = envelopePeaks[i] - noiseFloor;
+            if (level <= 0 || referencePefs[i] <= 0) {
+                throw new IllegalArgumentException("recording " + i + " has no flow");
+            }
+            x[i] = Math.log(level);
+            y[i] = Math.log(referencePefs[i]);
+            meanX += x[i] / count;
+            meanY += y[i] / count;
+        }
+
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < count; i++) {
+            covariance += (x[i] - meanX) * (y[i] - meanY);
+            variance += (x[i] - meanX) * (x[i] - meanX);
+        }
+        if (variance == 0) {
+            throw new IllegalArgumentException("the recordings must cover more than one flow level");
+        }
+        double exponent = covariance / variance;
+        double logGain = meanY - exponent * meanX;
+
+        double residuals = 0;
+        for (int i = 0; i < count; i++) {
+            double residual = y[i] - (logGain + exponent * x[i]);
+            residuals += residual * residual;
+        }
+        // two standard deviations of the log residuals, as a relative error
+        double spread = count > 2 ? Math.sqrt(residuals / (count - 2)) : 0;
+        return new FlowCalibration(Math.exp(logGain), exponent, noiseFloor, Math.exp(2 * spread) - 1, true);
+    }
+}
@@ -0,0 +1,129 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+/**
+ * {@link FlowEnvelope} is the decimated loudness envelope of a recording: one RMS value (full scale
+ * = 1.0) per envelope frame, e.g. 100 per second. It is the shape of the effort curve, available
+ * while the recording is still in progress.
+ *
+ * Values are appended by a single writer and are never changed once written, so readers use the
+ * backing array directly instead of copying it. Read {@link #size()} first, then
+ * {@link #getValues()}; the array returned is always at least that long.
+ */
+public class FlowEnvelope {
+    /// The number of envelope values per second.
+    private final int rateHz;
+    /// The backing array. It is replaced by a larger copy when full.
+    private volatile float[] values;
+    /// The number of values written.
+    private volatile int size = 0;
+    /// The largest value written.
+    private float peak = 0;
+    /// The index of the largest value written.
+    private int peakIndex = -1;
+
+    /**
+     * Initialize the {@link FlowEnvelope}
+     * @param rateHz The number of envelope values per second
+     * @param capacity The number of values to allocate room for up front
+     */
+    public FlowEnvelope(int rateHz, int capacity) {
+        if (rateHz <= 0) {
+            throw new IllegalArgumentException("rateHz must be positive");
+        }
+        this.rateHz = rateHz;
+        this.values = new float[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Return the number of envelope values per second
+     * @return envelope rate (Hz)
+     */
+    public int getRateHz() {
+        return rateHz;
+    }
+
+    /**
+     * Return the number of values written so far
+     * @return value count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the backing array. Only the first {@link #size()} entries are valid.
+     * @return envelope values
+     */
+    public float[] getValues() {
+        return values;
+    }
+
+    /**
+     * Return one envelope value
+     * @param index The value index, less than {@link #size()}
+     * @return envelope value
+     */
+    public float get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return values[index];
+    }
+
+    /**
+     * Return the duration covered by the envelope
+     * @return duration (ms)
+     */
+    public long getDurationMs() {
+        return size * 1000L / rateHz;
+    }
+
+    /**
+     * Return the largest value written. Only meaningful on the writer's thread or once the
+     * recording has finished.
+     * @return peak value
+     */
+    public float getPeak() {
+        return peak;
+    }
+
+    /**
+     * Return the index of the largest value written
+     * @return peak index, or -1 if the envelope is empty
+     */
+    public int getPeakIndex() {
+        return peakIndex;
+    }
+
+    /**
+     * Append a value. Called by the single writer, normally {@link EnvelopeExtractor}.
+     * @param value The envelope value
+     */
+    public void append(float value) {
+        int index = size;
+        float[] current = values;
+        // if the backing array IS full...
+        if (index == current.length) {
+            float[] larger = new float[current.length * 2];
+            System.arraycopy(current, 0, larger, 0, index);
+            values = larger;
+            current = larger;
+        }
+        current[index] = value;
+        if (value > peak || peakIndex < 0) {
+            peak = value;
+            peakIndex = index;
+        }
+        // publish the value by advancing the size last
+        size = index + 1;
+    }
+
+    /**
+     * Clear the envelope so the buffer can be reused. Readers must be done with it first.
+     */
+    public void reset() {
+        size = 0;
+        peak = 0;
+        peakIndex = -1;
+    }
+}
@@ -0,0 +1,93 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * {@link FlowEstimate} is a provisional on-device result for one recording, available as soon as the
+ * recording ends. Values are null when no blow was detected. Each value comes with an uncertainty
+ * (+/- in the same units); the processed {@link com.sparohealth.wingkit.classes.Test} from the
+ * server always takes precedence.
+ */
+public class FlowEstimate {
+    /**
+     * Conditions that make the estimate less reliable
+     */
+    public enum Flag {
+        /// The calibration has not been fitted to server results, so values are only indicative.
+        uncalibrated,
+
+        /// No flow above the noise floor was found.
+        noBlowDetected,
+
+        /// The blow lasted less than one second, so FEV1 equals the total volume.
+        shortBlow,
+
+        /// More than 5% of the volume came before the back-extrapolated start (hesitant start).
+        lateStart,
+
+        /// The recording ended while flow was still above the end-of-blow level.
+        truncated
+    }
+
+    /// Always true; the server result replaces this estimate.
+    public final boolean provisional = true;
+    /// Peak expiratory flow.
+    public final Double pef;
+    /// Volume exhaled in the first second after the back-extrapolated start.
+    public final Double fev1;
+    /// Volume exhaled over the whole blow.
+    public final Double totalVolume;
+    /// Duration of the blow (s).
+    public final Double breathDuration;
+    /// Uncertainty of {@link #pef}.
+    public final Double pefUncertainty;
+    /// Uncertainty of {@link #fev1}.
+    public final Double fev1Uncertainty;
+    /// Uncertainty of {@link #totalVolume}.
+    public final Double totalVolumeUncertainty;
+    /// Uncertainty of {@link #breathDuration} (s).
+    public final Double breathDurationUncertainty;
+    /// Time from the start of the recording to the back-extrapolated start of the blow (ms).
+    public final Long startOffsetMs;
+    /// Time from the start of the blow to peak flow (ms).
+    public final Long timeToPeakMs;
+    /// Conditions that make the estimate less reliable.
+    public final Set<Flag> flags;
+
+    FlowEstimate(Double pef, Double fev1, Double totalVolume, Double breathDuration,
+                 Double pefUncertainty, Double fev1Uncertainty, Double totalVolumeUncertainty,
+                 Double breathDurationUncertainty, Long startOffsetMs, Long timeToPeakMs, EnumSet<Flag> flags) {
+        this.pef = pef;
+        this.fev1 = fev1;
+        this.totalVolume = totalVolume;
+        this.breathDuration = breathDuration;
+        this.pefUncertainty = pefUncertainty;
+        this.fev1Uncertainty = fev1Uncertainty;
+        this.totalVolumeUncertainty = totalVolumeUncertainty;
+        this.breathDurationUncertainty = breathDurationUncertainty;
+        this.startOffsetMs = startOffsetMs;
+        this.timeToPeakMs = timeToPeakMs;
+        this.flags = Collections.unmodifiableSet(flags);
+    }
+
+    /**
+     * Create an estimate for a recording without a blow
+     * @param flags The flags to report
+     * @return estimate
+     */
+    static FlowEstimate noBlow(EnumSet<Flag> flags) {
+        flags.add(Flag.noBlowDetected);
+        return new FlowEstimate(null, null, null, null, null, null, null, null, null, null, flags);
+    }
+
+    /**
+     * Indicate if the estimate carries the given flag
+     * @param flag The flag
+     * @return flag status
+     */
+    public boolean hasFlag(Flag flag) {
+        return flags.contains(flag);
+    }
+}
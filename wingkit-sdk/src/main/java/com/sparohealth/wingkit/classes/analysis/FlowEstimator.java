@@ -0,0 +1,196 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import java.util.EnumSet;
+
+/**
+ * {@link FlowEstimator} produces a provisional PEF, FEV1 and breath duration from the envelope of a
+ * finished recording. The blow start is found by back-extrapolation along the steepest part of the
+ * rising edge, as in spirometry, so a slow start does not shift the one-second FEV1 window.
+ *
+ * It works on the 100 Hz envelope rather than the PCM, so an estimate takes well under a
+ * millisecond. Thread safe; an estimator can be shared.
+ */
+public class FlowEstimator {
+    /// Flow below this fraction of PEF after the peak ends the blow.
+    private static final double END_OF_BLOW_FRACTION = 0.05;
+    /// The largest share of the volume allowed before the back-extrapolated start.
+    private static final double LATE_START_FRACTION = 0.05;
+    /// The number of envelope frames averaged when finding the peak.
+    private static final int PEAK_WINDOW = 3;
+
+    /// The envelope to flow mapping.
+    private final FlowCalibration calibration;
+
+    /**
+     * Initialize the {@link FlowEstimator}
+     * @param calibration The envelope to flow mapping
+     */
+    public FlowEstimator(FlowCalibration calibration) {
+        this.calibration = calibration;
+    }
+
+    /**
+     * Return the envelope to flow mapping
+     * @return calibration
+     */
+    public FlowCalibration getCalibration() {
+        return calibration;
+    }
+
+    /**
+     * Estimate the results of a finished recording
+     * @param envelope The envelope of the recording
+     * @return estimate
+     */
+    public FlowEstimate estimate(FlowEnvelope envelope) {
+        int count = envelope.size();
+        float[] values = envelope.getValues();
+        double rate = envelope.getRateHz();
+        EnumSet<FlowEstimate.Flag> flags = EnumSet.noneOf(FlowEstimate.Flag.class);
+        // if the calibration has NOT been fitted...
+        if (!calibration.fitted) {
+            flags.add(FlowEstimate.Flag.uncalibrated);
+        }
+
+        double[] flow = new double[count];
+        int firstFlow = -1;
+        for (int i = 0; i < count; i++) {
+            flow[i] = calibration.flow(values[i]);
+            if (firstFlow < 0 && flow[i] > 0) {
+                firstFlow = i;
+            }
+        }
+        // if there IS no flow at all...
+        if (firstFlow < 0) {
+            return FlowEstimate.noBlow(flags);
+        }
+
+        // peak flow, averaged over a short window so a single noisy frame does not set it
+        double pef = 0;
+        int peakIndex = firstFlow;
+        int window = Math.min(PEAK_WINDOW, count);
+        for (int i = 0; i + window <= count; i++) {
+            double sum = 0;
+            for (int j = i; j < i + window; j++) {
+                sum += flow[j];
+            }
+            if (sum / window > pef) {
+                pef = sum / window;
+                peakIndex = i + window / 2;
+            }
+        }
+
+        double start = backExtrapolatedStart(flow, firstFlow, peakIndex);
+
+        // the blow ends at the last frame above the end-of-blow level
+        double endLevel = pef * END_OF_BLOW_FRACTION;
+        int end = lastFrameAbove(flow, endLevel, peakIndex) + 1;
+        // near the end the flow is closest to the noise floor, so the end is only known to within
+        // the time the flow takes to halve
+        int endUncertainty = end - lastFrameAbove(flow, 2 * endLevel, peakIndex) + 1;
+        // if the recording ended during the blow...
+        if (flow[count - 1] > endLevel) {
+            flags.add(FlowEstimate.Flag.truncated);
+        }
+
+        double totalVolume = volume(flow, start, end, rate);
+        double fev1;
+        // if the blow lasted less than one second...
+        if (end - start < rate) {
+            flags.add(FlowEstimate.Flag.shortBlow);
+            fev1 = totalVolume;
+        } else {
+            fev1 = volume(flow, start, start + rate, rate);
+        }
+
+        double extrapolatedVolume = volume(flow, firstFlow, start, rate);
+        // if too much was exhaled before the extrapolated start...
+        if (extrapolatedVolume > LATE_START_FRACTION * (totalVolume + extrapolatedVolume)) {
+            flags.add(FlowEstimate.Flag.lateStart);
+        }
+
+        double relative = calibration.relativeUncertainty;
+        // the FEV1 window can be off by a frame at either end
+        int fev1End = (int) Math.min(count - 1, Math.floor(start + rate));
+        double frameVolume = flow[fev1End] / rate;
+
+        return new FlowEstimate(pef, fev1, totalVolume, (end - start) / rate,
+                pef * relative, fev1 * relative + frameVolume, totalVolume * relative, (endUncertainty + 1) / rate,
+                Math.round(start * 1000 / rate), Math.round((peakIndex - start) * 1000 / rate), flags);
+    }
+
+    /**
+     * Find the start of the blow by extending the steepest rising slope back to zero flow
+     * @param flow Flow per envelope frame
+     * @param firstFlow The first frame with flow
+     * @param peakIndex The frame of peak flow
+     * @return start position in frames (fractional)
+     */
+    private static double backExtrapolatedStart(double[] flow, int firstFlow, int peakIndex) {
+        double steepest = 0;
+        int steepestIndex = -1;
+        for (int i = firstFlow; i < peakIndex && i + 1 < flow.length; i++) {
+            double slope = flow[i + 1] - flow[i];
+            if (slope > steepest) {
+                steepest = slope;
+                steepestIndex = i;
+            }
+        }
+        return tangentStart(flow, steepestIndex, steepest, firstFlow, peakIndex);
+    }
+
+    /**
+     * Extend the tangent of a rising segment back to zero flow
+     * @param flow Flow per envelope frame
+     * @param steepestIndex The first frame of the steepest rising segment, or -1 if the flow never rises
+     * @param steepest The rise over that segment
+     * @param firstFlow The first frame with flow
+     * @param peakIndex The frame of peak flow
+     * @return start position in frames (fractional)
+     */
+    static double tangentStart(double[] flow, int steepestIndex, double steepest, int firstFlow, int peakIndex) {
+        // if the flow never rises (the blow started before the recording)...
+        if (steepestIndex < 0) {
+            return firstFlow;
+        }
+        // frame values sit at frame centres; the tangent passes through the top of the steepest segment
+        double start = steepestIndex + 1.5 - flow[steepestIndex + 1] / steepest;
+        return Math.max(firstFlow, Math.min(start, peakIndex));
+    }
+
+    /**
+     * Find the last frame after the peak with flow above a level
+     * @param flow Flow per envelope frame
+     * @param level The flow level
+     * @param peakIndex The frame of peak flow
+     * @return frame index, or the peak frame if none is above the level
+     */
+    private static int lastFrameAbove(double[] flow, double level, int peakIndex) {
+        for (int i = flow.length - 1; i > peakIndex; i--) {
+            if (flow[i] > level) {
+                return i;
+            }
+        }
+        return peakIndex;
+    }
+
+    /**
+     * Integrate flow over a span of envelope frames. Frame i holds the flow over [i, i + 1).
+     * @param flow Flow per envelope frame
+     * @param from The start position in frames (fractional)
+     * @param to The end position in frames (fractional)
+     * @param rate The envelope rate (Hz)
+     * @return volume
+     */
+    static double volume(double[] flow, double from, double to, double rate) {
+        double total = 0;
+        int first = (int) Math.floor(from);
+        for (int i = Math.max(first, 0); i < flow.length && i < to; i++) {
+            double overlap = Math.min(i + 1, to) - Math.max(i, from);
+            if (overlap > 0) {
+                total += flow[i] * overlap;
+            }
+        }
+        return total / rate;
+    }
+}
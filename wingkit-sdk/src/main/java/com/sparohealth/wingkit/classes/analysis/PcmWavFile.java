@@ -0,0 +1,122 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * {@link PcmWavFile} reads 16-bit PCM WAV files such as the ones written by
+ * {@link com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionRecorder}, so recordings can be
+ * analysed again off the capture path. Only the first channel is kept.
+ */
+public class PcmWavFile {
+    /// The sample rate (Hz).
+    public final int sampleRate;
+    /// The number of channels in the file.
+    public final int channels;
+    /// The samples of the first channel.
+    public final short[] samples;
+
+    private PcmWavFile(int sampleRate, int channels, short[] samples) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.samples = samples;
+    }
+
+    /**
+     * Read a WAV file
+     * @param file The file
+     * @return the decoded file
+     * @throws IOException The file cannot be read or is not 16-bit PCM
+     */
+    public static PcmWavFile read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (readTag(in) != 0x46464952 /* RIFF */) {
+                throw new IOException(file + " is not a RIFF file");
+            }
+            readLittleInt(in);
+            if (readTag(in) != 0x45564157 /* WAVE */) {
+                throw new IOException(file + " is not a WAVE file");
+            }
+
+            int channels = 0;
+            int sampleRate = 0;
+            long position = 12;
+            while (true) {
+                int tag = readTag(in);
+                long size = readLittleInt(in) & 0xffffffffL;
+                position += 8;
+                // if this IS the format chunk...
+                if (tag == 0x20746d66 /* fmt  */) {
+                    int format = readLittleShort(in);
+                    channels = readLittleShort(in);
+                    sampleRate = readLittleInt(in);
+                    readLittleInt(in);
+                    readLittleShort(in);
+                    int bitDepth = readLittleShort(in);
+                    if (format != 1 || bitDepth != 16 || channels < 1) {
+                        throw new IOException(file + " is not 16-bit PCM");
+                    }
+                    skip(in, size - 16);
+                    position += size;
+                }
+                // if this IS the data chunk...
+                else if (tag == 0x61746164 /* data */) {
+                    if (sampleRate == 0) {
+                        throw new IOException(file + " has no format chunk");
+                    }
+                    // a recording that was never finalized has a zero size; read to the end instead
+                    long available = file.length() - position;
+                    long bytes = size == 0 || size > available ? available : size;
+                    int frames = (int) (bytes / (2 * channels));
+                    short[] samples = new short[frames];
+                    for (int i = 0; i < frames; i++) {
+                        samples[i] = (short) readLittleShort(in);
+                        skip(in, 2 * (channels - 1));
+                    }
+                    return new PcmWavFile(sampleRate, channels, samples);
+                }
+                else {
+                    skip(in, size + (size & 1));
+                    position += size + (size & 1);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the length of the recording
+     * @return duration (ms)
+     */
+    public long getDurationMs() {
+        return samples.length * 1000L / sampleRate;
+    }
+
+    private static int readTag(DataInputStream in) throws IOException {
+        return readLittleInt(in);
+    }
+
+    private static int readLittleInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readLittleShort(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort());
+    }
+
+    private static void skip(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import java.util.Arrays;
+
+/**
+ * {@link RecordingValidator} decides whether a finished recording is worth uploading by comparing
+ * the blow with the background noise. The noise level is the louder of the ambient baseline measured
+ * before the test (see {@link com.sparohealth.wingkit.classes.AmbientNoiseMonitor#baselineAmplitude()})
+ * and the quietest frames of the recording itself, so a room that got noisier after the pre-test
+ * check is still caught.
+ */
+public class RecordingValidator {
+    /// The number of envelope frames averaged for the peak level.
+    private static final int PEAK_WINDOW = 3;
+    /// The level used for silent frames, to keep logarithms finite.
+    private static final double SILENCE_DBFS = -120.0;
+
+    /// The thresholds in use.
+    private final ValidityConfiguration configuration;
+
+    /**
+     * Initialize the {@link RecordingValidator}
+     * @param configuration The thresholds to use
+     */
+    public RecordingValidator(ValidityConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Return the thresholds in use
+     * @return configuration
+     */
+    public ValidityConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Validate a finished recording
+     * @param envelope The envelope of the recording
+     * @param baselineDb The ambient baseline from {@link com.sparohealth.wingkit.classes.AmbientNoiseMonitor#baselineAmplitude()},
+     *                   or NaN if none was measured
+     * @return validity
+     */
+    public RecordingValidity validate(FlowEnvelope envelope, double baselineDb) {
+        int count = envelope.size();
+        float[] values = envelope.getValues();
+        if (count == 0) {
+            return new RecordingValidity(RecordingValidity.Verdict.rejected, RecordingValidity.Reason.noSignal,
+                    0, SILENCE_DBFS, SILENCE_DBFS, false);
+        }
+
+        // loudest short window of the blow
+        double peak = 0;
+        int window = Math.min(PEAK_WINDOW, count);
+        for (int i = 0; i + window <= count; i++) {
+            double sum = 0;
+            for (int j = i; j < i + window; j++) {
+                sum += values[j];
+            }
+            peak = Math.max(peak, sum / window);
+        }
+        double signalDbfs = toDbfs(peak);
+
+        // noise within the recording: the mean level of its quietest frames
+        float[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int quiet = Math.max(1, (int) (count * configuration.noiseFrameFraction));
+        double quietSum = 0;
+        for (int i = 0; i < quiet; i++) {
+            quietSum += sorted[i];
+        }
+        double noiseDbfs = toDbfs(quietSum / quiet);
+
+        boolean baselineUsed = false;
+        // if the ambient baseline IS known and louder than the recording's own noise...
+        if (!Double.isNaN(baselineDb) && !Double.isInfinite(baselineDb)
+                && baselineDb - configuration.baselineCrestFactorDb > noiseDbfs) {
+            noiseDbfs = baselineDb - configuration.baselineCrestFactorDb;
+            baselineUsed = true;
+        }
+
+        double snrDb = signalDbfs - noiseDbfs;
+        RecordingValidity.Verdict verdict = RecordingValidity.Verdict.valid;
+        RecordingValidity.Reason reason = RecordingValidity.Reason.none;
+        if (signalDbfs < configuration.minimumSignalDbfs) {
+            verdict = RecordingValidity.Verdict.rejected;
+            reason = RecordingValidity.Reason.noSignal;
+        } else if (signalDbfs > configuration.maximumSignalDbfs) {
+            verdict = RecordingValidity.Verdict.rejected;
+            reason = RecordingValidity.Reason.tooLoud;
+        } else if (snrDb < configuration.minimumSnrDb) {
+            verdict = RecordingValidity.Verdict.rejected;
+            reason = RecordingValidity.Reason.tooNoisy;
+        } else if (snrDb < configuration.marginalSnrDb) {
+            verdict = RecordingValidity.Verdict.marginal;
+            reason = RecordingValidity.Reason.tooNoisy;
+        }
+        return new RecordingValidity(verdict, reason, snrDb, signalDbfs, noiseDbfs, baselineUsed);
+    }
+
+    private static double toDbfs(double rms) {
+        return rms > 0 ? Math.max(SILENCE_DBFS, 20 * Math.log10(rms)) : SILENCE_DBFS;
+    }
+}
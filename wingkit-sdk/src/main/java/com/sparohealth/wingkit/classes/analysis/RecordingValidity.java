@@ -0,0 +1,67 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+/**
+ * {@link RecordingValidity} is the outcome of {@link RecordingValidator} for one recording
+ */
+public class RecordingValidity {
+    /**
+     * Overall verdicts
+     */
+    public enum Verdict {
+        /// The recording is clear enough to upload.
+        valid,
+
+        /// The recording can be uploaded, but the server may not be able to process it.
+        marginal,
+
+        /// The recording should be retaken instead of uploaded.
+        rejected
+    }
+
+    /**
+     * Reasons for a marginal or rejected verdict
+     */
+    public enum Reason {
+        /// No problem found.
+        none,
+
+        /// No blow loud enough to measure.
+        noSignal,
+
+        /// The blow does not stand out enough from the background noise.
+        tooNoisy,
+
+        /// The blow saturated the microphone.
+        tooLoud
+    }
+
+    /// The overall verdict.
+    public final Verdict verdict;
+    /// The reason for the verdict.
+    public final Reason reason;
+    /// The signal-to-noise ratio of the blow (dB).
+    public final double snrDb;
+    /// The peak RMS level of the blow (dBFS).
+    public final double signalDbfs;
+    /// The noise level used for the ratio (dBFS).
+    public final double noiseDbfs;
+    /// Indicates the ambient noise baseline, rather than the recording itself, set the noise level.
+    public final boolean baselineUsed;
+
+    RecordingValidity(Verdict verdict, Reason reason, double snrDb, double signalDbfs, double noiseDbfs, boolean baselineUsed) {
+        this.verdict = verdict;
+        this.reason = reason;
+        this.snrDb = snrDb;
+        this.signalDbfs = signalDbfs;
+        this.noiseDbfs = noiseDbfs;
+        this.baselineUsed = baselineUsed;
+    }
+
+    /**
+     * Indicate if the recording should be uploaded
+     * @return upload status
+     */
+    public boolean isAcceptable() {
+        return verdict != Verdict.rejected;
+    }
+}
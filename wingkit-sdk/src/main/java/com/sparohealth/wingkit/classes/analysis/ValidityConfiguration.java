@@ -0,0 +1,24 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+/**
+ * Settings used by {@link RecordingValidator}. Levels are RMS in dB relative to full scale (dBFS).
+ */
+public class ValidityConfiguration {
+    /// Recordings with a lower signal-to-noise ratio are rejected before upload.
+    public double minimumSnrDb = 12.0;
+
+    /// Recordings with a lower signal-to-noise ratio are accepted but reported as marginal.
+    public double marginalSnrDb = 20.0;
+
+    /// Recordings whose peak is quieter than this have no usable blow (about the previous 45 dB cut-off).
+    public double minimumSignalDbfs = -38.0;
+
+    /// Recordings whose peak is louder than this are saturated (about the previous 8 dB cut-off).
+    public double maximumSignalDbfs = -1.0;
+
+    /// How far the ambient monitor's peak-based baseline sits above the RMS of the same noise.
+    public double baselineCrestFactorDb = 10.0;
+
+    /// The share of the quietest envelope frames used to measure the noise within the recording itself.
+    public double noiseFrameFraction = 0.1;
+}
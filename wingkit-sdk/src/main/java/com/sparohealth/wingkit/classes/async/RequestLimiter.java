@@ -0,0 +1,129 @@
+package com.sparohealth.wingkit.classes.async;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * {@link RequestLimiter} caps how many asynchronous calls of one kind run at once. Calls over the
+ * limit wait, in the order they were submitted, until a running one finishes; a call whose future is
+ * cancelled while it waits is never started.
+ */
+public class RequestLimiter {
+    private final int limit;
+    private final Queue<Waiting<?>> waiting = new ArrayDeque<>();
+    private int running = 0;
+
+    /**
+     * Starts an asynchronous call
+     */
+    public interface Call<T> {
+        WingFuture<T> start();
+    }
+
+    /**
+     * A submitted call and the future handed out for it
+     */
+    private class Waiting<T> {
+        final Call<T> call;
+        final WingFuture<T> result = new WingFuture<>();
+
+        Waiting(Call<T> call) {
+            this.call = call;
+        }
+
+        /**
+         * Start the call in a slot that is already counted as running
+         * @return false if the call was cancelled while waiting, leaving the slot free for another
+         */
+        boolean start() {
+            if (result.isDone()) {
+                return false;
+            }
+            final WingFuture<T> started;
+            try {
+                started = call.start();
+            } catch (RuntimeException ex) {
+                release();
+                result.fail(ex);
+                return true;
+            }
+            result.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    started.cancel();
+                }
+            });
+            started.addCallback(new WingFuture.Callback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    // the slot is freed first, so a callback that submits the next call does not wait
+                    release();
+                    result.complete(value);
+                }
+
+                @Override
+                public void onFailure(Exception error) {
+                    release();
+                    result.fail(error);
+                }
+            });
+            return true;
+        }
+    }
+
+    /**
+     * Initialize the {@link RequestLimiter}
+     * @param limit The most calls running at once
+     */
+    public RequestLimiter(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Start a call now if there is room, or once there is
+     * @param call Starts the call
+     * @return a future for the call's result; cancelling it cancels the call, or keeps it from starting
+     */
+    public <T> WingFuture<T> submit(Call<T> call) {
+        Waiting<T> submitted = new Waiting<>(call);
+        synchronized (this) {
+            if (running >= limit) {
+                waiting.add(submitted);
+                return submitted.result;
+            }
+            running++;
+        }
+        submitted.start();
+        return submitted.result;
+    }
+
+    /**
+     * Return the number of calls running
+     * @return running calls
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Hand a finished call's slot to the next waiting call, or free it
+     */
+    private void release() {
+        while (true) {
+            Waiting<?> next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            if (next.start()) {
+                return;
+            }
+        }
+    }
+}
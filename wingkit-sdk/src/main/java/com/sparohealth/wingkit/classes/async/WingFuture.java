@@ -0,0 +1,472 @@
+package com.sparohealth.wingkit.classes.async;
+
+import com.sparohealth.wingkit.classes.scheduling.ScheduledTask;
+import com.sparohealth.wingkit.classes.scheduling.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link WingFuture} is the result of an asynchronous SDK call. It completes once with a value,
+ * an error or a cancellation, and supports chaining ({@link #map}, {@link #then}), fan-out
+ * ({@link #allAsList}, {@link #allOf}) and group timeouts ({@link #withTimeout}).
+ *
+ * Cancelling a future runs its cancel hooks, so cancelling a request future aborts the underlying
+ * network request. Cancelling a derived future cancels the futures it is waiting on.
+ *
+ * Callbacks run on the thread that completes the future (for {@link com.sparohealth.wingkit.classes.Client}
+ * calls, its callback executor), or immediately on the calling thread if the future is already done.
+ *
+ * @param <T> The result type
+ */
+public class WingFuture<T> {
+    private enum State {
+        pending,
+        succeeded,
+        failed,
+        cancelled
+    }
+
+    private State state = State.pending;
+    private T value;
+    private Exception error;
+    private List<Callback<? super T>> callbacks = new ArrayList<>();
+    private List<Runnable> cancelHooks = new ArrayList<>();
+
+    /**
+     * Create a future that has already succeeded
+     * @param value The result
+     * @return completed future
+     */
+    public static <T> WingFuture<T> succeeded(T value) {
+        WingFuture<T> future = new WingFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * Create a future that has already failed
+     * @param error The failure
+     * @return failed future
+     */
+    public static <T> WingFuture<T> failed(Exception error) {
+        WingFuture<T> future = new WingFuture<>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * Complete the future with a value
+     * @param result The result
+     * @return true if this call completed the future
+     */
+    public boolean complete(T result) {
+        List<Callback<? super T>> toNotify;
+        synchronized (this) {
+            if (state != State.pending) {
+                return false;
+            }
+            state = State.succeeded;
+            value = result;
+            toNotify = takeCallbacks();
+            cancelHooks = null;
+            notifyAll();
+        }
+        for (Callback<? super T> callback : toNotify) {
+            callback.onSuccess(result);
+        }
+        return true;
+    }
+
+    /**
+     * Complete the future with an error
+     * @param failure The failure
+     * @return true if this call completed the future
+     */
+    public boolean fail(Exception failure) {
+        List<Callback<? super T>> toNotify;
+        synchronized (this) {
+            if (state != State.pending) {
+                return false;
+            }
+            state = State.failed;
+            error = failure;
+            toNotify = takeCallbacks();
+            cancelHooks = null;
+            notifyAll();
+        }
+        for (Callback<? super T> callback : toNotify) {
+            callback.onFailure(failure);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel the future. The cancel hooks run, and callbacks receive a {@link CancellationException}.
+     * @return true if this call cancelled the future
+     */
+    public boolean cancel() {
+        List<Callback<? super T>> toNotify;
+        List<Runnable> hooks;
+        CancellationException cancellation = new CancellationException("Cancelled");
+        synchronized (this) {
+            if (state != State.pending) {
+                return false;
+            }
+            state = State.cancelled;
+            error = cancellation;
+            toNotify = takeCallbacks();
+            hooks = cancelHooks;
+            cancelHooks = null;
+            notifyAll();
+        }
+        for (Runnable hook : hooks) {
+            hook.run();
+        }
+        for (Callback<? super T> callback : toNotify) {
+            callback.onFailure(cancellation);
+        }
+        return true;
+    }
+
+    /**
+     * Register work to run if the future is cancelled (e.g. aborting a network request).
+     * Runs immediately if the future is already cancelled.
+     * @param hook The cancel action
+     * @return this future
+     */
+    public WingFuture<T> onCancel(Runnable hook) {
+        synchronized (this) {
+            if (state == State.pending) {
+                cancelHooks.add(hook);
+                return this;
+            }
+            if (state != State.cancelled) {
+                return this;
+            }
+        }
+        hook.run();
+        return this;
+    }
+
+    /**
+     * Register a callback for the result
+     * @param callback The callback
+     * @return this future
+     */
+    public WingFuture<T> addCallback(Callback<? super T> callback) {
+        T result;
+        Exception failure;
+        synchronized (this) {
+            if (state == State.pending) {
+                callbacks.add(callback);
+                return this;
+            }
+            result = value;
+            failure = error;
+        }
+        if (failure == null) {
+            callback.onSuccess(result);
+        }
+        else {
+            callback.onFailure(failure);
+        }
+        return this;
+    }
+
+    /**
+     * Indicate if the future has completed, failed or been cancelled
+     * @return done status
+     */
+    public synchronized boolean isDone() {
+        return state != State.pending;
+    }
+
+    /**
+     * Indicate if the future was cancelled
+     * @return cancelled status
+     */
+    public synchronized boolean isCancelled() {
+        return state == State.cancelled;
+    }
+
+    /**
+     * Indicate if the future completed with a value
+     * @return success status
+     */
+    public synchronized boolean isSuccessful() {
+        return state == State.succeeded;
+    }
+
+    /**
+     * Wait for the result. Must not be called on the thread that completes the future (e.g. the main thread).
+     * @return the result
+     * @throws ExecutionException The future failed; the cause is the original error
+     * @throws CancellationException The future was cancelled
+     * @throws InterruptedException The wait was interrupted
+     */
+    public synchronized T get() throws ExecutionException, InterruptedException {
+        while (state == State.pending) {
+            wait();
+        }
+        return result();
+    }
+
+    /**
+     * Wait for the result for at most the given time
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return the result
+     * @throws ExecutionException The future failed; the cause is the original error
+     * @throws CancellationException The future was cancelled
+     * @throws InterruptedException The wait was interrupted
+     * @throws TimeoutException The result was not available in time
+     */
+    public synchronized T get(long timeout, TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == State.pending) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (state == State.cancelled) {
+            throw (CancellationException) error;
+        }
+        if (state == State.failed) {
+            throw new ExecutionException(error);
+        }
+        return value;
+    }
+
+    /**
+     * Transform the result once it is available
+     * @param function The transformation; an exception it throws fails the returned future
+     * @return a future for the transformed result
+     */
+    public <R> WingFuture<R> map(final Function<? super T, ? extends R> function) {
+        final WingFuture<R> mapped = new WingFuture<>();
+        mapped.onCancel(cancelRunnable(this));
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                R transformed;
+                try {
+                    transformed = function.apply(result);
+                } catch (Exception ex) {
+                    mapped.fail(ex);
+                    return;
+                }
+                mapped.complete(transformed);
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                mapped.fail(error);
+            }
+        });
+        return mapped;
+    }
+
+    /**
+     * Start another asynchronous call once the result is available
+     * @param function Starts the next call from this result
+     * @return a future for the next call's result
+     */
+    public <R> WingFuture<R> then(final AsyncFunction<? super T, R> function) {
+        final WingFuture<R> chained = new WingFuture<>();
+        chained.onCancel(cancelRunnable(this));
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                WingFuture<R> next;
+                try {
+                    next = function.apply(result);
+                } catch (Exception ex) {
+                    chained.fail(ex);
+                    return;
+                }
+                chained.onCancel(cancelRunnable(next));
+                next.addCallback(completer(chained));
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                chained.fail(error);
+            }
+        });
+        return chained;
+    }
+
+    /**
+     * Fail with a {@link TimeoutException} and cancel this future if it is not done in time
+     * @param timeoutMs The time limit in milliseconds
+     * @param scheduler The scheduler used for the timer
+     * @return a future that completes like this one, or times out
+     */
+    public WingFuture<T> withTimeout(long timeoutMs, Scheduler scheduler) {
+        final WingFuture<T> limited = new WingFuture<>();
+        limited.onCancel(cancelRunnable(this));
+        final ScheduledTask timer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (limited.fail(new TimeoutException("Timed out"))) {
+                    cancel();
+                }
+            }
+        }, timeoutMs);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                timer.cancel();
+                limited.complete(result);
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                timer.cancel();
+                limited.fail(error);
+            }
+        });
+        return limited;
+    }
+
+    /**
+     * Combine futures into one that succeeds with every result in order. The first failure fails
+     * the combined future and cancels the others; cancelling the combined future cancels them all.
+     * @param futures The futures to combine
+     * @return a future for the list of results
+     */
+    public static <T> WingFuture<List<T>> allAsList(final List<? extends WingFuture<? extends T>> futures) {
+        final WingFuture<List<T>> combined = new WingFuture<>();
+        final List<T> results = new ArrayList<>(Collections.<T>nCopies(futures.size(), null));
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+
+        combined.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                for (WingFuture<? extends T> future : futures) {
+                    future.cancel();
+                }
+            }
+        });
+
+        if (futures.isEmpty()) {
+            combined.complete(results);
+            return combined;
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+            futures.get(i).addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    synchronized (results) {
+                        results.set(index, result);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        synchronized (results) {
+                            combined.complete(new ArrayList<>(results));
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception error) {
+                    if (combined.fail(error)) {
+                        for (WingFuture<? extends T> future : futures) {
+                            future.cancel();
+                        }
+                    }
+                }
+            });
+        }
+        return combined;
+    }
+
+    /**
+     * Combine futures of any type into one that succeeds when they all have
+     * @param futures The futures to combine
+     * @return a future that succeeds with null
+     */
+    public static WingFuture<Void> allOf(WingFuture<?>... futures) {
+        return WingFuture.<Object>allAsList(Arrays.<WingFuture<?>>asList(futures)).map(new Function<List<Object>, Void>() {
+            @Override
+            public Void apply(List<Object> input) {
+                return null;
+            }
+        });
+    }
+
+    private static Runnable cancelRunnable(final WingFuture<?> future) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                future.cancel();
+            }
+        };
+    }
+
+    private static <R> Callback<R> completer(final WingFuture<R> target) {
+        return new Callback<R>() {
+            @Override
+            public void onSuccess(R result) {
+                target.complete(result);
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                target.fail(error);
+            }
+        };
+    }
+
+    private List<Callback<? super T>> takeCallbacks() {
+        List<Callback<? super T>> taken = callbacks;
+        callbacks = null;
+        return taken;
+    }
+
+    /**
+     * Receives the result of a {@link WingFuture}
+     */
+    public interface Callback<T> {
+        /**
+         * Called with the result
+         * @param result The result
+         */
+        void onSuccess(T result);
+
+        /**
+         * Called with the failure; a cancelled future reports a {@link CancellationException}
+         * @param error The failure
+         */
+        void onFailure(Exception error);
+    }
+
+    /**
+     * Transforms a result
+     */
+    public interface Function<A, R> {
+        R apply(A input) throws Exception;
+    }
+
+    /**
+     * Starts an asynchronous call from a result
+     */
+    public interface AsyncFunction<A, R> {
+        WingFuture<R> apply(A input) throws Exception;
+    }
+}
@@ -0,0 +1,77 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * {@link AudioCapabilities} read from the device's AudioManager, checked by briefly opening an AudioRecord.
+ * Requires the RECORD_AUDIO permission to report any source as usable.
+ */
+public class AndroidAudioCapabilities implements AudioCapabilities {
+    private static final String TAG = "AndroidAudioCapabilities";
+
+    private final AudioManager audioManager;
+
+    /**
+     * Initialize the {@link AndroidAudioCapabilities}
+     * @param context Any context; only its AudioManager is used
+     */
+    public AndroidAudioCapabilities(Context context) {
+        this.audioManager = (AudioManager) context.getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    @Override
+    public boolean supportsUnprocessed() {
+        // the source only exists from Android 7.0, and devices must opt in to advertise it
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && "true".equals(getProperty(AudioManager.PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED));
+    }
+
+    @Override
+    public int nativeSampleRate() {
+        return parse(getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE));
+    }
+
+    @Override
+    public int nativeFramesPerBuffer() {
+        return parse(getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER));
+    }
+
+    @Override
+    public boolean canOpen(AudioSourceType source, int sampleRate) {
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        // if the rate IS NOT supported at all...
+        if (minBufferSize <= 0) {
+            return false;
+        }
+        AudioRecord record = null;
+        try {
+            record = new AudioRecord(source.audioSource, sampleRate, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT, minBufferSize);
+            return record.getState() == AudioRecord.STATE_INITIALIZED;
+        } catch (Exception ex) {
+            Log.d(TAG, "cannot open " + source + " at " + sampleRate + " Hz: " + ex.getMessage());
+            return false;
+        } finally {
+            if (record != null) {
+                record.release();
+            }
+        }
+    }
+
+    private String getProperty(String key) {
+        return audioManager == null ? null : audioManager.getProperty(key);
+    }
+
+    private static int parse(String value) {
+        try {
+            return value == null ? 0 : Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
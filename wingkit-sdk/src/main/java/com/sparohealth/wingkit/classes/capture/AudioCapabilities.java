@@ -0,0 +1,32 @@
+package com.sparohealth.wingkit.classes.capture;
+
+/**
+ * What the device reports about its audio input, as used by {@link CaptureProbe}
+ */
+public interface AudioCapabilities {
+    /**
+     * Indicate if the device reports support for {@link AudioSourceType#unprocessed}
+     * @return support status
+     */
+    boolean supportsUnprocessed();
+
+    /**
+     * Return the device's native sample rate
+     * @return sample rate (Hz), or 0 if unknown
+     */
+    int nativeSampleRate();
+
+    /**
+     * Return the device's native frames per buffer
+     * @return frames per buffer, or 0 if unknown
+     */
+    int nativeFramesPerBuffer();
+
+    /**
+     * Check that a mono 16-bit recorder can be opened with the given source and rate
+     * @param source The audio source
+     * @param sampleRate The sample rate (Hz)
+     * @return open status
+     */
+    boolean canOpen(AudioSourceType source, int sampleRate);
+}
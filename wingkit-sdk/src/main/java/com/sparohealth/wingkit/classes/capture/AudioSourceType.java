@@ -0,0 +1,24 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import android.media.MediaRecorder;
+
+/**
+ * Audio sources the recorder can capture from, in order of preference
+ */
+public enum AudioSourceType {
+    /// Raw microphone signal with no processing at all (Android 7.0+, when the device reports support).
+    unprocessed(MediaRecorder.AudioSource.UNPROCESSED),
+
+    /// Microphone tuned for speech recognition; devices must not apply AGC or noise suppression to it.
+    voiceRecognition(MediaRecorder.AudioSource.VOICE_RECOGNITION),
+
+    /// The default microphone, usually with AGC and noise suppression applied.
+    mic(MediaRecorder.AudioSource.MIC);
+
+    /// The MediaRecorder.AudioSource value.
+    public final int audioSource;
+
+    AudioSourceType(int audioSource) {
+        this.audioSource = audioSource;
+    }
+}
@@ -0,0 +1,239 @@
+package com.sparohealth.wingkit.classes.capture;
+
+/**
+ * {@link BufferTuner} sizes the AudioRecord buffer and the read block for a device, starting from the
+ * minimum buffer size and adapting to how reads actually arrive.
+ *
+ * Within a recording the read block grows when reads fall behind the capture (backlog, late reads or
+ * overruns) and shrinks back after sustained calm, so fast devices get frequent signal updates and slow
+ * ones spend less time per sample in the loop. The AudioRecord buffer cannot be resized once opened, so
+ * an overrun, or a backlog of more than half of it, doubles it for the next recording instead.
+ *
+ * A tuner is used by one recording thread at a time.
+ */
+public class BufferTuner {
+    /// The smallest read block (ms of audio); the flow envelope does not update faster than this.
+    private static final int MINIMUM_BLOCK_MS = 10;
+    /// The largest AudioRecord buffer (ms of audio).
+    private static final int MAXIMUM_CAPACITY_MS = 1000;
+    /// The shortest adaptation window (ms of audio).
+    private static final int WINDOW_MS = 250;
+    /// The fewest reads in an adaptation window.
+    private static final int WINDOW_READS = 4;
+    /// The number of calm windows before the block shrinks.
+    private static final int CALM_WINDOWS = 4;
+    /// The number of {@link BufferTuning#jitterHistogram} buckets.
+    private static final int HISTOGRAM_BUCKETS = 101;
+
+    private final int sampleRate;
+    private final int granuleBytes;
+    private final int minimumBlockBytes;
+    private final int maximumCapacityBytes;
+
+    private int capacityBytes;
+    private int blockBytes;
+
+    // session state
+    private int sessionCapacityBytes;
+    private long framesRead;
+    private long lostFrames;
+    private long lastReadNanos;
+    private long anchorNanos;
+    private long anchorFrames;
+    private long anchorCapturedFrames;
+    private boolean timestamped;
+    private int reads;
+    private int overruns;
+    private long maxBacklogFrames;
+    private int[] jitterHistogram = new int[HISTOGRAM_BUCKETS];
+    private double maxJitterMs;
+
+    // window state
+    private int windowReads;
+    private long windowFrames;
+    private int windowLateReads;
+    private int windowOverruns;
+    private long windowMaxBacklogFrames;
+    private int calmWindows;
+
+    /**
+     * Initialize the {@link BufferTuner}
+     * @param sampleRate The sample rate (Hz)
+     * @param minBufferBytes AudioRecord.getMinBufferSize for the capture format
+     * @param framesPerBuffer The device's native frames per buffer, or 0 if unknown; blocks are kept to multiples of it
+     */
+    public BufferTuner(int sampleRate, int minBufferBytes, int framesPerBuffer) {
+        this.sampleRate = sampleRate;
+        this.granuleBytes = 2 * (framesPerBuffer > 0 ? framesPerBuffer : Math.max(1, sampleRate / 1000));
+        this.minimumBlockBytes = roundUp(2 * sampleRate * MINIMUM_BLOCK_MS / 1000, granuleBytes);
+        this.maximumCapacityBytes = Math.max(2 * minBufferBytes, 2 * sampleRate * MAXIMUM_CAPACITY_MS / 1000);
+        // start where the recorder always was for the AudioRecord buffer, and from the minimum buffer for reads
+        this.capacityBytes = Math.min(maximumCapacityBytes, 2 * Math.max(minBufferBytes, minimumBlockBytes));
+        this.blockBytes = Math.min(capacityBytes / 2, Math.max(minimumBlockBytes, roundUp(minBufferBytes, granuleBytes)));
+        startSession();
+    }
+
+    /**
+     * Return the AudioRecord buffer size to open the next recording with
+     * @return size (bytes)
+     */
+    public int getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * Return the number of bytes to request from the next read
+     * @return size (bytes)
+     */
+    public int getBlockBytes() {
+        return blockBytes;
+    }
+
+    /**
+     * Return the largest block the tuner can request, to size the read buffer
+     * @return size (bytes)
+     */
+    public int getMaximumBlockBytes() {
+        return Math.max(blockBytes, maximumCapacityBytes / 2);
+    }
+
+    /**
+     * Reset the session statistics before a recording is opened with {@link #getCapacityBytes()}
+     */
+    public void startSession() {
+        sessionCapacityBytes = capacityBytes;
+        framesRead = 0;
+        lostFrames = 0;
+        lastReadNanos = 0;
+        anchorNanos = 0;
+        anchorFrames = 0;
+        anchorCapturedFrames = 0;
+        timestamped = false;
+        reads = 0;
+        overruns = 0;
+        maxBacklogFrames = 0;
+        jitterHistogram = new int[HISTOGRAM_BUCKETS];
+        maxJitterMs = 0;
+        resetWindow();
+        calmWindows = 0;
+    }
+
+    /**
+     * Record a completed read
+     * @param nowNanos When the read returned (System.nanoTime)
+     * @param bytes The number of bytes read
+     * @param capturedFrames The number of frames the device had captured by nowNanos (from
+     *                       AudioRecord.getTimestamp), or -1 to estimate it from the wall clock
+     */
+    public void onRead(long nowNanos, int bytes, long capturedFrames) {
+        if (bytes <= 0) {
+            return;
+        }
+        int frames = bytes / 2;
+        framesRead += frames;
+        reads++;
+
+        // the first read blocks until audio arrives, so it anchors both clocks (nothing waiting) instead of measuring jitter
+        if (lastReadNanos == 0) {
+            anchorNanos = nowNanos;
+            anchorFrames = framesRead;
+            anchorCapturedFrames = capturedFrames;
+        } else {
+            double expectedMs = frames * 1000.0 / sampleRate;
+            double jitterMs = Math.abs((nowNanos - lastReadNanos) / 1e6 - expectedMs);
+            jitterHistogram[Math.min(HISTOGRAM_BUCKETS - 1, (int) (jitterMs / BufferTuning.HISTOGRAM_BUCKET_MS))]++;
+            maxJitterMs = Math.max(maxJitterMs, jitterMs);
+            // if the read IS off by more than half a block, the loop is not keeping pace
+            if (jitterMs > expectedMs / 2) {
+                windowLateReads++;
+            }
+        }
+        lastReadNanos = nowNanos;
+
+        long captured;
+        if (capturedFrames >= 0 && anchorCapturedFrames >= 0) {
+            timestamped = true;
+            captured = anchorFrames + capturedFrames - anchorCapturedFrames;
+        } else {
+            captured = anchorFrames + (nowNanos - anchorNanos) * sampleRate / 1000000000L;
+        }
+        long backlog = Math.max(0, captured - lostFrames - framesRead);
+        long capacityFrames = sessionCapacityBytes / 2;
+        // if more IS waiting than the buffer holds, the difference was overwritten
+        if (backlog > capacityFrames) {
+            lostFrames += backlog - capacityFrames;
+            backlog = capacityFrames;
+            overruns++;
+            windowOverruns++;
+        }
+        maxBacklogFrames = Math.max(maxBacklogFrames, backlog);
+        windowMaxBacklogFrames = Math.max(windowMaxBacklogFrames, backlog);
+
+        windowReads++;
+        windowFrames += frames;
+        if (windowReads >= WINDOW_READS && windowFrames * 1000 >= (long) sampleRate * WINDOW_MS) {
+            adapt(capacityFrames);
+        }
+    }
+
+    /**
+     * Finish the session, carrying what it learned about the AudioRecord buffer over to the next one
+     * @return the session's tuning
+     */
+    public BufferTuning endSession() {
+        // if the buffer overflowed OR came within half of it, give the next recording twice the room
+        if (overruns > 0 || maxBacklogFrames > sessionCapacityBytes / 4) {
+            capacityBytes = Math.min(maximumCapacityBytes, capacityBytes * 2);
+        }
+        return getTuning();
+    }
+
+    /**
+     * Return the tuning of the current session so far
+     * @return tuning snapshot
+     */
+    public BufferTuning getTuning() {
+        return new BufferTuning(sampleRate, sessionCapacityBytes, blockBytes, capacityBytes, reads, overruns,
+                lostFrames, timestamped, maxBacklogFrames * 1000.0 / sampleRate, jitterHistogram.clone(), maxJitterMs);
+    }
+
+    private void adapt(long capacityFrames) {
+        long blockFrames = blockBytes / 2;
+        boolean behind = windowOverruns > 0
+                || windowMaxBacklogFrames > capacityFrames / 2
+                || windowLateReads * 4 > windowReads;
+
+        // if the loop IS falling behind, read more per iteration
+        if (behind) {
+            blockBytes = Math.min(Math.max(minimumBlockBytes, roundDown(sessionCapacityBytes / 2, granuleBytes)),
+                    roundUp(blockBytes * 2, granuleBytes));
+            calmWindows = 0;
+        } else if (windowLateReads == 0 && windowMaxBacklogFrames < blockFrames) {
+            calmWindows++;
+            // if it HAS kept up for long enough, try smaller blocks again
+            if (calmWindows >= CALM_WINDOWS && blockBytes > minimumBlockBytes) {
+                blockBytes = Math.max(minimumBlockBytes, roundUp(blockBytes / 2, granuleBytes));
+                calmWindows = 0;
+            }
+        } else {
+            calmWindows = 0;
+        }
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowReads = 0;
+        windowFrames = 0;
+        windowLateReads = 0;
+        windowOverruns = 0;
+        windowMaxBacklogFrames = 0;
+    }
+
+    private static int roundUp(int value, int granule) {
+        return (value + granule - 1) / granule * granule;
+    }
+
+    private static int roundDown(int value, int granule) {
+        return value / granule * granule;
+    }
+}
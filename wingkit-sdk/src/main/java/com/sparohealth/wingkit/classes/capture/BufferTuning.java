@@ -0,0 +1,89 @@
+package com.sparohealth.wingkit.classes.capture;
+
+/**
+ * {@link BufferTuning} is a snapshot of the buffer sizes chosen by a {@link BufferTuner} and of the
+ * read timing it observed during one recording
+ */
+public class BufferTuning {
+    /// Width of a {@link #jitterHistogram} bucket (ms).
+    public static final double HISTOGRAM_BUCKET_MS = 1;
+
+    /// The sample rate (Hz).
+    public final int sampleRate;
+    /// The AudioRecord buffer size used for the recording (bytes).
+    public final int capacityBytes;
+    /// The read block size at the end of the recording (bytes).
+    public final int blockBytes;
+    /// The AudioRecord buffer size the next recording will use (bytes).
+    public final int nextCapacityBytes;
+    /// The number of reads.
+    public final int reads;
+    /// The number of times the AudioRecord buffer overflowed.
+    public final int overruns;
+    /// The number of frames lost to overruns.
+    public final long lostFrames;
+    /// Indicates the backlog was measured with AudioRecord timestamps rather than the wall clock.
+    public final boolean timestamped;
+    /// The largest number of captured frames waiting to be read (ms of audio).
+    public final double maxBacklogMs;
+    /// Read jitter counts per {@link #HISTOGRAM_BUCKET_MS}; the last bucket holds everything beyond.
+    public final int[] jitterHistogram;
+    /// The largest read jitter (ms).
+    public final double maxJitterMs;
+
+    BufferTuning(int sampleRate, int capacityBytes, int blockBytes, int nextCapacityBytes, int reads, int overruns,
+                 long lostFrames, boolean timestamped, double maxBacklogMs, int[] jitterHistogram, double maxJitterMs) {
+        this.sampleRate = sampleRate;
+        this.capacityBytes = capacityBytes;
+        this.blockBytes = blockBytes;
+        this.nextCapacityBytes = nextCapacityBytes;
+        this.reads = reads;
+        this.overruns = overruns;
+        this.lostFrames = lostFrames;
+        this.timestamped = timestamped;
+        this.maxBacklogMs = maxBacklogMs;
+        this.jitterHistogram = jitterHistogram;
+        this.maxJitterMs = maxJitterMs;
+    }
+
+    /**
+     * Return the duration of a read block
+     * @return duration (ms)
+     */
+    public double getBlockDurationMs() {
+        return blockBytes / 2 * 1000.0 / sampleRate;
+    }
+
+    /**
+     * Return a read jitter percentile, to the resolution of the histogram
+     * @param percentile The percentile (0-100)
+     * @return the upper edge of the bucket holding the percentile, capped at the largest jitter (ms), or 0 if there were no reads
+     */
+    public double getJitterPercentileMs(double percentile) {
+        int total = 0;
+        for (int count : jitterHistogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        int seen = 0;
+        for (int i = 0; i < jitterHistogram.length; i++) {
+            seen += jitterHistogram[i];
+            if (seen >= rank) {
+                // the overflow bucket has no upper edge
+                return i == jitterHistogram.length - 1 ? maxJitterMs : Math.min(maxJitterMs, (i + 1) * HISTOGRAM_BUCKET_MS);
+            }
+        }
+        return maxJitterMs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("capacity %d B, block %d B (%.1f ms), %d reads, %d overruns, jitter p50 %.0f / p95 %.0f / p99 %.0f / max %.1f ms, backlog max %.1f ms%s",
+                capacityBytes, blockBytes, getBlockDurationMs(), reads, overruns,
+                getJitterPercentileMs(50), getJitterPercentileMs(95), getJitterPercentileMs(99), maxJitterMs,
+                maxBacklogMs, timestamped ? "" : " (wall clock)");
+    }
+}
@@ -0,0 +1,61 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link CaptureConfiguration} describes how a recording is captured. It is written into each
+ * recording (see {@link RecordingMetadata}) and sent with its upload, so results can be traced back
+ * to the capture path.
+ */
+public class CaptureConfiguration {
+    /// The capture format used before probing existed: MIC, 44.1 kHz, mono, 16-bit.
+    public static final CaptureConfiguration LEGACY = new CaptureConfiguration(AudioSourceType.mic, 44100, 0, false);
+
+    /// The audio source.
+    public final AudioSourceType source;
+    /// The sample rate (Hz).
+    public final int sampleRate;
+    /// The device's native frames per buffer, or 0 if unknown.
+    public final int framesPerBuffer;
+    /// Indicates the configuration was chosen by probing the device.
+    public final boolean probed;
+    /// The number of channels. The recorder always captures mono.
+    public final int channels = 1;
+    /// The bit depth. The recorder always captures 16-bit PCM.
+    public final int bitDepth = 16;
+
+    /**
+     * Initialize the {@link CaptureConfiguration}
+     * @param source The audio source
+     * @param sampleRate The sample rate (Hz)
+     * @param framesPerBuffer The device's native frames per buffer, or 0 if unknown
+     * @param probed Indicates the configuration was chosen by probing the device
+     */
+    public CaptureConfiguration(AudioSourceType source, int sampleRate, int framesPerBuffer, boolean probed) {
+        this.source = source;
+        this.sampleRate = sampleRate;
+        this.framesPerBuffer = framesPerBuffer;
+        this.probed = probed;
+    }
+
+    /**
+     * Return the configuration as metadata entries, as stored in recordings and sent with uploads
+     * @return metadata
+     */
+    public Map<String, String> toMetadata() {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("audio-source", source.name());
+        metadata.put("sample-rate", String.valueOf(sampleRate));
+        metadata.put("channels", String.valueOf(channels));
+        metadata.put("bit-depth", String.valueOf(bitDepth));
+        metadata.put("frames-per-buffer", String.valueOf(framesPerBuffer));
+        metadata.put("probed", String.valueOf(probed));
+        return metadata;
+    }
+
+    @Override
+    public String toString() {
+        return toMetadata().toString();
+    }
+}
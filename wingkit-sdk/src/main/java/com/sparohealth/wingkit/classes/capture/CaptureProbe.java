@@ -0,0 +1,55 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link CaptureProbe} picks the capture path with the least processing in the way of the Wing
+ * signal: the most direct source the device can open ({@link AudioSourceType} order), at the native
+ * sample rate so the HAL does not have to resample.
+ */
+public class CaptureProbe {
+    /// Rates tried when the native rate is unknown or cannot be opened, in order.
+    private static final int[] FALLBACK_RATES = {48000, 44100};
+
+    private CaptureProbe() {
+    }
+
+    /**
+     * Choose a capture configuration
+     * @param capabilities What the device reports about its audio input
+     * @return the chosen configuration, or {@link CaptureConfiguration#LEGACY} if nothing could be opened
+     */
+    public static CaptureConfiguration choose(AudioCapabilities capabilities) {
+        List<AudioSourceType> sources = new ArrayList<>();
+        for (AudioSourceType source : AudioSourceType.values()) {
+            // if the source IS unprocessed and the device does NOT advertise it, skip it
+            if (source == AudioSourceType.unprocessed && !capabilities.supportsUnprocessed()) {
+                continue;
+            }
+            sources.add(source);
+        }
+
+        List<Integer> rates = new ArrayList<>();
+        int nativeRate = capabilities.nativeSampleRate();
+        if (nativeRate > 0) {
+            rates.add(nativeRate);
+        }
+        for (int rate : FALLBACK_RATES) {
+            if (!rates.contains(rate)) {
+                rates.add(rate);
+            }
+        }
+
+        for (AudioSourceType source : sources) {
+            for (int rate : rates) {
+                if (capabilities.canOpen(source, rate)) {
+                    // the native buffer size only applies at the native rate
+                    int framesPerBuffer = rate == nativeRate ? capabilities.nativeFramesPerBuffer() : 0;
+                    return new CaptureConfiguration(source, rate, framesPerBuffer, true);
+                }
+            }
+        }
+        return CaptureConfiguration.LEGACY;
+    }
+}
@@ -0,0 +1,65 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import java.util.zip.Checksum;
+
+/**
+ * {@link Crc32c} computes CRC-32C (Castagnoli), the checksum S3 accepts as x-amz-checksum-crc32c.
+ * java.util.zip.CRC32C only exists from Android 8.0, so this is a table-driven version that
+ * processes eight bytes per step.
+ */
+public class Crc32c implements Checksum {
+    /// The reflected Castagnoli polynomial.
+    private static final int POLYNOMIAL = 0x82F63B78;
+    /// TABLE[k][b]: the CRC of byte b followed by k zero bytes.
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[0][b] = crc;
+        }
+        for (int b = 0; b < 256; b++) {
+            for (int k = 1; k < 8; k++) {
+                TABLE[k][b] = (TABLE[k - 1][b] >>> 8) ^ TABLE[0][TABLE[k - 1][b] & 0xff];
+            }
+        }
+    }
+
+    /// The running CRC, inverted.
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[0][(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int index = off;
+        int end = off + len;
+        for (; index + 8 <= end; index += 8) {
+            int low = c ^ ((b[index] & 0xff) | (b[index + 1] & 0xff) << 8 | (b[index + 2] & 0xff) << 16 | (b[index + 3] & 0xff) << 24);
+            c = TABLE[7][low & 0xff] ^ TABLE[6][(low >>> 8) & 0xff] ^ TABLE[5][(low >>> 16) & 0xff] ^ TABLE[4][low >>> 24]
+                    ^ TABLE[3][b[index + 4] & 0xff] ^ TABLE[2][b[index + 5] & 0xff]
+                    ^ TABLE[1][b[index + 6] & 0xff] ^ TABLE[0][b[index + 7] & 0xff];
+        }
+        for (; index < end; index++) {
+            c = (c >>> 8) ^ TABLE[0][(c ^ b[index]) & 0xff];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
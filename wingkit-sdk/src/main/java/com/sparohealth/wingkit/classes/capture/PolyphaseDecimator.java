@@ -0,0 +1,289 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import java.util.Arrays;
+
+/**
+ * {@link PolyphaseDecimator} lowers the sample rate of 16-bit PCM as it is captured, e.g. 44.1 kHz to
+ * the rate the backend accepts. Any lower rate works: the ratio is reduced to L/M and only the L
+ * phases of the anti-alias filter that land on output samples are ever computed.
+ *
+ * The filter is a Kaiser-windowed sinc with an {@link #STOPBAND_DB} stopband from the output Nyquist
+ * frequency and a flat passband up to {@link #PASSBAND_FRACTION} of it. Its delay is removed, so output
+ * sample k lines up with input time k / outputRate; call {@link #flush(byte[], int)} at the end of the
+ * recording for the last few samples.
+ *
+ * It does not allocate while processing. Not thread safe; feed it from one thread.
+ */
+public class PolyphaseDecimator {
+    /// The stopband attenuation (dB).
+    public static final double STOPBAND_DB = 80;
+    /// The flat part of the band, as a fraction of the output Nyquist frequency.
+    public static final double PASSBAND_FRACTION = 0.8;
+
+    /// The input sample rate.
+    private final int inputRate;
+    /// The output sample rate.
+    private final int outputRate;
+    /// The interpolation factor L.
+    private final int interpolation;
+    /// The decimation factor M.
+    private final int decimation;
+    /// The number of taps per phase.
+    private final int taps;
+    /// The filter phases, each time reversed: phase p is coefficients[p * taps, (p + 1) * taps).
+    private final float[] coefficients;
+    /// The last taps input samples, stored twice so a window never wraps.
+    private final float[] history;
+    /// The number of outputs dropped at the start to remove the filter delay.
+    private final int delay;
+
+    /// The history position of the next input sample.
+    private int historyIndex;
+    /// The filter phase of the next output.
+    private int phase;
+    /// The number of input samples still needed before the next output.
+    private int untilNext;
+    /// The number of outputs still to drop for the filter delay.
+    private int toDiscard;
+    /// The most recent output.
+    private short output;
+    /// The low byte of a sample split across two byte buffers, or -1.
+    private int pendingLowByte = -1;
+
+    /**
+     * Initialize the {@link PolyphaseDecimator}
+     * @param inputRate The input sample rate (Hz)
+     * @param outputRate The output sample rate (Hz), lower than the input rate
+     */
+    public PolyphaseDecimator(int inputRate, int outputRate) {
+        if (outputRate <= 0 || outputRate >= inputRate) {
+            throw new IllegalArgumentException("outputRate must be positive and lower than inputRate");
+        }
+        int divisor = gcd(inputRate, outputRate);
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.interpolation = outputRate / divisor;
+        this.decimation = inputRate / divisor;
+
+        // Kaiser's estimate of the length for the attenuation over the transition band, in input samples
+        double transitionHz = (1 - PASSBAND_FRACTION) * outputRate / 2;
+        this.taps = (int) Math.ceil((STOPBAND_DB - 7.95) * inputRate / (14.36 * transitionHz));
+        this.coefficients = design(interpolation, taps, (1 + PASSBAND_FRACTION) / 2 * outputRate / 2 / ((double) inputRate * interpolation));
+        this.history = new float[2 * taps];
+        this.delay = (int) Math.round((taps * interpolation - 1) / 2.0 / decimation);
+        reset();
+    }
+
+    /**
+     * Return the input sample rate
+     * @return sample rate (Hz)
+     */
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    /**
+     * Return the output sample rate
+     * @return sample rate (Hz)
+     */
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * Return the number of filter taps per output sample
+     * @return taps
+     */
+    public int getTaps() {
+        return taps;
+    }
+
+    /**
+     * Return the most output a call can produce
+     * @param inputBytes The number of input bytes
+     * @return output size (bytes), also enough for {@link #flush(byte[], int)}
+     */
+    public int getMaximumOutputBytes(int inputBytes) {
+        long samples = ((long) inputBytes / 2 + 1) * interpolation / decimation + 1;
+        return 2 * (int) Math.max(samples, delay + 1);
+    }
+
+    /**
+     * Decimate little-endian 16-bit PCM bytes, as read from AudioRecord
+     * @param pcm The input buffer
+     * @param offset The first byte to process
+     * @param length The number of bytes to process
+     * @param out The output buffer, with room for {@link #getMaximumOutputBytes(int)}
+     * @param outOffset The first output byte to write
+     * @return the number of bytes written
+     */
+    public int process(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+        int written = outOffset;
+        int index = offset;
+        int end = offset + length;
+        // if the previous buffer ended halfway through a sample...
+        if (pendingLowByte >= 0 && index < end) {
+            if (push(pendingLowByte | (pcm[index++] << 8))) {
+                written = putSample(out, written, output);
+            }
+            pendingLowByte = -1;
+        }
+        for (; index + 1 < end; index += 2) {
+            if (push((pcm[index] & 0xff) | (pcm[index + 1] << 8))) {
+                written = putSample(out, written, output);
+            }
+        }
+        if (index < end) {
+            pendingLowByte = pcm[index] & 0xff;
+        }
+        return written - outOffset;
+    }
+
+    /**
+     * Decimate 16-bit PCM samples
+     * @param samples The input buffer
+     * @param offset The first sample to process
+     * @param length The number of samples to process
+     * @param out The output buffer, with room for half of {@link #getMaximumOutputBytes(int)} samples
+     * @param outOffset The first output sample to write
+     * @return the number of samples written
+     */
+    public int process(short[] samples, int offset, int length, short[] out, int outOffset) {
+        int written = outOffset;
+        for (int index = offset; index < offset + length; index++) {
+            if (push(samples[index])) {
+                out[written++] = output;
+            }
+        }
+        return written - outOffset;
+    }
+
+    /**
+     * Write the outputs held back by the filter delay, as if the input continued with silence
+     * @param out The output buffer
+     * @param outOffset The first output byte to write
+     * @return the number of bytes written
+     */
+    public int flush(byte[] out, int outOffset) {
+        int written = outOffset;
+        int remaining = delay;
+        while (remaining > 0) {
+            if (push(0)) {
+                written = putSample(out, written, output);
+                remaining--;
+            }
+        }
+        return written - outOffset;
+    }
+
+    /**
+     * Clear the decimator for a new recording
+     */
+    public void reset() {
+        Arrays.fill(history, 0);
+        historyIndex = 0;
+        phase = 0;
+        untilNext = 1;
+        toDiscard = delay;
+        output = 0;
+        pendingLowByte = -1;
+    }
+
+    /**
+     * Add an input sample
+     * @return true if it completed an output, now in {@link #output}
+     */
+    private boolean push(int sample) {
+        history[historyIndex] = sample;
+        history[historyIndex + taps] = sample;
+        historyIndex = historyIndex + 1 == taps ? 0 : historyIndex + 1;
+
+        // if this sample IS NOT the last one the next output needs...
+        if (--untilNext > 0) {
+            return false;
+        }
+        // history[historyIndex, historyIndex + taps) holds the window, oldest first
+        float sum = 0;
+        int c = phase * taps;
+        for (int h = historyIndex, end = historyIndex + taps; h < end; h++) {
+            sum += coefficients[c++] * history[h];
+        }
+        phase += decimation;
+        untilNext = phase / interpolation;
+        phase %= interpolation;
+
+        // if the output IS still inside the filter delay...
+        if (toDiscard > 0) {
+            toDiscard--;
+            return false;
+        }
+        int rounded = Math.round(sum);
+        output = (short) (rounded > Short.MAX_VALUE ? Short.MAX_VALUE : rounded < Short.MIN_VALUE ? Short.MIN_VALUE : rounded);
+        return true;
+    }
+
+    private static int putSample(byte[] out, int index, short sample) {
+        out[index] = (byte) sample;
+        out[index + 1] = (byte) (sample >> 8);
+        return index + 2;
+    }
+
+    /**
+     * Design the polyphase filter bank
+     * @param phases The number of phases L
+     * @param taps The taps per phase
+     * @param cutoff The cutoff, in cycles per sample at L times the input rate
+     * @return the phases, time reversed and each normalized to unity gain at DC
+     */
+    private static float[] design(int phases, int taps, double cutoff) {
+        int length = phases * taps;
+        double center = (length - 1) / 2.0;
+        double beta = 0.1102 * (STOPBAND_DB - 8.7);
+        double norm = besselI0(beta);
+        double[] prototype = new double[length];
+        for (int n = 0; n < length; n++) {
+            double x = n - center;
+            double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double r = 2 * x / (length - 1);
+            prototype[n] = sinc * besselI0(beta * Math.sqrt(Math.max(0, 1 - r * r))) / norm;
+        }
+
+        float[] bank = new float[length];
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                sum += prototype[p + j * phases];
+            }
+            for (int j = 0; j < taps; j++) {
+                // tap j multiplies the sample j steps back, which sits at window position taps - 1 - j
+                bank[p * taps + taps - 1 - j] = (float) (prototype[p + j * phases] / sum);
+            }
+        }
+        return bank;
+    }
+
+    /**
+     * Zeroth-order modified Bessel function of the first kind, for the Kaiser window
+     */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,114 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link RecordingChecksum} holds the MD5 and CRC-32C of a whole recording file, as S3 checks them
+ */
+public class RecordingChecksum {
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /// The file length (bytes).
+    public final long length;
+    /// The MD5 digest.
+    public final byte[] md5;
+    /// The CRC-32C.
+    public final long crc32c;
+
+    /**
+     * Initialize the {@link RecordingChecksum}
+     * @param length The file length (bytes)
+     * @param md5 The MD5 digest
+     * @param crc32c The CRC-32C
+     */
+    public RecordingChecksum(long length, byte[] md5, long crc32c) {
+        this.length = length;
+        this.md5 = md5;
+        this.crc32c = crc32c;
+    }
+
+    /**
+     * Compute the checksum of a file by reading it
+     * @param file The file
+     * @return checksum
+     * @throws IOException An exception occurring during the file access
+     */
+    public static RecordingChecksum compute(File file) throws IOException {
+        MessageDigest md5 = newMd5();
+        Crc32c crc = new Crc32c();
+        long length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                md5.update(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        return new RecordingChecksum(length, md5.digest(), crc.getValue());
+    }
+
+    /**
+     * Return the Content-MD5 header value
+     * @return base64 MD5
+     */
+    public String getContentMd5() {
+        return base64(md5);
+    }
+
+    /**
+     * Return the x-amz-checksum-crc32c header value
+     * @return base64 big-endian CRC-32C
+     */
+    public String getCrc32cBase64() {
+        return base64(new byte[] { (byte) (crc32c >>> 24), (byte) (crc32c >>> 16), (byte) (crc32c >>> 8), (byte) crc32c });
+    }
+
+    /**
+     * Return the MD5 as hex, as S3 reports it in the ETag of a single-part upload
+     * @return hex MD5
+     */
+    public String getMd5Hex() {
+        char[] hex = new char[md5.length * 2];
+        for (int i = 0; i < md5.length; i++) {
+            hex[2 * i] = HEX[(md5[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[md5[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java and Android runtime is required to provide MD5
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Standard padded base64; android.util.Base64 is not available to unit tests
+     */
+    static String base64(byte[] data) {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xff) << 16
+                    | (i + 1 < data.length ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (i + 2 < data.length ? data[i + 2] & 0xff : 0);
+            out.append(BASE64[b >>> 18]).append(BASE64[(b >>> 12) & 0x3f]);
+            out.append(i + 1 < data.length ? BASE64[(b >>> 6) & 0x3f] : '=');
+            out.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,336 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import com.sparohealth.wingkit.classes.analysis.FlowEnvelope;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link RecordingFeatures} is the feature sidecar written next to a recording
+ * ({@link #fileFor(File)}) while it is captured: the decimated envelope, the peak and RMS of each
+ * block of samples, the times the envelope crossed the {@link ThresholdCrossing} levels and the
+ * capture statistics. Tools and UIs can render or filter recordings from it without decoding the PCM.
+ *
+ * The file has a fixed little-endian layout, read in place through a memory mapping:
+ * <pre>
+ *  0  magic "WKFI"            4  version
+ *  8  capture sample rate    12  file sample rate      16  duration (ms)        20  flags
+ * 24  envelope rate (Hz)     28  envelope count        32  envelope offset
+ * 36  samples per block      40  block count           44  block offset
+ * 48  crossing count         52  crossing offset
+ * 56  reads                  60  overruns              64  lost frames
+ * 68  max backlog (ms, f32)  72  max jitter (ms, f32)  76  envelope peak (f32)  80  peak index
+ * 96  envelope:  f32 RMS (full scale = 1.0) per envelope frame
+ *     blocks:    f32 peak, f32 RMS (full scale = 1.0) per block
+ *     crossings: i32 time (ms), i32 {@link ThresholdCrossing} ordinal, f32 envelope level (dBFS)
+ * </pre>
+ * Readers must check the version; fields are only ever added to the reserved header space or after
+ * the last section.
+ */
+public class RecordingFeatures {
+    /// The extension added to a recording's name for its feature sidecar.
+    public static final String SUFFIX = ".features";
+    /// The layout version written.
+    public static final int VERSION = 1;
+    /// The flag set when the capture statistics were observed (not rebuilt from the PCM afterwards).
+    public static final int FLAG_CAPTURED = 1;
+    /// The flag set when the read timing came from AudioRecord timestamps.
+    public static final int FLAG_TIMESTAMPED = 2;
+
+    static final int MAGIC = 0x49464B57; // "WKFI" little-endian
+    static final int HEADER_BYTES = 96;
+    static final int BLOCK_BYTES = 8;
+    static final int CROSSING_BYTES = 12;
+
+    /// The mapped file.
+    private final ByteBuffer buffer;
+
+    RecordingFeatures(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Return the feature sidecar file of a recording
+     * @param recording The recording
+     * @return sidecar file, which may not exist
+     */
+    public static File fileFor(File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /**
+     * Map a feature sidecar. Nothing is read beyond the header until it is asked for.
+     * @param file The sidecar file
+     * @return features
+     * @throws IOException if the file cannot be mapped or is not a sidecar this version can read
+     */
+    public static RecordingFeatures open(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = access.getChannel();
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException(file + " is too short for a feature sidecar");
+            }
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // the mapping stays valid after the channel is closed
+            access.close();
+        }
+    }
+
+    /**
+     * Read features from a buffer holding a whole sidecar
+     * @param bytes The sidecar contents
+     * @return features
+     * @throws IOException if the buffer is not a sidecar this version can read
+     */
+    static RecordingFeatures wrap(ByteBuffer bytes) throws IOException {
+        ByteBuffer buffer = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a feature sidecar");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported feature sidecar version " + buffer.getInt(4));
+        }
+        RecordingFeatures features = new RecordingFeatures(buffer);
+        // if any section DOES NOT fit in the file, it was cut short
+        if (!features.fits(32, 28, 4) || !features.fits(44, 40, BLOCK_BYTES) || !features.fits(52, 48, CROSSING_BYTES)) {
+            throw new IOException("Truncated feature sidecar");
+        }
+        return features;
+    }
+
+    /**
+     * Return the sample rate the audio was captured at
+     * @return sample rate (Hz)
+     */
+    public int getCaptureSampleRate() {
+        return buffer.getInt(8);
+    }
+
+    /**
+     * Return the sample rate of the recording file
+     * @return sample rate (Hz)
+     */
+    public int getSampleRate() {
+        return buffer.getInt(12);
+    }
+
+    /**
+     * Return the length of the audio
+     * @return duration (ms)
+     */
+    public long getDurationMs() {
+        return buffer.getInt(16) & 0xffffffffL;
+    }
+
+    /**
+     * Return the {@link #FLAG_CAPTURED} and {@link #FLAG_TIMESTAMPED} flags
+     * @return flags
+     */
+    public int getFlags() {
+        return buffer.getInt(20);
+    }
+
+    /**
+     * Return the number of envelope values per second
+     * @return envelope rate (Hz)
+     */
+    public int getEnvelopeRateHz() {
+        return buffer.getInt(24);
+    }
+
+    /**
+     * Return the number of envelope values
+     * @return count
+     */
+    public int getEnvelopeSize() {
+        return buffer.getInt(28);
+    }
+
+    /**
+     * Return an envelope value
+     * @param index The frame
+     * @return RMS (full scale = 1.0)
+     */
+    public float getEnvelope(int index) {
+        return buffer.getFloat(checked(32, 28, index) + 4 * index);
+    }
+
+    /**
+     * Copy the envelope into a {@link FlowEnvelope}, e.g. to validate or estimate the recording again
+     * @return envelope
+     */
+    public FlowEnvelope toEnvelope() {
+        int size = getEnvelopeSize();
+        FlowEnvelope envelope = new FlowEnvelope(getEnvelopeRateHz(), size);
+        for (int i = 0; i < size; i++) {
+            envelope.append(getEnvelope(i));
+        }
+        return envelope;
+    }
+
+    /**
+     * Return the number of capture samples each block covers
+     * @return samples per block
+     */
+    public int getBlockSamples() {
+        return buffer.getInt(36);
+    }
+
+    /**
+     * Return the number of blocks
+     * @return count
+     */
+    public int getBlockCount() {
+        return buffer.getInt(40);
+    }
+
+    /**
+     * Return the largest absolute sample of a block
+     * @param index The block
+     * @return peak (full scale = 1.0)
+     */
+    public float getBlockPeak(int index) {
+        return buffer.getFloat(checked(44, 40, index) + BLOCK_BYTES * index);
+    }
+
+    /**
+     * Return the RMS of a block, DC included
+     * @param index The block
+     * @return RMS (full scale = 1.0)
+     */
+    public float getBlockRms(int index) {
+        return buffer.getFloat(checked(44, 40, index) + BLOCK_BYTES * index + 4);
+    }
+
+    /**
+     * Return the number of threshold crossings
+     * @return count
+     */
+    public int getCrossingCount() {
+        return buffer.getInt(48);
+    }
+
+    /**
+     * Return when a threshold crossing happened
+     * @param index The crossing, in time order
+     * @return time from the start of the recording (ms)
+     */
+    public long getCrossingTimeMs(int index) {
+        return buffer.getInt(checked(52, 48, index) + CROSSING_BYTES * index);
+    }
+
+    /**
+     * Return which threshold was crossed, and which way
+     * @param index The crossing, in time order
+     * @return crossing, or null if it is one this version does not know
+     */
+    public ThresholdCrossing getCrossing(int index) {
+        int ordinal = buffer.getInt(checked(52, 48, index) + CROSSING_BYTES * index + 4);
+        ThresholdCrossing[] crossings = ThresholdCrossing.values();
+        return ordinal >= 0 && ordinal < crossings.length ? crossings[ordinal] : null;
+    }
+
+    /**
+     * Return the envelope level at a threshold crossing
+     * @param index The crossing, in time order
+     * @return level (dBFS)
+     */
+    public float getCrossingLevelDbfs(int index) {
+        return buffer.getFloat(checked(52, 48, index) + CROSSING_BYTES * index + 8);
+    }
+
+    /**
+     * Return the time of the first crossing of a kind
+     * @param crossing The crossing
+     * @return time from the start of the recording (ms), or -1 if it never happened
+     */
+    public long firstCrossingMs(ThresholdCrossing crossing) {
+        for (int i = 0; i < getCrossingCount(); i++) {
+            if (getCrossing(i) == crossing) {
+                return getCrossingTimeMs(i);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the number of AudioRecord reads
+     * @return reads, 0 if the statistics were not captured
+     */
+    public int getReads() {
+        return buffer.getInt(56);
+    }
+
+    /**
+     * Return the number of AudioRecord overruns
+     * @return overruns
+     */
+    public int getOverruns() {
+        return buffer.getInt(60);
+    }
+
+    /**
+     * Return the number of captured frames lost to overruns
+     * @return lost frames
+     */
+    public long getLostFrames() {
+        return buffer.getInt(64) & 0xffffffffL;
+    }
+
+    /**
+     * Return the largest number of captured frames waiting to be read
+     * @return backlog (ms of audio)
+     */
+    public float getMaxBacklogMs() {
+        return buffer.getFloat(68);
+    }
+
+    /**
+     * Return the largest read jitter
+     * @return jitter (ms)
+     */
+    public float getMaxJitterMs() {
+        return buffer.getFloat(72);
+    }
+
+    /**
+     * Return the largest envelope value
+     * @return peak (full scale = 1.0)
+     */
+    public float getEnvelopePeak() {
+        return buffer.getFloat(76);
+    }
+
+    /**
+     * Return the frame of the largest envelope value
+     * @return index, or -1 if the envelope is empty
+     */
+    public int getEnvelopePeakIndex() {
+        return buffer.getInt(80);
+    }
+
+    /**
+     * Indicate if a section given by its offset and count fields lies within the file
+     */
+    private boolean fits(int offsetField, int countField, int entryBytes) {
+        long offset = buffer.getInt(offsetField) & 0xffffffffL;
+        long count = buffer.getInt(countField) & 0xffffffffL;
+        return offset >= HEADER_BYTES && offset + count * entryBytes <= buffer.capacity();
+    }
+
+    /**
+     * Return the offset of a section, after checking the index is within it
+     */
+    private int checked(int offsetField, int countField, int index) {
+        if (index < 0 || index >= buffer.getInt(countField)) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + buffer.getInt(countField));
+        }
+        return buffer.getInt(offsetField);
+    }
+}
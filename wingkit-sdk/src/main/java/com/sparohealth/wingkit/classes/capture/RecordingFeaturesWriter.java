@@ -0,0 +1,268 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import com.sparohealth.wingkit.classes.analysis.EnvelopeExtractor;
+import com.sparohealth.wingkit.classes.analysis.FlowEnvelope;
+import com.sparohealth.wingkit.classes.analysis.PcmWavFile;
+import com.sparohealth.wingkit.classes.analysis.ValidityConfiguration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * {@link RecordingFeaturesWriter} collects the per-block peak and RMS of a recording from the capture
+ * loop and writes its {@link RecordingFeatures} sidecar once the recording is finished. It does not
+ * allocate while processing beyond growing its block arrays, and costs a compare and a multiply-add
+ * per sample. Not thread safe; feed it from one thread.
+ */
+public class RecordingFeaturesWriter {
+    /// The default audio time each block covers (ms).
+    public static final int DEFAULT_BLOCK_MS = 50;
+    /// How far the level has to fall back below a threshold before the crossing back is recorded (dB).
+    private static final double HYSTERESIS_DB = 3.0;
+    /// The level used for silent frames, to keep logarithms finite.
+    private static final double SILENCE_DBFS = -120.0;
+    /// The full scale of a 16-bit sample.
+    private static final float FULL_SCALE = 32768f;
+
+    /// The levels crossings are recorded for.
+    private final ValidityConfiguration thresholds;
+    /// The number of samples per block.
+    private final int blockSamples;
+
+    /// The peak and RMS of each finished block.
+    private float[] blockPeaks = new float[256];
+    private float[] blockRms = new float[256];
+    private int blockCount = 0;
+    /// The largest absolute sample and the sum of squares of the current block.
+    private int currentPeak = 0;
+    private double currentSumSquares = 0;
+    private int currentSamples = 0;
+    /// The low byte of a sample split across two byte buffers, or -1.
+    private int pendingLowByte = -1;
+
+    /**
+     * Initialize the {@link RecordingFeaturesWriter} with {@link #DEFAULT_BLOCK_MS} blocks
+     * @param sampleRate The sample rate of the PCM it is fed (Hz)
+     * @param thresholds The signal and saturation levels crossings are recorded for
+     */
+    public RecordingFeaturesWriter(int sampleRate, ValidityConfiguration thresholds) {
+        this(sampleRate, thresholds, DEFAULT_BLOCK_MS);
+    }
+
+    /**
+     * Initialize the {@link RecordingFeaturesWriter}
+     * @param sampleRate The sample rate of the PCM it is fed (Hz)
+     * @param thresholds The signal and saturation levels crossings are recorded for
+     * @param blockMs The audio time each block covers (ms)
+     */
+    public RecordingFeaturesWriter(int sampleRate, ValidityConfiguration thresholds, int blockMs) {
+        this.thresholds = thresholds;
+        this.blockSamples = Math.max(1, sampleRate * blockMs / 1000);
+    }
+
+    /**
+     * Rebuild the sidecar of a recording from its PCM, e.g. one recovered after the app was killed or
+     * made before sidecars were written. There are no capture statistics, so {@link RecordingFeatures#FLAG_CAPTURED}
+     * is not set.
+     * @param recording The recording
+     * @param thresholds The signal and saturation levels crossings are recorded for
+     * @throws IOException if the recording cannot be read or the sidecar cannot be written
+     */
+    public static void rebuild(File recording, ValidityConfiguration thresholds) throws IOException {
+        PcmWavFile wav = PcmWavFile.read(recording);
+        EnvelopeExtractor extractor = EnvelopeExtractor.create(wav.sampleRate, EnvelopeExtractor.DEFAULT_RATE_HZ, wav.getDurationMs());
+        extractor.process(wav.samples, 0, wav.samples.length);
+        RecordingFeaturesWriter writer = new RecordingFeaturesWriter(wav.sampleRate, thresholds);
+        writer.process(wav.samples, 0, wav.samples.length);
+        RecordingManifest manifest = RecordingManifest.readForUpload(recording);
+        writer.write(recording, extractor.getEnvelope(), manifest == null ? wav.sampleRate : manifest.captureSampleRate,
+                wav.sampleRate, wav.getDurationMs(), null);
+    }
+
+    /**
+     * Process little-endian 16-bit PCM bytes, as read from AudioRecord
+     * @param pcm The buffer
+     * @param offset The first byte to process
+     * @param length The number of bytes to process
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        int index = offset;
+        int end = offset + length;
+        // if the previous buffer ended halfway through a sample...
+        if (pendingLowByte >= 0 && index < end) {
+            addSample((short) (pendingLowByte | (pcm[index++] << 8)));
+            pendingLowByte = -1;
+        }
+        for (; index + 1 < end; index += 2) {
+            addSample((short) ((pcm[index] & 0xff) | (pcm[index + 1] << 8)));
+        }
+        if (index < end) {
+            pendingLowByte = pcm[index] & 0xff;
+        }
+    }
+
+    /**
+     * Process 16-bit PCM samples
+     * @param samples The buffer
+     * @param offset The first sample to process
+     * @param length The number of samples to process
+     */
+    public void process(short[] samples, int offset, int length) {
+        for (int index = offset; index < offset + length; index++) {
+            addSample(samples[index]);
+        }
+    }
+
+    /**
+     * Write the sidecar next to a finished recording. A block cut short by the end of the recording
+     * is kept. The sidecar follows the recording when the {@link RecordingStore} renames it.
+     * @param recording The recording
+     * @param envelope The envelope of the recording
+     * @param captureSampleRate The sample rate the audio was captured at (Hz)
+     * @param fileSampleRate The sample rate of the recording file (Hz)
+     * @param durationMs The length of the audio (ms)
+     * @param tuning The read statistics of the recording, or null if unknown
+     * @throws IOException if the sidecar cannot be written; nothing is left behind
+     */
+    public void write(File recording, FlowEnvelope envelope, int captureSampleRate, int fileSampleRate,
+                      long durationMs, BufferTuning tuning) throws IOException {
+        ByteBuffer buffer = encode(envelope, captureSampleRate, fileSampleRate, durationMs, tuning);
+        File file = RecordingFeatures.fileFor(recording);
+        FileOutputStream out = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            out.write(buffer.array());
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Return the features of a finished recording without writing them, e.g. for a batch tool that
+     * only reports on recordings
+     * @param envelope The envelope of the recording
+     * @param captureSampleRate The sample rate the audio was captured at (Hz)
+     * @param fileSampleRate The sample rate of the recording file (Hz)
+     * @param durationMs The length of the audio (ms)
+     * @param tuning The read statistics of the recording, or null if unknown
+     * @return features
+     */
+    public RecordingFeatures toFeatures(FlowEnvelope envelope, int captureSampleRate, int fileSampleRate,
+                                        long durationMs, BufferTuning tuning) {
+        return new RecordingFeatures(encode(envelope, captureSampleRate, fileSampleRate, durationMs, tuning));
+    }
+
+    /**
+     * Lay the sidecar out in a heap buffer
+     */
+    private ByteBuffer encode(FlowEnvelope envelope, int captureSampleRate, int fileSampleRate, long durationMs, BufferTuning tuning) {
+        if (currentSamples > 0) {
+            finishBlock();
+        }
+        int envelopeSize = envelope.size();
+        float[] values = envelope.getValues();
+        ByteBuffer crossings = crossings(values, envelopeSize, envelope.getRateHz());
+        int crossingCount = crossings.position() / RecordingFeatures.CROSSING_BYTES;
+
+        int envelopeOffset = RecordingFeatures.HEADER_BYTES;
+        int blockOffset = envelopeOffset + 4 * envelopeSize;
+        int crossingOffset = blockOffset + RecordingFeatures.BLOCK_BYTES * blockCount;
+        ByteBuffer buffer = ByteBuffer.allocate(crossingOffset + crossings.position()).order(ByteOrder.LITTLE_ENDIAN);
+        int flags = tuning == null ? 0 : RecordingFeatures.FLAG_CAPTURED | (tuning.timestamped ? RecordingFeatures.FLAG_TIMESTAMPED : 0);
+        buffer.putInt(RecordingFeatures.MAGIC).putInt(RecordingFeatures.VERSION)
+                .putInt(captureSampleRate).putInt(fileSampleRate).putInt((int) durationMs).putInt(flags)
+                .putInt(envelope.getRateHz()).putInt(envelopeSize).putInt(envelopeOffset)
+                .putInt(blockSamples).putInt(blockCount).putInt(blockOffset)
+                .putInt(crossingCount).putInt(crossingOffset)
+                .putInt(tuning == null ? 0 : tuning.reads)
+                .putInt(tuning == null ? 0 : tuning.overruns)
+                .putInt(tuning == null ? 0 : (int) Math.min(tuning.lostFrames, 0xffffffffL))
+                .putFloat(tuning == null ? 0 : (float) tuning.maxBacklogMs)
+                .putFloat(tuning == null ? 0 : (float) tuning.maxJitterMs)
+                .putFloat(envelope.getPeak()).putInt(envelope.getPeakIndex());
+        buffer.position(envelopeOffset);
+        for (int i = 0; i < envelopeSize; i++) {
+            buffer.putFloat(values[i]);
+        }
+        for (int i = 0; i < blockCount; i++) {
+            buffer.putFloat(blockPeaks[i]).putFloat(blockRms[i]);
+        }
+        buffer.put(crossings.array(), 0, crossings.position());
+        return buffer;
+    }
+
+    /**
+     * Find where the envelope crosses the signal and saturation levels. A level counts as crossed
+     * back only once it is {@link #HYSTERESIS_DB} below the threshold, so a blow hovering at a
+     * threshold is not recorded as many crossings.
+     */
+    private ByteBuffer crossings(float[] values, int size, int rateHz) {
+        ByteBuffer crossings = ByteBuffer.allocate(RecordingFeatures.CROSSING_BYTES * 16).order(ByteOrder.LITTLE_ENDIAN);
+        boolean signal = false;
+        boolean saturated = false;
+        for (int i = 0; i < size; i++) {
+            double level = values[i] > 0 ? Math.max(SILENCE_DBFS, 20 * Math.log10(values[i])) : SILENCE_DBFS;
+            long timeMs = (long) i * 1000 / rateHz;
+            // if the level HAS crossed a threshold it was on the other side of...
+            if (!signal && level > thresholds.minimumSignalDbfs) {
+                signal = true;
+                crossings = addCrossing(crossings, timeMs, ThresholdCrossing.signalStart, level);
+            }
+            if (!saturated && level > thresholds.maximumSignalDbfs) {
+                saturated = true;
+                crossings = addCrossing(crossings, timeMs, ThresholdCrossing.saturationStart, level);
+            } else if (saturated && level < thresholds.maximumSignalDbfs - HYSTERESIS_DB) {
+                saturated = false;
+                crossings = addCrossing(crossings, timeMs, ThresholdCrossing.saturationEnd, level);
+            }
+            if (signal && level < thresholds.minimumSignalDbfs - HYSTERESIS_DB) {
+                signal = false;
+                crossings = addCrossing(crossings, timeMs, ThresholdCrossing.signalEnd, level);
+            }
+        }
+        return crossings;
+    }
+
+    private static ByteBuffer addCrossing(ByteBuffer crossings, long timeMs, ThresholdCrossing crossing, double level) {
+        // if the buffer IS full, move to one twice the size
+        if (crossings.remaining() < RecordingFeatures.CROSSING_BYTES) {
+            ByteBuffer larger = ByteBuffer.allocate(crossings.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            larger.put(crossings.array(), 0, crossings.position());
+            crossings = larger;
+        }
+        return crossings.putInt((int) timeMs).putInt(crossing.ordinal()).putFloat((float) level);
+    }
+
+    private void addSample(short sample) {
+        int magnitude = Math.abs((int) sample);
+        if (magnitude > currentPeak) {
+            currentPeak = magnitude;
+        }
+        currentSumSquares += (double) sample * sample;
+        // if the current block IS complete...
+        if (++currentSamples == blockSamples) {
+            finishBlock();
+        }
+    }
+
+    private void finishBlock() {
+        if (blockCount == blockPeaks.length) {
+            blockPeaks = Arrays.copyOf(blockPeaks, blockCount * 2);
+            blockRms = Arrays.copyOf(blockRms, blockCount * 2);
+        }
+        blockPeaks[blockCount] = currentPeak / FULL_SCALE;
+        blockRms[blockCount] = (float) (Math.sqrt(currentSumSquares / currentSamples) / FULL_SCALE);
+        blockCount++;
+        currentPeak = 0;
+        currentSumSquares = 0;
+        currentSamples = 0;
+    }
+}
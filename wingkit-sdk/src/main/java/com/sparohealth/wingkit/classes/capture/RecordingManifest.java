@@ -0,0 +1,166 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link RecordingManifest} describes a finished recording for its upload: the checksums computed
+ * while it was written, its length and format, and how well the capture kept up. It is stored as JSON
+ * next to the recording ({@link #fileFor(File)}), so the uploaders can send Content-MD5 without reading
+ * the recording twice.
+ */
+public class RecordingManifest {
+    /// The extension added to a recording's name for its manifest.
+    public static final String SUFFIX = ".manifest";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /// The file length (bytes).
+    public final long length;
+    /// The base64 MD5 of the file, as sent in Content-MD5.
+    public final String contentMd5;
+    /// The base64 big-endian CRC-32C of the file, as sent in x-amz-checksum-crc32c.
+    public final String crc32c;
+    /// The length of the audio (ms).
+    public final long durationMs;
+    /// The sample rate of the file (Hz).
+    public final int sampleRate;
+    /// The sample rate the audio was captured at (Hz).
+    public final int captureSampleRate;
+    /// The number of AudioRecord reads.
+    public final int reads;
+    /// The number of AudioRecord overruns.
+    public final int overruns;
+    /// The number of captured frames lost to overruns.
+    public final long lostFrames;
+
+    /**
+     * Initialize the {@link RecordingManifest}
+     * @param checksum The checksum of the recording
+     * @param durationMs The length of the audio (ms)
+     * @param sampleRate The sample rate of the file (Hz)
+     * @param captureSampleRate The sample rate the audio was captured at (Hz)
+     * @param tuning The read statistics of the recording, or null if unknown
+     */
+    public RecordingManifest(RecordingChecksum checksum, long durationMs, int sampleRate, int captureSampleRate, BufferTuning tuning) {
+        this(checksum.length, checksum.getContentMd5(), checksum.getCrc32cBase64(), durationMs, sampleRate, captureSampleRate,
+                tuning == null ? 0 : tuning.reads, tuning == null ? 0 : tuning.overruns, tuning == null ? 0 : tuning.lostFrames);
+    }
+
+    private RecordingManifest(long length, String contentMd5, String crc32c, long durationMs, int sampleRate,
+                              int captureSampleRate, int reads, int overruns, long lostFrames) {
+        this.length = length;
+        this.contentMd5 = contentMd5;
+        this.crc32c = crc32c;
+        this.durationMs = durationMs;
+        this.sampleRate = sampleRate;
+        this.captureSampleRate = captureSampleRate;
+        this.reads = reads;
+        this.overruns = overruns;
+        this.lostFrames = lostFrames;
+    }
+
+    /**
+     * Return the manifest file of a recording
+     * @param recording The recording
+     * @return the manifest file, which may not exist
+     */
+    public static File fileFor(File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /**
+     * Read the manifest of a recording for its upload
+     * @param recording The recording
+     * @return the manifest, or null if there is none, it cannot be read, or it does not match the recording's length
+     */
+    public static RecordingManifest readForUpload(File recording) {
+        File file = fileFor(recording);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            RecordingManifest manifest = fromJson(new JSONObject(readText(file)));
+            // if the recording HAS changed since the manifest was written, its checksums are no use
+            return manifest.length == recording.length() ? manifest : null;
+        } catch (IOException | JSONException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Store the manifest next to its recording
+     * @param recording The recording
+     * @throws IOException An exception occurring during the file access
+     */
+    public void write(File recording) throws IOException {
+        try {
+            OutputStream out = new FileOutputStream(fileFor(recording));
+            try {
+                out.write(toJson().toString().getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Return the entries sent as S3 user metadata with the upload, next to the {@link RecordingMetadata}
+     * @return entries
+     */
+    public Map<String, String> toMetadata() {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("duration-ms", String.valueOf(durationMs));
+        metadata.put("crc32c", crc32c);
+        metadata.put("reads", String.valueOf(reads));
+        metadata.put("overruns", String.valueOf(overruns));
+        metadata.put("lost-frames", String.valueOf(lostFrames));
+        return metadata;
+    }
+
+    JSONObject toJson() throws JSONException {
+        return new JSONObject()
+                .put("length", length)
+                .put("contentMd5", contentMd5)
+                .put("crc32c", crc32c)
+                .put("durationMs", durationMs)
+                .put("sampleRate", sampleRate)
+                .put("captureSampleRate", captureSampleRate)
+                .put("reads", reads)
+                .put("overruns", overruns)
+                .put("lostFrames", lostFrames);
+    }
+
+    static RecordingManifest fromJson(JSONObject json) throws JSONException {
+        return new RecordingManifest(json.getLong("length"), json.getString("contentMd5"), json.getString("crc32c"),
+                json.getLong("durationMs"), json.getInt("sampleRate"), json.getInt("captureSampleRate"),
+                json.getInt("reads"), json.getInt("overruns"), json.getLong("lostFrames"));
+    }
+
+    static String readText(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) > 0) {
+                offset += read;
+            }
+            return new String(bytes, 0, offset, UTF8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link RecordingMetadata} stores key/value metadata in a recording as a RIFF LIST/INFO chunk after
+ * the audio data. The 44-byte header stays as it was, so readers that assume it keep working, and
+ * readers that follow the data chunk size never see the metadata.
+ *
+ * Entries are kept in the comment (ICMT) as key=value pairs separated by semicolons.
+ */
+public class RecordingMetadata {
+    /// The prefix of the S3 user metadata keys the entries are uploaded as.
+    public static final String USER_METADATA_PREFIX = "wingkit-";
+    /// The prefix of the matching S3 request headers.
+    public static final String UPLOAD_HEADER_PREFIX = "x-amz-meta-" + USER_METADATA_PREFIX;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String SOFTWARE = "WingKit";
+
+    private RecordingMetadata() {
+    }
+
+    /**
+     * Append metadata to a finished recording and update the RIFF size
+     * @param wav The recording
+     * @param metadata The entries to store. Keys and values must not contain '=' or ';'.
+     * @throws IOException An exception occurring during the file access
+     */
+    public static void append(File wav, Map<String, String> metadata) throws IOException {
+        byte[] chunk = toChunk(metadata);
+        RandomAccessFile file = new RandomAccessFile(wav, "rw");
+        try {
+            long length = file.length();
+            // chunks start on even offsets
+            if ((length & 1) != 0) {
+                file.seek(length);
+                file.write(0);
+                length++;
+            }
+            file.seek(length);
+            file.write(chunk);
+
+            // RIFF ChunkSize covers everything after the first 8 bytes
+            file.seek(4);
+            file.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) (file.length() - 8)).array());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Encode metadata as the LIST/INFO chunk {@link #append(File, Map)} writes, for writers that
+     * write it themselves
+     * @param metadata The entries to store. Keys and values must not contain '=' or ';'.
+     * @return the chunk, an even number of bytes
+     */
+    public static byte[] toChunk(Map<String, String> metadata) {
+        StringBuilder comment = new StringBuilder();
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (comment.length() > 0) {
+                comment.append(';');
+            }
+            comment.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        byte[] software = infoText(SOFTWARE);
+        byte[] text = infoText(comment.toString());
+
+        ByteBuffer chunk = ByteBuffer.allocate(12 + 8 + software.length + 8 + text.length).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.put("LIST".getBytes(ASCII)).putInt(chunk.capacity() - 8).put("INFO".getBytes(ASCII));
+        chunk.put("ISFT".getBytes(ASCII)).putInt(software.length).put(software);
+        chunk.put("ICMT".getBytes(ASCII)).putInt(text.length).put(text);
+        return chunk.array();
+    }
+
+    /**
+     * Read the metadata stored in a recording
+     * @param wav The recording
+     * @return the entries, empty if the recording has none
+     * @throws IOException An exception occurring during the file access
+     */
+    public static Map<String, String> read(File wav) throws IOException {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        RandomAccessFile file = new RandomAccessFile(wav, "r");
+        try {
+            long position = 12;
+            byte[] header = new byte[8];
+            while (position + 8 <= file.length()) {
+                file.seek(position);
+                file.readFully(header);
+                ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                String id = new String(header, 0, 4, ASCII);
+                long size = buffer.getInt(4) & 0xffffffffL;
+                // if this IS the data chunk of a recording that was never finalized, nothing follows it
+                if (id.equals("data") && size == 0) {
+                    break;
+                }
+                if (id.equals("LIST") && size >= 4) {
+                    byte[] body = new byte[(int) Math.min(size, file.length() - position - 8)];
+                    file.readFully(body);
+                    parseInfo(body, metadata);
+                }
+                position += 8 + size + (size & 1);
+            }
+        } finally {
+            file.close();
+        }
+        return metadata;
+    }
+
+    /**
+     * Read the metadata of a recording for its upload. A recording that cannot be read is uploaded
+     * without metadata rather than not at all.
+     * @param wav The recording
+     * @return the entries, empty if there are none or they cannot be read
+     */
+    public static Map<String, String> readForUpload(File wav) {
+        try {
+            return read(wav);
+        } catch (IOException ex) {
+            return new LinkedHashMap<>();
+        }
+    }
+
+    private static void parseInfo(byte[] body, Map<String, String> metadata) {
+        if (!new String(body, 0, 4, ASCII).equals("INFO")) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 4;
+        while (offset + 8 <= body.length) {
+            String id = new String(body, offset, 4, ASCII);
+            int size = buffer.getInt(offset + 4);
+            if (size < 0 || offset + 8 + size > body.length) {
+                return;
+            }
+            if (id.equals("ICMT")) {
+                String text = new String(body, offset + 8, size, ASCII).replace("\u0000", "");
+                for (String pair : text.split(";")) {
+                    int separator = pair.indexOf('=');
+                    if (separator > 0) {
+                        metadata.put(pair.substring(0, separator), pair.substring(separator + 1));
+                    }
+                }
+            }
+            offset += 8 + size + (size & 1);
+        }
+    }
+
+    /**
+     * Encode an INFO string: zero terminated and padded to an even length
+     */
+    private static byte[] infoText(String value) {
+        byte[] text = value.getBytes(ASCII);
+        int length = text.length + 1;
+        byte[] padded = new byte[length + (length & 1)];
+        System.arraycopy(text, 0, padded, 0, text.length);
+        return padded;
+    }
+}
@@ -0,0 +1,427 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import com.sparohealth.wingkit.classes.analysis.ValidityConfiguration;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link RecordingStore} gives each test a recording file of its own in one directory, so a test can
+ * be captured while earlier ones are still uploading and a failed upload can be retried without
+ * another blow.
+ *
+ * A recording is written under a temporary name and renamed into place once it is finished, so a
+ * name without the temporary suffix always holds a complete recording. A small JSON index keeps the
+ * finished recordings in the order they were made; the oldest are evicted when the store outgrows its
+ * size budget, and any recording past the age limit. When the store is first used, recordings the
+ * app was killed in the middle of are recovered by {@link RecordingWriter#recover(File, long)} and
+ * flagged as such (their {@link RecordingFeatures} sidecar is rebuilt from the audio), and files the
+ * index does not account for are cleaned up. A recording's manifest and feature sidecar are renamed,
+ * evicted and deleted with it.
+ *
+ * Recordings handed to an upload journal are copied into it, so the store keeps and evicts its own copy as usual.
+ *
+ * Recording to the same directory from several places must go through one store, from
+ * {@link #forDirectory(File, RecordingStoreConfiguration)}: a second store would recover the partial
+ * recordings the first is still writing, and each would overwrite the other's index.
+ */
+public class RecordingStore {
+    /// The extension of finished recordings.
+    public static final String RECORDING_SUFFIX = ".wav";
+    /// The extension of recordings still being written.
+    public static final String PARTIAL_SUFFIX = ".wav.part";
+
+    private static final String INDEX = "index.json";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /// The stores handed out by forDirectory, by canonical directory.
+    private static final Map<File, RecordingStore> shared = new HashMap<>();
+
+    private final File directory;
+    private final RecordingStoreConfiguration configuration;
+    /// The finished recordings, oldest first, by name.
+    private Map<String, Entry> index = null;
+    private int sequence = 0;
+
+    /**
+     * An index entry
+     */
+    private static class Entry {
+        /// When the recording was made (ms since the epoch).
+        final long createdMs;
+        /// Whether the recording was recovered after being cut off.
+        final boolean recovered;
+
+        Entry(long createdMs, boolean recovered) {
+            this.createdMs = createdMs;
+            this.recovered = recovered;
+        }
+    }
+
+    /**
+     * Initialize the {@link RecordingStore}. Nothing is read until the store is first used. Use
+     * {@link #forDirectory(File, RecordingStoreConfiguration)} unless nothing else records to the directory.
+     * @param directory The directory to keep recordings in; created when needed
+     * @param configuration The size and age limits
+     */
+    public RecordingStore(File directory, RecordingStoreConfiguration configuration) {
+        this.directory = directory;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Return the store for a directory, shared by everything that records to it
+     * @param directory The directory to keep recordings in; created when needed
+     * @param configuration The size and age limits, used if the directory has no store yet
+     * @return the directory's store
+     */
+    public static RecordingStore forDirectory(File directory, RecordingStoreConfiguration configuration) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException ex) {
+            key = directory.getAbsoluteFile();
+        }
+        synchronized (shared) {
+            RecordingStore store = shared.get(key);
+            if (store == null) {
+                store = new RecordingStore(directory, configuration);
+                shared.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Return the directory the recordings are kept in
+     * @return directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Return a new, uniquely named file to write a recording to. It is not listed until {@link #commit(File)}.
+     * @return the partial recording file
+     * @throws IOException if the directory cannot be created
+     */
+    public synchronized File create() throws IOException {
+        load(System.currentTimeMillis());
+        File file;
+        do {
+            file = new File(directory, "test-" + System.currentTimeMillis() + "-" + (sequence++) + PARTIAL_SUFFIX);
+        } while (file.exists() || new File(directory, finalName(file.getName())).exists());
+        return file;
+    }
+
+    /**
+     * Indicate if a file is a partial recording of this store
+     * @param file The file
+     * @return partial status
+     */
+    public boolean isPartial(File file) {
+        return file.getName().endsWith(PARTIAL_SUFFIX) && directory.equals(file.getParentFile());
+    }
+
+    /**
+     * Move a finished recording, and its sidecars, into place and evict what no longer fits
+     * @param partial The file returned by {@link #create()}
+     * @return the finished recording
+     * @throws IOException if the recording cannot be renamed
+     */
+    public synchronized File commit(File partial) throws IOException {
+        return commit(partial, System.currentTimeMillis());
+    }
+
+    synchronized File commit(File partial, long nowMs) throws IOException {
+        load(nowMs);
+        if (!isPartial(partial)) {
+            throw new IllegalArgumentException(partial + " is not a partial recording of this store");
+        }
+        File recording = rename(partial);
+        index.put(recording.getName(), new Entry(nowMs, false));
+        evict(nowMs, recording.getName());
+        saveIndex();
+        return recording;
+    }
+
+    /**
+     * Indicate if a recording was recovered after the app was killed while it was being made. Its
+     * metadata also has {@link RecordingWriter#RECOVERED_KEY} set, so the backend can tell.
+     * @param recording The recording
+     * @return recovered status
+     */
+    public synchronized boolean isRecovered(File recording) {
+        load(System.currentTimeMillis());
+        Entry entry = index.get(recording.getName());
+        return entry != null && entry.recovered;
+    }
+
+    /**
+     * Delete a partial recording that will not be finished (e.g. the capture failed)
+     * @param partial The file returned by {@link #create()}
+     */
+    public synchronized void discard(File partial) {
+        if (isPartial(partial)) {
+            RecordingManifest.fileFor(partial).delete();
+            RecordingFeatures.fileFor(partial).delete();
+            RecordingWriter.journalFor(partial).delete();
+            partial.delete();
+        }
+    }
+
+    /**
+     * Delete a finished recording, e.g. once it has been uploaded
+     * @param recording The recording
+     */
+    public synchronized void remove(File recording) {
+        load(System.currentTimeMillis());
+        if (index.remove(recording.getName()) != null) {
+            delete(recording.getName());
+            saveIndexQuietly();
+        }
+    }
+
+    /**
+     * Return the finished recordings still in the store, oldest first
+     * @return recordings
+     */
+    public synchronized List<File> list() {
+        load(System.currentTimeMillis());
+        List<File> recordings = new ArrayList<>();
+        for (String name : index.keySet()) {
+            File recording = new File(directory, name);
+            // recordings deleted by the app are no longer the store's
+            if (recording.exists()) {
+                recordings.add(recording);
+            }
+        }
+        return recordings;
+    }
+
+    /**
+     * Return the disk space taken by the finished recordings and their sidecars
+     * @return size (bytes)
+     */
+    public synchronized long getSizeBytes() {
+        load(System.currentTimeMillis());
+        long size = 0;
+        for (String name : index.keySet()) {
+            size += sizeOf(name);
+        }
+        return size;
+    }
+
+    /**
+     * Read the index and clean up the directory, once: recordings the app was killed in the middle of
+     * are recovered if they hold enough audio and deleted otherwise, finished ones missing from the
+     * index are adopted if their manifest vouches for them and deleted otherwise, and entries whose
+     * file is gone are dropped. Then anything over the limits is evicted.
+     */
+    synchronized void load(long nowMs) {
+        if (index != null) {
+            return;
+        }
+        index = readIndex();
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].getName().endsWith(PARTIAL_SUFFIX)) {
+                // if the recording CAN be finished from its journal, keep it under its final name
+                File recording = null;
+                if (RecordingWriter.recover(files[i], configuration.minimumRecoveredMs) != null) {
+                    try {
+                        RecordingFeaturesWriter.rebuild(files[i], new ValidityConfiguration());
+                    } catch (IOException ex) {
+                        // the recording is still worth keeping; tools fall back to its audio
+                        RecordingFeatures.fileFor(files[i]).delete();
+                    }
+                    try {
+                        recording = rename(files[i]);
+                    } catch (IOException ex) {
+                        recording = null;
+                    }
+                }
+                if (recording != null) {
+                    index.put(recording.getName(), new Entry(recording.lastModified(), true));
+                } else {
+                    discard(files[i]);
+                }
+            }
+        }
+
+        files = directory.listFiles();
+        Set<String> present = new HashSet<>();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(RECORDING_SUFFIX)) {
+                present.add(name);
+                // if the recording WAS renamed into place but the index update was lost...
+                if (!index.containsKey(name)) {
+                    if (RecordingManifest.readForUpload(files[i]) != null) {
+                        index.put(name, new Entry(files[i].lastModified(), false));
+                    } else {
+                        delete(name);
+                    }
+                }
+            }
+        }
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            // the sidecars of a recording that is gone, or an index that was never renamed into place
+            if (name.contains(PARTIAL_SUFFIX + ".") || name.equals(INDEX + ".tmp")
+                    || (isSidecar(name, RecordingManifest.SUFFIX) && !present.contains(name.substring(0, name.length() - RecordingManifest.SUFFIX.length())))
+                    || (isSidecar(name, RecordingFeatures.SUFFIX) && !present.contains(name.substring(0, name.length() - RecordingFeatures.SUFFIX.length())))) {
+                files[i].delete();
+            }
+        }
+        index.keySet().retainAll(present);
+        evict(nowMs, null);
+        saveIndexQuietly();
+    }
+
+    /**
+     * Evict recordings past the age limit, then the oldest until the store fits its size budget
+     * @param keep A recording never to evict, or null
+     */
+    private void evict(long nowMs, String keep) {
+        long size = 0;
+        for (String name : index.keySet()) {
+            size += sizeOf(name);
+        }
+        Iterator<Map.Entry<String, Entry>> entries = index.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Entry> entry = entries.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            // if the recording IS too old OR the store IS over its budget...
+            if (nowMs - entry.getValue().createdMs > configuration.maximumAgeMs || size > configuration.maximumBytes) {
+                size -= sizeOf(entry.getKey());
+                delete(entry.getKey());
+                entries.remove();
+            }
+        }
+    }
+
+    private long sizeOf(String name) {
+        File recording = new File(directory, name);
+        return recording.length() + RecordingManifest.fileFor(recording).length() + RecordingFeatures.fileFor(recording).length();
+    }
+
+    private static boolean isSidecar(String name, String suffix) {
+        return name.endsWith(RECORDING_SUFFIX + suffix);
+    }
+
+    private void delete(String name) {
+        File recording = new File(directory, name);
+        RecordingManifest.fileFor(recording).delete();
+        RecordingFeatures.fileFor(recording).delete();
+        recording.delete();
+    }
+
+    /**
+     * Rename a partial recording to its final name; the sidecars go first, so a finished name is never seen without them
+     */
+    private File rename(File partial) throws IOException {
+        File recording = new File(directory, finalName(partial.getName()));
+        File manifest = RecordingManifest.fileFor(partial);
+        if (manifest.exists() && !manifest.renameTo(RecordingManifest.fileFor(recording))) {
+            throw new IOException("Cannot rename " + manifest);
+        }
+        File features = RecordingFeatures.fileFor(partial);
+        if (features.exists() && !features.renameTo(RecordingFeatures.fileFor(recording))) {
+            throw new IOException("Cannot rename " + features);
+        }
+        if (!partial.renameTo(recording)) {
+            throw new IOException("Cannot rename " + partial);
+        }
+        return recording;
+    }
+
+    private static String finalName(String partialName) {
+        return partialName.substring(0, partialName.length() - PARTIAL_SUFFIX.length()) + RECORDING_SUFFIX;
+    }
+
+    private Map<String, Entry> readIndex() {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        File file = new File(directory, INDEX);
+        if (!file.exists()) {
+            return entries;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            byte[] bytes = new byte[(int) file.length()];
+            try {
+                int offset = 0;
+                int read;
+                while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) > 0) {
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+            JSONArray recordings = new JSONObject(new String(bytes, UTF8)).getJSONArray("recordings");
+            for (int i = 0; i < recordings.length(); i++) {
+                JSONObject recording = recordings.getJSONObject(i);
+                entries.put(recording.getString("name"), new Entry(recording.getLong("created"), recording.has("recovered")));
+            }
+        } catch (IOException | JSONException ex) {
+            // a damaged index is rebuilt from the recordings' manifests
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Write the index to a temporary file and rename it into place, so it is never seen half written
+     */
+    private void saveIndex() throws IOException {
+        File temporary = new File(directory, INDEX + ".tmp");
+        try {
+            JSONArray recordings = new JSONArray();
+            for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                JSONObject recording = new JSONObject().put("name", entry.getKey()).put("created", entry.getValue().createdMs);
+                if (entry.getValue().recovered) {
+                    recording.put("recovered", true);
+                }
+                recordings.put(recording);
+            }
+            OutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(new JSONObject().put("recordings", recordings).toString().getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+        if (!temporary.renameTo(new File(directory, INDEX))) {
+            throw new IOException("Cannot save the recording index");
+        }
+    }
+
+    private void saveIndexQuietly() {
+        try {
+            saveIndex();
+        } catch (IOException ex) {
+            // the next load rebuilds what the index is missing from the recordings themselves
+        }
+    }
+}
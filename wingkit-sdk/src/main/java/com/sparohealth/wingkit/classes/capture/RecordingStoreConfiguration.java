@@ -0,0 +1,16 @@
+package com.sparohealth.wingkit.classes.capture;
+
+/**
+ * Settings used by {@link RecordingStore}
+ */
+public class RecordingStoreConfiguration {
+    /// The most disk space the stored recordings may take (bytes); the oldest are evicted beyond it.
+    /// A recording that has just been finished is always kept. About 40 six-second recordings at 44.1 kHz.
+    public long maximumBytes = 20 * 1024 * 1024;
+
+    /// Recordings older than this are evicted (ms).
+    public long maximumAgeMs = 7 * 24 * 60 * 60 * 1000L;
+
+    /// Recordings cut off by the app being killed are recovered at the next start if they hold at least this much audio (ms).
+    public long minimumRecoveredMs = 1000;
+}
@@ -0,0 +1,310 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link RecordingWriter} writes a mono 16-bit WAV recording of a planned length and checksums it as
+ * it goes, so the upload does not have to read the file again to get its MD5 and CRC-32C.
+ *
+ * Because the length is planned, the header is written with its final sizes and the metadata chunk
+ * is known up front, so every byte is hashed in file order. A recording that ends early has its
+ * header fixed afterwards and is hashed again from the file.
+ *
+ * To survive the app being killed mid-recording, the writer keeps a sidecar journal with the sample
+ * rate and metadata, and at each checkpoint rewrites the header sizes to cover the audio written so
+ * far (fsyncing as the {@link SyncPolicy} says). The final header is restored by {@link #finish()}, so
+ * the streamed checksum stays valid. {@link #recover(File, long)} turns a file that was cut off into a
+ * finished recording.
+ */
+public class RecordingWriter {
+    /// The size of the WAV header.
+    public static final int HEADER_BYTES = 44;
+    /// The extension added to a recording's name for its journal while it is written.
+    public static final String JOURNAL_SUFFIX = ".journal";
+    /// The metadata entry that marks a recording recovered after it was cut off.
+    public static final String RECOVERED_KEY = "recovered";
+    /// The default audio time between checkpoints (ms).
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 500;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final int sampleRate;
+    private final long plannedDataBytes;
+    private final byte[] metadataChunk;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final MessageDigest md5 = RecordingChecksum.newMd5();
+    private final Crc32c crc = new Crc32c();
+    private long dataBytes = 0;
+    private SyncPolicy syncPolicy = SyncPolicy.checkpoint;
+    private long checkpointBytes;
+    /// The audio bytes the header covered at the last checkpoint.
+    private long checkpointedBytes = 0;
+
+    /**
+     * Create the recording file and write its header
+     * @param file The file to write; sidecars left next to it by an earlier recording are removed, and
+     *             a journal is kept next to it until it is finished
+     * @param sampleRate The sample rate (Hz)
+     * @param plannedDataBytes The number of audio bytes the recording will hold
+     * @param metadata Entries for the recording's metadata chunk (see {@link RecordingMetadata})
+     * @throws IOException An exception occurring during the file access
+     */
+    public RecordingWriter(File file, int sampleRate, long plannedDataBytes, Map<String, String> metadata) throws IOException {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.plannedDataBytes = plannedDataBytes & ~1L;
+        this.metadataChunk = RecordingMetadata.toChunk(metadata);
+        this.checkpointBytes = 2L * sampleRate * DEFAULT_CHECKPOINT_INTERVAL_MS / 1000;
+        RecordingManifest.fileFor(file).delete();
+        RecordingFeatures.fileFor(file).delete();
+        writeJournal(file, sampleRate, this.plannedDataBytes, metadata);
+        this.out = new FileOutputStream(file);
+        this.channel = out.getChannel();
+        writeHashed(header(sampleRate, this.plannedDataBytes, metadataChunk.length), 0, HEADER_BYTES);
+        // until the first checkpoint the header claims no audio, so a file cut off early is still valid
+        writeSizes(36, 0);
+    }
+
+    /**
+     * Set how often the header is brought up to date and when the file is forced to storage
+     * @param policy The fsync policy
+     * @param checkpointIntervalMs The audio time between checkpoints (ms)
+     */
+    public void setSyncPolicy(SyncPolicy policy, long checkpointIntervalMs) {
+        this.syncPolicy = policy;
+        this.checkpointBytes = Math.max(2, 2L * sampleRate * checkpointIntervalMs / 1000);
+    }
+
+    /**
+     * Write audio, up to the planned length
+     * @param pcm Little-endian 16-bit PCM
+     * @param offset The first byte to write
+     * @param length The number of bytes to write
+     * @return the number of bytes written; less than length once the planned length is reached
+     * @throws IOException An exception occurring during the file access
+     */
+    public int write(byte[] pcm, int offset, int length) throws IOException {
+        int accepted = (int) Math.min(length, plannedDataBytes - dataBytes);
+        if (accepted > 0) {
+            writeHashed(pcm, offset, accepted);
+            dataBytes += accepted;
+            // if a checkpoint interval of audio HAS been written since the last one...
+            if (dataBytes - checkpointedBytes >= checkpointBytes) {
+                checkpoint();
+            }
+            else if (syncPolicy == SyncPolicy.everyWrite) {
+                channel.force(false);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Indicate if the planned length has been written
+     * @return completion status
+     */
+    public boolean isComplete() {
+        return dataBytes >= plannedDataBytes;
+    }
+
+    /**
+     * Return the length of the audio written so far
+     * @return duration (ms)
+     */
+    public long getDurationMs() {
+        return dataBytes / 2 * 1000 / sampleRate;
+    }
+
+    /**
+     * Write the metadata chunk and close the file
+     * @return the checksum of the whole file
+     * @throws IOException An exception occurring during the file access
+     */
+    public RecordingChecksum finish() throws IOException {
+        try {
+            // chunks start on even offsets
+            if ((dataBytes & 1) != 0) {
+                writeHashed(new byte[1], 0, 1);
+            }
+            writeHashed(metadataChunk, 0, metadataChunk.length);
+            // the final sizes: the hashed header again if the recording is as long as planned
+            writeSizes(channel.size() - 8, dataBytes);
+            if (syncPolicy != SyncPolicy.none) {
+                channel.force(false);
+            }
+        } finally {
+            out.close();
+        }
+        journalFor(file).delete();
+        // if the recording IS as long as planned, the header was right and every byte has been hashed
+        if (dataBytes == plannedDataBytes) {
+            return new RecordingChecksum(HEADER_BYTES + dataBytes + metadataChunk.length, md5.digest(), crc.getValue());
+        }
+        return RecordingChecksum.compute(file);
+    }
+
+    /**
+     * Close the file after a failure, leaving it unfinished
+     */
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        journalFor(file).delete();
+    }
+
+    /**
+     * Return the journal file of a recording
+     * @param recording The recording
+     * @return the journal file, which only exists while the recording is written or after it was cut off
+     */
+    public static File journalFor(File recording) {
+        return new File(recording.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Finish a recording that was cut off, e.g. by the app being killed: the audio is cut to whole
+     * samples, the metadata from its journal is appended with {@link #RECOVERED_KEY} set, and a
+     * manifest is written next to it. The journal is deleted either way.
+     * @param file The recording
+     * @param minimumDurationMs Recordings with less audio than this are not worth keeping
+     * @return the manifest of the recovered recording, or null if it cannot be recovered or is too short
+     */
+    public static RecordingManifest recover(File file, long minimumDurationMs) {
+        File journal = journalFor(file);
+        try {
+            if (!journal.exists()) {
+                return null;
+            }
+            JSONObject json = new JSONObject(RecordingManifest.readText(journal));
+            int sampleRate = json.getInt("sampleRate");
+            Map<String, String> metadata = new LinkedHashMap<>();
+            JSONObject entries = json.getJSONObject("metadata");
+            Iterator<String> keys = entries.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                metadata.put(key, entries.getString(key));
+            }
+            metadata.put(RECOVERED_KEY, "true");
+
+            // whatever follows the last whole sample (including a metadata chunk the crash interrupted) is dropped
+            long dataBytes = Math.min(json.getLong("plannedDataBytes"), file.length() - HEADER_BYTES) & ~1L;
+            long durationMs = dataBytes / 2 * 1000 / sampleRate;
+            if (dataBytes <= 0 || durationMs < minimumDurationMs) {
+                return null;
+            }
+            byte[] chunk = RecordingMetadata.toChunk(metadata);
+            RandomAccessFile access = new RandomAccessFile(file, "rw");
+            try {
+                access.setLength(HEADER_BYTES + dataBytes);
+                access.seek(HEADER_BYTES + dataBytes);
+                access.write(chunk);
+                access.seek(0);
+                access.write(header(sampleRate, dataBytes, chunk.length));
+                access.getFD().sync();
+            } finally {
+                access.close();
+            }
+
+            String captureRate = metadata.get("sample-rate");
+            RecordingManifest manifest = new RecordingManifest(RecordingChecksum.compute(file), durationMs, sampleRate,
+                    captureRate == null ? sampleRate : Integer.parseInt(captureRate), null);
+            manifest.write(file);
+            return manifest;
+        } catch (IOException | JSONException | NumberFormatException ex) {
+            return null;
+        } finally {
+            journal.delete();
+        }
+    }
+
+    /**
+     * Bring the header up to date with the audio written so far and force it to storage as the policy says
+     */
+    private void checkpoint() throws IOException {
+        checkpointedBytes = dataBytes & ~1L;
+        writeSizes(36 + checkpointedBytes, checkpointedBytes);
+        if (syncPolicy != SyncPolicy.none) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Overwrite the RIFF and data chunk sizes in place, without moving the write position
+     */
+    private void writeSizes(long riffSize, long dataSize) throws IOException {
+        ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        channel.write((ByteBuffer) size.putInt(0, (int) riffSize).rewind(), 4);
+        channel.write((ByteBuffer) size.putInt(0, (int) dataSize).rewind(), 40);
+    }
+
+    /**
+     * Write the journal that lets {@link #recover(File, long)} finish the recording
+     */
+    private static void writeJournal(File file, int sampleRate, long plannedDataBytes, Map<String, String> metadata) throws IOException {
+        try {
+            JSONObject entries = new JSONObject();
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+            JSONObject json = new JSONObject()
+                    .put("sampleRate", sampleRate)
+                    .put("plannedDataBytes", plannedDataBytes)
+                    .put("metadata", entries);
+            FileOutputStream journal = new FileOutputStream(journalFor(file));
+            try {
+                journal.write(json.toString().getBytes(UTF8));
+            } finally {
+                journal.close();
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private void writeHashed(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        md5.update(bytes, offset, length);
+        crc.update(bytes, offset, length);
+    }
+
+    /**
+     * Return a 44-byte RIFF/WAVE header for mono 16-bit PCM with its final sizes
+     */
+    private static byte[] header(int sampleRate, long dataBytes, int trailingBytes) {
+        return ByteBuffer.allocate(HEADER_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put(new byte[] { 'R', 'I', 'F', 'F' })
+                .putInt((int) (36 + dataBytes + trailingBytes)) // ChunkSize
+                .put(new byte[] { 'W', 'A', 'V', 'E' })
+                .put(new byte[] { 'f', 'm', 't', ' ' })
+                .putInt(16) // Subchunk1Size, 16 for PCM
+                .putShort((short) 1) // AudioFormat, 1 for PCM
+                .putShort((short) 1) // NumChannels
+                .putInt(sampleRate)
+                .putInt(sampleRate * 2) // ByteRate
+                .putShort((short) 2) // BlockAlign
+                .putShort((short) 16) // BitsPerSample
+                .put(new byte[] { 'd', 'a', 't', 'a' })
+                .putInt((int) dataBytes) // Subchunk2Size
+                .array();
+    }
+}
@@ -0,0 +1,18 @@
+package com.sparohealth.wingkit.classes.capture;
+
+/**
+ * When a {@link RecordingWriter} forces the recording to storage with fsync. At every checkpoint the
+ * header is brought up to date with the audio written so far whatever the policy, so a recording cut
+ * off by the app being killed is a valid WAV file up to its last checkpoint.
+ */
+public enum SyncPolicy {
+    /// Never fsync before the recording is finished. Survives the app being killed, but a power loss or
+    /// kernel crash may lose what the OS had not yet written out.
+    none,
+
+    /// fsync at every checkpoint, so at most one checkpoint interval of audio can be lost.
+    checkpoint,
+
+    /// fsync after every buffer written.
+    everyWrite
+}
@@ -0,0 +1,20 @@
+package com.sparohealth.wingkit.classes.capture;
+
+/**
+ * The level thresholds a recording's envelope is checked against, as stored in its
+ * {@link RecordingFeatures}. They are the signal and saturation levels of the
+ * {@link com.sparohealth.wingkit.classes.analysis.ValidityConfiguration} the recording was made with.
+ */
+public enum ThresholdCrossing {
+    /// The level rose above the minimum signal level: a blow started.
+    signalStart,
+
+    /// The level fell back below the minimum signal level.
+    signalEnd,
+
+    /// The level rose above the maximum signal level: the input is saturated.
+    saturationStart,
+
+    /// The level fell back below the maximum signal level.
+    saturationEnd
+}
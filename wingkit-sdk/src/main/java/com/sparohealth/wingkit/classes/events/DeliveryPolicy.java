@@ -0,0 +1,77 @@
+package com.sparohealth.wingkit.classes.events;
+
+/**
+ * How an {@link EventStream} delivers events to one subscriber. The publisher never waits for a
+ * subscriber: when a subscriber falls behind, its policy decides which events it still receives.
+ */
+public class DeliveryPolicy {
+    /// The interval that limits UI subscribers to one update per frame at 60 fps, in milliseconds.
+    public static final long FRAME_INTERVAL_MS = 16;
+
+    /**
+     * Delivery modes
+     */
+    public enum Mode {
+        /// Deliver every event, buffering up to a limit and dropping the oldest events beyond it.
+        all,
+
+        /// Deliver only the newest event; events published while a delivery is pending replace each other.
+        latest,
+
+        /// Deliver the newest event at most once per period.
+        fixedRate
+    }
+
+    /// The delivery mode.
+    public final Mode mode;
+    /// The maximum number of buffered events in {@link Mode#all}.
+    public final int bufferSize;
+    /// The minimum time between deliveries in {@link Mode#fixedRate}, in milliseconds.
+    public final long periodMs;
+
+    private DeliveryPolicy(Mode mode, int bufferSize, long periodMs) {
+        this.mode = mode;
+        this.bufferSize = bufferSize;
+        this.periodMs = periodMs;
+    }
+
+    /**
+     * Deliver every event, keeping at most bufferSize undelivered events
+     * @param bufferSize The buffer limit
+     * @return policy
+     */
+    public static DeliveryPolicy all(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+        return new DeliveryPolicy(Mode.all, bufferSize, 0);
+    }
+
+    /**
+     * Deliver only the newest undelivered event
+     * @return policy
+     */
+    public static DeliveryPolicy latest() {
+        return new DeliveryPolicy(Mode.latest, 1, 0);
+    }
+
+    /**
+     * Deliver the newest event at most once per period
+     * @param periodMs The minimum time between deliveries, in milliseconds
+     * @return policy
+     */
+    public static DeliveryPolicy fixedRate(long periodMs) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("periodMs must be positive");
+        }
+        return new DeliveryPolicy(Mode.fixedRate, 1, periodMs);
+    }
+
+    /**
+     * Deliver the newest event at most once per frame
+     * @return policy
+     */
+    public static DeliveryPolicy perFrame() {
+        return fixedRate(FRAME_INTERVAL_MS);
+    }
+}
@@ -0,0 +1,13 @@
+package com.sparohealth.wingkit.classes.events;
+
+/**
+ * Receives the events of an {@link EventStream}
+ * @param <T> The event type
+ */
+public interface EventListener<T> {
+    /**
+     * Called with an event, on the subscription's delivery executor
+     * @param event The event
+     */
+    void onEvent(T event);
+}
@@ -0,0 +1,199 @@
+package com.sparohealth.wingkit.classes.events;
+
+import com.sparohealth.wingkit.classes.scheduling.PooledScheduler;
+import com.sparohealth.wingkit.classes.scheduling.ScheduledTask;
+import com.sparohealth.wingkit.classes.scheduling.Scheduler;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link EventStream} publishes events to any number of subscribers. Each subscriber chooses a
+ * {@link DeliveryPolicy} and the executor its events are delivered on, so a UI can take one update
+ * per frame on the main thread while another subscriber logs every event on a worker.
+ *
+ * {@link #publish} never blocks and never runs subscriber code, so a slow subscriber cannot stall
+ * the thread producing the events (e.g. the audio capture loop).
+ *
+ * @param <T> The event type
+ */
+public class EventStream<T> {
+    private final CopyOnWriteArrayList<Slot> slots = new CopyOnWriteArrayList<>();
+    private final Scheduler scheduler;
+    private final boolean replayLatest;
+    private volatile T latest;
+    private volatile boolean hasLatest = false;
+
+    /**
+     * Initialize the {@link EventStream}
+     * @param replayLatest Deliver the most recent event to new subscribers (for state streams)
+     */
+    public EventStream(boolean replayLatest) {
+        this(PooledScheduler.getDefault(), replayLatest);
+    }
+
+    /**
+     * Initialize the {@link EventStream}
+     * @param scheduler The scheduler used to pace {@link DeliveryPolicy.Mode#fixedRate} subscribers
+     * @param replayLatest Deliver the most recent event to new subscribers (for state streams)
+     */
+    public EventStream(Scheduler scheduler, boolean replayLatest) {
+        this.scheduler = scheduler;
+        this.replayLatest = replayLatest;
+    }
+
+    /**
+     * Publish an event to every subscriber
+     * @param event The event
+     */
+    public void publish(T event) {
+        latest = event;
+        hasLatest = true;
+        for (Slot slot : slots) {
+            slot.offer(event);
+        }
+    }
+
+    /**
+     * Return the most recently published event
+     * @return latest event, or null if none has been published
+     */
+    public T getLatest() {
+        return latest;
+    }
+
+    /**
+     * Return the number of active subscribers
+     * @return subscriber count
+     */
+    public int getSubscriberCount() {
+        return slots.size();
+    }
+
+    /**
+     * Subscribe a listener
+     * @param listener The listener
+     * @param policy How events are delivered to this listener
+     * @param executor The executor the listener is called on. It should hand the work to another
+     *                 thread; an executor that runs tasks inline makes the publisher run the listener.
+     * @return A handle that ends the subscription
+     */
+    public Subscription subscribe(EventListener<? super T> listener, DeliveryPolicy policy, Executor executor) {
+        Slot slot = new Slot(listener, policy, executor);
+        slots.add(slot);
+        if (replayLatest && hasLatest) {
+            slot.offer(latest);
+        }
+        return slot;
+    }
+
+    /**
+     * A subscriber's pending events and delivery state
+     */
+    private class Slot implements Subscription, Runnable {
+        private final EventListener<? super T> listener;
+        private final DeliveryPolicy policy;
+        private final Executor executor;
+        private final ArrayDeque<T> pending = new ArrayDeque<>();
+        /// A delivery has been handed to the executor or scheduler and has not finished yet.
+        private boolean deliveryScheduled = false;
+        private boolean cancelled = false;
+        private long lastDeliveryTime = Long.MIN_VALUE;
+        private long droppedCount = 0;
+        private ScheduledTask timer = null;
+
+        Slot(EventListener<? super T> listener, DeliveryPolicy policy, Executor executor) {
+            this.listener = listener;
+            this.policy = policy;
+            this.executor = executor;
+        }
+
+        void offer(T event) {
+            long delay = 0;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                // if the buffer IS full, make room by dropping the oldest (or only) event
+                if (pending.size() >= policy.bufferSize) {
+                    pending.poll();
+                    droppedCount++;
+                }
+                pending.add(event);
+
+                if (deliveryScheduled) {
+                    return;
+                }
+                deliveryScheduled = true;
+
+                if (policy.mode == DeliveryPolicy.Mode.fixedRate && lastDeliveryTime != Long.MIN_VALUE) {
+                    delay = Math.max(0, lastDeliveryTime + policy.periodMs - scheduler.uptimeMillis());
+                }
+                if (delay > 0) {
+                    // wait out the rest of the period; events arriving meanwhile replace this one
+                    timer = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            executor.execute(Slot.this);
+                        }
+                    }, delay);
+                    return;
+                }
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                T event;
+                synchronized (this) {
+                    event = pending.poll();
+                    if (event == null || cancelled) {
+                        pending.clear();
+                        deliveryScheduled = false;
+                        timer = null;
+                        return;
+                    }
+                    lastDeliveryTime = scheduler.uptimeMillis();
+                }
+                listener.onEvent(event);
+
+                // a paced subscriber gets at most one event per run; the next one waits for its period
+                if (policy.mode == DeliveryPolicy.Mode.fixedRate) {
+                    T next;
+                    synchronized (this) {
+                        deliveryScheduled = false;
+                        timer = null;
+                        next = pending.poll();
+                    }
+                    if (next != null) {
+                        offer(next);
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            ScheduledTask pendingTimer;
+            synchronized (this) {
+                cancelled = true;
+                pending.clear();
+                pendingTimer = timer;
+                timer = null;
+            }
+            if (pendingTimer != null) {
+                pendingTimer.cancel();
+            }
+            slots.remove(this);
+        }
+
+        @Override
+        public synchronized long getDroppedCount() {
+            return droppedCount;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.sparohealth.wingkit.classes.events;
+
+/**
+ * Handle for a listener subscribed to an {@link EventStream}
+ */
+public interface Subscription {
+    /**
+     * Stop delivering events to the listener. Events already handed to the executor may still arrive.
+     */
+    void cancel();
+
+    /**
+     * Return the number of events dropped or replaced before delivery because the listener was
+     * slower than the publisher
+     * @return dropped event count
+     */
+    long getDroppedCount();
+}
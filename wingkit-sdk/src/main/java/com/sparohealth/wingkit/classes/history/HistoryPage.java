@@ -0,0 +1,29 @@
+package com.sparohealth.wingkit.classes.history;
+
+import com.sparohealth.wingkit.classes.TestSession;
+
+import java.util.List;
+
+/**
+ * One page of {@link HistoryStore#query(HistoryQuery)} results
+ */
+public class HistoryPage {
+    /// The sessions, in the order asked for.
+    public final List<TestSession> sessions;
+
+    /// Set as {@link HistoryQuery#cursor} to get the next page, or null when this is the last.
+    public final String nextCursor;
+
+    HistoryPage(List<TestSession> sessions, String nextCursor) {
+        this.sessions = sessions;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Return whether more sessions match the query
+     * @return true when there is a next page
+     */
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
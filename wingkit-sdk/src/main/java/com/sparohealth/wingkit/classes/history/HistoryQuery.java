@@ -0,0 +1,43 @@
+package com.sparohealth.wingkit.classes.history;
+
+import java.util.Date;
+
+/**
+ * Selects sessions from a {@link HistoryStore}. Every criterion left null matches all sessions.
+ */
+public class HistoryQuery {
+    /// Only the sessions of this patient.
+    public String patientId = null;
+
+    /// Only sessions started at or after this time.
+    public Date from = null;
+
+    /// Only sessions started before this time.
+    public Date to = null;
+
+    /// Only sessions with this lung function zone.
+    public String lungFunctionZone = null;
+
+    /// Return the most recent sessions first.
+    public boolean newestFirst = true;
+
+    /// The most sessions returned by {@link HistoryStore#query(HistoryQuery)}.
+    public int pageSize = 50;
+
+    /// Decode the exhale curves of the tests. Leave them out for lists and trends, which only need the results.
+    public boolean includeCurves = true;
+
+    /// Continue after the last session of an earlier page ({@link HistoryPage#nextCursor}), or null to start at the beginning.
+    public String cursor = null;
+
+    public HistoryQuery() {
+    }
+
+    /**
+     * Initialize a query for one patient's sessions
+     * @param patientId The patient id
+     */
+    public HistoryQuery(String patientId) {
+        this.patientId = patientId;
+    }
+}
@@ -0,0 +1,612 @@
+package com.sparohealth.wingkit.classes.history;
+
+import com.sparohealth.wingkit.classes.TestSession;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * {@link HistoryStore} keeps the test sessions an app has seen on the device, so a patient's history
+ * can be listed and charted without fetching every session from the server again or holding them all
+ * in memory.
+ *
+ * Sessions are appended to a records file in a compact binary layout ({@link SessionCodec}) with the
+ * strings they repeat interned in a string table. A fixed-width index entry per record (patient, start
+ * time, lung function zone, where the record is) is the only part kept in memory: about 32 bytes a
+ * session, plus sorted lists of the sessions by start time for all patients, each patient and each
+ * zone. A query picks the shortest list that applies, binary searches its date range and decodes only
+ * the sessions on the page it returns, or streams them one at a time to a {@link HistoryVisitor}.
+ *
+ * Storing a session again replaces it; the old record stays in the file until the store is compacted,
+ * which happens when it is opened with more superseded records than live ones. Compaction writes a new
+ * generation of the files and switches to it by renaming a small pointer file, so an interrupted
+ * compaction leaves the old generation in use. An index entry is written after its record and the
+ * strings it uses, and entries whose record did not make it to disk are dropped when the store is
+ * opened. Only the pointer file is synced: the history mirrors the server, so the last sessions stored
+ * before the device lost power are fetched again rather than lost.
+ */
+public class HistoryStore {
+    private static final String CURRENT = "CURRENT";
+    private static final String PREFIX = "history-";
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int ENTRY_BYTES = 32;
+    /// Superseded records are compacted away at open once there are more of them than live ones, and at least this much.
+    private static final long COMPACT_THRESHOLD_BYTES = 256 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private int generation;
+    /// The open generation's string table, or null until the store is first used.
+    private StringTable strings = null;
+    private SessionCodec codec;
+    private RandomAccessFile records;
+    private RandomAccessFile index;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+    /// The index entries, in the order they were written.
+    private int entryCount;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] sessionRefs;
+    private int[] patientRefs;
+    private int[] zoneRefs;
+    private long[] startedMs;
+
+    /// The live entry of each session.
+    private Map<Integer, Integer> latest;
+    private EntryList all;
+    private Map<Integer, EntryList> byPatient;
+    private Map<Integer, EntryList> byZone;
+    private long liveBytes;
+    private long deadBytes;
+
+    /**
+     * Initialize the {@link HistoryStore}. Nothing is read until the store is first used.
+     * @param directory The directory to keep the history in; created when needed
+     */
+    public HistoryStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Return the directory the history is kept in
+     * @return directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Store a session, replacing any earlier copy of it
+     * @param session The session; it needs an id and a patient id
+     * @throws IOException An exception occurring while writing
+     */
+    public synchronized void put(TestSession session) throws IOException {
+        if (session.id == null || session.patientId == null) {
+            throw new IllegalArgumentException("A session needs an id and a patient id");
+        }
+        ensureOpen();
+        ByteBuffer record = codec.encode(session);
+        int sessionRef = strings.find(session.id);
+        int patientRef = strings.find(session.patientId);
+        int zoneRef = strings.find(session.lungFunctionZone);
+        long started = SessionCodec.time(session.startedAt);
+        long offset = append(records, index, record, sessionRef, patientRef, zoneRef, started);
+
+        int entry = addEntry(offset, record.limit(), sessionRef, patientRef, zoneRef, started);
+        Integer previous = latest.put(sessionRef, entry);
+        // if the session WAS stored before...
+        if (previous != null) {
+            unlist(previous);
+            liveBytes -= RECORD_HEADER_BYTES + lengths[previous];
+            deadBytes += RECORD_HEADER_BYTES + lengths[previous];
+        }
+        list(entry, false);
+        liveBytes += RECORD_HEADER_BYTES + lengths[entry];
+    }
+
+    /**
+     * Return a stored session
+     * @param sessionId The session id
+     * @return session, or null when it is not stored
+     * @throws IOException An exception occurring while reading
+     */
+    public synchronized TestSession get(String sessionId) throws IOException {
+        ensureOpen();
+        Integer entry = latest.get(strings.find(sessionId));
+        return entry != null ? read(entry, true) : null;
+    }
+
+    /**
+     * Return one page of the sessions matching a query
+     * @param query The query
+     * @return page of at most {@link HistoryQuery#pageSize} sessions
+     * @throws IOException An exception occurring while reading
+     */
+    public synchronized HistoryPage query(HistoryQuery query) throws IOException {
+        if (query.pageSize < 1) {
+            throw new IllegalArgumentException("Invalid page size " + query.pageSize);
+        }
+        ensureOpen();
+        int[] entries = select(query, query.pageSize + 1);
+        int count = Math.min(entries.length, query.pageSize);
+        List<TestSession> sessions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sessions.add(read(entries[i], query.includeCurves));
+        }
+        return new HistoryPage(sessions, entries.length > count ? cursorOf(entries[count - 1]) : null);
+    }
+
+    /**
+     * Stream every session matching a query, ignoring its page size. Only one session is decoded at a
+     * time; other calls to the store wait until this one returns.
+     * @param query The query
+     * @param visitor Receives the sessions, in the order asked for
+     * @throws IOException An exception occurring while reading
+     */
+    public synchronized void forEach(HistoryQuery query, HistoryVisitor visitor) throws IOException {
+        ensureOpen();
+        int[] entries = select(query, Integer.MAX_VALUE);
+        for (int i = 0; i < entries.length; i++) {
+            if (!visitor.visit(read(entries[i], query.includeCurves))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Count the sessions matching a query from the index alone, ignoring its page size
+     * @param query The query
+     * @return number of sessions
+     * @throws IOException An exception occurring while opening the store
+     */
+    public synchronized int count(HistoryQuery query) throws IOException {
+        ensureOpen();
+        return select(query, Integer.MAX_VALUE).length;
+    }
+
+    /**
+     * Return the disk space the history takes, superseded records included
+     * @return size in bytes
+     * @throws IOException An exception occurring while opening the store
+     */
+    public synchronized long getSizeBytes() throws IOException {
+        ensureOpen();
+        return records.length() + index.length() + file(generation, ".strings").length();
+    }
+
+    /**
+     * Rewrite the history without its superseded records and unused strings
+     * @throws IOException An exception occurring while rewriting; the store is left as it was
+     */
+    public synchronized void compact() throws IOException {
+        ensureOpen();
+        compactNow();
+    }
+
+    /**
+     * Close the store's files. The store opens them again when it is next used.
+     * @throws IOException An exception occurring while closing
+     */
+    public synchronized void close() throws IOException {
+        if (strings != null) {
+            closeFiles();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (strings != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        generation = readGeneration();
+        // a compaction that was cut off, or the generation one replaced
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if ((name.startsWith(PREFIX) && !name.startsWith(PREFIX + generation + ".")) || name.equals(CURRENT + ".tmp")) {
+                files[i].delete();
+            }
+        }
+        openFiles();
+        if (deadBytes > liveBytes && deadBytes >= COMPACT_THRESHOLD_BYTES) {
+            compactNow();
+        }
+    }
+
+    private void openFiles() throws IOException {
+        strings = new StringTable(file(generation, ".strings"));
+        codec = new SessionCodec(strings);
+        records = new RandomAccessFile(file(generation, ".records"), "rw");
+        index = new RandomAccessFile(file(generation, ".index"), "rw");
+
+        entryCount = 0;
+        offsets = new long[64];
+        lengths = new int[64];
+        sessionRefs = new int[64];
+        patientRefs = new int[64];
+        zoneRefs = new int[64];
+        startedMs = new long[64];
+        latest = new HashMap<>();
+        all = new EntryList();
+        byPatient = new HashMap<>();
+        byZone = new HashMap<>();
+        liveBytes = 0;
+        deadBytes = 0;
+
+        long recordsLength = records.length();
+        ByteBuffer entries = ByteBuffer.allocate((int) (index.length() / ENTRY_BYTES * ENTRY_BYTES));
+        readFully(index.getChannel(), entries, 0);
+        entries.flip();
+        while (entries.hasRemaining()) {
+            long offset = entries.getLong();
+            int length = entries.getInt();
+            int sessionRef = entries.getInt();
+            int patientRef = entries.getInt();
+            int zoneRef = entries.getInt();
+            long started = entries.getLong();
+            // the entries of records or strings that were lost when the app was killed; only the last few can be
+            if (offset < 0 || length < 0 || offset + RECORD_HEADER_BYTES + length > recordsLength
+                    || sessionRef < 0 || !strings.isValid(sessionRef) || patientRef < 0 || !strings.isValid(patientRef)
+                    || !strings.isValid(zoneRef)) {
+                break;
+            }
+            int entry = addEntry(offset, length, sessionRef, patientRef, zoneRef, started);
+            Integer previous = latest.put(sessionRef, entry);
+            if (previous != null) {
+                deadBytes += RECORD_HEADER_BYTES + lengths[previous];
+                liveBytes -= RECORD_HEADER_BYTES + lengths[previous];
+            }
+            liveBytes += RECORD_HEADER_BYTES + length;
+        }
+        index.setLength((long) entryCount * ENTRY_BYTES);
+
+        Integer[] live = latest.values().toArray(new Integer[latest.size()]);
+        Arrays.sort(live, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return -HistoryStore.this.compare(second, startedMs[first], sessionRefs[first]);
+            }
+        });
+        for (Integer entry : live) {
+            list(entry, true);
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            strings.close();
+            records.close();
+            index.close();
+        } finally {
+            strings = null;
+        }
+    }
+
+    private void compactNow() throws IOException {
+        int next = generation + 1;
+        StringTable nextStrings = new StringTable(file(next, ".strings"));
+        SessionCodec nextCodec = new SessionCodec(nextStrings);
+        RandomAccessFile nextRecords = new RandomAccessFile(file(next, ".records"), "rw");
+        RandomAccessFile nextIndex = new RandomAccessFile(file(next, ".index"), "rw");
+        boolean written = false;
+        try {
+            // in start time order, so a patient's history is read front to back
+            for (int i = 0; i < all.size; i++) {
+                TestSession session = read(all.entries[i], true);
+                ByteBuffer record = nextCodec.encode(session);
+                append(nextRecords, nextIndex, record, nextStrings.find(session.id), nextStrings.find(session.patientId),
+                        nextStrings.find(session.lungFunctionZone), SessionCodec.time(session.startedAt));
+            }
+            written = true;
+        } finally {
+            nextStrings.close();
+            nextRecords.close();
+            nextIndex.close();
+            if (!written) {
+                deleteGeneration(next);
+            }
+        }
+
+        writeGeneration(next);
+        closeFiles();
+        deleteGeneration(generation);
+        generation = next;
+        openFiles();
+    }
+
+    /**
+     * Append a record and then its index entry
+     * @return the record's offset
+     */
+    private static long append(RandomAccessFile records, RandomAccessFile index, ByteBuffer record,
+                               int sessionRef, int patientRef, int zoneRef, long started) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.limit());
+        long offset = records.length();
+        records.seek(offset);
+        records.write(ByteBuffer.allocate(RECORD_HEADER_BYTES).putInt(record.limit()).putInt((int) crc.getValue()).array());
+        records.write(record.array(), 0, record.limit());
+
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+        entry.putLong(offset).putInt(record.limit()).putInt(sessionRef).putInt(patientRef).putInt(zoneRef).putLong(started);
+        index.seek(index.length());
+        index.write(entry.array());
+        return offset;
+    }
+
+    private TestSession read(int entry, boolean includeCurves) throws IOException {
+        int size = RECORD_HEADER_BYTES + lengths[entry];
+        if (readBuffer.capacity() < size) {
+            readBuffer = ByteBuffer.allocate(Math.max(size, 2 * readBuffer.capacity()));
+        }
+        readBuffer.clear().limit(size);
+        readFully(records.getChannel(), readBuffer, offsets[entry]);
+        readBuffer.flip();
+
+        int length = readBuffer.getInt();
+        int checksum = readBuffer.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(readBuffer.array(), RECORD_HEADER_BYTES, lengths[entry]);
+        if (length != lengths[entry] || checksum != (int) crc.getValue()) {
+            throw new IOException("Corrupt history record at " + offsets[entry]);
+        }
+        try {
+            return codec.decode(readBuffer, includeCurves);
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupt history record at " + offsets[entry], ex);
+        }
+    }
+
+    /**
+     * Find the entries matching a query, in the order asked for
+     * @param limit The most entries to return
+     */
+    private int[] select(HistoryQuery query, int limit) {
+        EntryList list = all;
+        int patientRef = StringTable.NULL;
+        int zoneRef = StringTable.NULL;
+        if (query.patientId != null) {
+            patientRef = strings.find(query.patientId);
+            list = byPatient.get(patientRef);
+        }
+        if (query.lungFunctionZone != null) {
+            zoneRef = strings.find(query.lungFunctionZone);
+            EntryList zoneList = byZone.get(zoneRef);
+            // if the zone IS the narrower index, filter it by patient instead
+            if (list != null && zoneList != null && zoneList.size < list.size) {
+                list = zoneList;
+                zoneRef = StringTable.NULL;
+            }
+            else if (zoneList == null) {
+                list = null;
+            }
+            else {
+                patientRef = StringTable.NULL;
+            }
+        }
+        if (list == null) {
+            return new int[0];
+        }
+
+        long from = query.from != null ? query.from.getTime() : Long.MIN_VALUE;
+        long to = query.to != null ? query.to.getTime() : Long.MAX_VALUE;
+        int first = list.lowerBound(from, Long.MIN_VALUE);
+        int last = list.lowerBound(to, Long.MIN_VALUE) - 1;
+        if (query.cursor != null) {
+            int separator = query.cursor.indexOf(':');
+            long cursorMs;
+            try {
+                cursorMs = Long.parseLong(query.cursor.substring(0, Math.max(separator, 0)));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid cursor " + query.cursor);
+            }
+            int cursorRef = strings.find(query.cursor.substring(separator + 1));
+            // if the cursor's session IS NOT stored any more, skip everything started at the same time
+            if (query.newestFirst) {
+                last = Math.min(last, list.lowerBound(cursorMs, cursorRef != StringTable.NULL ? cursorRef : Long.MIN_VALUE) - 1);
+            }
+            else {
+                first = Math.max(first, list.lowerBound(cursorMs, cursorRef != StringTable.NULL ? cursorRef + 1L : Long.MAX_VALUE));
+            }
+        }
+
+        int[] selected = new int[Math.max(0, Math.min(limit, last - first + 1))];
+        int count = 0;
+        for (int i = first; i <= last && count < selected.length; i++) {
+            int entry = list.entries[query.newestFirst ? first + last - i : i];
+            if ((patientRef == StringTable.NULL || patientRefs[entry] == patientRef)
+                    && (zoneRef == StringTable.NULL || zoneRefs[entry] == zoneRef)) {
+                selected[count++] = entry;
+            }
+        }
+        return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    private String cursorOf(int entry) {
+        return startedMs[entry] + ":" + strings.get(sessionRefs[entry]);
+    }
+
+    private int addEntry(long offset, int length, int sessionRef, int patientRef, int zoneRef, long started) {
+        if (entryCount == offsets.length) {
+            int capacity = 2 * entryCount;
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            sessionRefs = Arrays.copyOf(sessionRefs, capacity);
+            patientRefs = Arrays.copyOf(patientRefs, capacity);
+            zoneRefs = Arrays.copyOf(zoneRefs, capacity);
+            startedMs = Arrays.copyOf(startedMs, capacity);
+        }
+        offsets[entryCount] = offset;
+        lengths[entryCount] = length;
+        sessionRefs[entryCount] = sessionRef;
+        patientRefs[entryCount] = patientRef;
+        zoneRefs[entryCount] = zoneRef;
+        startedMs[entryCount] = started;
+        return entryCount++;
+    }
+
+    /**
+     * Add a live entry to the lists it belongs in
+     * @param sorted Whether the entry sorts after every entry already listed
+     */
+    private void list(int entry, boolean sorted) {
+        all.add(entry, sorted);
+        listFor(byPatient, patientRefs[entry]).add(entry, sorted);
+        if (zoneRefs[entry] != StringTable.NULL) {
+            listFor(byZone, zoneRefs[entry]).add(entry, sorted);
+        }
+    }
+
+    private void unlist(int entry) {
+        all.remove(entry);
+        byPatient.get(patientRefs[entry]).remove(entry);
+        if (zoneRefs[entry] != StringTable.NULL) {
+            byZone.get(zoneRefs[entry]).remove(entry);
+        }
+    }
+
+    private EntryList listFor(Map<Integer, EntryList> lists, int reference) {
+        EntryList list = lists.get(reference);
+        if (list == null) {
+            list = new EntryList();
+            lists.put(reference, list);
+        }
+        return list;
+    }
+
+    /**
+     * Compare an entry's start time and session with the given ones; ties on start time are ordered by session
+     */
+    private int compare(int entry, long started, long sessionRef) {
+        if (startedMs[entry] != started) {
+            return startedMs[entry] < started ? -1 : 1;
+        }
+        return sessionRefs[entry] < sessionRef ? -1 : sessionRefs[entry] == sessionRef ? 0 : 1;
+    }
+
+    private File file(int generation, String suffix) {
+        return new File(directory, PREFIX + generation + suffix);
+    }
+
+    private void deleteGeneration(int generation) {
+        file(generation, ".strings").delete();
+        file(generation, ".records").delete();
+        file(generation, ".index").delete();
+    }
+
+    private int readGeneration() throws IOException {
+        File current = new File(directory, CURRENT);
+        if (!current.exists()) {
+            return 0;
+        }
+        byte[] bytes = new byte[(int) current.length()];
+        InputStream in = new FileInputStream(current);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new EOFException(current.getPath());
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        try {
+            return Integer.parseInt(new String(bytes, UTF8).trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("Corrupt " + current, ex);
+        }
+    }
+
+    /**
+     * Write the generation to a temporary file and rename it into place, so it is never seen half written
+     */
+    private void writeGeneration(int generation) throws IOException {
+        File temporary = new File(directory, CURRENT + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(Integer.toString(generation).getBytes(UTF8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(new File(directory, CURRENT))) {
+            throw new IOException("Cannot rename " + temporary);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Live entries sorted by start time, then session
+     */
+    private class EntryList {
+        int[] entries = new int[8];
+        int size = 0;
+
+        /**
+         * @param sorted Whether the entry sorts after every entry in the list, so it can be appended
+         */
+        void add(int entry, boolean sorted) {
+            int at = sorted ? size : lowerBound(startedMs[entry], sessionRefs[entry]);
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * size);
+            }
+            System.arraycopy(entries, at, entries, at + 1, size - at);
+            entries[at] = entry;
+            size++;
+        }
+
+        void remove(int entry) {
+            int at = lowerBound(startedMs[entry], sessionRefs[entry]);
+            System.arraycopy(entries, at + 1, entries, at, size - at - 1);
+            size--;
+        }
+
+        /**
+         * Return the position of the first entry that does not sort before the given start time and session
+         */
+        int lowerBound(long started, long sessionRef) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(entries[middle], started, sessionRef) < 0) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.sparohealth.wingkit.classes.history;
+
+import com.sparohealth.wingkit.classes.TestSession;
+
+/**
+ * Receives the sessions streamed by {@link HistoryStore#forEach(HistoryQuery, HistoryVisitor)}
+ */
+public interface HistoryVisitor {
+    /**
+     * Called with each matching session in turn
+     * @param session The session, decoded for this call only
+     * @return true to continue, false to stop
+     */
+    boolean visit(TestSession session);
+}
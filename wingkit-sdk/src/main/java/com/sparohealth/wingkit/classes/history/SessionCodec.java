@@ -0,0 +1,222 @@
+package com.sparohealth.wingkit.classes.history;
+
+import com.sparohealth.wingkit.classes.Test;
+import com.sparohealth.wingkit.classes.TestSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * {@link SessionCodec} encodes a {@link TestSession} and its tests as one {@link HistoryStore} record.
+ *
+ * Strings that repeat across sessions are {@link StringTable} references; the ids of tests and upload
+ * targets, which never repeat, are stored inline. A missing number is NaN and a missing date
+ * {@link Long#MIN_VALUE}. Exhale curves are stored as floats, one length-prefixed row per point: 24
+ * bits of precision are far more than the flow and volume measurements carry, and it halves the
+ * largest part of a record. Upload targets are not kept; they are only meaningful while a session is
+ * being recorded.
+ */
+class SessionCodec {
+    /// The best test is one of the session's tests; this is its position.
+    private static final int BEST_TEST_NONE = -1;
+    /// The best test is not one of the session's tests and follows them.
+    private static final int BEST_TEST_SEPARATE = -2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final StringTable strings;
+
+    SessionCodec(StringTable strings) {
+        this.strings = strings;
+    }
+
+    /**
+     * Encode a session, interning its repeated strings
+     * @param session The session
+     * @return buffer holding the record, from 0 to its limit
+     * @throws IOException An exception occurring while interning
+     */
+    ByteBuffer encode(TestSession session) throws IOException {
+        List<Test> tests = session.tests != null ? session.tests : new ArrayList<Test>();
+        int size = 6 * 4 + 2 * 8 + 7 * 8 + 2 * 4;
+        for (Test test : tests) {
+            size += sizeOf(test);
+        }
+        int bestTest = session.bestTest == null ? BEST_TEST_NONE : tests.indexOf(session.bestTest);
+        if (session.bestTest != null && bestTest < 0) {
+            bestTest = BEST_TEST_SEPARATE;
+            size += sizeOf(session.bestTest);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(strings.intern(session.id));
+        buffer.putInt(strings.intern(session.patientId));
+        buffer.putLong(time(session.startedAt));
+        buffer.putLong(time(session.endedAt));
+        buffer.putInt(strings.intern(session.lungFunctionZone));
+        buffer.putInt(strings.intern(session.respiratoryState));
+        buffer.putInt(strings.intern(session.referenceMetric));
+        buffer.putInt(strings.intern(session.bestTestChoice));
+        putDouble(buffer, session.pefPredicted);
+        putDouble(buffer, session.fev1Predicted);
+        putDouble(buffer, session.latitude);
+        putDouble(buffer, session.longitude);
+        putDouble(buffer, session.altitude);
+        putDouble(buffer, session.floor);
+        buffer.putDouble(session.breathDuration);
+        buffer.putInt(session.tests != null ? tests.size() : -1);
+        for (Test test : tests) {
+            putTest(buffer, test);
+        }
+        buffer.putInt(bestTest);
+        if (bestTest == BEST_TEST_SEPARATE) {
+            putTest(buffer, session.bestTest);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a session
+     * @param buffer The record, from its position to its limit
+     * @param includeCurves Whether to decode the exhale curves, or leave them null
+     * @return session
+     */
+    TestSession decode(ByteBuffer buffer, boolean includeCurves) {
+        TestSession session = new TestSession();
+        session.id = strings.get(buffer.getInt());
+        session.patientId = strings.get(buffer.getInt());
+        session.startedAt = date(buffer.getLong());
+        session.endedAt = date(buffer.getLong());
+        session.lungFunctionZone = strings.get(buffer.getInt());
+        session.respiratoryState = strings.get(buffer.getInt());
+        session.referenceMetric = strings.get(buffer.getInt());
+        session.bestTestChoice = strings.get(buffer.getInt());
+        session.pefPredicted = getDouble(buffer);
+        session.fev1Predicted = getDouble(buffer);
+        session.latitude = getDouble(buffer);
+        session.longitude = getDouble(buffer);
+        session.altitude = getDouble(buffer);
+        session.floor = getDouble(buffer);
+        session.breathDuration = buffer.getDouble();
+        int testCount = buffer.getInt();
+        if (testCount >= 0) {
+            session.tests = new ArrayList<>(testCount);
+            for (int i = 0; i < testCount; i++) {
+                session.tests.add(getTest(buffer, includeCurves));
+            }
+        }
+        int bestTest = buffer.getInt();
+        if (bestTest == BEST_TEST_SEPARATE) {
+            session.bestTest = getTest(buffer, includeCurves);
+        }
+        else if (bestTest >= 0) {
+            session.bestTest = session.tests.get(bestTest);
+        }
+        return session;
+    }
+
+    private static int sizeOf(Test test) {
+        int size = sizeOf(test.id) + 4 + 8 + 4 * 8 + sizeOf(test.uploadTargetId) + 4;
+        for (int i = 0; test.exhaleCurve != null && i < test.exhaleCurve.length; i++) {
+            size += 2 + (test.exhaleCurve[i] != null ? 4 * test.exhaleCurve[i].length : 0);
+        }
+        return size;
+    }
+
+    private static int sizeOf(String string) {
+        return 2 + (string != null ? string.getBytes(UTF8).length : 0);
+    }
+
+    private void putTest(ByteBuffer buffer, Test test) throws IOException {
+        putString(buffer, test.id);
+        buffer.putInt(strings.intern(test.status));
+        buffer.putLong(time(test.takenAt));
+        putDouble(buffer, test.breathDuration);
+        putDouble(buffer, test.totalVolume);
+        putDouble(buffer, test.pef);
+        putDouble(buffer, test.fev1);
+        putString(buffer, test.uploadTargetId);
+
+        Double[][] curve = test.exhaleCurve;
+        buffer.putInt(curve != null ? curve.length : -1);
+        for (int i = 0; curve != null && i < curve.length; i++) {
+            buffer.putShort((short) (curve[i] != null ? curve[i].length : -1));
+            for (int j = 0; curve[i] != null && j < curve[i].length; j++) {
+                buffer.putFloat(curve[i][j] != null ? curve[i][j].floatValue() : Float.NaN);
+            }
+        }
+    }
+
+    private Test getTest(ByteBuffer buffer, boolean includeCurve) {
+        Test test = new Test();
+        test.id = getString(buffer);
+        test.status = strings.get(buffer.getInt());
+        test.takenAt = date(buffer.getLong());
+        test.breathDuration = getDouble(buffer);
+        test.totalVolume = getDouble(buffer);
+        test.pef = getDouble(buffer);
+        test.fev1 = getDouble(buffer);
+        test.uploadTargetId = getString(buffer);
+
+        int rows = buffer.getInt();
+        Double[][] curve = rows >= 0 && includeCurve ? new Double[rows][] : null;
+        for (int i = 0; i < rows; i++) {
+            int columns = buffer.getShort();
+            // if the curve IS NOT wanted, skip over it
+            if (curve == null) {
+                buffer.position(buffer.position() + 4 * Math.max(columns, 0));
+                continue;
+            }
+            if (columns >= 0) {
+                curve[i] = new Double[columns];
+                for (int j = 0; j < columns; j++) {
+                    float value = buffer.getFloat();
+                    curve[i][j] = Float.isNaN(value) ? null : Double.valueOf(value);
+                }
+            }
+        }
+        test.exhaleCurve = curve;
+        return test;
+    }
+
+    private static void putString(ByteBuffer buffer, String string) {
+        if (string == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    private static void putDouble(ByteBuffer buffer, Double value) {
+        buffer.putDouble(value != null ? value : Double.NaN);
+    }
+
+    private static Double getDouble(ByteBuffer buffer) {
+        double value = buffer.getDouble();
+        return Double.isNaN(value) ? null : value;
+    }
+
+    static long time(Date date) {
+        return date != null ? date.getTime() : Long.MIN_VALUE;
+    }
+
+    private static Date date(long time) {
+        return time != Long.MIN_VALUE ? new Date(time) : null;
+    }
+}
@@ -0,0 +1,119 @@
+package com.sparohealth.wingkit.classes.history;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link StringTable} interns the strings a {@link HistoryStore} repeats across sessions (patient and
+ * session ids, zones, states, statuses), so records and index entries hold a 4-byte reference instead.
+ * The table is an append-only file of modified UTF-8 strings; a string's reference is its position.
+ */
+class StringTable {
+    /// The reference of a null string.
+    static final int NULL = -1;
+
+    private final RandomAccessFile file;
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> references = new HashMap<>();
+
+    /**
+     * Open a table, dropping a string that was cut off while being appended
+     * @param path The table file; created when missing
+     * @throws IOException An exception occurring while reading
+     */
+    StringTable(File path) throws IOException {
+        long valid = 0;
+        if (path.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+            try {
+                while (true) {
+                    String string = in.readUTF();
+                    references.put(string, strings.size());
+                    strings.add(string);
+                    valid += 2 + utfLength(string);
+                }
+            } catch (EOFException ex) {
+                // the end of the table, or of the last complete string
+            } finally {
+                in.close();
+            }
+        }
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(valid);
+        file.seek(valid);
+    }
+
+    /**
+     * Return the reference of a string, appending it to the table the first time it is seen
+     * @param string The string, or null
+     * @return reference, or {@link #NULL}
+     * @throws IOException An exception occurring while appending
+     */
+    int intern(String string) throws IOException {
+        if (string == null) {
+            return NULL;
+        }
+        Integer reference = references.get(string);
+        if (reference != null) {
+            return reference;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 + string.length());
+        new DataOutputStream(bytes).writeUTF(string);
+        file.write(bytes.toByteArray());
+        references.put(string, strings.size());
+        strings.add(string);
+        return strings.size() - 1;
+    }
+
+    /**
+     * Return the reference of a string without interning it
+     * @param string The string, or null
+     * @return reference, or {@link #NULL} when the string is not in the table
+     */
+    int find(String string) {
+        Integer reference = string != null ? references.get(string) : null;
+        return reference != null ? reference : NULL;
+    }
+
+    /**
+     * Return the string a reference stands for
+     * @param reference The reference, or {@link #NULL}
+     * @return string, or null
+     */
+    String get(int reference) {
+        return reference == NULL ? null : strings.get(reference);
+    }
+
+    /**
+     * Return whether a reference read from disk is one this table can resolve
+     * @param reference The reference
+     * @return true when valid
+     */
+    boolean isValid(int reference) {
+        return reference >= NULL && reference < strings.size();
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    private static int utfLength(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,141 @@
+package com.sparohealth.wingkit.classes.lungfunctiontest;
+
+import com.sparohealth.wingkit.classes.TestSession;
+import com.sparohealth.wingkit.classes.UploadTarget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link TestSessionContext} holds the mutable state of a single test session. Every session gets
+ * its own context, and all access goes through its lock, so several sessions can be run at once
+ * from one process and their callbacks may arrive on any thread.
+ */
+public class TestSessionContext {
+    /// The active test session.
+    private TestSession testSession;
+    /// The state of the test session.
+    private TestSession.TestSessionState state = TestSession.TestSessionState.noTest;
+    /// The upload target ids that have been used for the test session.
+    private final List<String> usedUploadTargetIds = new ArrayList<>();
+    /// The number of attempts the test session has been refreshed in effort to determine the processing state.
+    private int processingAttempts = 0;
+
+    /**
+     * Initialize the {@link TestSessionContext}
+     * @param testSession The test session returned by {@link com.sparohealth.wingkit.classes.Client#createTestSession}, or null
+     */
+    public TestSessionContext(TestSession testSession) {
+        setTestSession(testSession);
+    }
+
+    /**
+     * Return the most recent copy of the test session
+     * @return test session
+     */
+    public synchronized TestSession getTestSession() {
+        return testSession;
+    }
+
+    /**
+     * Replace the test session, e.g. when a new session is started
+     * @param testSession The new test session
+     */
+    public synchronized void setTestSession(TestSession testSession) {
+        this.testSession = testSession;
+        // if the session DOES NOT have an upload list yet...
+        if (testSession != null && testSession.uploads == null) {
+            testSession.uploads = new ArrayList<>();
+        }
+        usedUploadTargetIds.clear();
+        processingAttempts = 0;
+        state = TestSession.TestSessionState.noTest;
+    }
+
+    /**
+     * Replace the test session with a copy retrieved from the server, keeping the upload targets
+     * collected locally
+     * @param latest The test session returned by {@link com.sparohealth.wingkit.classes.Client#retrieveTestSession}
+     */
+    public synchronized void refreshTestSession(TestSession latest) {
+        latest.uploads = testSession.uploads;
+        testSession = latest;
+    }
+
+    /**
+     * Return the state of the session
+     * @return session state
+     */
+    public synchronized TestSession.TestSessionState getState() {
+        return state;
+    }
+
+    /**
+     * Set the state of the session
+     * @param state The new session state
+     */
+    public synchronized void setState(TestSession.TestSessionState state) {
+        this.state = state;
+    }
+
+    /**
+     * Take the next upload target that has not been used yet and mark it as used
+     * @return the upload target, or null when a new one must be created
+     */
+    public synchronized UploadTarget claimUploadTarget() {
+        for (UploadTarget current : testSession.uploads) {
+            if (!usedUploadTargetIds.contains(current.id)) {
+                usedUploadTargetIds.add(current.id);
+                return current;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add a newly created upload target to the session
+     * @param target The upload target
+     */
+    public synchronized void addUploadTarget(UploadTarget target) {
+        testSession.uploads.add(target);
+    }
+
+    /**
+     * Return a copy of the upload target ids used so far
+     * @return used upload target ids
+     */
+    public synchronized List<String> getUsedUploadTargetIds() {
+        return new ArrayList<>(usedUploadTargetIds);
+    }
+
+    /**
+     * Return the number of upload targets used so far
+     * @return used upload target count
+     */
+    public synchronized int getUsedUploadTargetCount() {
+        return usedUploadTargetIds.size();
+    }
+
+    /**
+     * Count another attempt to retrieve the processed session
+     * @return the number of attempts so far, including this one
+     */
+    public synchronized int incrementProcessingAttempts() {
+        return ++processingAttempts;
+    }
+
+    /**
+     * Return the number of attempts made to retrieve the processed session
+     * @return processing attempts
+     */
+    public synchronized int getProcessingAttempts() {
+        return processingAttempts;
+    }
+
+    /**
+     * Clear the processing attempts count
+     */
+    public synchronized void resetProcessingAttempts() {
+        processingAttempts = 0;
+    }
+}
@@ -1,36 +1,29 @@
 package com.sparohealth.wingkit.classes.lungfunctiontest;
 
-import android.os.Handler;
 import android.util.Log;
 
-import com.google.gson.Gson;
 import com.sparohealth.wingkit.classes.Client;
 import com.sparohealth.wingkit.classes.Test;
 import com.sparohealth.wingkit.classes.TestSession;
 import com.sparohealth.wingkit.classes.UploadTarget;
-import com.sparohealth.wingkit.classes.Client.WingApiCallback;
+import com.sparohealth.wingkit.classes.async.WingFuture;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Timer;
 
 /**
- * {@link TestSessionManager} handles the running of lung function tests
+ * {@link TestSessionManager} handles the running of lung function tests. Each manager runs a single
+ * test session; its state is kept in a {@link TestSessionContext}, so managers for different
+ * patients can share one {@link Client} and run at the same time.
  */
 public class TestSessionManager {
     private String TAG = "TestSessionManager";
 
     /// The Wing client used to interface with the Wing REST API.
-    private Client mClient = null;
-    /// The state of the test session.
-    public TestSession.TestSessionState state = TestSession.TestSessionState.noTest;
-    /// The active test session.
-    public TestSession testSession;
-    /// The upload target ids that have been used for the current test session.
-    public List<String> usedUploadTargetIds = new ArrayList<>();
+    private final Client mClient;
+    /// The per-session state: test session, session state, used upload targets and processing attempts.
+    private final TestSessionContext context;
     /// The number of tests that are allowed to fail processing before the test session is considered invalid.
     public final int failedTestsThreshold = 2;
     /// The number of tests that are allowed to fail due to local failure reasons before the test session is considered invalid.
@@ -39,15 +32,14 @@ public class TestSessionManager {
     public final long processingPollingInterval = 800;
     /// The threshold that represents the number of times the app should attempt to refresh the test session.
     public final int processingTimeoutThreshold = 10;
-    /// The number of attempts the test session has been refreshed in effort to determine the processing state.
-    private int number0fProcessingAttempts = 0;
     /// The Test Session Manager delegate;
-    private TestSessionManagerDelegate mDelegate = null;
-    private Timer mProcessingAttemptsTimer = new Timer();
+    private volatile TestSessionManagerDelegate mDelegate = null;
+    /// Computes the session state from the processed tests.
+    private final TestSessionStateTracker stateTracker = new TestSessionStateTracker(failedTestsThreshold);
 
     /// Read the number of attempts the test session has been refreshed in effort to determine the processing state.
     public int getNumber0fProcessingAttempts() {
-        return this.number0fProcessingAttempts;
+        return context.getProcessingAttempts();
     }
 
     /// Set the Test Session Manager delegate object
@@ -57,23 +49,55 @@ public class TestSessionManager {
 
     /// Initialize the Test Session Manager
     public TestSessionManager(Client client) {
+        this(client, null);
+    }
+
+    /**
+     * Initialize the Test Session Manager for a test session
+     * @param client The Wing client used to interface with the Wing REST API
+     * @param testSession The test session returned by {@link Client#createTestSession}
+     */
+    public TestSessionManager(Client client, TestSession testSession) {
         this.mClient = client;
+        this.context = new TestSessionContext(testSession);
+    }
+
+    /// Return the state of the test session.
+    public TestSession.TestSessionState getState() {
+        return context.getState();
+    }
+
+    /// Return the active test session.
+    public TestSession getTestSession() {
+        return context.getTestSession();
+    }
+
+    /// Set the active test session. This clears the state and the used upload targets.
+    public void setTestSession(TestSession testSession) {
+        context.setTestSession(testSession);
+    }
+
+    /// Return the upload target ids that have been used for the current test session.
+    public List<String> getUsedUploadTargetIds() {
+        return context.getUsedUploadTargetIds();
     }
 
     public void resetProcessingAttemptsCount(){
-        number0fProcessingAttempts = 0;
+        context.resetProcessingAttempts();
     }
 
     /// Handle completion event messages
     private void completed(TestSessionManagerError error) {
-        if (this.mDelegate != null) {
-            this.mDelegate.completed(error);
+        TestSessionManagerDelegate delegate = mDelegate;
+        if (delegate != null) {
+            delegate.completed(error);
         }
     }
 
     private void processing() {
-        if (this.mDelegate != null) {
-            this.mDelegate.processing();
+        TestSessionManagerDelegate delegate = mDelegate;
+        if (delegate != null) {
+            delegate.processing();
         }
     }
 
@@ -86,24 +110,20 @@ public class TestSessionManager {
         processing();
 
         /// if the number of processing
-        if (number0fProcessingAttempts >= processingTimeoutThreshold){
+        if (context.getProcessingAttempts() >= processingTimeoutThreshold){
             Log.d(TAG, "Processing attempts exceeded");
             resetProcessingAttemptsCount();
             completed(TestSessionManagerError.processingTimeout);
         }
         else{
-            mClient.retrieveTestSession(testSession.id, testSession.patientId, new WingApiCallback() {
+            TestSession testSession = context.getTestSession();
+            mClient.retrieveTestSession(testSession.id, testSession.patientId).addCallback(new WingFuture.Callback<TestSession>() {
                 @Override
-                public void onSuccessResponse(JSONObject result) {
+                public void onSuccess(TestSession testSession) {
                     try {
-                        Log.d(TAG, "Got the test session data - " + result.toString());
-
-                        Gson gson = new Gson();
-
-                        List<UploadTarget> uploads = testSession.uploads;
+                        Log.d(TAG, "Got the test session data - " + testSession.id);
 
-                        testSession = gson.fromJson(result.toString(), TestSession.class);
-                        testSession.uploads = uploads;
+                        context.refreshTestSession(testSession);
 
                         int processedTestCount = 0;
 
@@ -114,25 +134,19 @@ public class TestSessionManager {
                             }
                         }
 
-                        if (processedTestCount == usedUploadTargetIds.size() && processedTestCount == testSession.tests.size()) {
+                        if (processedTestCount == context.getUsedUploadTargetCount() && processedTestCount == testSession.tests.size()) {
                             Log.d(TAG, "The processed test count = test count");
 
-                            updateState();
+                            updateState(testSession);
                             resetProcessingAttemptsCount();
                             completed(null);
                         }
                         else {
                             Log.d(TAG, "Starting retry attempt");
 
-                            number0fProcessingAttempts++;
+                            context.incrementProcessingAttempts();
 
-                            Handler handler = new Handler();
-                            handler.postDelayed(new Runnable() {
-                                @Override
-                                public void run() {
-                                    processTestSession();
-                                }
-                            }, processingPollingInterval);
+                            scheduleRetry();
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -140,7 +154,7 @@ public class TestSessionManager {
 
                 }
                 @Override
-                public void onErrorResponse(Exception error) {
+                public void onFailure(Exception error) {
                     Log.e(TAG, "Error in Client.retrieveTestSession - " + error.getMessage() + "\n" + Arrays.toString(error.getStackTrace()));
 
                     resetProcessingAttemptsCount();
@@ -152,66 +166,70 @@ public class TestSessionManager {
 
     }
 
+    /**
+     * Schedule the next processing check. The check is handed to the client's callback executor so
+     * the delegate is called on the same thread as the API callbacks.
+     */
+    private void scheduleRetry() {
+        mClient.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                mClient.getCallbackExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        processTestSession();
+                    }
+                });
+            }
+        }, processingPollingInterval);
+    }
+
     /**
      * Upload the test recording file for processing
      * @param filePath The file path for the audio file being uploaded
      * @throws JSONException
      */
-    public void uploadRecording(String filePath) throws JSONException {
-        UploadTarget target = null;
+    public void uploadRecording(final String filePath) throws JSONException {
+        final WingFuture<UploadTarget> target = claimUploadTarget();
 
-        for (UploadTarget current : testSession.uploads) {
-            if (!usedUploadTargetIds.contains(current.id)) {
-                target = current;
-                break;
+        target.then(new WingFuture.AsyncFunction<UploadTarget, Void>() {
+            @Override
+            public WingFuture<Void> apply(UploadTarget uploadTarget) {
+                return mClient.uploadFile(filePath, uploadTarget);
+            }
+        }).addCallback(new WingFuture.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                Log.i(TAG, "Uploaded " + filePath);
+                processTestSession();
             }
-        }
-
-        if (target != null) {
-            usedUploadTargetIds.add(target.id);
 
-            // '### test - removed the try/catch due to the re-org of Client.uploadFile  TSP 1/17/18
-            mClient.uploadFile(filePath, target, new WingApiCallback() {
-                @Override
-                public void onSuccessResponse(JSONObject result) {
-                    Log.i(TAG, result.toString());
-                    processTestSession();
-                }
-                @Override
-                public void onErrorResponse(Exception error) {
-                    Log.i(TAG, error.toString());
-                    completed(TestSessionManagerError.testUploadFailed);
-                }
-            });
-        }
-        else {
-            getUploadTarget(filePath);
-        }
+            @Override
+            public void onFailure(Exception error) {
+                Log.i(TAG, error.toString());
+                // if the upload target WAS obtained, the upload itself failed
+                completed(target.isSuccessful() ? TestSessionManagerError.testUploadFailed : TestSessionManagerError.uploadTargetCreationFailed);
+            }
+        });
     }
 
     /**
-     * Create a new {@link UploadTarget}
-     * @param filePath
+     * Claim an unused {@link UploadTarget}, creating a new one when all have been used
+     * @return A future for the claimed upload target
      */
-    private void getUploadTarget(final String filePath){
-        mClient.createUploadTarget(testSession.id, testSession.patientId, new WingApiCallback() {
-            @Override
-            public void onSuccessResponse(JSONObject result) {
-                Gson gson = new Gson();
-                UploadTarget target = gson.fromJson(result.toString(), UploadTarget.class);
-                testSession.uploads.add(target);
-
-                try {
-                    uploadRecording(filePath);
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-            }
+    private WingFuture<UploadTarget> claimUploadTarget() {
+        // claim the target atomically so concurrent uploads never share one
+        UploadTarget target = context.claimUploadTarget();
+        if (target != null) {
+            return WingFuture.succeeded(target);
+        }
 
+        TestSession testSession = context.getTestSession();
+        return mClient.createUploadTarget(testSession.id, testSession.patientId).map(new WingFuture.Function<UploadTarget, UploadTarget>() {
             @Override
-            public void onErrorResponse(Exception error) {
-                Log.d(TAG, error.getMessage());
-                completed(TestSessionManagerError.uploadTargetCreationFailed);
+            public UploadTarget apply(UploadTarget created) {
+                context.addUploadTarget(created);
+                return context.claimUploadTarget();
             }
         });
     }
@@ -219,56 +237,15 @@ public class TestSessionManager {
     /**
      * Update the current state of the session
      */
-    private void updateState() {
-        TestSession.TestSessionState newState = state;
-        String bestTestChoice = testSession.bestTestChoice == null ? "" : testSession.bestTestChoice;
+    private synchronized void updateState(TestSession testSession) {
+        stateTracker.reset();
 
-        if (bestTestChoice.toLowerCase().equals(BestTestChoice.reproducible.toLowerCase())) {
-                newState = TestSession.TestSessionState.reproducibleTestFinal;
-        }
-        else if (bestTestChoice.toLowerCase().equals(BestTestChoice.highestReference.toLowerCase())) {
-            newState = TestSession.TestSessionState.notReproducibleTestFinal;
-        }
-        else {
-            if (testSession.tests.size() > 0) {
-                Test mostRecent = testSession.tests.get(testSession.tests.size() - 1);
-                Test.TestStatus status = Test.TestStatus.valueOf(mostRecent.status.toLowerCase());
-                switch (status) {
-                    case error: {
-                        int failed = 0;
-
-                        for (Test test : testSession.tests) {
-                            Test.TestStatus testStatus = Test.TestStatus.valueOf(test.status.toLowerCase());
-                            if (testStatus == Test.TestStatus.error) {
-                                failed++;
-                            }
-                        }
-
-                        newState = failed >= failedTestsThreshold ? TestSession.TestSessionState.notProcessedTestFinal : TestSession.TestSessionState.notProcessedTestFirst;
-                        break;
-                    }
-                    case complete: {
-                        int completeCount = 0;
-
-                        for (Test test : testSession.tests) {
-                            Test.TestStatus testStatus = Test.TestStatus.valueOf(test.status.toLowerCase());
-                            if (testStatus == Test.TestStatus.complete) {
-                                completeCount++;
-                            }
-                        }
-
-                        if (completeCount == 1)
-                            newState = TestSession.TestSessionState.goodTestFirst;
-                        else if (completeCount == 2)
-                            newState = TestSession.TestSessionState.notReproducibleTestFirst;
-
-                        break;
-                    }
-                }
-            }
+        for (int i = 0; i < testSession.tests.size(); i++) {
+            Test.TestStatus status = Test.TestStatus.valueOf(testSession.tests.get(i).status.toLowerCase());
+            stateTracker.testProcessed(i, status);
         }
 
-        state = newState;
+        context.setState(stateTracker.bestTestChoiceChanged(testSession.bestTestChoice));
     }
 
     /**
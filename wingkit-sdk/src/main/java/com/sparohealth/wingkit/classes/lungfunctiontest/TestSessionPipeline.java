@@ -0,0 +1,498 @@
+package com.sparohealth.wingkit.classes.lungfunctiontest;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.sparohealth.wingkit.classes.Client;
+import com.sparohealth.wingkit.classes.Client.WingApiCallback;
+import com.sparohealth.wingkit.classes.Test;
+import com.sparohealth.wingkit.classes.TestSession;
+import com.sparohealth.wingkit.classes.UploadTarget;
+import com.sparohealth.wingkit.classes.async.WingFuture;
+import com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionManager.TestSessionManagerError;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link TestSessionPipeline} runs the upload and processing of each test in parallel with the
+ * recording of the next one. Unlike {@link TestSessionManager}, a new recording can be submitted
+ * while earlier tests are still uploading or being processed; each test is tracked individually
+ * and the session state is updated as soon as any test's result arrives.
+ *
+ * Every submitted recording must be written to its own file (see
+ * {@link TestSessionRecorder#startRecording(java.io.File)}) and left in place until its test
+ * reaches {@link Stage#complete} or {@link Stage#error}.
+ */
+public class TestSessionPipeline {
+    private String TAG = "TestSessionPipeline";
+
+    /// The interval at which the server will be pinged to check if processing is complete.
+    public final long processingPollingInterval = 800;
+    /// The number of polls a single test may wait for its result before it is considered timed out.
+    public final int processingTimeoutThreshold = 10;
+    /// The number of tests that are allowed to fail processing before the test session is considered invalid.
+    public final int failedTestsThreshold = 2;
+
+    private final Client mClient;
+    private final Gson gson = new Gson();
+    private final TestSessionStateTracker stateTracker = new TestSessionStateTracker(failedTestsThreshold);
+    private final List<PipelinedTest> tests = new ArrayList<>();
+    private final String sessionId;
+    private final String patientId;
+    private TestSession testSession;
+    private TestSessionPipelineDelegate mDelegate = null;
+    /// Indicates a retrieveTestSession poll is scheduled or in flight.
+    private boolean pollScheduled = false;
+    /// Delegate calls waiting to be made once the lock is released, in the order they happened.
+    private final List<Notification> notifications = new ArrayList<>();
+    /// Indicates a thread is making the delegate calls; other threads leave theirs queued for it.
+    private boolean notifying = false;
+
+    /**
+     * Initialize the {@link TestSessionPipeline}
+     * @param client The Wing client used to interface with the Wing REST API
+     * @param testSession The test session returned by {@link Client#createTestSession}
+     */
+    public TestSessionPipeline(Client client, TestSession testSession) {
+        this.mClient = client;
+        this.testSession = testSession;
+        this.sessionId = testSession.id;
+        this.patientId = testSession.patientId;
+        if (this.testSession.uploads == null) {
+            this.testSession.uploads = new ArrayList<>();
+        }
+    }
+
+    /// Set the pipeline delegate object. Its methods are called without the pipeline locked, so they may call back into it.
+    public synchronized void setDelegate(TestSessionPipelineDelegate delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * Return the most recent copy of the test session
+     * @return test session
+     */
+    public synchronized TestSession getTestSession() {
+        return testSession;
+    }
+
+    /**
+     * Return the session state computed from the results received so far
+     * @return session state
+     */
+    public synchronized TestSession.TestSessionState getState() {
+        return stateTracker.getState();
+    }
+
+    /**
+     * Return the tests submitted to the pipeline, in recording order
+     * @return submitted tests
+     */
+    public synchronized List<PipelinedTest> getTests() {
+        return Collections.unmodifiableList(new ArrayList<>(tests));
+    }
+
+    /**
+     * Indicate if any submitted test is still uploading or processing
+     * @return busy status
+     */
+    public synchronized boolean isBusy() {
+        for (PipelinedTest test : tests) {
+            if (!test.isFinished()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Submit a finished recording. Its upload starts immediately, regardless of the tests before it.
+     * @param filePath The file path of the recording
+     * @return The handle tracking the test through the pipeline
+     */
+    public PipelinedTest submitRecording(String filePath) {
+        PipelinedTest test;
+        UploadTarget target;
+        synchronized (this) {
+            test = new PipelinedTest(tests.size(), filePath);
+            tests.add(test);
+
+            target = nextUnusedUploadTarget();
+            // if there IS an upload target left over, the test claims it before another submission can
+            if (target != null) {
+                test.uploadTarget = target;
+                setStage(test, Stage.uploading);
+            }
+            else {
+                setStage(test, Stage.creatingUploadTarget);
+            }
+        }
+        notifyDelegate();
+
+        if (target != null) {
+            upload(test, target);
+        }
+        else {
+            createUploadTarget(test);
+        }
+        return test;
+    }
+
+    private UploadTarget nextUnusedUploadTarget() {
+        for (UploadTarget current : testSession.uploads) {
+            boolean used = false;
+            for (PipelinedTest test : tests) {
+                if (test.uploadTarget != null && test.uploadTarget.id.equals(current.id)) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used) {
+                return current;
+            }
+        }
+        return null;
+    }
+
+    private void createUploadTarget(final PipelinedTest test) {
+        mClient.createUploadTarget(sessionId, patientId, new WingApiCallback() {
+            @Override
+            public void onSuccessResponse(JSONObject result) {
+                UploadTarget target = gson.fromJson(result.toString(), UploadTarget.class);
+                synchronized (TestSessionPipeline.this) {
+                    testSession.uploads.add(target);
+                    test.uploadTarget = target;
+                    setStage(test, Stage.uploading);
+                }
+                notifyDelegate();
+                upload(test, target);
+            }
+
+            @Override
+            public void onErrorResponse(Exception error) {
+                Log.d(TAG, String.valueOf(error.getMessage()));
+                synchronized (TestSessionPipeline.this) {
+                    fail(test, TestSessionManagerError.uploadTargetCreationFailed);
+                }
+                notifyDelegate();
+            }
+        });
+    }
+
+    private void upload(final PipelinedTest test, UploadTarget target) {
+        mClient.uploadFile(test.filePath, target, new WingApiCallback() {
+            @Override
+            public void onSuccessResponse(JSONObject result) {
+                synchronized (TestSessionPipeline.this) {
+                    setStage(test, Stage.processing);
+                    schedulePoll(0);
+                }
+                notifyDelegate();
+            }
+
+            @Override
+            public void onErrorResponse(Exception error) {
+                Log.i(TAG, error.toString());
+                synchronized (TestSessionPipeline.this) {
+                    fail(test, TestSessionManagerError.testUploadFailed);
+                }
+                notifyDelegate();
+            }
+        });
+    }
+
+    /**
+     * Schedule a single session poll shared by every test that is waiting for its result
+     */
+    private void schedulePoll(long delay) {
+        if (pollScheduled) {
+            return;
+        }
+        pollScheduled = true;
+        mClient.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, delay);
+    }
+
+    private void poll() {
+        synchronized (this) {
+            // if every test waiting for a result HAS failed meanwhile, there is nothing to poll for
+            if (!hasProcessingTests()) {
+                pollScheduled = false;
+                return;
+            }
+        }
+        mClient.retrieveTestSession(sessionId, patientId).addCallback(new WingFuture.Callback<TestSession>() {
+            @Override
+            public void onSuccess(TestSession result) {
+                synchronized (TestSessionPipeline.this) {
+                    pollScheduled = false;
+                    TestSession.TestSessionState previous = stateTracker.getState();
+                    try {
+                        applyResults(result);
+                        countProcessingAttempts(TestSessionManagerError.processingTimeout);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Unable to read the test session - " + e.getMessage());
+                        countProcessingAttempts(TestSessionManagerError.retrieveTestSessionFailed);
+                    }
+                    continuePolling(previous);
+                }
+                notifyDelegate();
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                Log.e(TAG, "Error in Client.retrieveTestSession - " + error.getMessage());
+                synchronized (TestSessionPipeline.this) {
+                    pollScheduled = false;
+                    TestSession.TestSessionState previous = stateTracker.getState();
+                    // the poll is retried; a failed poll counts towards each waiting test's timeout like an unfinished one
+                    countProcessingAttempts(TestSessionManagerError.retrieveTestSessionFailed);
+                    continuePolling(previous);
+                }
+                notifyDelegate();
+            }
+        });
+    }
+
+    /**
+     * Match the server's tests to the pipelined tests and advance the ones that finished processing.
+     * Every status is read before anything changes, so a session that cannot be read changes nothing.
+     */
+    private void applyResults(TestSession result) {
+        List<PipelinedTest> finishedTests = new ArrayList<>();
+        List<Test> finishedResults = new ArrayList<>();
+        List<Test.TestStatus> finishedStatuses = new ArrayList<>();
+        if (result.tests != null) {
+            for (Test current : result.tests) {
+                PipelinedTest test = findByUploadTarget(current.uploadTargetId);
+                if (test == null || test.stage != Stage.processing || current.status == null) {
+                    continue;
+                }
+
+                Test.TestStatus status = Test.TestStatus.valueOf(current.status.toLowerCase());
+                if (status == Test.TestStatus.complete || status == Test.TestStatus.error) {
+                    finishedTests.add(test);
+                    finishedResults.add(current);
+                    finishedStatuses.add(status);
+                }
+            }
+        }
+
+        result.uploads = testSession.uploads;
+        testSession = result;
+        for (int i = 0; i < finishedTests.size(); i++) {
+            PipelinedTest test = finishedTests.get(i);
+            Test.TestStatus status = finishedStatuses.get(i);
+            test.result = finishedResults.get(i);
+            stateTracker.testProcessed(test.order, status);
+            setStage(test, status == Test.TestStatus.complete ? Stage.complete : Stage.error);
+        }
+        stateTracker.bestTestChoiceChanged(testSession.bestTestChoice);
+    }
+
+    /**
+     * Count a poll against every test still waiting for its result, failing the ones that have waited too long
+     * @param error The failure reason given to the tests that time out
+     */
+    private void countProcessingAttempts(TestSessionManagerError error) {
+        for (PipelinedTest test : tests) {
+            if (test.stage == Stage.processing && ++test.processingAttempts >= processingTimeoutThreshold) {
+                fail(test, error);
+            }
+        }
+    }
+
+    /**
+     * Report a changed session state and schedule the next poll while tests are waiting for their results
+     * @param previous The state before the poll
+     */
+    private void continuePolling(final TestSession.TestSessionState previous) {
+        final TestSession.TestSessionState state = stateTracker.getState();
+        if (previous != state || !isBusy()) {
+            notifications.add(new Notification() {
+                @Override
+                public void deliver(TestSessionPipelineDelegate delegate) {
+                    delegate.stateChanged(state);
+                }
+            });
+        }
+        if (hasProcessingTests()) {
+            schedulePoll(processingPollingInterval);
+        }
+    }
+
+    private boolean hasProcessingTests() {
+        for (PipelinedTest test : tests) {
+            if (test.stage == Stage.processing) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PipelinedTest findByUploadTarget(String uploadTargetId) {
+        for (PipelinedTest test : tests) {
+            if (test.uploadTarget != null && test.uploadTarget.id.equals(uploadTargetId)) {
+                return test;
+            }
+        }
+        return null;
+    }
+
+    private void fail(final PipelinedTest test, final TestSessionManagerError error) {
+        test.error = error;
+        setStage(test, Stage.error);
+        notifications.add(new Notification() {
+            @Override
+            public void deliver(TestSessionPipelineDelegate delegate) {
+                delegate.testFailed(test, error);
+            }
+        });
+    }
+
+    private void setStage(final PipelinedTest test, final Stage stage) {
+        test.stage = stage;
+        notifications.add(new Notification() {
+            @Override
+            public void deliver(TestSessionPipelineDelegate delegate) {
+                delegate.testStageChanged(test, stage);
+            }
+        });
+    }
+
+    /**
+     * Make the queued delegate calls. Called without the lock held; calls queued by another thread
+     * meanwhile are made by whichever thread is already notifying, so the delegate sees them in order.
+     */
+    private void notifyDelegate() {
+        synchronized (this) {
+            if (notifying) {
+                return;
+            }
+            notifying = true;
+        }
+        boolean drained = false;
+        try {
+            while (true) {
+                TestSessionPipelineDelegate delegate;
+                List<Notification> pending;
+                synchronized (this) {
+                    if (notifications.isEmpty()) {
+                        notifying = false;
+                        drained = true;
+                        return;
+                    }
+                    delegate = mDelegate;
+                    pending = new ArrayList<>(notifications);
+                    notifications.clear();
+                }
+                // if there IS a delegate...
+                if (delegate != null) {
+                    for (Notification notification : pending) {
+                        notification.deliver(delegate);
+                    }
+                }
+            }
+        } finally {
+            // if a delegate call threw, the next caller picks up what is left
+            if (!drained) {
+                synchronized (this) {
+                    notifying = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A delegate call, queued while the pipeline is locked
+     */
+    private interface Notification {
+        void deliver(TestSessionPipelineDelegate delegate);
+    }
+
+    /**
+     * The stages a test passes through in the pipeline
+     */
+    public enum Stage {
+        /// The recording has been submitted and is waiting for an upload target.
+        creatingUploadTarget,
+
+        /// The recording is being uploaded.
+        uploading,
+
+        /// The recording has been uploaded and the server is processing it.
+        processing,
+
+        /// The server processed the test successfully.
+        complete,
+
+        /// The test failed to upload or process, or the server reported an error.
+        error
+    }
+
+    /**
+     * A single test tracked by the pipeline
+     */
+    public static class PipelinedTest {
+        /// The position of the test in the session (0 for the first blow).
+        public final int order;
+        /// The file path of the recording.
+        public final String filePath;
+        /// The upload target the recording was sent to.
+        public volatile UploadTarget uploadTarget;
+        /// The current stage of the test.
+        public volatile Stage stage = Stage.creatingUploadTarget;
+        /// The processed test returned by the server, once available.
+        public volatile Test result;
+        /// The failure reason when the test ends in {@link Stage#error} locally.
+        public volatile TestSessionManagerError error;
+        /// The number of polls this test has waited for its result, including ones that failed.
+        int processingAttempts = 0;
+
+        PipelinedTest(int order, String filePath) {
+            this.order = order;
+            this.filePath = filePath;
+        }
+
+        /**
+         * Indicate if the test has reached a final stage
+         * @return finished status
+         */
+        public boolean isFinished() {
+            return stage == Stage.complete || stage == Stage.error;
+        }
+    }
+
+    /**
+     * Callback interface for pipeline events
+     */
+    public interface TestSessionPipelineDelegate {
+        /**
+         * Tells the delegate that a test moved to a new stage
+         * @param test The test that changed
+         * @param stage The stage it moved to; the test may have moved on by the time the call is made
+         */
+        void testStageChanged(PipelinedTest test, Stage stage);
+
+        /**
+         * Tells the delegate that the session state changed, or that the last busy test finished
+         * @param state The new session state
+         */
+        void stateChanged(TestSession.TestSessionState state);
+
+        /**
+         * Tells the delegate that a test could not be uploaded or processed
+         * @param test The test that failed
+         * @param error The failure reason
+         */
+        void testFailed(PipelinedTest test, TestSessionManagerError error);
+    }
+}
@@ -3,19 +3,47 @@ package com.sparohealth.wingkit.classes.lungfunctiontest;
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaRecorder;
-import android.os.AsyncTask;
+import android.media.AudioTimestamp;
+import android.os.Build;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.sparohealth.wingkit.classes.analysis.EffortClassification;
+import com.sparohealth.wingkit.classes.analysis.EffortClassifier;
+import com.sparohealth.wingkit.classes.analysis.EffortConfiguration;
+import com.sparohealth.wingkit.classes.analysis.EnvelopeExtractor;
+import com.sparohealth.wingkit.classes.analysis.FlowCalibration;
+import com.sparohealth.wingkit.classes.analysis.FlowEnvelope;
+import com.sparohealth.wingkit.classes.analysis.FlowEstimate;
+import com.sparohealth.wingkit.classes.analysis.FlowEstimator;
+import com.sparohealth.wingkit.classes.analysis.RecordingValidator;
+import com.sparohealth.wingkit.classes.analysis.RecordingValidity;
+import com.sparohealth.wingkit.classes.analysis.ValidityConfiguration;
+import com.sparohealth.wingkit.classes.capture.AndroidAudioCapabilities;
+import com.sparohealth.wingkit.classes.capture.BufferTuner;
+import com.sparohealth.wingkit.classes.capture.BufferTuning;
+import com.sparohealth.wingkit.classes.capture.CaptureConfiguration;
+import com.sparohealth.wingkit.classes.capture.CaptureProbe;
+import com.sparohealth.wingkit.classes.capture.PolyphaseDecimator;
+import com.sparohealth.wingkit.classes.capture.RecordingChecksum;
+import com.sparohealth.wingkit.classes.capture.RecordingFeaturesWriter;
+import com.sparohealth.wingkit.classes.capture.RecordingManifest;
+import com.sparohealth.wingkit.classes.capture.RecordingStore;
+import com.sparohealth.wingkit.classes.capture.RecordingStoreConfiguration;
+import com.sparohealth.wingkit.classes.capture.RecordingWriter;
+import com.sparohealth.wingkit.classes.capture.SyncPolicy;
+import com.sparohealth.wingkit.classes.events.EventStream;
+import com.sparohealth.wingkit.classes.scheduling.PooledScheduler;
+import com.sparohealth.wingkit.classes.scheduling.Scheduler;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  The `TestSessionRecorder` class is used to detect and record when a user blows into the Wing sensor.
@@ -25,9 +53,64 @@ public class TestSessionRecorder {
     private static String TAG = "TestSessionRecorder";
 
     /**
-     * Async Task that handles recording the audio sample from the Wing device for processing
+     * Task that handles recording the audio sample from the Wing device for processing
      */
     private RecordWaveTask recordWaveTask = null;
+    /**
+     * Stream of recorder state changes
+     */
+    private final EventStream<TestRecorderState> stateEvents;
+    /**
+     * Stream of signal strength readings (dB), one per capture buffer
+     */
+    private final EventStream<Double> signalStrengthEvents;
+    /**
+     * Stream of envelope updates, published each time the envelope of the current recording grows
+     */
+    private final EventStream<FlowEnvelope> envelopeEvents;
+    /**
+     * Envelope of the current (or most recent) recording
+     */
+    private volatile FlowEnvelope envelope = null;
+    /**
+     * Estimator used for the preliminary result of each recording
+     */
+    private volatile FlowEstimator flowEstimator = new FlowEstimator(FlowCalibration.UNCALIBRATED);
+    /**
+     * Preliminary result of the most recent recording
+     */
+    private volatile FlowEstimate preliminaryEstimate = null;
+
+    /**
+     * Application context, used to probe the audio input
+     */
+    private Context appContext = null;
+    /**
+     * Capture configuration, probed before the first recording unless set by the app
+     */
+    private volatile CaptureConfiguration captureConfiguration = null;
+    /**
+     * Buffer sizing for the capture configuration, carried across recordings
+     */
+    private BufferTuner bufferTuner = null;
+    private CaptureConfiguration tunedConfiguration = null;
+    /**
+     * Buffer sizes and read timing of the last recording
+     */
+    private volatile BufferTuning bufferTuning = null;
+    /**
+     * Sample rate recordings are stored and uploaded at, or 0 for the capture rate
+     */
+    private volatile int storedSampleRate = 0;
+    /**
+     * When the recording file is forced to storage, and the audio time between header checkpoints (ms)
+     */
+    private volatile SyncPolicy syncPolicy = SyncPolicy.checkpoint;
+    private volatile long checkpointIntervalMs = RecordingWriter.DEFAULT_CHECKPOINT_INTERVAL_MS;
+    /**
+     * Checksums and capture statistics of the last recording
+     */
+    private volatile RecordingManifest manifest = null;
 
     /**
      * Object implementing the TestRecorderDelegate interface for event callback handling
@@ -40,24 +123,32 @@ public class TestSessionRecorder {
     /**
      * File handle for the test recording
      */
-    private File file = null;
+    private volatile File file = null;
+    /**
+     * Store that gives each test its own recording file, shared by every recorder using the same directory
+     */
+    private volatile RecordingStore recordingStore = null;
 
     /**
-     * The maximum decibel (dB) threshold that the sensor recording strength must not exceed to be considered a valid test.
+     * Validator deciding if a finished recording is worth uploading
      */
-    private double signalStrengthMaxThreshold = 8.0;
+    private volatile RecordingValidator validator = new RecordingValidator(new ValidityConfiguration());
     /**
-     * The minimum decibel (dB) threshold that the sensor recording strength must exceed to be considered a valid test.
+     * Ambient noise baseline (dB) measured before the test, or NaN if unknown
      */
-    private double signalStrengthMinThreshold = 45.0;
+    private volatile double noiseBaseline = Double.NaN;
     /**
-     * Indicates if the minimum signal strength threshold was met during the test
+     * Validity of the most recent recording
      */
-    private boolean minimumSignalStrengthThresholdPassed = false;
+    private volatile RecordingValidity validity = null;
     /**
-     * Indicates if the maximu signal strength threshold was met during the test
+     * Thresholds used to classify the effort of each recording
      */
-    private boolean maximumSignalStrengthThresholdTestFailed = false;
+    private volatile EffortConfiguration effortConfiguration = new EffortConfiguration();
+    /**
+     * Effort classification of the most recent recording
+     */
+    private volatile EffortClassification effortClassification = null;
     /**
      * Indicates that the recording was cancelled due to an error
      */
@@ -69,34 +160,85 @@ public class TestSessionRecorder {
      * @param delegate callback interface object
      */
     public TestSessionRecorder(Context context, TestRecorderDelegate delegate){
+        this(context, delegate, PooledScheduler.getDefault());
+    }
+
+    /**
+     * Initialize the TestSessionRecorder instance with the parent context, callback object and scheduler
+     * @param context parent context of the calling object
+     * @param delegate callback interface object
+     * @param scheduler scheduler the recorder's events are delivered on; the capture itself runs on a thread of its own
+     */
+    public TestSessionRecorder(Context context, TestRecorderDelegate delegate, Scheduler scheduler){
+        this.stateEvents = new EventStream<>(scheduler, true);
+        this.signalStrengthEvents = new EventStream<>(scheduler, false);
+        this.envelopeEvents = new EventStream<>(scheduler, false);
+        this.delegate = delegate;
         try {
-            file = new File(context.getExternalFilesDir(null),"audio.wav");
-            this.delegate = delegate;
+            recordingStore = RecordingStore.forDirectory(new File(context.getExternalFilesDir(null), "recordings"), new RecordingStoreConfiguration());
+            appContext = context.getApplicationContext();
             setRecorderState(TestRecorderState.ready);
         }catch (Exception ex){
-            Log.d("Debug", ex.getMessage());
+            // without somewhere to store recordings the recorder cannot be used
+            setRecorderState(TestRecorderState.error);
         }
     }
 
     /**
      * Return the file path and name for the audio recording
-     * @return recorded file name
+     * @return recorded file name, or null before the first recording
      */
     public String getFilename() {
-        return file.getAbsolutePath();
+        return file == null ? null : file.getAbsolutePath();
+    }
+
+    /**
+     * Return the store the recordings are kept in
+     * @return recording store
+     */
+    public RecordingStore getRecordingStore() {
+        return recordingStore;
     }
+
     /**
-     * Start the recording process
+     * Keep the recordings in another store, e.g. one with a size budget for this deployment
+     * @param store The recording store
+     */
+    public void setRecordingStore(RecordingStore store) {
+        this.recordingStore = store;
+    }
+
+    /**
+     * Start the recording process, writing to a new file of the recording store
      */
     public void startRecording() {
         try {
-            // clear the threshold test flags
-            minimumSignalStrengthThresholdPassed = false;
-            maximumSignalStrengthThresholdTestFailed = false;
+            startRecording(recordingStore.create());
+        } catch (IOException ex) {
+            setRecorderState(TestRecorderState.error);
+            Log.d(TAG, ex.getMessage());
+        }
+    }
+
+    /**
+     * Start the recording process, writing to the given file. Used with {@link TestSessionPipeline}
+     * so each test keeps its own recording while earlier tests are still uploading. A file from
+     * {@link RecordingStore#create()} is renamed into place when the recording finishes.
+     * @param recordingFile file the recording is written to
+     */
+    public void startRecording(File recordingFile) {
+        file = recordingFile;
+        try {
+            // clear the results of the previous recording
             recordingCancelled = false;
-            // create a new recording task
-            recordWaveTask = new RecordWaveTask(this);
-            recordWaveTask.execute(file);
+            preliminaryEstimate = null;
+            validity = null;
+            effortClassification = null;
+            // create a new recording task on a thread of its own, so the capture never waits behind the scheduler's tasks
+            recordWaveTask = new RecordWaveTask(this, file);
+            Thread captureThread = new Thread(recordWaveTask, "WingKit-Capture");
+            captureThread.setDaemon(true);
+            captureThread.start();
             setRecorderState(TestRecorderState.recording);
         }catch (Exception ex){
             setRecorderState(TestRecorderState.error);
@@ -105,11 +247,55 @@ public class TestSessionRecorder {
     }
 
     /**
-     * Indicate if the recording captured was valid and passed the threshold checks
+     * Indicate if the recording captured was valid and passed the signal-to-noise and effort checks
      * @return valid status
      */
     public boolean isValidRecording() {
-        return minimumSignalStrengthThresholdPassed && !maximumSignalStrengthThresholdTestFailed;
+        RecordingValidity currentValidity = validity;
+        EffortClassification currentEffort = effortClassification;
+        return currentValidity != null && currentValidity.isAcceptable()
+                && currentEffort != null && currentEffort.isAcceptable();
+    }
+
+    /**
+     * Return the effort classification of the most recent recording (slow start, cough, early stop)
+     * @return classification, or null while recording or if the recording failed
+     */
+    public EffortClassification getEffortClassification() {
+        return effortClassification;
+    }
+
+    /**
+     * Set the thresholds used to classify the effort of recordings, and which issues fail validation
+     * @param configuration The thresholds
+     */
+    public void setEffortConfiguration(EffortConfiguration configuration) {
+        this.effortConfiguration = configuration;
+    }
+
+    /**
+     * Return the detailed validity of the most recent recording, including its signal-to-noise ratio
+     * @return validity, or null while recording or if the recording failed
+     */
+    public RecordingValidity getValidity() {
+        return validity;
+    }
+
+    /**
+     * Set the ambient noise baseline the recordings are compared against
+     * @param baselineDb The value of {@link com.sparohealth.wingkit.classes.AmbientNoiseMonitor#baselineAmplitude()}
+     *                   measured before the test
+     */
+    public void setNoiseBaseline(double baselineDb) {
+        this.noiseBaseline = baselineDb;
+    }
+
+    /**
+     * Set the thresholds used to validate recordings
+     * @param configuration The thresholds
+     */
+    public void setValidityConfiguration(ValidityConfiguration configuration) {
+        this.validator = new RecordingValidator(configuration);
     }
 
     /**
@@ -124,8 +310,8 @@ public class TestSessionRecorder {
      */
     public void stopRecording(){
         recordingCancelled = true;
-        if (!recordWaveTask.isCancelled() && recordWaveTask.getStatus() == AsyncTask.Status.RUNNING) {
-            recordWaveTask.cancel(true);
+        if (recordWaveTask != null && !recordWaveTask.isCancelled() && !recordWaveTask.isFinished()) {
+            recordWaveTask.cancel();
         }
     }
 
@@ -135,7 +321,140 @@ public class TestSessionRecorder {
      */
     void setRecorderState(TestRecorderState newState){
         state = newState;
-        delegate.recorderStateChanged(state);
+        stateEvents.publish(newState);
+        if (delegate != null) {
+            delegate.recorderStateChanged(state);
+        }
+    }
+
+    /**
+     * Return the stream of recorder state changes. New subscribers receive the current state.
+     * @return state stream
+     */
+    public EventStream<TestRecorderState> getStateEvents() {
+        return stateEvents;
+    }
+
+    /**
+     * Return the stream of signal strength readings (dB). Readings arrive once per capture buffer,
+     * so UI subscribers should use {@link com.sparohealth.wingkit.classes.events.DeliveryPolicy#perFrame()}.
+     * @return signal strength stream
+     */
+    public EventStream<Double> getSignalStrengthEvents() {
+        return signalStrengthEvents;
+    }
+
+    /**
+     * Return the stream of envelope updates. Every event is the live {@link FlowEnvelope} of the
+     * current recording; read its new values in place rather than copying them. The envelope grows
+     * {@link EnvelopeExtractor#DEFAULT_RATE_HZ} times per second, so UI subscribers should use
+     * {@link com.sparohealth.wingkit.classes.events.DeliveryPolicy#perFrame()}.
+     * @return envelope stream
+     */
+    public EventStream<FlowEnvelope> getEnvelopeEvents() {
+        return envelopeEvents;
+    }
+
+    /**
+     * Return the envelope of the current recording, or of the last one once it has finished. Each
+     * recording gets its own envelope, so it can be kept for analysis after the next one starts.
+     * @return envelope, or null before the first recording
+     */
+    public FlowEnvelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Set the estimator used for preliminary results, e.g. one with a calibration fitted for the
+     * deployment's sensors
+     * @param flowEstimator The estimator
+     */
+    public void setFlowEstimator(FlowEstimator flowEstimator) {
+        this.flowEstimator = flowEstimator;
+    }
+
+    /**
+     * Return the provisional result of the most recent recording. It is ready when the recorder
+     * reaches {@link TestRecorderState#finished}, long before the server result; show it as
+     * provisional and replace it with the processed {@link com.sparohealth.wingkit.classes.Test}.
+     * @return estimate, or null while recording or if the recording failed
+     */
+    public FlowEstimate getPreliminaryEstimate() {
+        return preliminaryEstimate;
+    }
+
+    /**
+     * Set the capture configuration instead of probing the device, e.g.
+     * {@link CaptureConfiguration#LEGACY} for a backend that only accepts 44.1 kHz
+     * @param configuration The capture configuration
+     */
+    public void setCaptureConfiguration(CaptureConfiguration configuration) {
+        this.captureConfiguration = configuration;
+    }
+
+    /**
+     * Return the capture configuration, probing the device the first time. Probing briefly opens
+     * the microphone, so call this off the main thread.
+     * @return capture configuration
+     */
+    public synchronized CaptureConfiguration getCaptureConfiguration() {
+        // if the configuration HAS NOT been chosen yet...
+        if (captureConfiguration == null) {
+            captureConfiguration = appContext == null
+                    ? CaptureConfiguration.LEGACY
+                    : CaptureProbe.choose(new AndroidAudioCapabilities(appContext));
+            Log.d(TAG, "Capture configuration " + captureConfiguration);
+        }
+        return captureConfiguration;
+    }
+
+    /**
+     * Store recordings at a lower sample rate than they are captured at, e.g. the rate the backend
+     * accepts, so they take less space and upload faster. The signal is low-pass filtered before it is
+     * decimated; analysis on the device still uses the full capture rate.
+     * @param sampleRate The sample rate (Hz), or 0 to store at the capture rate
+     */
+    public void setStoredSampleRate(int sampleRate) {
+        this.storedSampleRate = sampleRate;
+    }
+
+    /**
+     * Set how the recording is kept consistent on disk in case the app is killed mid-recording. The
+     * header is brought up to date at every checkpoint; the policy decides when it is also fsynced.
+     * @param policy The fsync policy
+     * @param checkpointIntervalMs The audio time between checkpoints (ms)
+     */
+    public void setSyncPolicy(SyncPolicy policy, long checkpointIntervalMs) {
+        this.syncPolicy = policy;
+        this.checkpointIntervalMs = checkpointIntervalMs;
+    }
+
+    /**
+     * Return the manifest of the last recording, also stored next to it for the upload
+     * @return manifest, or null before the first recording finishes
+     */
+    public RecordingManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Return the buffer sizes chosen for the last recording and the read timing observed
+     * @return buffer tuning, or null before the first recording finishes
+     */
+    public BufferTuning getBufferTuning() {
+        return bufferTuning;
+    }
+
+    /**
+     * Return the buffer tuner for a capture configuration, keeping what it learned while the configuration stays the same
+     */
+    private synchronized BufferTuner getBufferTuner(CaptureConfiguration capture, int minBufferSize) {
+        // if the tuner IS NOT for this configuration...
+        if (bufferTuner == null || tunedConfiguration != capture) {
+            bufferTuner = new BufferTuner(capture.sampleRate, minBufferSize, capture.framesPerBuffer);
+            tunedConfiguration = capture;
+        }
+        return bufferTuner;
     }
 
     /**
@@ -147,17 +466,9 @@ public class TestSessionRecorder {
     }
 
     /**
-     * Async task implementation that handles recording and checking the audio test data
+     * Task implementation that handles recording and checking the audio test data
      */
-    private static class RecordWaveTask extends AsyncTask<File, Void, Object[]> {
-        /**
-         * Source for recording the audio test data
-         */
-        private static final int AUDIO_SOURCE = MediaRecorder.AudioSource.MIC;
-        /**
-         * Sample rate for the recording in Hz
-         */
-        private static final int SAMPLE_RATE = 44100; // Hz
+    private static class RecordWaveTask implements Runnable {
         /**
          * Bit depth encoding
          */
@@ -166,55 +477,121 @@ public class TestSessionRecorder {
          * Number of audio channels to use when recording
          */
         private static final int CHANNEL_MASK = AudioFormat.CHANNEL_IN_MONO;
-        /**
-         * Size of the buffer to use when recording the test audio
-         */
-        private static final int BUFFER_SIZE = 2 * AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_MASK, ENCODING);
         /**
          * Duration to record for
          */
         private static final int RECORDING_DURATION = 6000;
+        /**
+         * Time past the duration to wait for audio before ending the recording short
+         */
+        private static final int RECORDING_GRACE = 1000;
         /**
          * Parent object
          */
         private TestSessionRecorder context;
+        /**
+         * File the recording is written to
+         */
+        private final File file;
+        /**
+         * Indicates the recording was cancelled
+         */
+        private volatile boolean cancelled = false;
+        /**
+         * Indicates the recording has ended
+         */
+        private volatile boolean finished = false;
 
         /**
          * Initialize the recording task
          * @param context parent object calling the task
+         * @param file file to write the recording to
          */
-        private RecordWaveTask(TestSessionRecorder context) {
+        private RecordWaveTask(TestSessionRecorder context, File file) {
             this.context = context;
+            this.file = file;
+        }
+
+        /**
+         * Stop the recording at the next buffer read
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            try {
+                Object[] results = doInBackground(file);
+                if (results[0] instanceof Throwable) {
+                    // Error
+                    Throwable throwable = (Throwable) results[0];
+                    Log.e(RecordWaveTask.class.getSimpleName(), throwable.getMessage(), throwable);
+                }
+                if (cancelled) {
+                    Log.d(TAG, "The Recorder task has been cancelled!");
+                }
+            } finally {
+                finished = true;
+            }
         }
 
         /**
          * Opens up the given file, writes the header, and keeps filling it with raw PCM bytes from
-         * AudioRecord until it reaches 4GB or is stopped by the user. It then goes back and updates
-         * the WAV header to include the proper final chunk sizes.
+         * AudioRecord until it holds the full duration or is stopped by the user. The header is
+         * written with the final sizes up front so the file can be checksummed as it is written; a
+         * recording that ends early has its header updated afterwards.
          *
          * @param files Index 0 should be the file to write to
          * @return Either an Exception (Error) or two longs, the filesize, elapsed time in ms (success)
          */
-        @Override
-        protected Object[] doInBackground(File... files) {
+        private Object[] doInBackground(File... files) {
             AudioRecord audioRecord = null;
-            FileOutputStream wavOut = null;
+            RecordingWriter writer = null;
             long startTime = 0;
             long endTime = 0;
+            CaptureConfiguration capture = context.getCaptureConfiguration();
+            // buffer and read sizes start from the minimum buffer and adapt to the device
+            BufferTuner tuner = context.getBufferTuner(capture, AudioRecord.getMinBufferSize(capture.sampleRate, CHANNEL_MASK, ENCODING));
+            tuner.startSession();
+            EnvelopeExtractor extractor = EnvelopeExtractor.create(capture.sampleRate, EnvelopeExtractor.DEFAULT_RATE_HZ, RECORDING_DURATION);
+            context.envelope = extractor.getEnvelope();
+            EffortClassifier classifier = new EffortClassifier(context.effortConfiguration, context.flowEstimator.getCalibration());
+            // block levels and threshold crossings for the feature sidecar, measured on the captured audio
+            RecordingFeaturesWriter features = new RecordingFeaturesWriter(capture.sampleRate, context.validator.getConfiguration());
+            int storedSampleRate = context.storedSampleRate;
+            // if the recording IS stored below the capture rate, filter and decimate it on the way to the file
+            PolyphaseDecimator decimator = storedSampleRate > 0 && storedSampleRate < capture.sampleRate
+                    ? new PolyphaseDecimator(capture.sampleRate, storedSampleRate) : null;
+            int fileSampleRate = decimator == null ? capture.sampleRate : storedSampleRate;
+            Map<String, String> metadata = capture.toMetadata();
+            metadata.put("stored-sample-rate", String.valueOf(fileSampleRate));
 
             try {
                 // create and start the audio recorder
-                audioRecord = new AudioRecord(AUDIO_SOURCE, SAMPLE_RATE, CHANNEL_MASK, ENCODING, BUFFER_SIZE);
+                audioRecord = new AudioRecord(capture.source.audioSource, capture.sampleRate, CHANNEL_MASK, ENCODING, tuner.getCapacityBytes());
                 audioRecord.startRecording();
 
-                // open the file output stream to write audio data coming from the AudioRecord instance
-                wavOut = new FileOutputStream(files[0]);
-
-                // initialize the WAV file with the basic header information
-                writeWavHeader(wavOut, CHANNEL_MASK, SAMPLE_RATE, ENCODING);
+                // open the file with its final header, so it can be checksummed as it is written
+                writer = new RecordingWriter(files[0], fileSampleRate, 2L * fileSampleRate * RECORDING_DURATION / 1000, metadata);
+                writer.setSyncPolicy(context.syncPolicy, context.checkpointIntervalMs);
 
                 // allocate the recording buffer and set up loop variables
-                byte[] buffer = new byte[BUFFER_SIZE];
+                byte[] buffer = new byte[tuner.getMaximumBlockBytes()];
+                byte[] fileBuffer = decimator == null ? buffer : new byte[decimator.getMaximumOutputBytes(buffer.length)];
+                // the recording buffer read as samples for the signal strength checks, reused for every read
+                ShortBuffer bufferSamples = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                short[] samples = new short[buffer.length / 2];
+                AudioTimestamp timestamp = new AudioTimestamp();
                 boolean run = true;
                 int read;
                 long total = 0;
@@ -224,23 +601,37 @@ public class TestSessionRecorder {
                 // While the run flag IS true AND the task has NOT been cancelled
                 while (run && !isCancelled()) {
                     // read from the microphone
-                    read = audioRecord.read(buffer, 0, buffer.length);
+                    read = audioRecord.read(buffer, 0, tuner.getBlockBytes());
 
                     // if there IS data from the read above
                     if (read > 0) {
+                        long now = System.nanoTime();
+                        tuner.onRead(now, read, capturedFrames(audioRecord, timestamp, capture.sampleRate, now));
+
                         // write the read buffer to the output file
-                        wavOut.write(buffer, 0, read);
+                        if (decimator == null) {
+                            writer.write(buffer, 0, read);
+                        } else {
+                            writer.write(fileBuffer, 0, decimator.process(buffer, 0, read, fileBuffer, 0));
+                        }
+
+                        features.process(buffer, 0, read);
+                        // if the buffer completed any envelope frames...
+                        if (extractor.process(buffer, 0, read) > 0) {
+                            classifier.consume(extractor.getEnvelope());
+                            context.envelopeEvents.publish(extractor.getEnvelope());
+                        }
                         double sum = 0;
 
                         try {
-                            // allocate an array for storing the converted recording buffer for signal strength checks
-                            short[] samples = new short[read / 2];
-                            // convert the recording buffer and store it in the array create above
-                            ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
-
-                            // loop through the converted buffer and calculate the sum of the signals
-                            for (short sample : samples) {
-                                sum += Math.abs(sample);
+                            // convert the part of the recording buffer that was read into the sample array
+                            int sampleCount = read / 2;
+                            bufferSamples.clear();
+                            bufferSamples.get(samples, 0, sampleCount);
+
+                            // loop through the converted samples and calculate the sum of the signals
+                            for (int i = 0; i < sampleCount; i++) {
+                                sum += Math.abs(samples[i]);
                             }
 
                             // average the signal strength over the size of the recording buffer to find the amplitude
@@ -249,17 +640,7 @@ public class TestSessionRecorder {
                             // convert the amplitude to the decibel (dB) value
                             double amplitudeDb = (20 * Math.log10(rawAmplitude / 32767f));
 
-                            // if the calculated value IS less than the minimum threshold...
-                            if (Math.abs(amplitudeDb) < context.signalStrengthMinThreshold) {
-                                context.minimumSignalStrengthThresholdPassed = true;
-                            }
-
-                            // if the calculated value IS less than the maximum threshold...
-                            if (Math.abs(amplitudeDb) < context.signalStrengthMaxThreshold) {
-                                context.maximumSignalStrengthThresholdTestFailed = true;
-                            }
-
-                            Log.d(TAG, "Calculated Amplitude " + String.valueOf(amplitudeDb));
+                            context.signalStrengthEvents.publish(amplitudeDb);
 
                             // if the callback delegate IS set...
                             if (context.delegate != null) {
@@ -272,19 +653,27 @@ public class TestSessionRecorder {
                     }
                     total += read;
 
-                    // if the elapsed recording time IS greater than the maximum duration...
-                    if (SystemClock.elapsedRealtime() - startTime >= RECORDING_DURATION) {
+                    // if the file HAS the full duration of audio OR the audio has stopped arriving...
+                    if (writer.isComplete() || SystemClock.elapsedRealtime() - startTime >= RECORDING_DURATION + RECORDING_GRACE) {
                         run = false;
                     }
                 }
+                // if the recording IS decimated, write the samples still held by the filter
+                if (decimator != null) {
+                    writer.write(fileBuffer, 0, decimator.flush(fileBuffer, 0));
+                }
                 Log.d(TAG, "Total bytes recorded - " + String.valueOf(total));
-            } catch (IOException ex) {
+            } catch (IOException | RuntimeException ex) {
+                // if the file IS open...
+                if (writer != null) {
+                    writer.abort();
+                }
+                if (context.recordingStore != null) {
+                    context.recordingStore.discard(files[0]);
+                }
+                context.setRecorderState(TestRecorderState.error);
                 return new Object[]{ex};
             }
-            catch (Exception ex)
-            {
-                ex.printStackTrace();
-            }
             finally {
                 // if the audiorecord object IS set...
                 if (audioRecord != null) {
@@ -303,170 +692,62 @@ public class TestSessionRecorder {
                         audioRecord.release();
                     }
                 }
-                // if the file output stream IS set...
-                if (wavOut != null) {
-                    try {
-                        // close the file
-                        wavOut.close();
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                        context.setRecorderState(TestRecorderState.error);
-                    }
-                }
             }
 
+            // if the file WAS NEVER opened...
+            if (writer == null) {
+                return new Object[] { new IOException("The recording file could not be opened") };
+            }
+            context.bufferTuning = tuner.endSession();
+            Log.d(TAG, "Buffer tuning " + context.bufferTuning);
             try {
-                // perform the final update to the WAV file header data
-                updateWavHeader(files[0]);
+                // close the file and store its checksum for the upload
+                RecordingChecksum checksum = writer.finish();
+                context.manifest = new RecordingManifest(checksum, writer.getDurationMs(), fileSampleRate, capture.sampleRate, context.bufferTuning);
+                context.manifest.write(files[0]);
+                try {
+                    features.write(files[0], extractor.getEnvelope(), capture.sampleRate, fileSampleRate, writer.getDurationMs(), context.bufferTuning);
+                } catch (IOException ex) {
+                    // the recording is still good without its sidecar; tools fall back to the audio
+                    Log.d(TAG, "Feature sidecar not written: " + ex.getMessage());
+                }
+                // if the recording IS one of the store's, rename it into place now that it is complete
+                RecordingStore store = context.recordingStore;
+                if (store != null && store.isPartial(files[0])) {
+                    context.file = store.commit(files[0]);
+                }
             } catch (IOException ex) {
+                if (context.recordingStore != null) {
+                    context.recordingStore.discard(files[0]);
+                }
+                context.setRecorderState(TestRecorderState.error);
                 return new Object[] { ex };
             }
 
+            // validate and estimate the results from the envelope before reporting the recording as finished
+            context.validity = context.validator.validate(extractor.getEnvelope(), context.noiseBaseline);
+            context.effortClassification = classifier.classify();
+            context.preliminaryEstimate = context.flowEstimator.estimate(extractor.getEnvelope());
             context.setRecorderState(TestRecorderState.finished);
-            return new Object[] { files[0].length(), endTime - startTime };
+            return new Object[] { context.file.length(), endTime - startTime };
         }
 
         /**
-         * Writes the proper 44-byte RIFF/WAVE header to/for the given stream
-         * Two size fields are left empty/null since we do not yet know the final stream size
+         * Return the number of frames the device has captured by a point in time
          *
-         * @param out         The stream to write the header to
-         * @param channelMask An AudioFormat.CHANNEL_* mask
+         * @param audioRecord The recorder
+         * @param timestamp   Timestamp object to reuse
          * @param sampleRate  The sample rate in hertz
-         * @param encoding    An AudioFormat.ENCODING_PCM_* value
-         * @throws IOException An exception occurring during the file access
+         * @param nowNanos    The point in time (System.nanoTime)
+         * @return the frame position, or -1 if the device has no timestamps
          */
-        private static void writeWavHeader(OutputStream out, int channelMask, int sampleRate, int encoding) throws IOException {
-            short channels;
-            switch (channelMask) {
-                case AudioFormat.CHANNEL_IN_MONO:
-                    channels = 1;
-                    break;
-                case AudioFormat.CHANNEL_IN_STEREO:
-                    channels = 2;
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unacceptable channel mask");
-            }
-
-            short bitDepth;
-            switch (encoding) {
-                case AudioFormat.ENCODING_PCM_8BIT:
-                    bitDepth = 8;
-                    break;
-                case AudioFormat.ENCODING_PCM_16BIT:
-                    bitDepth = 16;
-                    break;
-                case AudioFormat.ENCODING_PCM_FLOAT:
-                    bitDepth = 32;
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unacceptable encoding");
+        private static long capturedFrames(AudioRecord audioRecord, AudioTimestamp timestamp, int sampleRate, long nowNanos) {
+            // if the device IS older than Android 7.0 OR cannot provide a timestamp...
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N
+                    || audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) != AudioRecord.SUCCESS) {
+                return -1;
             }
-
-            writeWavHeader(out, channels, sampleRate, bitDepth);
-        }
-
-        /**
-         * Writes the proper 44-byte RIFF/WAVE header to/for the given stream
-         * Two size fields are left empty/null since we do not yet know the final stream size
-         *
-         * @param out        The stream to write the header to
-         * @param channels   The number of channels
-         * @param sampleRate The sample rate in hertz
-         * @param bitDepth   The bit depth
-         * @throws IOException An exception occurring during the file access
-         */
-        private static void writeWavHeader(OutputStream out, short channels, int sampleRate, short bitDepth) throws IOException {
-            // Convert the multi-byte integers to raw bytes in little endian format as required by the spec
-            byte[] littleBytes = ByteBuffer
-                    .allocate(14)
-                    .order(ByteOrder.LITTLE_ENDIAN)
-                    .putShort(channels)
-                    .putInt(sampleRate)
-                    .putInt(sampleRate * channels * (bitDepth / 8))
-                    .putShort((short) (channels * (bitDepth / 8)))
-                    .putShort(bitDepth)
-                    .array();
-
-            // Not necessarily the best, but it's very easy to visualize this way
-            out.write(new byte[]{
-                    // RIFF header
-                    'R', 'I', 'F', 'F', // ChunkID
-                    0, 0, 0, 0, // ChunkSize (must be updated later)
-                    'W', 'A', 'V', 'E', // Format
-                    // fmt subchunk
-                    'f', 'm', 't', ' ', // Subchunk1ID
-                    16, 0, 0, 0, // Subchunk1Size
-                    1, 0, // AudioFormat
-                    littleBytes[0], littleBytes[1], // NumChannels
-                    littleBytes[2], littleBytes[3], littleBytes[4], littleBytes[5], // SampleRate
-                    littleBytes[6], littleBytes[7], littleBytes[8], littleBytes[9], // ByteRate
-                    littleBytes[10], littleBytes[11], // BlockAlign
-                    littleBytes[12], littleBytes[13], // BitsPerSample
-                    // data subchunk
-                    'd', 'a', 't', 'a', // Subchunk2ID
-                    0, 0, 0, 0, // Subchunk2Size (must be updated later)
-            });
-        }
-
-        /**
-         * Updates the given wav file's header to include the final chunk sizes
-         *
-         * @param wav The wav file to update
-         * @throws IOException An exception occurring during the file access
-         */
-        private static void updateWavHeader(File wav) throws IOException {
-            byte[] sizes = ByteBuffer
-                    .allocate(8)
-                    .order(ByteOrder.LITTLE_ENDIAN)
-                    //Cast should be safe since if the WAV is
-                    // > 4 GB we've already made a terrible mistake.
-                    .putInt((int) (wav.length() - 8)) // ChunkSize
-                    .putInt((int) (wav.length() - 44)) // Subchunk2Size
-                    .array();
-
-            RandomAccessFile accessWave = null;
-            //noinspection CaughtExceptionImmediatelyRethrown
-            try {
-                accessWave = new RandomAccessFile(wav, "rw");
-                // ChunkSize
-                accessWave.seek(4);
-                accessWave.write(sizes, 0, 4);
-
-                // Subchunk2Size
-                accessWave.seek(40);
-                accessWave.write(sizes, 4, 4);
-            } catch (IOException ex) {
-                // Rethrow but still close accessWave in the finally block
-                throw ex;
-            } finally {
-                if (accessWave != null) {
-                    try {
-                        accessWave.close();
-                    } catch (IOException ex) {
-                        // Rethrow the exception to be handled at the caller
-                        throw ex;
-                    }
-                }
-            }
-        }
-
-        @Override
-        protected void onCancelled(Object[] results) {
-            Log.d(TAG, "The Recorder task has been cancelled!");
-            // Handling cancellations and successful runs in the same way
-            onPostExecute(results);
-        }
-
-        @Override
-        protected void onPostExecute(Object[] results) {
-            if (results[0] instanceof Throwable) {
-                // Error
-                Throwable throwable = (Throwable) results[0];
-                Log.e(RecordWaveTask.class.getSimpleName(), throwable.getMessage(), throwable);
-            }
-
+            return timestamp.framePosition + (nowNanos - timestamp.nanoTime) * sampleRate / 1000000000L;
         }
     }
 
@@ -0,0 +1,103 @@
+package com.sparohealth.wingkit.classes.lungfunctiontest;
+
+import com.sparohealth.wingkit.classes.Test;
+import com.sparohealth.wingkit.classes.TestSession;
+
+/**
+ * {@link TestSessionStateTracker} computes the {@link TestSession.TestSessionState} incrementally as
+ * test results arrive, so the state is available in constant time no matter how many tests have
+ * been processed or in which order their results came back.
+ */
+public class TestSessionStateTracker {
+    /// The number of tests that are allowed to fail processing before the test session is considered invalid.
+    private final int failedTestsThreshold;
+
+    private int completeCount = 0;
+    private int failedCount = 0;
+    /// The order of the most recent processed test, and its status.
+    private int latestOrder = -1;
+    private Test.TestStatus latestStatus = null;
+    private String bestTestChoice = "";
+    private TestSession.TestSessionState state = TestSession.TestSessionState.noTest;
+
+    /**
+     * Initialize the {@link TestSessionStateTracker}
+     * @param failedTestsThreshold The number of failed tests that end the session
+     */
+    public TestSessionStateTracker(int failedTestsThreshold) {
+        this.failedTestsThreshold = failedTestsThreshold;
+    }
+
+    /**
+     * Record that a test finished processing. Each test must be reported once.
+     * @param order The position of the test in the session (0 for the first blow)
+     * @param status The processed status, {@link Test.TestStatus#complete} or {@link Test.TestStatus#error}
+     * @return the updated state
+     */
+    public TestSession.TestSessionState testProcessed(int order, Test.TestStatus status) {
+        if (status == Test.TestStatus.complete) {
+            completeCount++;
+        }
+        else if (status == Test.TestStatus.error) {
+            failedCount++;
+        }
+        else {
+            return state;
+        }
+
+        if (order >= latestOrder) {
+            latestOrder = order;
+            latestStatus = status;
+        }
+        return updateState();
+    }
+
+    /**
+     * Record the best test choice reported by the server
+     * @param choice The bestTestChoice value, or null
+     * @return the updated state
+     */
+    public TestSession.TestSessionState bestTestChoiceChanged(String choice) {
+        bestTestChoice = choice == null ? "" : choice;
+        return updateState();
+    }
+
+    /**
+     * Return the current state of the session
+     * @return session state
+     */
+    public TestSession.TestSessionState getState() {
+        return state;
+    }
+
+    /**
+     * Clear all recorded results
+     */
+    public void reset() {
+        completeCount = 0;
+        failedCount = 0;
+        latestOrder = -1;
+        latestStatus = null;
+        bestTestChoice = "";
+        state = TestSession.TestSessionState.noTest;
+    }
+
+    private TestSession.TestSessionState updateState() {
+        if (bestTestChoice.toLowerCase().equals(TestSessionManager.BestTestChoice.reproducible.toLowerCase())) {
+            state = TestSession.TestSessionState.reproducibleTestFinal;
+        }
+        else if (bestTestChoice.toLowerCase().equals(TestSessionManager.BestTestChoice.highestReference.toLowerCase())) {
+            state = TestSession.TestSessionState.notReproducibleTestFinal;
+        }
+        else if (latestStatus == Test.TestStatus.error) {
+            state = failedCount >= failedTestsThreshold ? TestSession.TestSessionState.notProcessedTestFinal : TestSession.TestSessionState.notProcessedTestFirst;
+        }
+        else if (latestStatus == Test.TestStatus.complete) {
+            if (completeCount == 1)
+                state = TestSession.TestSessionState.goodTestFirst;
+            else if (completeCount == 2)
+                state = TestSession.TestSessionState.notReproducibleTestFirst;
+        }
+        return state;
+    }
+}
@@ -0,0 +1,305 @@
+package com.sparohealth.wingkit.classes.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link HttpEngine} executes HTTP requests on a single bounded thread pool using
+ * {@link HttpURLConnection}. One engine can carry both the Wing REST API calls and the
+ * recording uploads so the SDK keeps a single set of threads, connections and transfer buffers.
+ */
+public class HttpEngine {
+    /**
+     * Size of the per-thread buffer used to stream request and response bodies
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 8 * 1024;
+
+    private final ThreadPoolExecutor executor;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    /**
+     * One transfer buffer per pool thread, reused across every request that thread executes
+     */
+    private final ThreadLocal<byte[]> transferBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Initialize the {@link HttpEngine}
+     * @param threadPoolSize The maximum number of concurrent requests (and threads)
+     * @param connectTimeoutMs Connection timeout in milliseconds
+     * @param readTimeoutMs Read timeout in milliseconds
+     */
+    public HttpEngine(int threadPoolSize, int connectTimeoutMs, int readTimeoutMs) {
+        if (threadPoolSize < 1) {
+            throw new IllegalArgumentException("threadPoolSize must be at least 1");
+        }
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.executor = new ThreadPoolExecutor(threadPoolSize, threadPoolSize, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new EngineThreadFactory());
+        // let idle threads exit so an unused engine costs nothing
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return the maximum number of threads the engine will use
+     * @return thread pool size
+     */
+    public int getThreadPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Return the number of threads currently alive in the pool
+     * @return live thread count
+     */
+    public int getActiveThreadCount() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Queue a request for execution on the engine's thread pool
+     * @param request The request to execute
+     * @param callback Receives the response or failure on a pool thread
+     * @return A handle that can cancel the request
+     */
+    public Call enqueue(final HttpRequest request, final Callback callback) {
+        final Call call = new Call();
+        call.future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                HttpResponse response;
+                try {
+                    response = execute(request, call);
+                } catch (IOException ex) {
+                    if (!call.isCancelled()) {
+                        callback.onFailure(ex);
+                    }
+                    return;
+                }
+                if (!call.isCancelled()) {
+                    callback.onResponse(response);
+                }
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Run a task on the engine's thread pool. Used for work that must happen off the calling
+     * thread before a request can be built (e.g. fetching upload credentials).
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Execute a request synchronously on the calling thread
+     * @param request The request to execute
+     * @return The server response
+     * @throws IOException An exception occurring during the transfer
+     */
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        return execute(request, null);
+    }
+
+    private HttpResponse execute(HttpRequest request, Call call) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(request.url).openConnection();
+        if (call != null) {
+            call.connection = connection;
+            if (call.isCancelled()) {
+                connection.disconnect();
+                throw new IOException("Request cancelled");
+            }
+        }
+
+        try {
+            connection.setRequestMethod(request.method);
+            connection.setConnectTimeout(connectTimeoutMs);
+            connection.setReadTimeout(readTimeoutMs);
+            connection.setUseCaches(false);
+            for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            byte[] buffer = transferBuffer.get();
+            long contentLength = request.contentLength();
+
+            // if the request HAS a body...
+            if (request.bodyFile != null || request.body != null) {
+                connection.setDoOutput(true);
+                // stream with a fixed length so the body is never buffered in memory
+                connection.setFixedLengthStreamingMode(contentLength);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    if (request.bodyFile != null) {
+                        InputStream in = new FileInputStream(request.bodyFile);
+                        try {
+                            skipFully(in, request.bodyOffset);
+                            copyBody(in, out, buffer, contentLength, request.progressListener);
+                        } finally {
+                            in.close();
+                        }
+                    } else {
+                        out.write(request.body);
+                        if (request.progressListener != null) {
+                            request.progressListener.onBodyProgress(contentLength, contentLength);
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+
+            int statusCode = connection.getResponseCode();
+
+            Map<String, String> headers = new HashMap<>();
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                if (header.getKey() != null && !header.getValue().isEmpty()) {
+                    headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+                }
+            }
+
+            InputStream in = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            byte[] body = new byte[0];
+            if (in != null) {
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    copy(in, bytes, buffer);
+                    body = bytes.toByteArray();
+                } finally {
+                    in.close();
+                }
+            }
+
+            // the body has been fully read, so the connection goes back to the keep-alive pool
+            return new HttpResponse(statusCode, headers, body);
+        } catch (IOException ex) {
+            connection.disconnect();
+            throw ex;
+        }
+    }
+
+    /**
+     * Copy exactly length bytes of a request body, reporting progress after each buffer
+     */
+    private static void copyBody(InputStream in, OutputStream out, byte[] buffer, long length,
+                                 HttpRequest.ProgressListener listener) throws IOException {
+        long sent = 0;
+        while (sent < length) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+            if (read == -1) {
+                throw new IOException("The request body ended " + (length - sent) + " bytes early");
+            }
+            out.write(buffer, 0, read);
+            sent += read;
+            if (listener != null) {
+                listener.onBodyProgress(sent, length);
+            }
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new IOException("The request body file is shorter than its offset");
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Stop accepting new requests and let the pool threads exit
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Handle for a queued request
+     */
+    public static class Call {
+        private volatile Future<?> future;
+        private volatile HttpURLConnection connection;
+        private volatile boolean cancelled = false;
+
+        /**
+         * Cancel the request. If it is already on the wire the connection is dropped.
+         */
+        public void cancel() {
+            cancelled = true;
+            Future<?> currentFuture = future;
+            if (currentFuture != null) {
+                currentFuture.cancel(false);
+            }
+            HttpURLConnection currentConnection = connection;
+            if (currentConnection != null) {
+                currentConnection.disconnect();
+            }
+        }
+
+        /**
+         * Indicate if the request was cancelled
+         * @return cancelled status
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Callback interface for asynchronous requests
+     */
+    public interface Callback {
+        /**
+         * Called with the server response, whatever its status code
+         * @param response The server response
+         */
+        void onResponse(HttpResponse response);
+
+        /**
+         * Called when the request could not be completed
+         * @param error The transport error
+         */
+        void onFailure(IOException error);
+    }
+
+    private static class EngineThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WingKit-Http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.sparohealth.wingkit.classes.network;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single HTTP request executed by the {@link HttpEngine}
+ */
+public class HttpRequest {
+    /// The HTTP method (GET, POST, PUT, ...).
+    public String method;
+    /// The absolute request URL.
+    public String url;
+    /// The request headers, sent in insertion order.
+    public Map<String, String> headers = new LinkedHashMap<>();
+    /// The in-memory request body, or null.
+    public byte[] body;
+    /// The file streamed as the request body, or null. Takes precedence over {@link #body}.
+    public File bodyFile;
+    /// The first byte of {@link #bodyFile} to send.
+    public long bodyOffset = 0;
+    /// The number of bytes of {@link #bodyFile} to send, or -1 for the rest of the file.
+    public long bodyLength = -1;
+    /// Receives upload progress while the body is sent, or null.
+    public ProgressListener progressListener;
+
+    /**
+     * Receives the progress of a request body as it is written to the connection
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the engine thread after each buffer of the body is written
+         * @param bytesSent The number of body bytes written so far
+         * @param bytesTotal The body length
+         */
+        void onBodyProgress(long bytesSent, long bytesTotal);
+    }
+
+    /**
+     * Initialize the {@link HttpRequest} object
+     * @param method The HTTP method
+     * @param url The absolute request URL
+     */
+    public HttpRequest(String method, String url) {
+        this.method = method;
+        this.url = url;
+    }
+
+    /**
+     * Add a header to the request
+     * @param name Header name
+     * @param value Header value
+     * @return this request
+     */
+    public HttpRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Set a UTF-8 string body
+     * @param value The body contents
+     * @return this request
+     */
+    public HttpRequest body(String value) {
+        this.body = value.getBytes(Charset.forName("UTF-8"));
+        return this;
+    }
+
+    /**
+     * Stream the given file as the request body
+     * @param file The file to send
+     * @return this request
+     */
+    public HttpRequest body(File file) {
+        return body(file, 0, -1);
+    }
+
+    /**
+     * Stream part of the given file as the request body
+     * @param file The file to send from
+     * @param offset The first byte to send
+     * @param length The number of bytes to send, or -1 for the rest of the file
+     * @return this request
+     */
+    public HttpRequest body(File file, long offset, long length) {
+        this.bodyFile = file;
+        this.bodyOffset = offset;
+        this.bodyLength = length;
+        return this;
+    }
+
+    /**
+     * Report the progress of the body as it is sent
+     * @param listener The listener
+     * @return this request
+     */
+    public HttpRequest progress(ProgressListener listener) {
+        this.progressListener = listener;
+        return this;
+    }
+
+    /**
+     * Return the length of the request body in bytes
+     * @return body length, 0 if there is no body
+     */
+    public long contentLength() {
+        if (bodyFile != null) {
+            return bodyLength >= 0 ? bodyLength : bodyFile.length() - bodyOffset;
+        }
+        return body == null ? 0 : body.length;
+    }
+}
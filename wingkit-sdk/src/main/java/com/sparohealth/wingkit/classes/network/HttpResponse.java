@@ -0,0 +1,53 @@
+package com.sparohealth.wingkit.classes.network;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * The result of an {@link HttpRequest} executed by the {@link HttpEngine}
+ */
+public class HttpResponse {
+    /// The HTTP status code.
+    public final int statusCode;
+    /// The response headers, keyed by lower-case header name.
+    public final Map<String, String> headers;
+    /// The response body (empty if the server sent none).
+    public final byte[] body;
+
+    /**
+     * Initialize the {@link HttpResponse} object
+     * @param statusCode HTTP status code
+     * @param headers Response headers keyed by lower-case name
+     * @param body Response body
+     */
+    public HttpResponse(int statusCode, Map<String, String> headers, byte[] body) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * Indicate if the status code is in the 2xx range
+     * @return success status
+     */
+    public boolean isSuccessful() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    /**
+     * Return a response header
+     * @param name Header name (case insensitive)
+     * @return header value, or null
+     */
+    public String header(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Decode the body as a UTF-8 string
+     * @return body string
+     */
+    public String bodyString() {
+        return new String(body, Charset.forName("UTF-8"));
+    }
+}
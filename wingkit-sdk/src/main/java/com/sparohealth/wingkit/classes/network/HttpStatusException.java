@@ -0,0 +1,30 @@
+package com.sparohealth.wingkit.classes.network;
+
+import java.io.IOException;
+
+/**
+ * Error raised when the server answers a request with a non-successful status code
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /// The response that carried the error status.
+    public final HttpResponse response;
+
+    /**
+     * Initialize the {@link HttpStatusException}
+     * @param response The response that carried the error status
+     */
+    public HttpStatusException(HttpResponse response) {
+        super("Unexpected HTTP status " + response.statusCode);
+        this.response = response;
+    }
+
+    /**
+     * Return the HTTP status code of the failed response
+     * @return status code
+     */
+    public int getStatusCode() {
+        return response.statusCode;
+    }
+}
@@ -0,0 +1,63 @@
+package com.sparohealth.wingkit.classes.reference;
+
+/**
+ * The NHANES III spirometric reference equations (Hankinson, Odencrantz and Fedan, Am J Respir Crit
+ * Care Med 1999;159:179-187, table 4), for ages 8 to 80:
+ *
+ *     predicted = b0 + b1 * age + b2 * age^2 + b3 * height^2   (age in years, height in cm)
+ *
+ * with separate coefficients below and from age 20 (males) or 18 (females). FEV1 is in L and PEF in
+ * L/s. Rows are ordered by population ({@link ReferencePopulation} order), then sex (male, female),
+ * then age band (younger, older); each holds b0, b1, b2 and b3.
+ *
+ * The two rows of a population and sex give the same value at the age the bands divide. The PEF rows
+ * for Mexican-Americans have not been transcribed yet (NaN), so no PEF is predicted for them unless
+ * the caller asks {@link ReferenceEngine#nhanes3(boolean)} for the Caucasian equations instead.
+ */
+class Nhanes3 {
+    static final int MIN_AGE = 8;
+    static final int MAX_AGE = 80;
+    static final int MALE_ADULT_AGE = 20;
+    static final int FEMALE_ADULT_AGE = 18;
+
+    private static final double NONE = Double.NaN;
+
+    static final double[] FEV1 = {
+            // Caucasian
+            -0.7453, -0.04106, 0.004477, 0.00014098,
+            0.5536, -0.01303, -0.000172, 0.00014098,
+            -0.8710, 0.06537, 0, 0.00011496,
+            0.4333, -0.00361, -0.000194, 0.00011496,
+            // African-American
+            -0.7048, -0.05711, 0.004316, 0.00013194,
+            0.3411, -0.02309, 0, 0.00013194,
+            -0.9630, 0.05799, 0, 0.00010846,
+            0.3433, -0.01283, -0.000097, 0.00010846,
+            // Mexican-American
+            -0.8218, -0.04248, 0.004291, 0.00015104,
+            0.6306, -0.02928, 0, 0.00015104,
+            -0.9641, 0.06490, 0, 0.00012154,
+            0.4529, -0.01178, -0.000113, 0.00012154,
+    };
+
+    static final double[] PEF = {
+            // Caucasian
+            -0.5962, -0.12357, 0.013135, 0.00024962,
+            1.0523, 0.08272, -0.001301, 0.00024962,
+            -3.6181, 0.60644, -0.016846, 0.00018623,
+            0.9267, 0.06929, -0.001031, 0.00018623,
+            // African-American
+            -0.2684, -0.28016, 0.018202, 0.00027333,
+            2.2257, -0.04082, 0, 0.00027333,
+            -1.2398, 0.16375, 0, 0.00019746,
+            1.3597, 0.03458, -0.000847, 0.00019746,
+            // Mexican-American
+            NONE, NONE, NONE, NONE,
+            NONE, NONE, NONE, NONE,
+            NONE, NONE, NONE, NONE,
+            NONE, NONE, NONE, NONE,
+    };
+
+    private Nhanes3() {
+    }
+}
@@ -0,0 +1,171 @@
+package com.sparohealth.wingkit.classes.reference;
+
+import com.sparohealth.wingkit.classes.PatientData;
+
+import java.util.List;
+
+/**
+ * {@link ReferenceEngine} predicts a patient's PEF and FEV1 from their demographics on the device, so
+ * predicted values can be shown while a patient's details are entered, before a session has been
+ * created or without a connection.
+ *
+ * The equations are polynomials in age and height with coefficients for each population, sex and age
+ * band. When the engine is created, the terms that depend only on age are worked out for every age the
+ * equations cover and laid out in one array, the four numbers a prediction needs (the age terms of
+ * FEV1 and PEF and their height coefficients) side by side. A prediction is then one lookup and two
+ * multiply-adds, which keeps batches over many patients in cache.
+ *
+ * A population and sex without a PEF equation of their own get no predicted PEF, unless the engine was
+ * asked to use the Caucasian one for the same sex instead (see {@link #nhanes3(boolean)} and
+ * {@link ReferenceValues#pefPopulation}).
+ */
+public class ReferenceEngine {
+    private static final double CM_PER_INCH = 2.54;
+    private static final int SEXES = 2;
+    private static final int COEFFICIENTS = 4;
+    /// The numbers stored for each population, sex and age: FEV1 age term and height coefficient, then PEF's.
+    private static final int STRIDE = 4;
+
+    private final int minAge;
+    private final int maxAge;
+    private final double[] terms;
+    /// The population whose PEF equation each population and sex uses.
+    private final ReferencePopulation[] pefPopulations;
+
+    private static class Holder {
+        static final ReferenceEngine NHANES3 = new ReferenceEngine(Nhanes3.FEV1, Nhanes3.PEF, Nhanes3.MIN_AGE, Nhanes3.MAX_AGE,
+                Nhanes3.MALE_ADULT_AGE, Nhanes3.FEMALE_ADULT_AGE, false);
+    }
+
+    private static class FallbackHolder {
+        static final ReferenceEngine NHANES3 = new ReferenceEngine(Nhanes3.FEV1, Nhanes3.PEF, Nhanes3.MIN_AGE, Nhanes3.MAX_AGE,
+                Nhanes3.MALE_ADULT_AGE, Nhanes3.FEMALE_ADULT_AGE, true);
+    }
+
+    /**
+     * Return the engine for the NHANES III equations (ages 8 to 80). Mexican-Americans get no predicted PEF.
+     * @return engine
+     */
+    public static ReferenceEngine nhanes3() {
+        return Holder.NHANES3;
+    }
+
+    /**
+     * Return the engine for the NHANES III equations (ages 8 to 80)
+     * @param caucasianPefFallback Whether a population without a PEF equation of its own (Mexican-Americans)
+     * gets the Caucasian PEF for the same sex rather than none
+     * @return engine
+     */
+    public static ReferenceEngine nhanes3(boolean caucasianPefFallback) {
+        return caucasianPefFallback ? FallbackHolder.NHANES3 : Holder.NHANES3;
+    }
+
+    /**
+     * Initialize a {@link ReferenceEngine} from a table of equations
+     * @param fev1 The FEV1 coefficients (L), laid out like {@link Nhanes3#FEV1}
+     * @param pef The PEF coefficients (L/s), laid out like {@link Nhanes3#PEF}; NaN where there is no equation
+     * @param minAge The youngest age the equations cover
+     * @param maxAge The oldest age the equations cover
+     * @param maleAdultAge The age from which the second row of a male population applies
+     * @param femaleAdultAge The age from which the second row of a female population applies
+     * @param pefFallback Whether a population without a PEF equation uses the first population's for the same sex
+     */
+    ReferenceEngine(double[] fev1, double[] pef, int minAge, int maxAge, int maleAdultAge, int femaleAdultAge, boolean pefFallback) {
+        this.minAge = minAge;
+        this.maxAge = maxAge;
+        int ages = maxAge - minAge + 1;
+        int groups = ReferencePopulation.values().length * SEXES;
+        terms = new double[groups * ages * STRIDE];
+        pefPopulations = new ReferencePopulation[groups];
+        for (int group = 0; group < groups; group++) {
+            int adultAge = group % SEXES == 0 ? maleAdultAge : femaleAdultAge;
+            // if the population HAS NO PEF equation of its own AND a fallback was asked for, use the first population's for the same sex
+            int pefGroup = pefFallback && Double.isNaN(pef[group * 2 * COEFFICIENTS]) ? group % SEXES : group;
+            pefPopulations[group] = ReferencePopulation.values()[pefGroup / SEXES];
+            for (int age = minAge; age <= maxAge; age++) {
+                int band = age < adultAge ? 0 : 1;
+                int row = (group * 2 + band) * COEFFICIENTS;
+                int pefRow = (pefGroup * 2 + band) * COEFFICIENTS;
+                int index = (group * ages + age - minAge) * STRIDE;
+                terms[index] = fev1[row] + fev1[row + 1] * age + fev1[row + 2] * age * age;
+                terms[index + 1] = fev1[row + 3];
+                terms[index + 2] = pef[pefRow] + pef[pefRow + 1] * age + pef[pefRow + 2] * age * age;
+                terms[index + 3] = pef[pefRow + 3];
+            }
+        }
+    }
+
+    /**
+     * Predict a patient's values
+     * @param patient The patient
+     * @return predicted values
+     */
+    public ReferenceValues predict(PatientData patient) {
+        return predict(patient.biologicalSex, patient.ethnicity, patient.height, patient.age);
+    }
+
+    /**
+     * Predict a patient's values, e.g. while their details are being entered
+     * @param biologicalSex The biological sex
+     * @param ethnicity The ethnicity, as in {@link PatientData#ethnicity}
+     * @param height The height, in inches
+     * @param age The age, in years
+     * @return predicted values; they are null when the sex or height is missing or the age is outside the
+     * equations' range
+     */
+    public ReferenceValues predict(PatientData.BiologicalSex biologicalSex, String ethnicity, int height, int age) {
+        ReferencePopulation population = ReferencePopulation.forEthnicity(ethnicity);
+        int index = index(biologicalSex, population, height, age);
+        if (index < 0) {
+            return new ReferenceValues(population, null, null, null);
+        }
+        double heightSquared = height * CM_PER_INCH * height * CM_PER_INCH;
+        double fev1 = terms[index] + terms[index + 1] * heightSquared;
+        double pef = (terms[index + 2] + terms[index + 3] * heightSquared) * 60;
+        ReferencePopulation pefPopulation = pefPopulations[index / ((maxAge - minAge + 1) * STRIDE)];
+        return new ReferenceValues(population, Double.isNaN(pef) ? null : pefPopulation,
+                Double.isNaN(pef) ? null : pef, Double.isNaN(fev1) ? null : fev1);
+    }
+
+    /**
+     * Predict the values of many patients at once, without creating objects
+     * @param patients The patients
+     * @param pefPredicted Set to each patient's predicted PEF, in L/min, or NaN when there is none
+     * @param fev1Predicted Set to each patient's predicted FEV1, in L, or NaN when there is none
+     */
+    public void predict(List<PatientData> patients, double[] pefPredicted, double[] fev1Predicted) {
+        if (pefPredicted.length < patients.size() || fev1Predicted.length < patients.size()) {
+            throw new IllegalArgumentException("The arrays are shorter than the list of patients");
+        }
+        // the last ethnicity is remembered, as lists are often sorted or mostly one ethnicity
+        String lastEthnicity = null;
+        ReferencePopulation population = ReferencePopulation.forEthnicity(null);
+        for (int i = 0; i < patients.size(); i++) {
+            PatientData patient = patients.get(i);
+            if (patient.ethnicity != lastEthnicity && (patient.ethnicity == null || !patient.ethnicity.equals(lastEthnicity))) {
+                population = ReferencePopulation.forEthnicity(patient.ethnicity);
+                lastEthnicity = patient.ethnicity;
+            }
+            int index = index(patient.biologicalSex, population, patient.height, patient.age);
+            if (index < 0) {
+                pefPredicted[i] = Double.NaN;
+                fev1Predicted[i] = Double.NaN;
+                continue;
+            }
+            double heightSquared = patient.height * CM_PER_INCH * patient.height * CM_PER_INCH;
+            fev1Predicted[i] = terms[index] + terms[index + 1] * heightSquared;
+            pefPredicted[i] = (terms[index + 2] + terms[index + 3] * heightSquared) * 60;
+        }
+    }
+
+    /**
+     * Return where a patient's terms start, or -1 when the equations do not cover them
+     */
+    private int index(PatientData.BiologicalSex biologicalSex, ReferencePopulation population, int height, int age) {
+        if (biologicalSex == null || height <= 0 || age < minAge || age > maxAge) {
+            return -1;
+        }
+        int group = population.ordinal() * SEXES + (biologicalSex == PatientData.BiologicalSex.male ? 0 : 1);
+        return (group * (maxAge - minAge + 1) + age - minAge) * STRIDE;
+    }
+}
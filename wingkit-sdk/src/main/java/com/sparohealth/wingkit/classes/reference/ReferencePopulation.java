@@ -0,0 +1,30 @@
+package com.sparohealth.wingkit.classes.reference;
+
+import com.sparohealth.wingkit.classes.PatientData;
+
+/**
+ * The populations reference equations are fitted to
+ */
+public enum ReferencePopulation {
+    /// White, non-Hispanic
+    caucasian,
+    africanAmerican,
+    mexicanAmerican;
+
+    /**
+     * Return the population whose equations are used for an ethnicity. The ethnicities the equations
+     * were not fitted to, and an unknown one, use the Caucasian equations, as spirometers commonly do.
+     * @param ethnicity The ethnicity, as in {@link PatientData#ethnicity}
+     * @return population
+     */
+    public static ReferencePopulation forEthnicity(String ethnicity) {
+        PatientData.Ethnicity value = ethnicity != null ? PatientData.Ethnicity.get(ethnicity) : null;
+        if (value == PatientData.Ethnicity.black) {
+            return africanAmerican;
+        }
+        if (value == PatientData.Ethnicity.whiteHispanic) {
+            return mexicanAmerican;
+        }
+        return caucasian;
+    }
+}
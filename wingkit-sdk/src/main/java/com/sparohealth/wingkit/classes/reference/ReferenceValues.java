@@ -0,0 +1,26 @@
+package com.sparohealth.wingkit.classes.reference;
+
+/**
+ * Predicted values for a patient, as returned by {@link ReferenceEngine#predict}
+ */
+public class ReferenceValues {
+    /// The population whose equations were used.
+    public final ReferencePopulation population;
+
+    /// The population whose PEF equation was used, or null when no PEF is predicted. It is Caucasian for a
+    /// population without a PEF equation of its own only when the engine was asked for that fallback.
+    public final ReferencePopulation pefPopulation;
+
+    /// The predicted PEF, in L/min, or null when there is no equation for the patient.
+    public final Double pefPredicted;
+
+    /// The predicted FEV1, in L, or null when there is no equation for the patient.
+    public final Double fev1Predicted;
+
+    ReferenceValues(ReferencePopulation population, ReferencePopulation pefPopulation, Double pefPredicted, Double fev1Predicted) {
+        this.population = population;
+        this.pefPopulation = pefPopulation;
+        this.pefPredicted = pefPredicted;
+        this.fev1Predicted = fev1Predicted;
+    }
+}
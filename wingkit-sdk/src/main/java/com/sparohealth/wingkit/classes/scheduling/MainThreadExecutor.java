@@ -0,0 +1,18 @@
+package com.sparohealth.wingkit.classes.scheduling;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executor that runs tasks on the main thread, in the order they were posted
+ */
+public class MainThreadExecutor implements Executor {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post(command);
+    }
+}
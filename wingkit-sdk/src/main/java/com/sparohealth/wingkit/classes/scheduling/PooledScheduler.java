@@ -0,0 +1,108 @@
+package com.sparohealth.wingkit.classes.scheduling;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link PooledScheduler} runs tasks on a small, bounded pool of daemon threads. Idle threads
+ * exit, so a scheduler with nothing queued holds no threads at all.
+ *
+ * Tasks must be short and must not block: the pool is shared by timers, polls, retries and event
+ * delivery, and a task that holds a thread delays all of them. Work that runs for seconds, like the
+ * recorder's capture loop or the client's history writes, gets a thread of its own instead.
+ */
+public class PooledScheduler implements Scheduler {
+    /// The number of threads used by the shared default scheduler.
+    public static final int DEFAULT_THREAD_COUNT = 2;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Initialize the {@link PooledScheduler}
+     * @param threadCount The maximum number of scheduler threads
+     */
+    public PooledScheduler(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1");
+        }
+        executor = new ScheduledThreadPoolExecutor(threadCount, new SchedulerThreadFactory());
+        executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        // drop cancelled periodic tasks right away instead of keeping them queued until their next run
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Return the scheduler shared by every SDK object that is not given one explicitly
+     * @return default scheduler
+     */
+    public static PooledScheduler getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    @Override
+    public ScheduledTask schedule(Runnable task, long delayMs) {
+        return new FutureTask(executor.schedule(task, delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+        return new FutureTask(executor.scheduleAtFixedRate(task, initialDelayMs, periodMs, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Return the number of threads currently alive in the pool
+     * @return live thread count
+     */
+    public int getActiveThreadCount() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Stop the scheduler. Queued tasks are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class DefaultHolder {
+        static final PooledScheduler INSTANCE = new PooledScheduler(DEFAULT_THREAD_COUNT);
+    }
+
+    private static class FutureTask implements ScheduledTask {
+        private final ScheduledFuture<?> future;
+
+        FutureTask(ScheduledFuture<?> future) {
+            this.future = future;
+        }
+
+        @Override
+        public void cancel() {
+            future.cancel(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+    }
+
+    private static class SchedulerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WingKit-Scheduler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
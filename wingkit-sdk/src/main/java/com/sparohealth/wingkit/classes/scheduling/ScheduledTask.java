@@ -0,0 +1,17 @@
+package com.sparohealth.wingkit.classes.scheduling;
+
+/**
+ * Handle for a task queued on a {@link Scheduler}
+ */
+public interface ScheduledTask {
+    /**
+     * Cancel the task. A periodic task will not run again; a task that is already running is not interrupted.
+     */
+    void cancel();
+
+    /**
+     * Indicate if the task was cancelled
+     * @return cancelled status
+     */
+    boolean isCancelled();
+}
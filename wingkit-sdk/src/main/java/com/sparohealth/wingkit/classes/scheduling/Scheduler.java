@@ -0,0 +1,34 @@
+package com.sparohealth.wingkit.classes.scheduling;
+
+/**
+ * {@link Scheduler} runs every delayed, periodic and background task in the SDK. The default
+ * implementation is {@link PooledScheduler}; tests can swap in a {@link VirtualTimeScheduler} to
+ * drive the same code without waiting on the wall clock.
+ *
+ * Tasks run on a scheduler thread, not the main thread. Code that touches the UI must post back
+ * to the main thread itself. Tasks should be short and should not block (see {@link PooledScheduler}).
+ */
+public interface Scheduler {
+    /**
+     * Run a task once after a delay
+     * @param task The task to run
+     * @param delayMs The delay in milliseconds (0 to run as soon as possible)
+     * @return A handle that can cancel the task
+     */
+    ScheduledTask schedule(Runnable task, long delayMs);
+
+    /**
+     * Run a task repeatedly at a fixed rate
+     * @param task The task to run
+     * @param initialDelayMs The delay before the first run, in milliseconds
+     * @param periodMs The time between the start of each run, in milliseconds
+     * @return A handle that stops the task
+     */
+    ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs);
+
+    /**
+     * Return the scheduler's clock, in milliseconds. Only differences between two values are meaningful.
+     * @return current time
+     */
+    long uptimeMillis();
+}
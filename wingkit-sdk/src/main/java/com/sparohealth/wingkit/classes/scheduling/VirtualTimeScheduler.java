@@ -0,0 +1,133 @@
+package com.sparohealth.wingkit.classes.scheduling;
+
+import java.util.PriorityQueue;
+
+/**
+ * {@link VirtualTimeScheduler} runs tasks on the calling thread when its clock is advanced by
+ * hand. Tests use it in place of {@link PooledScheduler} so polling, timeouts and periodic
+ * checks can be exercised without real delays.
+ */
+public class VirtualTimeScheduler implements Scheduler {
+    private final PriorityQueue<VirtualTask> queue = new PriorityQueue<>();
+    private long now = 0;
+    private long sequence = 0;
+
+    @Override
+    public synchronized ScheduledTask schedule(Runnable task, long delayMs) {
+        return enqueue(task, now + Math.max(0, delayMs), 0);
+    }
+
+    @Override
+    public synchronized ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("periodMs must be positive");
+        }
+        return enqueue(task, now + Math.max(0, initialDelayMs), periodMs);
+    }
+
+    @Override
+    public synchronized long uptimeMillis() {
+        return now;
+    }
+
+    /**
+     * Move the clock forward, running every task that falls due on the way in time order
+     * @param deltaMs The time to advance by, in milliseconds
+     * @return the number of task runs
+     */
+    public int advanceBy(long deltaMs) {
+        long target;
+        synchronized (this) {
+            target = now + deltaMs;
+        }
+
+        int runs = 0;
+        while (true) {
+            VirtualTask next;
+            synchronized (this) {
+                next = queue.peek();
+                if (next == null || next.time > target) {
+                    now = target;
+                    return runs;
+                }
+                queue.poll();
+                now = next.time;
+            }
+
+            // if the task HAS NOT been cancelled, run it outside the lock so it can schedule more work
+            if (!next.cancelled) {
+                next.task.run();
+                runs++;
+                synchronized (this) {
+                    if (next.period > 0 && !next.cancelled) {
+                        next.time += next.period;
+                        next.sequence = sequence++;
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the tasks that are due now without moving the clock
+     * @return the number of task runs
+     */
+    public int runPending() {
+        return advanceBy(0);
+    }
+
+    /**
+     * Return the number of queued tasks, including periodic tasks waiting for their next run
+     * @return pending task count
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (VirtualTask task : queue) {
+            if (!task.cancelled) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private ScheduledTask enqueue(Runnable task, long time, long period) {
+        VirtualTask entry = new VirtualTask(task, time, period, sequence++);
+        queue.add(entry);
+        return entry;
+    }
+
+    private static class VirtualTask implements ScheduledTask, Comparable<VirtualTask> {
+        final Runnable task;
+        final long period;
+        long time;
+        long sequence;
+        volatile boolean cancelled = false;
+
+        VirtualTask(Runnable task, long time, long period, long sequence) {
+            this.task = task;
+            this.time = time;
+            this.period = period;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(VirtualTask other) {
+            // tasks due at the same time run in the order they were queued
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
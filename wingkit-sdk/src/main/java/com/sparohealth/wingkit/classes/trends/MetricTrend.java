@@ -0,0 +1,329 @@
+package com.sparohealth.wingkit.classes.trends;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * {@link MetricTrend} summarizes one measurement (PEF or FEV1) over all of a patient's tests.
+ *
+ * Each value updates a fixed number of counters: the count, sum and sum of squares; the best value;
+ * a histogram with fixed-width bins, which gives percentiles to within a bin; and the day's bucket in
+ * a ring of {@link #WINDOW_DAYS} daily buckets (count, sum and best), which gives rolling averages and
+ * bests over the last days. Days run from midnight to midnight in the engine's time zone. A value
+ * older than the ring counts toward everything but the rolling figures.
+ */
+public class MetricTrend {
+    /// The most days a rolling figure covers.
+    public static final int WINDOW_DAYS = 30;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final int NO_DAY = Integer.MIN_VALUE;
+
+    private final double binWidth;
+    private final int[] bins;
+    private final TimeZone zone;
+
+    private long count = 0;
+    private double sum = 0;
+    private double sumSquares = 0;
+    private double best = Double.NaN;
+    private long bestMs = Long.MIN_VALUE;
+
+    /// The day each ring bucket holds (day number % WINDOW_DAYS), or NO_DAY.
+    private final int[] days = new int[WINDOW_DAYS];
+    private final int[] dayCounts = new int[WINDOW_DAYS];
+    private final double[] daySums = new double[WINDOW_DAYS];
+    private final double[] dayBests = new double[WINDOW_DAYS];
+
+    /**
+     * Initialize an empty {@link MetricTrend}
+     * @param binWidth The histogram bin width, i.e. the resolution of the percentiles
+     * @param binCount The number of bins; larger values go in the last
+     * @param zone The time zone days are counted in
+     */
+    MetricTrend(double binWidth, int binCount, TimeZone zone) {
+        this.binWidth = binWidth;
+        this.bins = new int[binCount];
+        this.zone = zone;
+        for (int i = 0; i < WINDOW_DAYS; i++) {
+            days[i] = NO_DAY;
+        }
+    }
+
+    /**
+     * Copy a {@link MetricTrend}
+     */
+    MetricTrend(MetricTrend other) {
+        binWidth = other.binWidth;
+        bins = other.bins.clone();
+        zone = other.zone;
+        count = other.count;
+        sum = other.sum;
+        sumSquares = other.sumSquares;
+        best = other.best;
+        bestMs = other.bestMs;
+        System.arraycopy(other.days, 0, days, 0, WINDOW_DAYS);
+        System.arraycopy(other.dayCounts, 0, dayCounts, 0, WINDOW_DAYS);
+        System.arraycopy(other.daySums, 0, daySums, 0, WINDOW_DAYS);
+        System.arraycopy(other.dayBests, 0, dayBests, 0, WINDOW_DAYS);
+    }
+
+    /**
+     * Add a value
+     * @param value The value
+     * @param takenMs When it was measured
+     */
+    void add(double value, long takenMs) {
+        count++;
+        sum += value;
+        sumSquares += value * value;
+        // the earliest of equal bests is kept
+        if (Double.isNaN(best) || value > best || (value == best && takenMs < bestMs)) {
+            best = value;
+            bestMs = takenMs;
+        }
+        bins[bin(value)]++;
+
+        int day = day(takenMs);
+        int slot = slot(day);
+        // if the bucket HOLDS a later day, the value is older than the ring
+        if (days[slot] > day) {
+            return;
+        }
+        if (days[slot] != day) {
+            days[slot] = day;
+            dayCounts[slot] = 0;
+            daySums[slot] = 0;
+            dayBests[slot] = Double.NaN;
+        }
+        dayCounts[slot]++;
+        daySums[slot] += value;
+        if (Double.isNaN(dayBests[slot]) || value > dayBests[slot]) {
+            dayBests[slot] = value;
+        }
+    }
+
+    /**
+     * Return the number of values
+     * @return count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Return the mean of all values
+     * @return mean, or NaN when there are none
+     */
+    public double getMean() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * Return the standard deviation of all values
+     * @return standard deviation, or NaN when there are none
+     */
+    public double getStandardDeviation() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double mean = sum / count;
+        return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+    }
+
+    /**
+     * Return the personal best
+     * @return best value, or NaN when there are none
+     */
+    public double getBest() {
+        return best;
+    }
+
+    /**
+     * Return when the personal best was first measured
+     * @return date, or null when there are no values
+     */
+    public Date getBestAt() {
+        return count > 0 ? new Date(bestMs) : null;
+    }
+
+    /**
+     * Return the number of values over the last days
+     * @param now The time the period ends at; not before the latest value
+     * @param days The number of days, including today; at most {@link #WINDOW_DAYS}
+     * @return count
+     */
+    public int getRollingCount(Date now, int days) {
+        int today = day(now.getTime());
+        int total = 0;
+        for (int day = firstDay(today, days); day <= today; day++) {
+            int slot = slot(day);
+            if (this.days[slot] == day) {
+                total += dayCounts[slot];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Return the mean of the values over the last days
+     * @param now The time the period ends at; not before the latest value
+     * @param days The number of days, including today; at most {@link #WINDOW_DAYS}
+     * @return mean, or NaN when there are no values in the period
+     */
+    public double getRollingMean(Date now, int days) {
+        int today = day(now.getTime());
+        int total = 0;
+        double totalSum = 0;
+        for (int day = firstDay(today, days); day <= today; day++) {
+            int slot = slot(day);
+            if (this.days[slot] == day) {
+                total += dayCounts[slot];
+                totalSum += daySums[slot];
+            }
+        }
+        return total > 0 ? totalSum / total : Double.NaN;
+    }
+
+    /**
+     * Return the best value over the last days
+     * @param now The time the period ends at; not before the latest value
+     * @param days The number of days, including today; at most {@link #WINDOW_DAYS}
+     * @return best value, or NaN when there are no values in the period
+     */
+    public double getRollingBest(Date now, int days) {
+        int today = day(now.getTime());
+        double result = Double.NaN;
+        for (int day = firstDay(today, days); day <= today; day++) {
+            int slot = slot(day);
+            if (this.days[slot] == day && (Double.isNaN(result) || dayBests[slot] > result)) {
+                result = dayBests[slot];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the value that the given percentage of values are at or below, to within a bin width
+     * @param percent The percentile, 0 to 100
+     * @return value, or NaN when there are none
+     */
+    public double getPercentile(double percent) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double target = Math.max(0, Math.min(100, percent)) / 100 * count;
+        long below = 0;
+        for (int bin = 0; bin < bins.length; bin++) {
+            if (bins[bin] > 0 && below + bins[bin] >= target) {
+                // the values in a bin are taken to be spread evenly across it
+                return (bin + (target - below) / bins[bin]) * binWidth;
+            }
+            below += bins[bin];
+        }
+        return bins.length * binWidth;
+    }
+
+    /**
+     * Return the percentage of values below a value, to within a bin width
+     * @param value The value, e.g. a new test's result
+     * @return percentage, 0 to 100, or NaN when there are no values
+     */
+    public double getPercentileRank(double value) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        int bin = bin(value);
+        long below = 0;
+        for (int i = 0; i < bin; i++) {
+            below += bins[i];
+        }
+        double fraction = Math.max(0, Math.min(1, value / binWidth - bin));
+        return (below + fraction * bins[bin]) * 100.0 / count;
+    }
+
+    private int bin(double value) {
+        return (int) Math.max(0, Math.min(bins.length - 1, Math.floor(value / binWidth)));
+    }
+
+    private static int firstDay(int today, int days) {
+        if (days < 1 || days > WINDOW_DAYS) {
+            throw new IllegalArgumentException("Invalid number of days " + days);
+        }
+        return today - days + 1;
+    }
+
+    private static int slot(int day) {
+        return ((day % WINDOW_DAYS) + WINDOW_DAYS) % WINDOW_DAYS;
+    }
+
+    private int day(long ms) {
+        return (int) Math.floor((ms + zone.getOffset(ms)) / (double) DAY_MS);
+    }
+
+    /**
+     * Write the counters; only the histogram bins and days that hold values are written
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeLong(count);
+        out.writeDouble(sum);
+        out.writeDouble(sumSquares);
+        out.writeDouble(best);
+        out.writeLong(bestMs);
+
+        int used = 0;
+        for (int bin : bins) {
+            used += bin > 0 ? 1 : 0;
+        }
+        out.writeShort(used);
+        for (int bin = 0; bin < bins.length; bin++) {
+            if (bins[bin] > 0) {
+                out.writeShort(bin);
+                out.writeInt(bins[bin]);
+            }
+        }
+
+        used = 0;
+        for (int day : days) {
+            used += day != NO_DAY ? 1 : 0;
+        }
+        out.writeByte(used);
+        for (int slot = 0; slot < WINDOW_DAYS; slot++) {
+            if (days[slot] != NO_DAY) {
+                out.writeInt(days[slot]);
+                out.writeInt(dayCounts[slot]);
+                out.writeDouble(daySums[slot]);
+                out.writeDouble(dayBests[slot]);
+            }
+        }
+    }
+
+    void read(DataInput in) throws IOException {
+        count = in.readLong();
+        sum = in.readDouble();
+        sumSquares = in.readDouble();
+        best = in.readDouble();
+        bestMs = in.readLong();
+
+        int used = in.readUnsignedShort();
+        for (int i = 0; i < used; i++) {
+            int bin = in.readUnsignedShort();
+            if (bin >= bins.length) {
+                throw new IOException("Invalid histogram bin " + bin);
+            }
+            bins[bin] = in.readInt();
+        }
+
+        used = in.readUnsignedByte();
+        for (int i = 0; i < used; i++) {
+            int day = in.readInt();
+            int slot = slot(day);
+            days[slot] = day;
+            dayCounts[slot] = in.readInt();
+            daySums[slot] = in.readDouble();
+            dayBests[slot] = in.readDouble();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.sparohealth.wingkit.classes.trends;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * {@link PatientTrends} summarizes a patient's test results and lung function zones, as kept by a
+ * {@link TrendEngine}. The copies a {@link TrendEngine} returns do not change as results are added.
+ */
+public class PatientTrends {
+    /// PEF, in L/min, is binned by 5 L/min up to 1000 L/min.
+    private static final double PEF_BIN = 5;
+    private static final int PEF_BINS = 200;
+    /// FEV1, in L, is binned by 25 mL up to 8 L.
+    private static final double FEV1_BIN = 0.025;
+    private static final int FEV1_BINS = 320;
+
+    private final String patientId;
+    private final MetricTrend pef;
+    private final MetricTrend fev1;
+    private long testCount = 0;
+    private long lastTestMs = Long.MIN_VALUE;
+    private String zone = null;
+    private long zoneSinceMs = Long.MIN_VALUE;
+    private long zoneTimeMs = Long.MIN_VALUE;
+    private int zoneChanges = 0;
+
+    PatientTrends(String patientId, TimeZone timeZone) {
+        this.patientId = patientId;
+        pef = new MetricTrend(PEF_BIN, PEF_BINS, timeZone);
+        fev1 = new MetricTrend(FEV1_BIN, FEV1_BINS, timeZone);
+    }
+
+    /**
+     * Copy a {@link PatientTrends}
+     */
+    PatientTrends(PatientTrends other) {
+        patientId = other.patientId;
+        pef = new MetricTrend(other.pef);
+        fev1 = new MetricTrend(other.fev1);
+        testCount = other.testCount;
+        lastTestMs = other.lastTestMs;
+        zone = other.zone;
+        zoneSinceMs = other.zoneSinceMs;
+        zoneTimeMs = other.zoneTimeMs;
+        zoneChanges = other.zoneChanges;
+    }
+
+    /**
+     * Add a test's results
+     * @param pefValue The PEF, or null
+     * @param fev1Value The FEV1, or null
+     * @param takenMs When the test was taken
+     */
+    void addTest(Double pefValue, Double fev1Value, long takenMs) {
+        testCount++;
+        lastTestMs = Math.max(lastTestMs, takenMs);
+        if (pefValue != null && !pefValue.isNaN()) {
+            pef.add(pefValue, takenMs);
+        }
+        if (fev1Value != null && !fev1Value.isNaN()) {
+            fev1.add(fev1Value, takenMs);
+        }
+    }
+
+    /**
+     * Add a session's lung function zone. Zones are expected in time order; an earlier one than the
+     * last seen is ignored.
+     * @param lungFunctionZone The zone
+     * @param timeMs When the session was taken
+     */
+    void addZone(String lungFunctionZone, long timeMs) {
+        if (timeMs < zoneTimeMs) {
+            return;
+        }
+        zoneTimeMs = timeMs;
+        if (lungFunctionZone.equals(zone)) {
+            return;
+        }
+        // the first zone is not a change
+        if (zone != null) {
+            zoneChanges++;
+        }
+        zone = lungFunctionZone;
+        zoneSinceMs = timeMs;
+    }
+
+    /**
+     * Return the patient id
+     * @return patient id
+     */
+    public String getPatientId() {
+        return patientId;
+    }
+
+    /**
+     * Return the number of tests with results
+     * @return count
+     */
+    public long getTestCount() {
+        return testCount;
+    }
+
+    /**
+     * Return when the latest test was taken
+     * @return date, or null when there are no tests
+     */
+    public Date getLastTestAt() {
+        return testCount > 0 ? new Date(lastTestMs) : null;
+    }
+
+    /**
+     * Return the PEF trends, in L/min
+     * @return PEF trends
+     */
+    public MetricTrend getPef() {
+        return pef;
+    }
+
+    /**
+     * Return the FEV1 trends, in L
+     * @return FEV1 trends
+     */
+    public MetricTrend getFev1() {
+        return fev1;
+    }
+
+    /**
+     * Return the lung function zone of the latest session
+     * @return zone, or null when no session had one
+     */
+    public String getLungFunctionZone() {
+        return zone;
+    }
+
+    /**
+     * Return when the patient entered the current lung function zone
+     * @return date, or null when no session had a zone
+     */
+    public Date getZoneSince() {
+        return zone != null ? new Date(zoneSinceMs) : null;
+    }
+
+    /**
+     * Return the number of times the lung function zone changed from one session to the next
+     * @return count
+     */
+    public int getZoneChanges() {
+        return zoneChanges;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(patientId);
+        out.writeLong(testCount);
+        out.writeLong(lastTestMs);
+        out.writeBoolean(zone != null);
+        if (zone != null) {
+            out.writeUTF(zone);
+        }
+        out.writeLong(zoneSinceMs);
+        out.writeLong(zoneTimeMs);
+        out.writeInt(zoneChanges);
+        pef.write(out);
+        fev1.write(out);
+    }
+
+    static PatientTrends read(DataInput in, TimeZone timeZone) throws IOException {
+        PatientTrends trends = new PatientTrends(in.readUTF(), timeZone);
+        trends.testCount = in.readLong();
+        trends.lastTestMs = in.readLong();
+        trends.zone = in.readBoolean() ? in.readUTF() : null;
+        trends.zoneSinceMs = in.readLong();
+        trends.zoneTimeMs = in.readLong();
+        trends.zoneChanges = in.readInt();
+        trends.pef.read(in);
+        trends.fev1.read(in);
+        return trends;
+    }
+}
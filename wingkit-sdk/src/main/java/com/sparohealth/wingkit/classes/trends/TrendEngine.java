@@ -0,0 +1,276 @@
+package com.sparohealth.wingkit.classes.trends;
+
+import com.sparohealth.wingkit.classes.Test;
+import com.sparohealth.wingkit.classes.TestSession;
+import com.sparohealth.wingkit.classes.history.HistoryQuery;
+import com.sparohealth.wingkit.classes.history.HistoryStore;
+import com.sparohealth.wingkit.classes.history.HistoryVisitor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * {@link TrendEngine} keeps running trends of each patient's results (rolling averages, percentiles,
+ * personal bests and lung function zone changes, see {@link PatientTrends}), so a trends screen does
+ * not go through every session and test each time it opens.
+ *
+ * Each finished test updates a fixed number of counters for its patient, whatever the length of the
+ * history, and a query reads them without looking at the history at all. Tests must only be added
+ * once: {@link #add(TestSession, TestSession)} adds the tests of a session that had not finished in
+ * the last copy of it, and {@link #rebuild(HistoryStore)} starts again from a history.
+ *
+ * The trends are saved to one file, a few hundred bytes to a few KB a patient, by writing a temporary
+ * file and renaming it into place. A checksum guards against a damaged file, which is reported when
+ * the trends are loaded; they can then be rebuilt from the history.
+ */
+public class TrendEngine {
+    private static final int MAGIC = 0x574b5452;
+    private static final int VERSION = 1;
+    private static final int CHECKSUM_BYTES = 8;
+
+    private final File file;
+    private final TimeZone timeZone;
+    /// The trends of each patient, or null until they are first used.
+    private Map<String, PatientTrends> patients = null;
+    private boolean dirty = false;
+
+    /**
+     * Initialize the {@link TrendEngine}, counting days in the device's time zone. Nothing is read
+     * until the trends are first used.
+     * @param file The file the trends are saved to, or null to keep them in memory only
+     */
+    public TrendEngine(File file) {
+        this(file, TimeZone.getDefault());
+    }
+
+    /**
+     * Initialize the {@link TrendEngine}. Nothing is read until the trends are first used.
+     * @param file The file the trends are saved to, or null to keep them in memory only
+     * @param timeZone The time zone days are counted in for the rolling figures
+     */
+    public TrendEngine(File file, TimeZone timeZone) {
+        this.file = file;
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Add a finished test
+     * @param patientId The patient id
+     * @param test The test; it is skipped unless it completed with a PEF or FEV1
+     * @param session The session it was taken in, whose start time is used when the test has none
+     * @throws IOException An exception occurring while loading the trends
+     */
+    public synchronized void add(String patientId, Test test, TestSession session) throws IOException {
+        ensureLoaded();
+        addTest(patientId, test, session);
+    }
+
+    /**
+     * Add a session's lung function zone, and its tests that have finished since the last copy of it
+     * @param session The session
+     * @param previous The last copy of the session that was added, or null if it is new
+     * @throws IOException An exception occurring while loading the trends
+     */
+    public synchronized void add(TestSession session, TestSession previous) throws IOException {
+        ensureLoaded();
+        addSession(session, previous);
+    }
+
+    private void addSession(TestSession session, TestSession previous) {
+        if (session.patientId == null) {
+            return;
+        }
+        Set<String> added = null;
+        if (previous != null && previous.tests != null) {
+            added = new HashSet<>();
+            for (Test test : previous.tests) {
+                if (hasResults(test)) {
+                    added.add(test.id);
+                }
+            }
+        }
+        if (session.tests != null) {
+            for (Test test : session.tests) {
+                if (added == null || test.id == null || !added.contains(test.id)) {
+                    addTest(session.patientId, test, session);
+                }
+            }
+        }
+        // if the zone IS new or has changed...
+        if (session.lungFunctionZone != null && session.startedAt != null
+                && (previous == null || !session.lungFunctionZone.equals(previous.lungFunctionZone))) {
+            trends(session.patientId).addZone(session.lungFunctionZone, session.startedAt.getTime());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Return a copy of a patient's trends
+     * @param patientId The patient id
+     * @return trends, or null when no test or zone of the patient was added
+     * @throws IOException An exception occurring while loading the trends
+     */
+    public synchronized PatientTrends get(String patientId) throws IOException {
+        ensureLoaded();
+        PatientTrends trends = patients.get(patientId);
+        return trends != null ? new PatientTrends(trends) : null;
+    }
+
+    /**
+     * Return the patients with trends
+     * @return patient ids
+     * @throws IOException An exception occurring while loading the trends
+     */
+    public synchronized List<String> getPatientIds() throws IOException {
+        ensureLoaded();
+        return new ArrayList<>(patients.keySet());
+    }
+
+    /**
+     * Forget the trends and add every session of a history again, oldest first
+     * @param history The history
+     * @throws IOException An exception occurring while reading the history
+     */
+    public synchronized void rebuild(HistoryStore history) throws IOException {
+        patients = new HashMap<>();
+        dirty = true;
+        HistoryQuery query = new HistoryQuery();
+        query.newestFirst = false;
+        query.includeCurves = false;
+        history.forEach(query, new HistoryVisitor() {
+            @Override
+            public boolean visit(TestSession session) {
+                addSession(session, null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Save the trends, if anything was added since they were last saved
+     * @throws IOException An exception occurring while writing
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty || file == null) {
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            CRC32 crc = new CRC32();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(out, crc)));
+            data.writeInt(MAGIC);
+            data.writeShort(VERSION);
+            data.writeInt(patients.size());
+            for (PatientTrends trends : patients.values()) {
+                trends.write(data);
+            }
+            data.flush();
+            new DataOutputStream(out).writeLong(crc.getValue());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Cannot rename " + temporary);
+        }
+        dirty = false;
+    }
+
+    private void addTest(String patientId, Test test, TestSession session) {
+        if (!hasResults(test)) {
+            return;
+        }
+        long takenMs;
+        if (test.takenAt != null) {
+            takenMs = test.takenAt.getTime();
+        }
+        else if (session != null && session.startedAt != null) {
+            takenMs = session.startedAt.getTime();
+        }
+        else {
+            return;
+        }
+        trends(patientId).addTest(test.pef, test.fev1, takenMs);
+        dirty = true;
+    }
+
+    private static boolean hasResults(Test test) {
+        return test != null && Test.TestStatus.complete.name().equalsIgnoreCase(test.status)
+                && (test.pef != null || test.fev1 != null);
+    }
+
+    private PatientTrends trends(String patientId) {
+        PatientTrends trends = patients.get(patientId);
+        if (trends == null) {
+            trends = new PatientTrends(patientId, timeZone);
+            patients.put(patientId, trends);
+        }
+        return trends;
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (patients != null) {
+            return;
+        }
+        Map<String, PatientTrends> loaded = new HashMap<>();
+        if (file != null && file.exists()) {
+            byte[] bytes = readFile(file);
+            int length = bytes.length - CHECKSUM_BYTES;
+            if (length < 10) {
+                throw new IOException("Truncated trends file " + file);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, length);
+            if (ByteBuffer.wrap(bytes).getLong(length) != crc.getValue()) {
+                throw new IOException("Corrupt trends file " + file);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                throw new IOException("Unrecognized trends file " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                PatientTrends trends = PatientTrends.read(in, timeZone);
+                loaded.put(trends.getPatientId(), trends);
+            }
+        }
+        patients = loaded;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new EOFException(file.getPath());
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,39 @@
+package com.sparohealth.wingkit.classes.upload;
+
+/**
+ * Temporary AWS credentials issued by Cognito
+ */
+public class AwsCredentials {
+    /// The access key id.
+    public final String accessKeyId;
+    /// The secret access key.
+    public final String secretKey;
+    /// The session token that must accompany every signed request.
+    public final String sessionToken;
+    /// The expiration time in milliseconds since the epoch.
+    public final long expiration;
+
+    /**
+     * Initialize the {@link AwsCredentials} object
+     * @param accessKeyId The access key id
+     * @param secretKey The secret access key
+     * @param sessionToken The session token, or null for long term credentials
+     * @param expiration The expiration time in milliseconds since the epoch
+     */
+    public AwsCredentials(String accessKeyId, String secretKey, String sessionToken, long expiration) {
+        this.accessKeyId = accessKeyId;
+        this.secretKey = secretKey;
+        this.sessionToken = sessionToken;
+        this.expiration = expiration;
+    }
+
+    /**
+     * Indicate if the credentials expire within the given margin
+     * @param now The current time in milliseconds since the epoch
+     * @param marginMs The margin in milliseconds
+     * @return expiring status
+     */
+    public boolean expiresWithin(long now, long marginMs) {
+        return expiration - now <= marginMs;
+    }
+}
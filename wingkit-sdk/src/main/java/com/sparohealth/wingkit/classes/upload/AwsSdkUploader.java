@@ -0,0 +1,255 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import android.content.Context;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.auth.CognitoCachingCredentialsProvider;
+import com.amazonaws.auth.CognitoCredentialsProvider;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.sparohealth.wingkit.classes.UploadTarget;
+import com.sparohealth.wingkit.classes.capture.RecordingManifest;
+import com.sparohealth.wingkit.classes.capture.RecordingMetadata;
+import com.sparohealth.wingkit.classes.network.HttpEngine;
+import com.sparohealth.wingkit.classes.network.HttpRequest;
+import com.sparohealth.wingkit.classes.network.HttpResponse;
+import com.sparohealth.wingkit.classes.network.HttpStatusException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * {@link RecordingUploader} backed by the AWS Mobile SDK. Uploads go through the {@link TransferUtility},
+ * or, when an {@link HttpEngine} is supplied, through a presigned PUT sent on that engine.
+ */
+public class AwsSdkUploader implements RecordingUploader {
+    /// How long a presigned upload URL stays valid when uploading through the shared HTTP stack.
+    private static final long PRESIGNED_URL_LIFETIME_MS = 15 * 60 * 1000;
+
+    /// How many times a failed transfer is resumed before the upload is reported as failed.
+    private static final int MAX_RESUMES = 2;
+    /// How many times the presigned PUT is sent when the connection drops.
+    private static final int MAX_ATTEMPTS = 3;
+
+    private CognitoCredentialsProvider credentialsProvider;
+    private AmazonS3 s3;
+    private TransferUtility transferUtility;
+    private HttpEngine httpEngine;
+    private UploadJournal journal;
+
+    /**
+     * Initialize the {@link AwsSdkUploader} without a journal
+     * @param context The application context
+     * @param identityPoolId The Cognito identity pool id
+     * @param cognitoRegion The region of the identity pool, e.g. us-east-1
+     * @param httpEngine The shared HTTP stack, or null to upload with the TransferUtility
+     */
+    public AwsSdkUploader(Context context, String identityPoolId, String cognitoRegion, HttpEngine httpEngine) {
+        this(context, identityPoolId, cognitoRegion, httpEngine, null);
+    }
+
+    /**
+     * Initialize the {@link AwsSdkUploader}
+     * @param context The application context
+     * @param identityPoolId The Cognito identity pool id
+     * @param cognitoRegion The region of the identity pool, e.g. us-east-1
+     * @param httpEngine The shared HTTP stack, or null to upload with the TransferUtility
+     * @param journal The journal that keeps recordings until they are uploaded, or null
+     */
+    public AwsSdkUploader(Context context, String identityPoolId, String cognitoRegion, HttpEngine httpEngine, UploadJournal journal) {
+        this.httpEngine = httpEngine;
+        this.journal = journal;
+        credentialsProvider = new CognitoCachingCredentialsProvider(context, identityPoolId, Regions.fromName(cognitoRegion));
+        s3 = new AmazonS3Client(credentialsProvider);
+        // the TransferUtility (and its transfer database) is only needed when uploads do not use the shared HTTP stack
+        if (httpEngine == null) {
+            transferUtility = TransferUtility.builder().s3Client(s3).context(context).build();
+        }
+    }
+
+    @Override
+    public void upload(File file, UploadTarget target, UploadProgressListener progress, final UploadCallback callback) {
+        final ProgressThrottle throttle = new ProgressThrottle(progress, ProgressThrottle.DEFAULT_INTERVAL_MS);
+        // if the shared HTTP stack IS enabled...
+        if (httpEngine != null) {
+            uploadWithHttpEngine(file, target, throttle, callback);
+            return;
+        }
+
+        final UploadJournal.Entry entry;
+        try {
+            entry = journal == null ? null : journal.stage(file, target);
+        } catch (IOException ex) {
+            callback.onError(ex);
+            return;
+        }
+        File source = entry == null ? file : entry.file;
+
+        TransferListener listener = new TransferListener() { /* changed to set the transfer listener inside of the upload method  TSP 1/23/18 */
+            private int resumes = 0;
+
+            @Override
+            public void onStateChanged(int id, TransferState state) {
+                // if the transfer state is COMPLETED...  TSP 1/17/18
+                if (state == TransferState.COMPLETED) {
+                    if (entry != null) {
+                        journal.remove(entry);
+                    }
+                    callback.onSuccess();
+                }
+                // if the transfer state is FAILED...  TSP 1/17/18
+                else if (state == TransferState.FAILED) {
+                    // the TransferUtility continues from the parts it already sent, so try that before giving up
+                    if (resumes < MAX_RESUMES && transferUtility.resume(id) != null) {
+                        resumes++;
+                        return;
+                    }
+                    callback.onError(new Exception("Upload Failed!"));
+                }
+                // if the transfer state is CANCELED...  TSP 1/17/18
+                else if (state == TransferState.CANCELED) {
+                    callback.onError(new Exception("Upload Cancelled!"));
+                }
+            }
+
+            @Override
+            public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+                throttle.report(bytesCurrent, bytesTotal);
+            }
+
+            @Override
+            public void onError(int id, Exception ex) {
+                callback.onError(ex);
+            }
+        };
+
+        TransferObserver observer = null;
+        // if the transfer WAS started before the app was killed, the TransferUtility still has it in its database
+        if (entry != null && entry.transferId >= 0) {
+            observer = transferUtility.resume(entry.transferId);
+            if (observer != null) {
+                observer.setTransferListener(listener);
+            }
+        }
+        if (observer == null) {
+            // send how the recording was captured as user metadata, and its checksum when the recorder computed one
+            RecordingManifest manifest = RecordingManifest.readForUpload(source);
+            ObjectMetadata metadata = new ObjectMetadata();
+            if (manifest != null) {
+                metadata.setContentMD5(manifest.contentMd5);
+            }
+            for (Map.Entry<String, String> item : UploadChecksums.metadata(source, manifest).entrySet()) {
+                metadata.addUserMetadata(RecordingMetadata.USER_METADATA_PREFIX + item.getKey(), item.getValue());
+            }
+
+            observer = transferUtility.upload(
+                    target.bucket,     /* The bucket to upload to */
+                    target.key,    /* The key for the Uploaded object */
+                    source,        /* The file where the data to upload exists */
+                    metadata,   /* The capture metadata of the recording */
+                    null,       /* The ACL list for the upload */
+                    listener
+            );
+        }
+
+        // remember the transfer so it can be resumed after the app is killed
+        if (entry != null && observer != null && observer.getId() != entry.transferId) {
+            entry.transferId = observer.getId();
+            try {
+                journal.save(entry);
+            } catch (IOException ex) {
+                // the upload goes on; after a restart it would only start over instead of resuming
+            }
+        }
+    }
+
+    /**
+     * Upload a test recording with a presigned PUT sent through the shared {@link HttpEngine}.
+     * Presigning is done locally with the Cognito credentials, so the AWS SDK never opens a connection of its own for the object.
+     */
+    private void uploadWithHttpEngine(final File file, final UploadTarget target, final ProgressThrottle throttle, final UploadCallback callback) {
+        httpEngine.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    UploadJournal.Entry entry = journal == null ? null : journal.stage(file, target);
+                    final File source = entry == null ? file : entry.file;
+                    if (source == null) {
+                        throw new FileNotFoundException("No recording to upload to " + target.key);
+                    }
+
+                    // the credentials provider may block on Cognito, so presign on the engine thread
+                    GeneratePresignedUrlRequest presignRequest = new GeneratePresignedUrlRequest(target.bucket, target.key, HttpMethod.PUT);
+                    presignRequest.setExpiration(new Date(System.currentTimeMillis() + PRESIGNED_URL_LIFETIME_MS));
+                    // user metadata goes into the presigned URL, as unsigned x-amz-meta headers would be refused
+                    RecordingManifest manifest = RecordingManifest.readForUpload(source);
+                    for (Map.Entry<String, String> item : UploadChecksums.metadata(source, manifest).entrySet()) {
+                        presignRequest.addRequestParameter(RecordingMetadata.UPLOAD_HEADER_PREFIX + item.getKey(), item.getValue());
+                    }
+                    // if the recorder checksummed the file as it wrote it, let S3 verify what arrives (the MD5 is part of the signature)
+                    if (manifest != null) {
+                        presignRequest.setContentMd5(manifest.contentMd5);
+                    }
+                    URL url = s3.generatePresignedUrl(presignRequest);
+
+                    HttpRequest request = new HttpRequest("PUT", url.toString())
+                            .body(source)
+                            .progress(new HttpRequest.ProgressListener() {
+                                @Override
+                                public void onBodyProgress(long bytesSent, long bytesTotal) {
+                                    throttle.report(bytesSent, bytesTotal);
+                                }
+                            });
+                    if (manifest != null) {
+                        request.header("Content-MD5", manifest.contentMd5);
+                    }
+
+                    HttpResponse response = send(request);
+                    // if the body WAS damaged on the way, send this object once more
+                    if (UploadChecksums.isBadDigest(response)) {
+                        response = send(request);
+                    }
+
+                    // if the upload WAS NOT accepted...
+                    if (!response.isSuccessful()) {
+                        callback.onError(new HttpStatusException(response));
+                        return;
+                    }
+                    if (entry != null) {
+                        journal.remove(entry);
+                    }
+                } catch (Exception ex) {
+                    callback.onError(ex);
+                    return;
+                }
+                callback.onSuccess();
+            }
+        });
+    }
+
+    /**
+     * Send the presigned PUT, sending it again if the connection drops
+     */
+    private HttpResponse send(HttpRequest request) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try {
+                return httpEngine.execute(request);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+}
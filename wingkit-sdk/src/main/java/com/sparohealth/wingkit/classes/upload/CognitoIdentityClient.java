@@ -0,0 +1,115 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.annotations.SerializedName;
+import com.sparohealth.wingkit.classes.network.HttpEngine;
+import com.sparohealth.wingkit.classes.network.HttpRequest;
+import com.sparohealth.wingkit.classes.network.HttpResponse;
+import com.sparohealth.wingkit.classes.network.HttpStatusException;
+
+import java.io.IOException;
+
+/**
+ * Minimal Cognito Identity client that obtains temporary credentials for an unauthenticated
+ * identity with the GetId and GetCredentialsForIdentity actions.
+ */
+public class CognitoIdentityClient {
+    /**
+     * Credentials are refreshed when they expire within this margin
+     */
+    private static final long REFRESH_MARGIN_MS = 5 * 60 * 1000;
+
+    private final HttpEngine httpEngine;
+    private final String endpoint;
+    private final String identityPoolId;
+    private final Gson gson = new Gson();
+
+    private String identityId;
+    private AwsCredentials credentials;
+
+    /**
+     * Initialize the {@link CognitoIdentityClient}
+     * @param httpEngine The engine used for the Cognito requests
+     * @param region The region of the identity pool
+     * @param identityPoolId The identity pool id
+     * @param endpoint The Cognito endpoint, or null for the public AWS endpoint of the region
+     */
+    public CognitoIdentityClient(HttpEngine httpEngine, String region, String identityPoolId, String endpoint) {
+        this.httpEngine = httpEngine;
+        this.identityPoolId = identityPoolId;
+        this.endpoint = endpoint != null ? endpoint : "https://cognito-identity." + region + ".amazonaws.com/";
+    }
+
+    /**
+     * Return valid credentials, calling Cognito only when there are none cached or they are about to
+     * expire. Blocks the calling thread while Cognito is contacted.
+     * @return temporary credentials
+     * @throws IOException An exception occurring while contacting Cognito
+     */
+    public synchronized AwsCredentials getCredentials() throws IOException {
+        if (credentials != null && !credentials.expiresWithin(System.currentTimeMillis(), REFRESH_MARGIN_MS)) {
+            return credentials;
+        }
+
+        if (identityId == null) {
+            JsonObject params = new JsonObject();
+            params.addProperty("IdentityPoolId", identityPoolId);
+            identityId = call("GetId", params, GetIdResponse.class).identityId;
+        }
+
+        JsonObject params = new JsonObject();
+        params.addProperty("IdentityId", identityId);
+        CredentialsResponse response = call("GetCredentialsForIdentity", params, CredentialsResponse.class);
+        if (response.credentials == null) {
+            throw new IOException("Cognito returned no credentials");
+        }
+
+        credentials = new AwsCredentials(response.credentials.accessKeyId, response.credentials.secretKey,
+                response.credentials.sessionToken, (long) (response.credentials.expiration * 1000));
+        return credentials;
+    }
+
+    /**
+     * Return the identity id issued by Cognito
+     * @return identity id, or null before the first successful call
+     */
+    public synchronized String getIdentityId() {
+        return identityId;
+    }
+
+    private <T> T call(String action, JsonObject params, Class<T> responseType) throws IOException {
+        HttpRequest request = new HttpRequest("POST", endpoint)
+                .header("Content-Type", "application/x-amz-json-1.1")
+                .header("X-Amz-Target", "AWSCognitoIdentityService." + action)
+                .body(params.toString());
+
+        HttpResponse response = httpEngine.execute(request);
+        if (!response.isSuccessful()) {
+            throw new HttpStatusException(response);
+        }
+        return gson.fromJson(response.bodyString(), responseType);
+    }
+
+    private static class GetIdResponse {
+        @SerializedName("IdentityId")
+        String identityId;
+    }
+
+    private static class CredentialsResponse {
+        @SerializedName("Credentials")
+        Credentials credentials;
+    }
+
+    private static class Credentials {
+        @SerializedName("AccessKeyId")
+        String accessKeyId;
+        @SerializedName("SecretKey")
+        String secretKey;
+        @SerializedName("SessionToken")
+        String sessionToken;
+        /// Seconds since the epoch.
+        @SerializedName("Expiration")
+        double expiration;
+    }
+}
@@ -0,0 +1,328 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import com.sparohealth.wingkit.classes.UploadTarget;
+import com.sparohealth.wingkit.classes.capture.RecordingManifest;
+import com.sparohealth.wingkit.classes.capture.RecordingMetadata;
+import com.sparohealth.wingkit.classes.network.HttpEngine;
+import com.sparohealth.wingkit.classes.network.HttpRequest;
+import com.sparohealth.wingkit.classes.network.HttpResponse;
+import com.sparohealth.wingkit.classes.network.HttpStatusException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link RecordingUploader} that streams the recording to S3 with SigV4-signed requests, using
+ * credentials from the {@link CognitoIdentityClient}. Nothing from the AWS SDK is loaded and no
+ * transfer database is kept.
+ *
+ * With an {@link UploadJournal}, recordings larger than the part size are sent as a multipart upload
+ * and every completed part is journaled, so an upload cut off by a dropped connection or by the app
+ * being killed continues from the first missing part. Smaller recordings are sent with a single PUT.
+ */
+public class LightweightS3Uploader implements RecordingUploader {
+    /// The smallest part S3 accepts for all but the last part of a multipart upload, and the default part size.
+    public static final long MINIMUM_PART_SIZE = 5 * 1024 * 1024;
+    /// How many times a request is sent when the connection drops before the upload gives up.
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final HttpEngine httpEngine;
+    private final CognitoIdentityClient cognitoClient;
+    private final SigV4Signer signer;
+    private final String endpoint;
+    private final UploadJournal journal;
+    private final long partSize;
+
+    /**
+     * Initialize the {@link LightweightS3Uploader} without a journal; every upload is a single PUT
+     * @param httpEngine The engine the uploads are sent through
+     * @param cognitoClient The source of the upload credentials
+     * @param region The region of the upload buckets
+     * @param endpoint A path-style S3 endpoint (e.g. a local stand-in), or null for the public AWS endpoint
+     */
+    public LightweightS3Uploader(HttpEngine httpEngine, CognitoIdentityClient cognitoClient, String region, String endpoint) {
+        this(httpEngine, cognitoClient, region, endpoint, null, MINIMUM_PART_SIZE);
+    }
+
+    /**
+     * Initialize the {@link LightweightS3Uploader}
+     * @param httpEngine The engine the uploads are sent through
+     * @param cognitoClient The source of the upload credentials
+     * @param region The region of the upload buckets
+     * @param endpoint A path-style S3 endpoint (e.g. a local stand-in), or null for the public AWS endpoint
+     * @param journal The journal that keeps recordings until they are uploaded, or null
+     * @param partSize The multipart part size (bytes); S3 refuses parts under {@link #MINIMUM_PART_SIZE}
+     */
+    public LightweightS3Uploader(HttpEngine httpEngine, CognitoIdentityClient cognitoClient, String region, String endpoint,
+                                 UploadJournal journal, long partSize) {
+        this.httpEngine = httpEngine;
+        this.cognitoClient = cognitoClient;
+        this.signer = new SigV4Signer(region, "s3");
+        this.endpoint = endpoint;
+        this.journal = journal;
+        this.partSize = partSize;
+    }
+
+    @Override
+    public void upload(final File file, final UploadTarget target, final UploadProgressListener progress, final UploadCallback callback) {
+        httpEngine.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    put(file, target, progress);
+                } catch (Exception ex) {
+                    callback.onError(ex);
+                    return;
+                }
+                callback.onSuccess();
+            }
+        });
+    }
+
+    /**
+     * Upload the recording on the calling thread
+     * @param file The recording to upload
+     * @param target The upload target describing the destination bucket and key
+     * @throws IOException An exception occurring during the upload
+     */
+    public void put(File file, UploadTarget target) throws IOException {
+        put(file, target, null);
+    }
+
+    /**
+     * Upload the recording on the calling thread. With a journal the recording is copied into it
+     * first, and the copy stays there until the upload succeeds.
+     * @param file The recording to upload, or null to resume the journal's copy for the target
+     * @param target The upload target describing the destination bucket and key
+     * @param progress Receives the upload progress, or null
+     * @throws IOException An exception occurring during the upload
+     */
+    public void put(File file, UploadTarget target, UploadProgressListener progress) throws IOException {
+        ProgressThrottle throttle = new ProgressThrottle(progress, ProgressThrottle.DEFAULT_INTERVAL_MS);
+        // if there IS NO journal, nothing can be resumed
+        if (journal == null) {
+            if (file == null) {
+                throw new FileNotFoundException("No recording to upload to " + target.key);
+            }
+            putObject(file, target, throttle);
+            return;
+        }
+
+        UploadJournal.Entry entry = journal.stage(file, target);
+        if (entry.length > partSize) {
+            putParts(entry, throttle);
+        }
+        else {
+            putObject(entry.file, target, throttle);
+        }
+        journal.remove(entry);
+    }
+
+    /**
+     * Send the whole recording with one PUT
+     */
+    private void putObject(File file, UploadTarget target, final ProgressThrottle throttle) throws IOException {
+        final long length = file.length();
+        RecordingManifest manifest = RecordingManifest.readForUpload(file);
+        Map<String, String> headers = objectHeaders(file, manifest);
+        // if the recorder checksummed the file as it wrote it, let S3 verify what arrives
+        if (manifest != null) {
+            headers.put("Content-MD5", manifest.contentMd5);
+        }
+        HttpRequest.ProgressListener listener = new HttpRequest.ProgressListener() {
+            @Override
+            public void onBodyProgress(long bytesSent, long bytesTotal) {
+                throttle.report(bytesSent, length);
+            }
+        };
+
+        Map<String, String> query = Collections.emptyMap();
+        HttpRequest request = request("PUT", target, query, headers).body(file).progress(listener);
+        HttpResponse response = send(request, target, query);
+        // if the body WAS damaged on the way, send this object once more
+        if (UploadChecksums.isBadDigest(response)) {
+            response = send(request, target, query);
+        }
+        if (!response.isSuccessful()) {
+            throw new HttpStatusException(response);
+        }
+    }
+
+    /**
+     * Send the journal's copy of a recording as a multipart upload, skipping the parts the journal
+     * records as done
+     */
+    private void putParts(UploadJournal.Entry entry, ProgressThrottle throttle) throws IOException {
+        // if the journal's upload WAS started with another part size, its parts cannot be reused
+        if (entry.uploadId != null && entry.partSize != partSize) {
+            entry.uploadId = null;
+        }
+        if (entry.uploadId == null) {
+            startParts(entry);
+        }
+
+        int partCount = (int) ((entry.length + partSize - 1) / partSize);
+        boolean restarted = false;
+        for (int part = 1; part <= partCount; part++) {
+            if (entry.parts.containsKey(part)) {
+                continue;
+            }
+            HttpResponse response = putPart(entry, part, throttle);
+            // if S3 HAS forgotten the upload (aborted, or expired by a lifecycle rule), start over once
+            if (!restarted && response.statusCode == 404 && response.bodyString().contains("<Code>NoSuchUpload</Code>")) {
+                restarted = true;
+                startParts(entry);
+                part = 0;
+                continue;
+            }
+            String etag = response.header("ETag");
+            if (!response.isSuccessful() || etag == null) {
+                throw new HttpStatusException(response);
+            }
+            entry.parts.put(part, etag);
+            journal.save(entry);
+        }
+        throttle.report(entry.length, entry.length);
+
+        StringBuilder parts = new StringBuilder("<CompleteMultipartUpload>");
+        for (Map.Entry<Integer, String> part : entry.parts.entrySet()) {
+            parts.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><ETag>")
+                    .append(part.getValue()).append("</ETag></Part>");
+        }
+        parts.append("</CompleteMultipartUpload>");
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "application/xml");
+        Map<String, String> query = Collections.singletonMap("uploadId", entry.uploadId);
+        HttpResponse response = send(request("POST", entry.target, query, headers).body(parts.toString()), entry.target, query);
+        // S3 may report a failed completion in the body of a 200 response
+        if (!response.isSuccessful() || response.bodyString().contains("<Error>")) {
+            throw new HttpStatusException(response);
+        }
+    }
+
+    /**
+     * Start a new multipart upload for the entry and journal its id
+     */
+    private void startParts(UploadJournal.Entry entry) throws IOException {
+        Map<String, String> query = Collections.singletonMap("uploads", "");
+        HttpRequest request = request("POST", entry.target, query, objectHeaders(entry.file, RecordingManifest.readForUpload(entry.file)));
+        HttpResponse response = send(request, entry.target, query);
+        Matcher matcher = UPLOAD_ID.matcher(response.isSuccessful() ? response.bodyString() : "");
+        if (!matcher.find()) {
+            throw new HttpStatusException(response);
+        }
+        entry.uploadId = matcher.group(1);
+        entry.partSize = partSize;
+        entry.parts.clear();
+        journal.save(entry);
+    }
+
+    private HttpResponse putPart(final UploadJournal.Entry entry, int part, final ProgressThrottle throttle) throws IOException {
+        final long offset = (part - 1) * partSize;
+        long length = Math.min(partSize, entry.length - offset);
+        final long completed = entry.completedBytes();
+        Map<String, String> query = new LinkedHashMap<>();
+        query.put("partNumber", String.valueOf(part));
+        query.put("uploadId", entry.uploadId);
+        HttpRequest request = request("PUT", entry.target, query, Collections.<String, String>emptyMap())
+                .body(entry.file, offset, length)
+                .progress(new HttpRequest.ProgressListener() {
+                    @Override
+                    public void onBodyProgress(long bytesSent, long bytesTotal) {
+                        throttle.report(completed + bytesSent, entry.length);
+                    }
+                });
+        return send(request, entry.target, query);
+    }
+
+    /**
+     * Return the headers that describe the object: its type and the recording's metadata
+     */
+    private static Map<String, String> objectHeaders(File file, RecordingManifest manifest) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "audio/x-wav");
+        // send how the recording was captured as user metadata (signed along with the other headers)
+        for (Map.Entry<String, String> entry : UploadChecksums.metadata(file, manifest).entrySet()) {
+            headers.put(RecordingMetadata.UPLOAD_HEADER_PREFIX + entry.getKey(), entry.getValue());
+        }
+        return headers;
+    }
+
+    /**
+     * Sign and send a request, sending it again if the connection drops. Each attempt is signed
+     * afresh on a copy, since signing adds headers.
+     */
+    private HttpResponse send(HttpRequest template, UploadTarget target, Map<String, String> query) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            HttpRequest request = new HttpRequest(template.method, template.url).progress(template.progressListener);
+            request.headers.putAll(template.headers);
+            request.body = template.body;
+            if (template.bodyFile != null) {
+                request.body(template.bodyFile, template.bodyOffset, template.bodyLength);
+            }
+            try {
+                return execute(request, target, query);
+            } catch (IOException ex) {
+                // the connection dropped; the request (one part at most) is sent again
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Build an unsigned request for the target's object
+     */
+    private HttpRequest request(String method, UploadTarget target, Map<String, String> query, Map<String, String> headers)
+            throws IOException {
+        String url = baseUrl(target) + SigV4Signer.uriEncode(path(target), false);
+        if (!query.isEmpty()) {
+            url += "?" + SigV4Signer.canonicalQuery(query);
+        }
+        HttpRequest request = new HttpRequest(method, url);
+        request.headers.putAll(headers);
+        return request;
+    }
+
+    private HttpResponse execute(HttpRequest request, UploadTarget target, Map<String, String> query) throws IOException {
+        // the body is streamed, so it is sent unsigned rather than read twice to hash it
+        URL url = new URL(request.url);
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        signer.sign(request.method, host, path(target), query, request.headers, SigV4Signer.UNSIGNED_PAYLOAD,
+                cognitoClient.getCredentials(), new Date());
+        return httpEngine.execute(request);
+    }
+
+    private String baseUrl(UploadTarget target) throws IOException {
+        if (endpoint == null) {
+            return "https://" + target.bucket + ".s3.amazonaws.com";
+        }
+        URL base = new URL(endpoint);
+        return base.getProtocol() + "://" + (base.getPort() == -1 ? base.getHost() : base.getHost() + ":" + base.getPort());
+    }
+
+    /**
+     * Return the unencoded object path; path-style for stand-ins and custom endpoints
+     */
+    private String path(UploadTarget target) throws IOException {
+        String key = target.key.startsWith("/") ? target.key : "/" + target.key;
+        if (endpoint == null) {
+            return key;
+        }
+        String basePath = new URL(endpoint).getPath();
+        if (basePath.endsWith("/")) {
+            basePath = basePath.substring(0, basePath.length() - 1);
+        }
+        return basePath + "/" + target.bucket + key;
+    }
+}
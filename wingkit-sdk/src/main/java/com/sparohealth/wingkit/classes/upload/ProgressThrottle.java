@@ -0,0 +1,42 @@
+package com.sparohealth.wingkit.classes.upload;
+
+/**
+ * Passes upload progress on at most once per interval, never backwards, and always at completion
+ */
+class ProgressThrottle {
+    /// The default shortest time between two reports.
+    static final long DEFAULT_INTERVAL_MS = 250;
+
+    private final UploadProgressListener listener;
+    private final long intervalNanos;
+    private long lastReportNanos = 0;
+    private long lastReported = -1;
+
+    /**
+     * Initialize the {@link ProgressThrottle}
+     * @param listener The listener to report to, or null to report nothing
+     * @param intervalMs The shortest time between two reports
+     */
+    ProgressThrottle(UploadProgressListener listener, long intervalMs) {
+        this.listener = listener;
+        this.intervalNanos = intervalMs * 1000000L;
+    }
+
+    void report(long bytesSent, long bytesTotal) {
+        report(bytesSent, bytesTotal, System.nanoTime());
+    }
+
+    synchronized void report(long bytesSent, long bytesTotal, long nowNanos) {
+        // if there IS no listener OR the count HAS NOT moved forward...
+        if (listener == null || bytesSent <= lastReported) {
+            return;
+        }
+        // if the upload IS NOT complete AND the last report WAS too recent...
+        if (bytesSent < bytesTotal && lastReported >= 0 && nowNanos - lastReportNanos < intervalNanos) {
+            return;
+        }
+        lastReported = bytesSent;
+        lastReportNanos = nowNanos;
+        listener.onProgress(bytesSent, bytesTotal);
+    }
+}
@@ -0,0 +1,20 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import com.sparohealth.wingkit.classes.UploadTarget;
+
+import java.io.File;
+
+/**
+ * A {@link RecordingUploader} stores a test recording at the S3 location described by an {@link UploadTarget}
+ */
+public interface RecordingUploader {
+    /**
+     * Upload a test recording. Uploaders with an {@link UploadJournal} copy the recording into it and
+     * keep the copy until it is stored, so an interrupted upload can be resumed.
+     * @param file The recording to upload, or null to resume the journal's copy for the target
+     * @param target The upload target describing the destination bucket and key
+     * @param progress Receives the upload progress, or null
+     * @param callback Receives the result of the upload
+     */
+    void upload(File file, UploadTarget target, UploadProgressListener progress, UploadCallback callback);
+}
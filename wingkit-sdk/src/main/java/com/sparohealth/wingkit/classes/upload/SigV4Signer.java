@@ -0,0 +1,185 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs requests with AWS Signature Version 4
+ */
+public class SigV4Signer {
+    /// Payload hash used when the body is streamed without being hashed first (S3 only).
+    public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    /// SHA-256 of an empty body.
+    public static final String EMPTY_PAYLOAD_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String region;
+    private final String service;
+
+    /**
+     * Initialize the {@link SigV4Signer}
+     * @param region The AWS region, e.g. us-east-1
+     * @param service The AWS service name, e.g. s3
+     */
+    public SigV4Signer(String region, String service) {
+        this.region = region;
+        this.service = service;
+    }
+
+    /**
+     * Sign a request. The x-amz-date, x-amz-content-sha256, x-amz-security-token and Authorization
+     * headers are added to the given header map; the Host header is signed but not added since the
+     * HTTP stack sets it itself.
+     * @param method The HTTP method
+     * @param host The Host header value (including the port when it is not the default)
+     * @param path The unencoded request path, starting with '/'
+     * @param query The unencoded query parameters, or null
+     * @param headers The request headers to sign; receives the signing headers
+     * @param payloadHash The hex SHA-256 of the body, or {@link #UNSIGNED_PAYLOAD}
+     * @param credentials The credentials to sign with
+     * @param date The request time
+     */
+    public void sign(String method, String host, String path, Map<String, String> query, Map<String, String> headers,
+                     String payloadHash, AwsCredentials credentials, Date date) {
+        String amzDate = format("yyyyMMdd'T'HHmmss'Z'", date);
+        String dateStamp = amzDate.substring(0, 8);
+
+        headers.put("x-amz-date", amzDate);
+        headers.put("x-amz-content-sha256", payloadHash);
+        if (credentials.sessionToken != null) {
+            headers.put("x-amz-security-token", credentials.sessionToken);
+        }
+
+        // canonical headers are sorted by their lower-case names
+        TreeMap<String, String> canonicalHeaders = new TreeMap<>();
+        canonicalHeaders.put("host", host);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            canonicalHeaders.put(header.getKey().toLowerCase(Locale.US), header.getValue().trim());
+        }
+
+        StringBuilder headerBlock = new StringBuilder();
+        StringBuilder signedHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : canonicalHeaders.entrySet()) {
+            headerBlock.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+            if (signedHeaders.length() > 0) {
+                signedHeaders.append(';');
+            }
+            signedHeaders.append(header.getKey());
+        }
+
+        String canonicalRequest = method + '\n'
+                + uriEncode(path, false) + '\n'
+                + canonicalQuery(query) + '\n'
+                + headerBlock + '\n'
+                + signedHeaders + '\n'
+                + payloadHash;
+
+        String scope = dateStamp + '/' + region + '/' + service + "/aws4_request";
+        String stringToSign = ALGORITHM + '\n' + amzDate + '\n' + scope + '\n' + sha256Hex(canonicalRequest.getBytes(UTF_8));
+
+        byte[] signingKey = hmac(("AWS4" + credentials.secretKey).getBytes(UTF_8), dateStamp);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, service);
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = hex(hmac(signingKey, stringToSign));
+
+        headers.put("Authorization", ALGORITHM + " Credential=" + credentials.accessKeyId + '/' + scope
+                + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+    }
+
+    /**
+     * URI-encode a string as required by SigV4
+     * @param value The value to encode
+     * @param encodeSlash Whether '/' is encoded (true for query components, false for paths)
+     * @return encoded value
+     */
+    public static String uriEncode(String value, boolean encodeSlash) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : value.getBytes(UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                result.append(c);
+            } else {
+                result.append('%').append(Character.toUpperCase(HEX[(b >> 4) & 0xf])).append(Character.toUpperCase(HEX[b & 0xf]));
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Build the SigV4 canonical query string (also usable as the request's query string)
+     * @param query The unencoded query parameters, or null
+     * @return canonical query string
+     */
+    public static String canonicalQuery(Map<String, String> query) {
+        if (query == null || query.isEmpty()) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> parameter : new TreeMap<>(query).entrySet()) {
+            if (result.length() > 0) {
+                result.append('&');
+            }
+            result.append(uriEncode(parameter.getKey(), true)).append('=')
+                    .append(uriEncode(parameter.getValue() == null ? "" : parameter.getValue(), true));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Compute the lower-case hex SHA-256 of the given bytes
+     * @param data The bytes to hash
+     * @return hex digest
+     */
+    public static String sha256Hex(byte[] data) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encode bytes as lower-case hex
+     * @param data The bytes to encode
+     * @return hex string
+     */
+    public static String hex(byte[] data) {
+        char[] result = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            result[i * 2] = HEX[(data[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX[data[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String format(String pattern, Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+}
@@ -0,0 +1,17 @@
+package com.sparohealth.wingkit.classes.upload;
+
+/**
+ * Callback interface for the result of a recording upload
+ */
+public interface UploadCallback {
+    /**
+     * Tells the callback that the recording was stored
+     */
+    void onSuccess();
+
+    /**
+     * Tells the callback that the recording could not be stored
+     * @param error The cause of the failure
+     */
+    void onError(Exception error);
+}
@@ -0,0 +1,40 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import com.sparohealth.wingkit.classes.capture.RecordingManifest;
+import com.sparohealth.wingkit.classes.capture.RecordingMetadata;
+import com.sparohealth.wingkit.classes.network.HttpResponse;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * What the uploaders send to let S3 check a recording, and how they recognize a failed check
+ */
+class UploadChecksums {
+    private UploadChecksums() {
+    }
+
+    /**
+     * Return the user metadata of a recording: its capture metadata and, when it has a manifest, the manifest entries
+     * @param file The recording
+     * @param manifest The recording's manifest, or null
+     * @return entries, without the S3 prefixes
+     */
+    static Map<String, String> metadata(File file, RecordingManifest manifest) {
+        Map<String, String> metadata = RecordingMetadata.readForUpload(file);
+        if (manifest != null) {
+            metadata.putAll(manifest.toMetadata());
+        }
+        return metadata;
+    }
+
+    /**
+     * Indicate if S3 refused an upload because the body did not match its Content-MD5, i.e. the bytes
+     * were damaged on the way and sending them again may succeed
+     * @param response The upload response
+     * @return BadDigest status
+     */
+    static boolean isBadDigest(HttpResponse response) {
+        return response.statusCode == 400 && response.body != null && response.bodyString().contains("<Code>BadDigest</Code>");
+    }
+}
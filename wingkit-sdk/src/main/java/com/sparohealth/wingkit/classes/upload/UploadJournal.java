@@ -0,0 +1,301 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import com.sparohealth.wingkit.classes.UploadTarget;
+import com.sparohealth.wingkit.classes.capture.RecordingManifest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * {@link UploadJournal} keeps recordings that are being uploaded, and how far each upload got, in a
+ * directory of their own. A recording is copied there when its upload starts, so the next test cannot
+ * overwrite it, and the journal is saved after every completed part, so an upload interrupted by a
+ * dropped connection or by the app being killed resumes without sending those parts again.
+ *
+ * Entries are keyed by upload target bucket and key. An upload that is still not stored after too many
+ * attempts, or too long, is given up and its copy deleted, so it is not retried forever.
+ */
+public class UploadJournal {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /// The default age after which an unfinished upload is given up (7 days).
+    public static final long DEFAULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    /// The default number of attempts after which an unfinished upload is given up.
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    private final File directory;
+    private final long maxAgeMs;
+    private final int maxAttempts;
+
+    /**
+     * An upload in progress
+     */
+    public static class Entry {
+        /// The upload target.
+        public final UploadTarget target;
+        /// The journal's copy of the recording.
+        public final File file;
+        /// The recording length (bytes).
+        public final long length;
+        /// The S3 multipart upload id, or null before one is started.
+        public String uploadId = null;
+        /// The part size of the multipart upload (bytes).
+        public long partSize = 0;
+        /// The ETags of the completed parts, by part number.
+        public final SortedMap<Integer, String> parts = new TreeMap<>();
+        /// The TransferUtility transfer id, or -1.
+        public int transferId = -1;
+        /// When the recording was first staged (ms since the epoch).
+        public final long createdAt;
+        /// The number of times the upload has been started or resumed.
+        public int attempts = 0;
+
+        Entry(UploadTarget target, File file, long length, long createdAt) {
+            this.target = target;
+            this.file = file;
+            this.length = length;
+            this.createdAt = createdAt;
+        }
+
+        /**
+         * Return the number of bytes in completed parts
+         * @return byte count
+         */
+        public long completedBytes() {
+            long bytes = 0;
+            for (int part : parts.keySet()) {
+                bytes += Math.min(partSize, length - (part - 1) * partSize);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Initialize the {@link UploadJournal} with the default limits
+     * @param directory The directory to keep uploads in; created when needed
+     */
+    public UploadJournal(File directory) {
+        this(directory, DEFAULT_MAX_AGE_MS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Initialize the {@link UploadJournal}
+     * @param directory The directory to keep uploads in; created when needed
+     * @param maxAgeMs The time after it was staged that an unfinished upload is given up
+     * @param maxAttempts The number of attempts after which an unfinished upload is given up
+     */
+    public UploadJournal(File directory, long maxAgeMs, int maxAttempts) {
+        this.directory = directory;
+        this.maxAgeMs = maxAgeMs;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Take a copy of a recording for upload, or find the interrupted upload of a target. Each call
+     * counts as an attempt.
+     * @param recording The recording to upload; it is copied into the journal and left in place. If null
+     *                  or missing, or the journal already holds it, the journal's own copy for the target is used.
+     * @param target The upload target
+     * @return the entry
+     * @throws IOException if the recording cannot be copied, there is neither a recording nor an entry,
+     * or the upload has been given up
+     */
+    public synchronized Entry stage(File recording, UploadTarget target) throws IOException {
+        String id = idOf(target);
+        Entry entry = load(id);
+        // if there IS NO new recording, or it is the one already in the journal, resume that one
+        if (recording == null || !recording.exists() || (entry != null && entry.length == recording.length())) {
+            if (entry == null) {
+                throw new FileNotFoundException("No recording to upload to " + target.key);
+            }
+            if (isExpired(entry)) {
+                remove(entry);
+                throw new IOException("Gave up uploading to " + target.key + " after " + entry.attempts + " attempts");
+            }
+            entry.attempts++;
+            save(entry);
+            return entry;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, id + ".wav");
+        copy(recording, file);
+        File manifest = RecordingManifest.fileFor(recording);
+        // the manifest only describes the recording it was written next to
+        if (manifest.exists()) {
+            copy(manifest, RecordingManifest.fileFor(file));
+        } else {
+            RecordingManifest.fileFor(file).delete();
+        }
+        entry = new Entry(target, file, file.length(), System.currentTimeMillis());
+        entry.attempts = 1;
+        save(entry);
+        return entry;
+    }
+
+    /**
+     * Return the uploads that have not finished. Uploads that have been given up are removed.
+     * @return entries
+     */
+    public synchronized List<Entry> pending() {
+        List<Entry> entries = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return entries;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".json")) {
+                Entry entry = load(file.getName().substring(0, file.getName().length() - 5));
+                // if the upload HAS been tried too often or for too long, stop retrying it
+                if (entry != null && isExpired(entry)) {
+                    remove(entry);
+                }
+                else if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Record the progress of an upload. The journal file is replaced atomically, so a crash leaves
+     * either the old or the new state.
+     * @param entry The entry
+     * @throws IOException An exception occurring during the file access
+     */
+    public synchronized void save(Entry entry) throws IOException {
+        String id = idOf(entry.target);
+        File temporary = new File(directory, id + ".json.tmp");
+        try {
+            JSONObject parts = new JSONObject();
+            for (Map.Entry<Integer, String> part : entry.parts.entrySet()) {
+                parts.put(String.valueOf(part.getKey()), part.getValue());
+            }
+            JSONObject json = new JSONObject()
+                    .put("id", entry.target.id)
+                    .put("bucket", entry.target.bucket)
+                    .put("key", entry.target.key)
+                    .put("length", entry.length)
+                    .put("uploadId", entry.uploadId)
+                    .put("partSize", entry.partSize)
+                    .put("parts", parts)
+                    .put("transferId", entry.transferId)
+                    .put("createdAt", entry.createdAt)
+                    .put("attempts", entry.attempts);
+            OutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(json.toString().getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+        if (!temporary.renameTo(new File(directory, id + ".json"))) {
+            throw new IOException("Cannot save the upload journal for " + entry.target.key);
+        }
+    }
+
+    /**
+     * Forget a finished upload and delete its recording
+     * @param entry The entry
+     */
+    public synchronized void remove(Entry entry) {
+        String id = idOf(entry.target);
+        new File(directory, id + ".json").delete();
+        RecordingManifest.fileFor(entry.file).delete();
+        entry.file.delete();
+    }
+
+    private Entry load(String id) {
+        File json = new File(directory, id + ".json");
+        File file = new File(directory, id + ".wav");
+        if (!json.exists() || !file.exists()) {
+            return null;
+        }
+        try {
+            JSONObject object = new JSONObject(readText(json));
+            // entries journaled before the limits existed count from when they were last saved
+            Entry entry = new Entry(new UploadTarget(object.getString("id"), object.getString("key"), object.getString("bucket")),
+                    file, object.getLong("length"), object.optLong("createdAt", json.lastModified()));
+            // if the recording HAS changed length, the parts no longer describe it
+            if (entry.length != file.length()) {
+                return null;
+            }
+            entry.uploadId = object.optString("uploadId", null);
+            entry.partSize = object.getLong("partSize");
+            entry.transferId = object.getInt("transferId");
+            entry.attempts = object.optInt("attempts", 0);
+            JSONObject parts = object.getJSONObject("parts");
+            Iterator<String> numbers = parts.keys();
+            while (numbers.hasNext()) {
+                String number = numbers.next();
+                entry.parts.put(Integer.parseInt(number), parts.getString(number));
+            }
+            return entry;
+        } catch (IOException | JSONException | NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return entry.attempts >= maxAttempts || System.currentTimeMillis() - entry.createdAt > maxAgeMs;
+    }
+
+    private static String idOf(UploadTarget target) {
+        return SigV4Signer.sha256Hex((target.bucket + "/" + target.key).getBytes(UTF8)).substring(0, 32);
+    }
+
+    /**
+     * Copy a file, replacing any file already at the destination
+     */
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) > 0) {
+                offset += read;
+            }
+            return new String(bytes, 0, offset, UTF8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.sparohealth.wingkit.classes.upload;
+
+/**
+ * Receives the progress of a recording upload
+ */
+public interface UploadProgressListener {
+    /**
+     * Tells the listener how much of the recording has been stored. Calls are throttled and the
+     * byte count never goes backwards, even when part of the upload has to be sent again.
+     * @param bytesSent The number of bytes stored so far, including any stored before a resume
+     * @param bytesTotal The recording length
+     */
+    void onProgress(long bytesSent, long bytesTotal);
+}
@@ -0,0 +1,112 @@
+package com.sparohealth.wingkit.classes;
+
+import android.content.ContextWrapper;
+import android.media.MediaRecorder;
+
+import com.sparohealth.wingkit.classes.scheduling.VirtualTimeScheduler;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link AmbientNoiseMonitor} on a {@link VirtualTimeScheduler} with recorders that fail like the
+ * platform's once released
+ */
+public class AmbientNoiseMonitorTest {
+    /**
+     * A recorder that refuses to be used after release, as {@link MediaRecorder} does
+     */
+    private static class TrackingRecorder extends MediaRecorder {
+        boolean released = false;
+        boolean started = false;
+
+        private void checkNotReleased() {
+            if (released) {
+                throw new IllegalStateException("The recorder has been released");
+            }
+        }
+
+        @Override
+        public void setAudioSource(int source) {
+            checkNotReleased();
+        }
+
+        @Override
+        public void setOutputFile(String path) {
+            checkNotReleased();
+        }
+
+        @Override
+        public void prepare() throws IOException {
+            checkNotReleased();
+        }
+
+        @Override
+        public void start() {
+            checkNotReleased();
+            started = true;
+        }
+
+        @Override
+        public void stop() {
+            checkNotReleased();
+            started = false;
+        }
+
+        @Override
+        public int getMaxAmplitude() {
+            checkNotReleased();
+            return 1000;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    @Test
+    public void startsAgainAfterStop() throws IOException {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        final List<TrackingRecorder> recorders = new ArrayList<>();
+        AmbientNoiseMonitor monitor = new AmbientNoiseMonitor(null, scheduler) {
+            @Override
+            MediaRecorder createRecorder() {
+                TrackingRecorder recorder = new TrackingRecorder();
+                recorders.add(recorder);
+                return recorder;
+            }
+        };
+        ContextWrapper context = new ContextWrapper(null) {
+            @Override
+            public File getExternalFilesDir(String type) {
+                return new File(System.getProperty("java.io.tmpdir"));
+            }
+        };
+
+        monitor.start(context);
+        scheduler.advanceBy(monitor.getNoiseCheckInterval());
+        monitor.stop();
+        assertTrue(recorders.get(0).released);
+        // a check that was already queued when the monitor stopped does not touch the released recorder
+        scheduler.advanceBy(monitor.getNoiseCheckInterval());
+
+        monitor.start(context);
+        scheduler.advanceBy(monitor.getNoiseCheckInterval());
+        assertEquals(2, recorders.size());
+        assertTrue(recorders.get(1).started);
+        assertFalse(recorders.get(1).released);
+
+        monitor.stop();
+        // stopping twice is harmless
+        monitor.stop();
+        assertTrue(recorders.get(1).released);
+        assertEquals(0, scheduler.getPendingCount());
+    }
+}
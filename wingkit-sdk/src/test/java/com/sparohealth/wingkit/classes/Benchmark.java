@@ -0,0 +1,8 @@
+package com.sparohealth.wingkit.classes;
+
+/**
+ * JUnit category of the tests that measure cost rather than behaviour. They take seconds and print
+ * their measurements, so the unit test run leaves them out; run them with -Pbenchmarks.
+ */
+public interface Benchmark {
+}
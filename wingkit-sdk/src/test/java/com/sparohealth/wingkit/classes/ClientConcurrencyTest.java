@@ -0,0 +1,348 @@
+package com.sparohealth.wingkit.classes;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sparohealth.wingkit.classes.async.WingFuture;
+import com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs many simulated test sessions at once through one shared {@link Client} against a local
+ * stand-in for the Wing API, Cognito Identity and S3
+ */
+public class ClientConcurrencyTest {
+    private static final int SESSION_COUNT = 50;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private String baseUrl;
+    private final Gson gson = new Gson();
+    private final AtomicInteger loginCalls = new AtomicInteger();
+    private final Set<String> issuedTokens = ConcurrentHashMap.newKeySet();
+    /// session id -> patient external id, as created by the server
+    private final Map<String, String> sessions = new ConcurrentHashMap<>();
+    /// upload target id -> session id
+    private final Map<String, String> uploadTargets = new ConcurrentHashMap<>();
+    /// object key -> session id that uploaded it
+    private final Map<String, String> uploadedObjects = new ConcurrentHashMap<>();
+    private final Queue<String> serverErrors = new ConcurrentLinkedQueue<>();
+    /// Delay applied to upload target requests, to hold them open
+    private volatile long uploadTargetDelayMs = 0;
+    private final AtomicInteger abortedUploadTargetRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverThreads);
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleApi(exchange);
+            }
+        });
+        server.createContext("/cognito", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readBody(exchange);
+                long expiration = System.currentTimeMillis() / 1000 + 3600;
+                respond(exchange, 200, "{\"IdentityId\":\"us-east-1:identity\",\"Credentials\":{\"AccessKeyId\":\"ASIAEXAMPLE\","
+                        + "\"SecretKey\":\"secret\",\"SessionToken\":\"session-token\",\"Expiration\":" + expiration + "}}");
+            }
+        });
+        server.createContext("/s3", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readBody(exchange);
+                // keys look like sessions/<session id>/<upload target id>.wav
+                String key = exchange.getRequestURI().getPath().substring("/s3/wing-bucket/".length());
+                uploadedObjects.put(key, key.split("/")[1]);
+                respond(exchange, 200, "");
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverThreads.shutdown();
+    }
+
+    @Test
+    public void concurrentSessionsShareOneClient() throws Exception {
+        final Client client = newClient();
+        final File recording = recording();
+
+        ExecutorService tablets = Executors.newFixedThreadPool(SESSION_COUNT);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Queue<String> failures = new ConcurrentLinkedQueue<>();
+        final Queue<String> completed = new ConcurrentLinkedQueue<>();
+
+        for (int i = 0; i < SESSION_COUNT; i++) {
+            final String patientId = "patient-" + i;
+            final boolean refreshToken = i % 10 == 0;
+            tablets.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        runSession(client, patientId, recording, refreshToken);
+                        completed.add(patientId);
+                    } catch (Throwable ex) {
+                        failures.add(patientId + ": " + ex);
+                    }
+                }
+            });
+        }
+
+        start.countDown();
+        tablets.shutdown();
+        assertTrue("sessions did not finish", tablets.awaitTermination(60, TimeUnit.SECONDS));
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertTrue(serverErrors.toString(), serverErrors.isEmpty());
+        assertEquals(SESSION_COUNT, completed.size());
+        assertEquals(SESSION_COUNT, sessions.size());
+        assertEquals(SESSION_COUNT * 2, uploadedObjects.size());
+        // concurrent logins share a request, so there is never one login per session
+        assertTrue(loginCalls.get() < SESSION_COUNT);
+    }
+
+    @Test
+    public void futuresFanOutAndCancelRequests() throws Exception {
+        Client client = newClient();
+        client.authenticate().get(10, TimeUnit.SECONDS);
+
+        // create a session and two upload targets for an existing one at the same time
+        WingFuture<TestSession> session = client.createTestSession(
+                new PatientData("patient-a", PatientData.BiologicalSex.female, "other", 64, 30), "", 0, 0, null, null, null);
+        WingFuture<UploadTarget> first = client.createUploadTarget("session-patient-b", "patient-b");
+        WingFuture<UploadTarget> second = client.createUploadTarget("session-patient-b", "patient-b");
+        List<UploadTarget> targets = WingFuture.allAsList(Arrays.asList(first, second)).get(10, TimeUnit.SECONDS);
+
+        assertEquals("session-patient-a", session.get(10, TimeUnit.SECONDS).id);
+        assertEquals(2, targets.size());
+        assertNotEquals(targets.get(0).id, targets.get(1).id);
+
+        // a group that cannot finish in time is cancelled, which aborts the request still on the wire
+        uploadTargetDelayMs = 2000;
+        WingFuture<Void> group = WingFuture.allOf(
+                client.retrieveTestSession("session-patient-a", "patient-a"),
+                client.createUploadTarget("session-patient-a", "patient-a")).withTimeout(500, client.getScheduler());
+        try {
+            group.get(10, TimeUnit.SECONDS);
+            fail("expected the group to time out");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        Thread.sleep(2500);
+        assertEquals(1, abortedUploadTargetRequests.get());
+    }
+
+    private Client newClient() {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.baseApiUrl = baseUrl + "/api";
+        configuration.useSharedHttpStack = true;
+        configuration.httpThreadPoolSize = 4;
+        configuration.uploaderType = ClientConfiguration.UploaderType.lightweight;
+        configuration.cognitoEndpoint = baseUrl + "/cognito";
+        configuration.s3Endpoint = baseUrl + "/s3";
+        configuration.callbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        return new Client(null, "client-id", "client-secret", configuration);
+    }
+
+    private void runSession(Client client, String patientId, File recording, boolean refreshToken) throws Exception {
+        BlockingCallback login = new BlockingCallback();
+        client.authenticate(login);
+        login.await();
+
+        BlockingCallback created = new BlockingCallback();
+        client.createTestSession(new PatientData(patientId, PatientData.BiologicalSex.male, "other", 70, 40),
+                "", 0, 0, null, null, null, created);
+        TestSessionContext context = new TestSessionContext(gson.fromJson(created.await().toString(), TestSession.class));
+        TestSession session = context.getTestSession();
+        assertEquals(patientId, sessions.get(session.id));
+
+        for (int test = 0; test < 2; test++) {
+            // some sessions refresh the token while the others are mid-session
+            if (refreshToken && test == 1) {
+                BlockingCallback relogin = new BlockingCallback();
+                client.authenticate(relogin);
+                relogin.await();
+            }
+
+            UploadTarget target = context.claimUploadTarget();
+            if (target == null) {
+                BlockingCallback upload = new BlockingCallback();
+                client.createUploadTarget(session.id, session.patientId, upload);
+                context.addUploadTarget(gson.fromJson(upload.await().toString(), UploadTarget.class));
+                target = context.claimUploadTarget();
+            }
+            assertEquals(session.id, uploadTargets.get(target.id));
+
+            BlockingCallback uploaded = new BlockingCallback();
+            client.uploadFile(recording.getAbsolutePath(), target, uploaded);
+            uploaded.await();
+            assertEquals(session.id, uploadedObjects.get(target.key));
+        }
+
+        BlockingCallback retrieved = new BlockingCallback();
+        client.retrieveTestSession(session.id, session.patientId, retrieved);
+        context.refreshTestSession(gson.fromJson(retrieved.await().toString(), TestSession.class));
+        assertEquals(session.id, context.getTestSession().id);
+        assertEquals(2, context.getTestSession().uploads.size());
+        assertEquals(2, context.getUsedUploadTargetCount());
+    }
+
+    private void handleApi(HttpExchange exchange) throws IOException {
+        String body = new String(readBody(exchange), "UTF-8");
+        String path = exchange.getRequestURI().getPath().substring("/api".length());
+
+        if (path.equals("/accounts/login")) {
+            String token = "token-" + loginCalls.incrementAndGet();
+            issuedTokens.add(token);
+            respond(exchange, 200, "{\"token\":\"" + token + "\"}");
+            return;
+        }
+
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !issuedTokens.contains(authorization)) {
+            serverErrors.add("unauthorized " + path + " with '" + authorization + "'");
+            respond(exchange, 401, "{}");
+            return;
+        }
+
+        String[] parts = path.split("/");
+        if (path.equals("/test-sessions")) {
+            String patientId = gson.fromJson(body, JsonObject.class).getAsJsonObject("patient").get("externalId").getAsString();
+            String sessionId = "session-" + patientId;
+            sessions.put(sessionId, patientId);
+            respond(exchange, 200, "{\"id\":\"" + sessionId + "\",\"patientId\":\"" + patientId + "\"}");
+        }
+        else if (parts.length == 6 && parts[5].equals("upload")) {
+            String sessionId = parts[4];
+            if (uploadTargetDelayMs > 0) {
+                try {
+                    Thread.sleep(uploadTargetDelayMs);
+                    respond(exchange, 200, "{}");
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException ex) {
+                    // the client dropped the connection
+                    abortedUploadTargetRequests.incrementAndGet();
+                }
+                return;
+            }
+            String targetId = sessionId + "-target-" + uploadTargets.size() + "-" + System.nanoTime();
+            uploadTargets.put(targetId, sessionId);
+            respond(exchange, 200, "{\"id\":\"" + targetId + "\",\"key\":\"sessions/" + sessionId + "/" + targetId
+                    + ".wav\",\"bucket\":\"wing-bucket\"}");
+        }
+        else if (parts.length == 5) {
+            String sessionId = parts[4];
+            respond(exchange, 200, "{\"id\":\"" + sessionId + "\",\"patientId\":\"" + parts[2] + "\",\"tests\":[]}");
+        }
+        else {
+            serverErrors.add("unexpected " + path);
+            respond(exchange, 404, "{}");
+        }
+    }
+
+    private static File recording() throws IOException {
+        File file = File.createTempFile("recording", ".wav");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[4096]);
+        out.close();
+        return file;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+        }
+        exchange.close();
+    }
+
+    /**
+     * Turns an API callback into a blocking call for the simulated tablet threads
+     */
+    private static class BlockingCallback implements Client.WingApiCallback {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile JSONObject result;
+        private volatile Exception error;
+
+        @Override
+        public void onSuccessResponse(JSONObject result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        @Override
+        public void onErrorResponse(Exception error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        JSONObject await() throws Exception {
+            assertTrue("request timed out", done.await(20, TimeUnit.SECONDS));
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+    }
+}
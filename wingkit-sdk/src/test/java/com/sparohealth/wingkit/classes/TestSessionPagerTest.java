@@ -0,0 +1,252 @@
+package com.sparohealth.wingkit.classes;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sparohealth.wingkit.classes.async.WingFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for paging through a patient's test sessions ({@link TestSessionPager}) against a local
+ * stand-in for the Wing API
+ */
+public class TestSessionPagerTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SESSIONS = 1000;
+    private static final int PAGE_SIZE = 50;
+
+    private final Gson gson = new Gson();
+    private HttpServer server;
+    private final List<String> sessionJson = new ArrayList<>();
+    private volatile int delayMs = 5;
+    /// The page answered with a 500 once, or 0.
+    private volatile int failingPage = 0;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final List<Integer> pagesRequested = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < SESSIONS; i++) {
+            TestSession session = new TestSession();
+            session.id = "session-" + i;
+            session.patientId = "patient-1";
+            session.startedAt = new Date(1514764800000L - i * 86400000L);
+            session.lungFunctionZone = "greenZone";
+            session.pefPredicted = 480.0;
+            session.tests = new ArrayList<>();
+            for (int t = 0; t < 3; t++) {
+                com.sparohealth.wingkit.classes.Test test = new com.sparohealth.wingkit.classes.Test();
+                test.id = session.id + "-test-" + t;
+                test.status = "complete";
+                test.pef = 400.0 + t;
+                test.fev1 = 3.1;
+                session.tests.add(test);
+            }
+            sessionJson.add(gson.toJson(session));
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int running = inFlight.incrementAndGet();
+                synchronized (peakInFlight) {
+                    peakInFlight.set(Math.max(peakInFlight.get(), running));
+                }
+                try {
+                    String path = exchange.getRequestURI().getPath();
+                    String query = exchange.getRequestURI().getQuery();
+                    sleep(delayMs);
+                    byte[] bytes;
+                    if (query != null) {
+                        int page = Integer.parseInt(query.replaceAll(".*page=(\\d+).*", "$1"));
+                        int limit = Integer.parseInt(query.replaceAll(".*limit=(\\d+).*", "$1"));
+                        pagesRequested.add(page);
+                        if (page == failingPage) {
+                            failingPage = 0;
+                            exchange.sendResponseHeaders(500, -1);
+                            return;
+                        }
+                        StringBuilder body = new StringBuilder("[");
+                        for (int i = (page - 1) * limit; i < Math.min(page * limit, SESSIONS); i++) {
+                            body.append(body.length() > 1 ? "," : "").append(sessionJson.get(i));
+                        }
+                        bytes = body.append(']').toString().getBytes(UTF8);
+                    }
+                    else {
+                        int index = Integer.parseInt(path.substring(path.lastIndexOf("session-") + "session-".length()));
+                        bytes = sessionJson.get(index).getBytes(UTF8);
+                    }
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(bytes);
+                } finally {
+                    inFlight.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void pagesArriveInOrderWithBoundedPrefetch() throws Exception {
+        ClientConfiguration configuration = configuration();
+        configuration.prefetchPages = 2;
+        TestSessionPager pager = newClient(configuration).pageTestSessions("patient-1", PAGE_SIZE);
+
+        Set<String> seen = new HashSet<>();
+        int expected = 0;
+        int pages = 0;
+        while (pager.hasMore()) {
+            List<TestSession> page = pager.next().get(10, TimeUnit.SECONDS);
+            for (TestSession session : page) {
+                assertEquals("session-" + expected++, session.id);
+                assertEquals(3, session.tests.size());
+                assertTrue(seen.add(session.id));
+            }
+            pages++;
+            // a slow screen: the pages fetched ahead arrive, and no more are asked for meanwhile
+            sleep(4 * delayMs);
+            synchronized (pagesRequested) {
+                assertTrue(pagesRequested.size() <= pages + 2);
+            }
+        }
+        assertEquals(SESSIONS, seen.size());
+        assertEquals(SESSIONS / PAGE_SIZE + 1, pages);
+        assertTrue(pager.next().get().isEmpty());
+        assertTrue(peakInFlight.get() <= configuration.pageRequestConcurrency);
+    }
+
+    @Test
+    public void concurrentPagersShareTheRequestLimit() throws Exception {
+        ClientConfiguration configuration = configuration();
+        configuration.prefetchPages = 3;
+        Client client = newClient(configuration);
+
+        List<WingFuture<List<TestSession>>> pages = new ArrayList<>();
+        for (int page = 1; page <= 8; page++) {
+            pages.add(client.listTestSessions("patient-1", page, PAGE_SIZE));
+        }
+        for (int page = 0; page < pages.size(); page++) {
+            assertEquals("session-" + page * PAGE_SIZE, pages.get(page).get(10, TimeUnit.SECONDS).get(0).id);
+        }
+        assertEquals(configuration.pageRequestConcurrency, peakInFlight.get());
+    }
+
+    @Test
+    public void failedPageIsAskedForAgain() throws Exception {
+        ClientConfiguration configuration = configuration();
+        configuration.prefetchPages = 1;
+        TestSessionPager pager = newClient(configuration).pageTestSessions("patient-1", PAGE_SIZE);
+        failingPage = 2;
+
+        assertEquals("session-0", pager.next().get(10, TimeUnit.SECONDS).get(0).id);
+        // page 2 is fetched ahead and fails: it is asked for again rather than reported
+        while (failingPage != 0) {
+            sleep(1);
+        }
+        sleep(10 * delayMs);
+        List<TestSession> second = pager.next().get(10, TimeUnit.SECONDS);
+        assertEquals("session-" + PAGE_SIZE, second.get(0).id);
+        assertEquals(2, Collections.frequency(pagesRequested, 2));
+
+        // without prefetch, the failure of the page waited for is reported and the next call asks for it again
+        configuration.prefetchPages = 0;
+        pager = newClient(configuration).pageTestSessions("patient-1", PAGE_SIZE);
+        failingPage = 1;
+        try {
+            pager.next().get(10, TimeUnit.SECONDS);
+            fail("The failed page was not reported");
+        } catch (ExecutionException expected) {
+        }
+        assertEquals("session-0", pager.next().get(10, TimeUnit.SECONDS).get(0).id);
+        assertEquals("session-" + PAGE_SIZE, pager.next().get(10, TimeUnit.SECONDS).get(0).id);
+    }
+
+    @Category(Benchmark.class)
+    @Test
+    public void pagingCosts() throws Exception {
+        delayMs = 5;
+        ClientConfiguration configuration = configuration();
+        Client client = newClient(configuration);
+
+        // what an app did before: one request per session, one after another
+        int sessions = 100;
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            assertNotNull(client.retrieveTestSession("session-" + i, "patient-1").get(10, TimeUnit.SECONDS));
+        }
+        long single = System.nanoTime() - start;
+
+        TestSessionPager pager = client.pageTestSessions("patient-1", PAGE_SIZE);
+        start = System.nanoTime();
+        int paged = 0;
+        while (paged < sessions) {
+            paged += pager.next().get(10, TimeUnit.SECONDS).size();
+        }
+        long pages = System.nanoTime() - start;
+        pager.cancel();
+
+        assertTrue(pages < single);
+        System.out.println(String.format("%d sessions with %d ms per request: %.0f ms one at a time, %.0f ms in pages of %d",
+                sessions, delayMs, single / 1e6, pages / 1e6, PAGE_SIZE));
+    }
+
+    private ClientConfiguration configuration() {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.baseApiUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+        configuration.useSharedHttpStack = true;
+        configuration.httpThreadPoolSize = 4;
+        configuration.uploaderType = ClientConfiguration.UploaderType.lightweight;
+        configuration.callbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        return configuration;
+    }
+
+    private Client newClient(ClientConfiguration configuration) {
+        return new Client(null, "client-id", "client-secret", configuration);
+    }
+
+    private static void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.sparohealth.wingkit.classes;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sparohealth.wingkit.classes.network.HttpResponse;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for conditional test session polls ({@link TestSessionSync}) against a local stand-in for the
+ * Wing API, and the bytes and parse time each poll costs
+ */
+public class TestSessionSyncTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int CURVE_POINTS = 400;
+
+    private final Gson gson = new Gson();
+    private HttpServer server;
+    private volatile String sessionJson;
+    private volatile boolean sendEtags = true;
+    private final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = sessionJson;
+                String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+                String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+                ifNoneMatch.add(condition);
+                if (sendEtags) {
+                    exchange.getResponseHeaders().set("ETag", etag);
+                }
+                if (sendEtags && etag.equals(condition)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] bytes = body.getBytes(UTF8);
+                bytesSent.addAndGet(bytes.length);
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void unchangedPollsAreNotParsedAgain() throws Exception {
+        Client client = newClient();
+        TestSession[] states = states();
+
+        sessionJson = gson.toJson(states[0]);
+        TestSession first = poll(client);
+        assertNull(ifNoneMatch.get(0));
+        assertEquals(3, first.tests.size());
+        first.uploads = new ArrayList<>();
+
+        // nothing changed: the server answers 304 and the session is a copy of the last one
+        long bytes = bytesSent.get();
+        TestSession unchanged = poll(client);
+        assertNotNull(ifNoneMatch.get(1));
+        assertEquals(bytes, bytesSent.get());
+        assertNotSame(first, unchanged);
+        assertNull(unchanged.uploads);
+        assertSame(first.tests.get(0), unchanged.tests.get(0));
+
+        // the second test finished: the first, finished already, is reused
+        sessionJson = gson.toJson(states[1]);
+        TestSession second = poll(client);
+        assertSame(first.tests.get(0), second.tests.get(0));
+        assertNotSame(first.tests.get(1), second.tests.get(1));
+        assertEquals("complete", second.tests.get(1).status);
+        assertEquals(CURVE_POINTS, second.tests.get(1).exhaleCurve.length);
+        assertEquals(states[1].tests.get(1).pef, second.tests.get(1).pef);
+        assertEquals("processing", second.tests.get(2).status);
+
+        // a server that sends no ETag: an identical body is still not parsed again
+        sendEtags = false;
+        TestSession repeated = poll(client);
+        TestSession again = poll(client);
+        assertSame(repeated.tests.get(1), again.tests.get(1));
+        assertSame(repeated.tests.get(2), again.tests.get(2));
+    }
+
+    @Test
+    public void onlyChangedPollsAreStored() throws Exception {
+        final List<TestSession> stored = new ArrayList<>();
+        Client client = new Client(null, "client-id", "client-secret", configuration()) {
+            @Override
+            public void recordInHistory(TestSession session) {
+                stored.add(session);
+            }
+        };
+        TestSession[] states = states();
+
+        sessionJson = gson.toJson(states[0]);
+        poll(client);
+        poll(client);
+        assertEquals(1, stored.size());
+
+        sessionJson = gson.toJson(states[1]);
+        TestSession changed = poll(client);
+        poll(client);
+        assertEquals(2, stored.size());
+        assertSame(changed, stored.get(1));
+    }
+
+    @Category(Benchmark.class)
+    @Test
+    public void pollCosts() throws Exception {
+        TestSession[] states = states();
+        // a session being processed: polled twice before each of its last two tests finishes, then once more
+        String[] polls = {
+                gson.toJson(states[0]), gson.toJson(states[0]), gson.toJson(states[1]), gson.toJson(states[1]),
+                gson.toJson(states[2]), gson.toJson(states[2]) };
+        HttpResponse[] responses = new HttpResponse[polls.length];
+        long fullBytes = 0;
+        long conditionalBytes = 0;
+        for (int i = 0; i < polls.length; i++) {
+            boolean changed = i == 0 || !polls[i].equals(polls[i - 1]);
+            byte[] body = polls[i].getBytes(UTF8);
+            Map<String, String> headers = new HashMap<>();
+            headers.put("etag", "\"" + Integer.toHexString(polls[i].hashCode()) + "\"");
+            responses[i] = new HttpResponse(changed ? 200 : 304, headers, changed ? body : new byte[0]);
+            fullBytes += body.length;
+            conditionalBytes += responses[i].body.length;
+        }
+
+        int rounds = 60;
+        long fullNanos = 0;
+        long conditionalNanos = 0;
+        for (int round = 0; round < rounds + 10; round++) {
+            // what every poll did before: the JSON object the HTTP stack built, written out again and read by Gson
+            long start = System.nanoTime();
+            for (String poll : polls) {
+                assertNotNull(new Gson().fromJson(new JSONObject(poll).toString(), TestSession.class));
+            }
+            long full = System.nanoTime() - start;
+
+            TestSessionSync sync = new TestSessionSync();
+            start = System.nanoTime();
+            for (HttpResponse response : responses) {
+                assertNotNull(sync.read("session", response).session);
+            }
+            long conditional = System.nanoTime() - start;
+            // the first rounds warm up the JIT
+            if (round >= 10) {
+                fullNanos += full;
+                conditionalNanos += conditional;
+            }
+        }
+
+        assertTrue(conditionalNanos < fullNanos);
+        System.out.println(String.format("%d polls of a 3-test session, in total: %.1f KB and %.2f ms unconditionally, %.1f KB and %.2f ms conditionally",
+                polls.length, fullBytes / 1024.0, fullNanos / 1e6 / rounds, conditionalBytes / 1024.0, conditionalNanos / 1e6 / rounds));
+    }
+
+    private TestSession poll(Client client) throws Exception {
+        return client.retrieveTestSession("session-1", "patient-1").get(10, TimeUnit.SECONDS);
+    }
+
+    private Client newClient() {
+        return new Client(null, "client-id", "client-secret", configuration());
+    }
+
+    private ClientConfiguration configuration() {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.baseApiUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+        configuration.useSharedHttpStack = true;
+        configuration.uploaderType = ClientConfiguration.UploaderType.lightweight;
+        configuration.callbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        return configuration;
+    }
+
+    /**
+     * A session as it is processed: one, two, then all three tests complete
+     */
+    private static TestSession[] states() {
+        TestSession[] states = new TestSession[3];
+        for (int finished = 1; finished <= 3; finished++) {
+            TestSession session = new TestSession();
+            session.id = "session-1";
+            session.patientId = "patient-1";
+            session.startedAt = new Date(1514764800000L);
+            session.pefPredicted = 480.0;
+            session.tests = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                com.sparohealth.wingkit.classes.Test test = new com.sparohealth.wingkit.classes.Test();
+                test.id = "test-" + i;
+                test.uploadTargetId = "target-" + i;
+                test.status = i < finished ? "complete" : "processing";
+                if (i < finished) {
+                    test.pef = 400.0 + 10 * i;
+                    test.fev1 = 3.1 + 0.1 * i;
+                    test.totalVolume = 4.2;
+                    test.exhaleCurve = new Double[CURVE_POINTS][];
+                    for (int point = 0; point < CURVE_POINTS; point++) {
+                        test.exhaleCurve[point] = new Double[] { point * 4.2 / CURVE_POINTS, test.pef * Math.exp(-point / 80.0) };
+                    }
+                }
+                session.tests.add(test);
+            }
+            session.bestTestChoice = finished == 3 ? "highestReproducible" : null;
+            session.bestTest = finished == 3 ? session.tests.get(2) : null;
+            session.lungFunctionZone = finished == 3 ? "greenZone" : null;
+            states[finished - 1] = session;
+        }
+        return states;
+    }
+}
@@ -0,0 +1,140 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import com.sparohealth.wingkit.classes.Benchmark;
+import com.sparohealth.wingkit.classes.analysis.EffortClassification.Issue;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.sparohealth.wingkit.classes.analysis.FlowFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link EffortClassifier} on synthetic blows of known shape, and measures its cost
+ */
+public class EffortClassifierTest {
+    private final Random random = new Random(9);
+
+    @Test
+    public void goodBlowHasNoIssues() {
+        EffortClassification result = classify(new Blow(6, 0.08, 0.6));
+        assertEquals(EnumSet.noneOf(Issue.class), result.issues);
+        assertTrue(result.isAcceptable());
+        assertTrue(result.timeToPeakMs <= 120);
+    }
+
+    @Test
+    public void slowRiseIsSlowStart() {
+        EffortClassification result = classify(new Blow(6, 0.4, 0.6));
+        assertTrue(result.hasIssue(Issue.slowStart));
+        assertFalse(result.isAcceptable());
+    }
+
+    @Test
+    public void leadingTrickleIsHesitantStart() {
+        // a 400 ms leak building up to 1.5 L/s before the real blow
+        final Blow main = new Blow(6, 0.08, 0.6);
+        Blow blow = new Blow(6, 0.08, 0.6, 0.4 + main.duration) {
+            @Override
+            double flow(double t) {
+                double into = t - LEAD_IN;
+                if (into < 0 || into > duration) {
+                    return 0;
+                }
+                if (into < 0.4) {
+                    return 1.5 * into / 0.4;
+                }
+                return main.flow(t - 0.4);
+            }
+        };
+        EffortClassification result = classify(blow);
+        assertTrue(result.hasIssue(Issue.hesitantStart));
+        assertTrue(result.extrapolatedVolumeFraction > 0.05);
+    }
+
+    @Test
+    public void reboundAfterPeakIsCough() {
+        final Blow clean = new Blow(6, 0.08, 0.6);
+        Blow blow = new Blow(6, 0.08, 0.6, clean.duration) {
+            @Override
+            double flow(double t) {
+                double into = t - LEAD_IN;
+                // a 60 ms burst 400 ms into the blow, staying below the peak
+                double burst = into > 0.4 && into < 0.46 ? 1.8 : 0;
+                return clean.flow(t) + burst;
+            }
+        };
+        assertTrue(classify(blow).hasIssue(Issue.cough));
+    }
+
+    @Test
+    public void shortAndAbruptBlowsAreEarlyStops() {
+        EffortClassification shortBlow = classify(new Blow(6, 0.08, 0.15));
+        assertTrue(shortBlow.hasIssue(Issue.earlyStop));
+        assertTrue(shortBlow.blowDurationMs < 1000);
+
+        // a slow decay cut off at 1.5 s while still at about half of PEF
+        EffortClassification abrupt = classify(new Blow(6, 0.08, 2.0, 1.5));
+        assertTrue(abrupt.hasIssue(Issue.earlyStop));
+        assertTrue(abrupt.blowDurationMs >= 1000);
+    }
+
+    @Test
+    public void configurationDecidesWhatIsRejected() {
+        EffortConfiguration lenient = new EffortConfiguration();
+        lenient.rejectedIssues = EnumSet.of(Issue.noBlow, Issue.cough);
+        EffortClassifier classifier = new EffortClassifier(lenient, CALIBRATION);
+        classifier.consume(envelopeOf(render(new Blow(6, 0.4, 0.6), random)));
+
+        EffortClassification result = classifier.classify();
+        assertTrue(result.hasIssue(Issue.slowStart));
+        assertTrue(result.isAcceptable());
+
+        EffortClassifier silent = new EffortClassifier(lenient, CALIBRATION);
+        silent.consume(envelopeOf(new short[SAMPLE_RATE]));
+        assertFalse(silent.classify().isAcceptable());
+    }
+
+    @Category(Benchmark.class)
+    @Test
+    public void cpuCostPerRecording() {
+        // a full 6 s recording, fed one 40 ms capture buffer (4 frames) at a time like the recorder does
+        FlowEnvelope full = envelopeOf(render(new Blow(6, 0.08, 0.6, 5.0), random));
+        FlowEnvelope growing = new FlowEnvelope(full.getRateHz(), full.size());
+        long consumeNanos = 0;
+        long classifyNanos = 0;
+        int runs = 2000;
+        for (int run = 0; run < runs + 500; run++) {
+            growing.reset();
+            EffortClassifier classifier = new EffortClassifier(new EffortConfiguration(), CALIBRATION);
+            long started = System.nanoTime();
+            for (int i = 0; i < full.size(); i++) {
+                growing.append(full.get(i));
+                if (i % 4 == 3) {
+                    classifier.consume(growing);
+                }
+            }
+            classifier.consume(growing);
+            long consumed = System.nanoTime();
+            classifier.classify();
+            // the first runs warm up the JIT
+            if (run >= 500) {
+                consumeNanos += consumed - started;
+                classifyNanos += System.nanoTime() - consumed;
+            }
+        }
+        System.out.println(String.format("effort classifier: %d frames, %.1f us streaming per recording, %.1f us to classify at the end",
+                full.size(), consumeNanos / 1000.0 / runs, classifyNanos / 1000.0 / runs));
+        // generous bound so slow CI machines pass; the point is the printed figure
+        assertTrue(classifyNanos / runs < 2000000);
+    }
+
+    private EffortClassification classify(Blow blow) {
+        EffortClassifier classifier = new EffortClassifier(new EffortConfiguration(), CALIBRATION);
+        classifier.consume(envelopeOf(render(blow, random)));
+        return classifier.classify();
+    }
+}
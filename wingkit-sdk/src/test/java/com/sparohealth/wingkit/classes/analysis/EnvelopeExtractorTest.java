@@ -0,0 +1,95 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the envelope produced by {@link EnvelopeExtractor} from synthetic PCM
+ */
+public class EnvelopeExtractorTest {
+    private static final int SAMPLE_RATE = 44100;
+
+    @Test
+    public void sineProducesRmsAtEnvelopeRate() {
+        EnvelopeExtractor extractor = EnvelopeExtractor.create(SAMPLE_RATE, 100, 1000);
+        short[] pcm = tone(SAMPLE_RATE, 1000, 0.5);
+
+        assertEquals(100, extractor.process(pcm, 0, pcm.length));
+
+        FlowEnvelope envelope = extractor.getEnvelope();
+        assertEquals(1000, envelope.getDurationMs());
+        // past the filter's settling time the RMS of a sine is its amplitude / sqrt(2)
+        for (int i = 5; i < envelope.size(); i++) {
+            assertEquals(0.5 / Math.sqrt(2), envelope.get(i), 0.005);
+        }
+    }
+
+    @Test
+    public void bytesSplitAnywhereMatchSamples() {
+        short[] pcm = tone(SAMPLE_RATE, 440, 0.25);
+        byte[] bytes = new byte[pcm.length * 2];
+        for (int i = 0; i < pcm.length; i++) {
+            bytes[2 * i] = (byte) pcm[i];
+            bytes[2 * i + 1] = (byte) (pcm[i] >> 8);
+        }
+
+        EnvelopeExtractor fromSamples = EnvelopeExtractor.create(SAMPLE_RATE, 100, 0);
+        fromSamples.process(pcm, 0, pcm.length);
+        EnvelopeExtractor fromBytes = EnvelopeExtractor.create(SAMPLE_RATE, 100, 0);
+        // odd-sized reads leave half a sample for the next call
+        for (int offset = 0; offset < bytes.length; offset += 1001) {
+            fromBytes.process(bytes, offset, Math.min(1001, bytes.length - offset));
+        }
+
+        FlowEnvelope expected = fromSamples.getEnvelope();
+        FlowEnvelope actual = fromBytes.getEnvelope();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), actual.get(i), 0f);
+        }
+    }
+
+    @Test
+    public void fractionalFrameLengthKeepsRate() {
+        // 22050 / 100 is not a whole number of samples per frame
+        EnvelopeExtractor extractor = EnvelopeExtractor.create(22050, 100, 0);
+        short[] silence = new short[22050 * 3];
+        extractor.process(silence, 0, silence.length);
+        assertEquals(300, extractor.getEnvelope().size());
+    }
+
+    @Test
+    public void envelopeGrowsWithoutLosingValues() {
+        FlowEnvelope envelope = new FlowEnvelope(100, 2);
+        float[] first = envelope.getValues();
+        for (int i = 0; i < 10; i++) {
+            envelope.append(i);
+        }
+        assertEquals(10, envelope.size());
+        assertNotSame(first, envelope.getValues());
+        assertEquals(9f, envelope.getPeak(), 0f);
+        assertEquals(9, envelope.getPeakIndex());
+        assertEquals(0f, first[0], 0f);
+        assertEquals(1f, first[1], 0f);
+
+        envelope.reset();
+        assertEquals(0, envelope.size());
+        assertEquals(-1, envelope.getPeakIndex());
+    }
+
+    /**
+     * Generate a sine tone
+     * @param sampleRate The sample rate (Hz)
+     * @param durationMs The length (ms)
+     * @param amplitude The amplitude (full scale = 1.0)
+     * @return 16-bit samples
+     */
+    static short[] tone(int sampleRate, int durationMs, double amplitude) {
+        short[] pcm = new short[sampleRate * durationMs / 1000];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * 1000 * i / sampleRate));
+        }
+        return pcm;
+    }
+}
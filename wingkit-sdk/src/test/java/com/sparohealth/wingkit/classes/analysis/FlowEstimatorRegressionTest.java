@@ -0,0 +1,94 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import com.sparohealth.wingkit.classes.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.sparohealth.wingkit.classes.analysis.FlowFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link FlowEstimator} against the reference flow of synthetic {@link FlowFixtures} blows
+ */
+public class FlowEstimatorRegressionTest {
+    @org.junit.Test
+    public void syntheticBlowsMatchReference() {
+        List<double[]> errors = new ArrayList<>();
+        Random random = new Random(7);
+        FlowEstimator estimator = new FlowEstimator(CALIBRATION);
+
+        for (double pef : new double[] {3, 5, 7, 9}) {
+            for (double decay : new double[] {0.4, 0.6, 0.9}) {
+                Blow blow = new Blow(pef, 0.1, decay);
+                FlowEstimate estimate = estimator.estimate(envelopeOf(render(blow, random)));
+                Test reference = blow.reference();
+
+                assertFalse(estimate.hasFlag(FlowEstimate.Flag.noBlowDetected));
+                assertTrue(estimate.provisional);
+                assertEquals(reference.pef, estimate.pef, estimate.pefUncertainty);
+                assertEquals(reference.fev1, estimate.fev1, estimate.fev1Uncertainty);
+                assertEquals(reference.breathDuration, estimate.breathDuration, estimate.breathDurationUncertainty);
+                errors.add(new double[] {relativeError(estimate.pef, reference.pef), relativeError(estimate.fev1, reference.fev1)});
+            }
+        }
+        // individual blows stay within their uncertainty; on average they are much closer
+        assertEquals(0, meanAbsolute(errors, 0), 0.05);
+        assertEquals(0, meanAbsolute(errors, 1), 0.05);
+    }
+
+    @org.junit.Test
+    public void calibrationFitRecoversPowerLaw() {
+        double[] peaks = new double[20];
+        double[] pefs = new double[20];
+        Random random = new Random(3);
+        for (int i = 0; i < peaks.length; i++) {
+            pefs[i] = 2 + i * 0.4;
+            double level = Math.pow(pefs[i] / 12.0, 1 / 0.6) * (1 + 0.02 * random.nextGaussian());
+            peaks[i] = level + 0.002;
+        }
+
+        FlowCalibration fitted = FlowCalibration.fit(peaks, pefs, 0.002);
+
+        assertTrue(fitted.fitted);
+        assertEquals(0.6, fitted.exponent, 0.02);
+        assertEquals(12.0, fitted.gain, 0.6);
+        // 2% noise on the envelope is about 1.2% on flow, so +/-2.4% at two standard deviations
+        assertEquals(0.024, fitted.relativeUncertainty, 0.01);
+    }
+
+    @org.junit.Test
+    public void silenceAndWavRoundTrip() throws IOException {
+        Blow blow = new Blow(6, 0.1, 0.5);
+        short[] pcm = render(blow, new Random(11));
+        File file = File.createTempFile("blow", ".wav");
+        try {
+            writeWav(file, pcm);
+            PcmWavFile wav = PcmWavFile.read(file);
+            assertEquals(SAMPLE_RATE, wav.sampleRate);
+            assertArrayEquals(pcm, wav.samples);
+        } finally {
+            file.delete();
+        }
+
+        FlowEstimate silent = new FlowEstimator(FlowCalibration.UNCALIBRATED).estimate(envelopeOf(new short[SAMPLE_RATE]));
+        assertTrue(silent.hasFlag(FlowEstimate.Flag.noBlowDetected));
+        assertTrue(silent.hasFlag(FlowEstimate.Flag.uncalibrated));
+        assertNull(silent.pef);
+    }
+
+    private static double relativeError(double estimate, double reference) {
+        return (estimate - reference) / reference;
+    }
+
+    private static double meanAbsolute(List<double[]> errors, int column) {
+        double mean = 0;
+        for (double[] error : errors) {
+            mean += Math.abs(error[column]) / errors.size();
+        }
+        return mean;
+    }
+}
@@ -0,0 +1,174 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import com.google.gson.Gson;
+import com.sparohealth.wingkit.classes.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Recordings for the analysis tests.
+ *
+ * Recorded fixtures are read from the flow-fixtures test resource folder: each recording.wav is
+ * paired with recording.json holding the processed {@link Test} the server returned for it. Synthetic
+ * fixtures are blows with a known flow curve, rendered as noise shaped by {@link #CALIBRATION}.
+ */
+class FlowFixtures {
+    static final int SAMPLE_RATE = 44100;
+    /// The calibration the synthetic recordings are rendered with
+    static final FlowCalibration CALIBRATION = new FlowCalibration(14.6, 0.5, 0.002, 0.1, true);
+    /// The background noise of a quiet room, below the calibration's noise floor
+    static final double QUIET_ROOM = CALIBRATION.noiseFloor / 2;
+
+    /**
+     * A recording and the server's result for it
+     */
+    static class Recorded {
+        final String name;
+        final PcmWavFile wav;
+        final Test result;
+
+        Recorded(String name, PcmWavFile wav, Test result) {
+            this.name = name;
+            this.wav = wav;
+            this.result = result;
+        }
+    }
+
+    /**
+     * A blow that rises linearly to PEF and then decays exponentially, after half a second of quiet
+     */
+    static class Blow {
+        static final double LEAD_IN = 0.5;
+        final double pef;
+        final double rise;
+        final double decay;
+        final double duration;
+
+        Blow(double pef, double rise, double decay) {
+            // the blow ends where flow falls to 5% of PEF
+            this(pef, rise, decay, rise + decay * Math.log(20));
+        }
+
+        /**
+         * A blow with a fixed length; subclasses change its shape by overriding {@link #flow}
+         */
+        Blow(double pef, double rise, double decay, double duration) {
+            this.pef = pef;
+            this.rise = rise;
+            this.decay = decay;
+            this.duration = duration;
+        }
+
+        double flow(double t) {
+            t -= LEAD_IN;
+            if (t < 0 || t > duration) {
+                return 0;
+            }
+            return t < rise ? pef * t / rise : pef * Math.exp(-(t - rise) / decay);
+        }
+
+        double volume(double until) {
+            double rising = Math.min(until, rise);
+            double volume = pef * rising * rising / (2 * rise);
+            if (until > rise) {
+                volume += pef * decay * (1 - Math.exp(-(until - rise) / decay));
+            }
+            return volume;
+        }
+
+        Test reference() {
+            Test test = new Test();
+            test.pef = pef;
+            test.fev1 = volume(1);
+            test.totalVolume = volume(duration);
+            test.breathDuration = duration;
+            return test;
+        }
+    }
+
+    /**
+     * Load the recorded fixtures
+     * @return fixtures, empty when the folder is missing
+     */
+    static List<Recorded> loadRecorded() throws IOException {
+        List<Recorded> fixtures = new ArrayList<>();
+        URL folder = FlowFixtures.class.getClassLoader().getResource("flow-fixtures");
+        // if there ARE no recorded fixtures in this checkout...
+        if (folder == null) {
+            return fixtures;
+        }
+        for (File recording : new File(folder.getPath()).listFiles()) {
+            File result = new File(recording.getPath().replaceAll("\\.wav$", ".json"));
+            if (!recording.getName().endsWith(".wav") || !result.exists()) {
+                continue;
+            }
+            Reader reader = new FileReader(result);
+            try {
+                fixtures.add(new Recorded(recording.getName(), PcmWavFile.read(recording), new Gson().fromJson(reader, Test.class)));
+            } finally {
+                reader.close();
+            }
+        }
+        return fixtures;
+    }
+
+    /**
+     * Render a blow in a quiet room
+     */
+    static short[] render(Blow blow, Random random) {
+        return render(blow, QUIET_ROOM, random);
+    }
+
+    /**
+     * Render a blow as noise whose RMS follows the calibration, with room noise added throughout
+     * @param background The RMS of the room noise (full scale = 1.0)
+     */
+    static short[] render(Blow blow, double background, Random random) {
+        short[] pcm = new short[(int) ((Blow.LEAD_IN + blow.duration + 1) * SAMPLE_RATE)];
+        for (int i = 0; i < pcm.length; i++) {
+            double flow = blow.flow((double) i / SAMPLE_RATE);
+            double level = background;
+            if (flow > 0) {
+                double blowLevel = CALIBRATION.noiseFloor + Math.pow(flow / CALIBRATION.gain, 1 / CALIBRATION.exponent);
+                level = Math.sqrt(blowLevel * blowLevel + background * background);
+            }
+            pcm[i] = (short) Math.max(-32768, Math.min(32767, Math.round(random.nextGaussian() * level * 32768)));
+        }
+        return pcm;
+    }
+
+    static FlowEnvelope envelopeOf(short[] pcm, int sampleRate) {
+        EnvelopeExtractor extractor = EnvelopeExtractor.create(sampleRate, EnvelopeExtractor.DEFAULT_RATE_HZ, pcm.length * 1000L / sampleRate);
+        extractor.process(pcm, 0, pcm.length);
+        return extractor.getEnvelope();
+    }
+
+    static FlowEnvelope envelopeOf(short[] pcm) {
+        return envelopeOf(pcm, SAMPLE_RATE);
+    }
+
+    static void writeWav(File file, short[] pcm) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(44 + pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[] {'R', 'I', 'F', 'F'}).putInt(36 + pcm.length * 2).put(new byte[] {'W', 'A', 'V', 'E'});
+        buffer.put(new byte[] {'f', 'm', 't', ' '}).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16);
+        buffer.put(new byte[] {'d', 'a', 't', 'a'}).putInt(pcm.length * 2);
+        buffer.asShortBuffer().put(pcm);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+    }
+}
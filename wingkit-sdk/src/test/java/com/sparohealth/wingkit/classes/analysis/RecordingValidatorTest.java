@@ -0,0 +1,119 @@
+package com.sparohealth.wingkit.classes.analysis;
+
+import com.sparohealth.wingkit.classes.Test;
+
+import org.junit.Assume;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static com.sparohealth.wingkit.classes.analysis.FlowFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link RecordingValidator} and the server errors it avoids on the {@link FlowFixtures} corpora
+ */
+public class RecordingValidatorTest {
+    private final RecordingValidator validator = new RecordingValidator(new ValidityConfiguration());
+
+    @org.junit.Test
+    public void quietRoomBlowIsValid() {
+        RecordingValidity validity = validator.validate(envelopeOf(render(new Blow(5, 0.1, 0.6), new Random(1))), Double.NaN);
+        assertEquals(RecordingValidity.Verdict.valid, validity.verdict);
+        assertTrue(validity.snrDb > 20);
+        assertFalse(validity.baselineUsed);
+    }
+
+    @org.junit.Test
+    public void noisyBaselineRejectsRecording() {
+        FlowEnvelope envelope = envelopeOf(render(new Blow(3, 0.1, 0.6), new Random(2)));
+        assertTrue(validator.validate(envelope, Double.NaN).isAcceptable());
+
+        // the room got loud after the recording's quiet lead-in; only the baseline shows it
+        double noisyRoomDb = 20 * Math.log10(0.03) + new ValidityConfiguration().baselineCrestFactorDb;
+        RecordingValidity validity = validator.validate(envelope, noisyRoomDb);
+        assertEquals(RecordingValidity.Verdict.rejected, validity.verdict);
+        assertEquals(RecordingValidity.Reason.tooNoisy, validity.reason);
+        assertTrue(validity.baselineUsed);
+    }
+
+    @org.junit.Test
+    public void silenceAndSaturationAreRejected() {
+        assertEquals(RecordingValidity.Reason.noSignal, validator.validate(envelopeOf(new short[SAMPLE_RATE]), Double.NaN).reason);
+
+        short[] saturated = new short[SAMPLE_RATE];
+        for (int i = 0; i < saturated.length; i++) {
+            saturated[i] = (short) (i % 2 == 0 ? 32767 : -32768);
+        }
+        assertEquals(RecordingValidity.Reason.tooLoud, validator.validate(envelopeOf(saturated), Double.NaN).reason);
+    }
+
+    /**
+     * Without server results for the synthetic corpus, a recording counts as one the server would
+     * fail when the on-device estimate of it misses the true PEF or FEV1 by more than 20%.
+     */
+    @org.junit.Test
+    public void syntheticCorpusAvoidsServerErrors() {
+        Random random = new Random(5);
+        FlowEstimator estimator = new FlowEstimator(CALIBRATION);
+        Tally tally = new Tally();
+
+        for (double room : new double[] {0.001, 0.005, 0.01, 0.02, 0.04, 0.08}) {
+            for (double pef : new double[] {2, 4, 6, 9}) {
+                Blow blow = new Blow(pef, 0.1, 0.6);
+                FlowEnvelope envelope = envelopeOf(render(blow, room, random));
+                FlowEstimate estimate = estimator.estimate(envelope);
+                Test reference = blow.reference();
+                boolean serverError = estimate.pef == null
+                        || Math.abs(estimate.pef - reference.pef) > 0.2 * reference.pef
+                        || Math.abs(estimate.fev1 - reference.fev1) > 0.2 * reference.fev1;
+
+                double baselineDb = 20 * Math.log10(room) + new ValidityConfiguration().baselineCrestFactorDb;
+                tally.add(serverError, validator.validate(envelope, baselineDb));
+            }
+        }
+        assertTrue(tally.errors > 0);
+        tally.assertAvoidsErrors();
+    }
+
+    @org.junit.Test
+    public void recordedCorpusAvoidsServerErrors() throws IOException {
+        Tally tally = new Tally();
+        for (Recorded fixture : loadRecorded()) {
+            boolean serverError = Test.TestStatus.error.name().equals(fixture.result.status);
+            tally.add(serverError, validator.validate(envelopeOf(fixture.wav.samples, fixture.wav.sampleRate), Double.NaN));
+        }
+        Assume.assumeTrue("No recorded fixtures in this checkout", tally.total > 0);
+        tally.assertAvoidsErrors();
+    }
+
+    /**
+     * Counts validator verdicts against server outcomes
+     */
+    private static class Tally {
+        int total = 0;
+        int errors = 0;
+        int avoided = 0;
+        int falseRejects = 0;
+
+        void add(boolean serverError, RecordingValidity validity) {
+            total++;
+            if (serverError) {
+                errors++;
+                if (!validity.isAcceptable()) {
+                    avoided++;
+                }
+            } else if (!validity.isAcceptable()) {
+                falseRejects++;
+            }
+        }
+
+        /**
+         * Check that most server errors are avoided without rejecting many good recordings
+         */
+        void assertAvoidsErrors() {
+            assertTrue(avoided + " of " + errors + " errors avoided", avoided >= errors * 0.8);
+            assertTrue(falseRejects + " good recordings rejected", falseRejects <= (total - errors) * 0.1);
+        }
+    }
+}
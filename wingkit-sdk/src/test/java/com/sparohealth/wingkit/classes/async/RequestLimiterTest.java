@@ -0,0 +1,79 @@
+package com.sparohealth.wingkit.classes.async;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the limit, ordering and cancellation of calls in {@link RequestLimiter}
+ */
+public class RequestLimiterTest {
+    private final List<WingFuture<Integer>> started = new ArrayList<>();
+
+    @Test
+    public void callsOverTheLimitWaitInOrder() throws Exception {
+        RequestLimiter limiter = new RequestLimiter(2);
+        List<WingFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(limiter.submit(call()));
+        }
+        assertEquals(2, started.size());
+        assertEquals(2, limiter.getRunning());
+
+        started.get(1).complete(1);
+        assertEquals(Integer.valueOf(1), results.get(1).get());
+        assertEquals(3, started.size());
+        started.get(0).fail(new IllegalStateException("failed"));
+        try {
+            results.get(0).get();
+            fail("The failure was not passed on");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(4, started.size());
+
+        started.get(2).complete(2);
+        started.get(3).complete(3);
+        assertEquals(Integer.valueOf(3), results.get(3).get());
+        assertEquals(0, limiter.getRunning());
+    }
+
+    @Test
+    public void cancelledCallsAreNotStarted() throws Exception {
+        RequestLimiter limiter = new RequestLimiter(1);
+        WingFuture<Integer> running = limiter.submit(call());
+        WingFuture<Integer> cancelled = limiter.submit(call());
+        WingFuture<Integer> waiting = limiter.submit(call());
+
+        cancelled.cancel();
+        started.get(0).complete(0);
+        assertEquals(2, started.size());
+        assertEquals(Integer.valueOf(0), running.get());
+
+        // cancelling a running call cancels what it started, and frees its slot
+        waiting.cancel();
+        assertTrue(started.get(1).isDone());
+        try {
+            started.get(1).get();
+            fail("The started call was not cancelled");
+        } catch (CancellationException expected) {
+        }
+        assertEquals(0, limiter.getRunning());
+    }
+
+    private RequestLimiter.Call<Integer> call() {
+        return new RequestLimiter.Call<Integer>() {
+            @Override
+            public WingFuture<Integer> start() {
+                WingFuture<Integer> future = new WingFuture<>();
+                started.add(future);
+                return future;
+            }
+        };
+    }
+}
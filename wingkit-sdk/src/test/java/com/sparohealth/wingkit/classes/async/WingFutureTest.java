@@ -0,0 +1,128 @@
+package com.sparohealth.wingkit.classes.async;
+
+import com.sparohealth.wingkit.classes.scheduling.VirtualTimeScheduler;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks chaining, fan-out, timeouts and cancellation in {@link WingFuture}
+ */
+public class WingFutureTest {
+    @Test
+    public void mapAndThenChainResults() throws Exception {
+        WingFuture<Integer> source = new WingFuture<>();
+        WingFuture<String> chained = source.map(new WingFuture.Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer input) {
+                return input * 2;
+            }
+        }).then(new WingFuture.AsyncFunction<Integer, String>() {
+            @Override
+            public WingFuture<String> apply(Integer input) {
+                return WingFuture.succeeded("value " + input);
+            }
+        });
+
+        assertFalse(chained.isDone());
+        source.complete(21);
+        assertEquals("value 42", chained.get());
+    }
+
+    @Test
+    public void failurePropagatesThroughChain() throws InterruptedException {
+        WingFuture<Integer> source = new WingFuture<>();
+        WingFuture<Integer> mapped = source.map(new WingFuture.Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer input) {
+                return input + 1;
+            }
+        });
+        IllegalStateException failure = new IllegalStateException("boom");
+        source.fail(failure);
+
+        try {
+            mapped.get();
+            fail("expected the failure");
+        } catch (ExecutionException ex) {
+            assertSame(failure, ex.getCause());
+        }
+    }
+
+    @Test
+    public void allAsListKeepsOrder() throws Exception {
+        WingFuture<String> first = new WingFuture<>();
+        WingFuture<String> second = new WingFuture<>();
+        WingFuture<List<String>> all = WingFuture.allAsList(Arrays.asList(first, second));
+
+        second.complete("b");
+        assertFalse(all.isDone());
+        first.complete("a");
+        assertEquals(Arrays.asList("a", "b"), all.get());
+    }
+
+    @Test
+    public void groupTimeoutCancelsEveryMember() throws InterruptedException {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        WingFuture<String> session = new WingFuture<>();
+        WingFuture<String> target = new WingFuture<>();
+        final boolean[] aborted = new boolean[2];
+        session.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                aborted[0] = true;
+            }
+        });
+        target.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                aborted[1] = true;
+            }
+        });
+
+        WingFuture<Void> group = WingFuture.allOf(session, target).withTimeout(5000, scheduler);
+        session.complete("session");
+        scheduler.advanceBy(5000);
+
+        try {
+            group.get();
+            fail("expected a timeout");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        assertFalse(aborted[0]);
+        assertTrue(aborted[1]);
+        assertTrue(target.isCancelled());
+    }
+
+    @Test
+    public void cancellingChainCancelsPendingStage() throws Exception {
+        WingFuture<String> source = new WingFuture<>();
+        final WingFuture<String> inner = new WingFuture<>();
+        WingFuture<String> chained = source.then(new WingFuture.AsyncFunction<String, String>() {
+            @Override
+            public WingFuture<String> apply(String input) {
+                return inner;
+            }
+        });
+
+        source.complete("first");
+        assertTrue(chained.cancel());
+        assertTrue(inner.isCancelled());
+        assertFalse(chained.complete("late"));
+
+        try {
+            chained.get();
+            fail("expected a cancellation");
+        } catch (CancellationException expected) {
+            // cancelled futures report a CancellationException
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link BufferTuner} against a replay of the recorder's read loop in virtual time, and
+ * reports the read jitter distributions with fixed and tuned buffers
+ */
+public class BufferTunerTest {
+    private static final long SESSION_NANOS = 6000000000L;
+
+    /**
+     * A pretend device: audio arrives in HAL bursts, and each loop iteration costs a fixed amount,
+     * a per-frame amount, and now and then a stall (GC, scheduling)
+     */
+    private static class Device {
+        final String name;
+        final int sampleRate;
+        final int minBufferBytes;
+        final int burstFrames;
+        final double iterationMs;
+        final double frameUs;
+        final double stallChance;
+        final double stallMs;
+
+        Device(String name, int sampleRate, int minBufferBytes, int burstFrames, double iterationMs, double frameUs,
+               double stallChance, double stallMs) {
+            this.name = name;
+            this.sampleRate = sampleRate;
+            this.minBufferBytes = minBufferBytes;
+            this.burstFrames = burstFrames;
+            this.iterationMs = iterationMs;
+            this.frameUs = frameUs;
+            this.stallChance = stallChance;
+            this.stallMs = stallMs;
+        }
+    }
+
+    private static final Device FLAGSHIP = new Device("flagship", 48000, 3840, 240, 0.05, 0.2, 0.01, 2);
+    private static final Device TABLET = new Device("slow tablet", 44100, 3584, 882, 6, 2, 0.05, 60);
+
+    /**
+     * Replay one recording
+     * @param fixedBytes Read and buffer size to use instead of the tuner's (the recorder before tuning), or 0
+     * @return the tuning reported by the tuner, which measures in both cases
+     */
+    private static BufferTuning replay(Device device, BufferTuner tuner, int fixedBytes, long seed) {
+        Random random = new Random(seed);
+        tuner.startSession();
+        long capacityFrames = (fixedBytes > 0 ? fixedBytes : tuner.getCapacityBytes()) / 2;
+        long burstNanos = device.burstFrames * 1000000000L / device.sampleRate;
+
+        long start = 1000000000L;
+        long now = start;
+        long nextBurst = now + burstNanos;
+        long produced = 0;
+        long available = 0;
+        while (now - start < SESSION_NANOS) {
+            long blockFrames = Math.min(capacityFrames, (fixedBytes > 0 ? fixedBytes : tuner.getBlockBytes()) / 2);
+            // the read blocks until a whole block is there
+            while (nextBurst <= now || available < blockFrames) {
+                now = Math.max(now, nextBurst);
+                produced += device.burstFrames;
+                available = Math.min(capacityFrames, available + device.burstFrames);
+                nextBurst += burstNanos;
+            }
+            available -= blockFrames;
+            tuner.onRead(now, (int) blockFrames * 2, produced);
+
+            double costMs = device.iterationMs + blockFrames * device.frameUs / 1000
+                    + (random.nextDouble() < device.stallChance ? device.stallMs : 0);
+            now += (long) (costMs * 1e6);
+        }
+        return tuner.endSession();
+    }
+
+    @org.junit.Test
+    public void slowDeviceKeepsHeadroomTheFixedBufferLacks() {
+        int fixedBytes = 2 * TABLET.minBufferBytes;
+        BufferTuning fixed = replay(TABLET, new BufferTuner(TABLET.sampleRate, TABLET.minBufferBytes, 0), fixedBytes, 1);
+        assertTrue(fixed.overruns > 0);
+
+        BufferTuner tuner = new BufferTuner(TABLET.sampleRate, TABLET.minBufferBytes, 0);
+        BufferTuning tuned = null;
+        for (int session = 0; session < 4; session++) {
+            tuned = replay(TABLET, tuner, 0, 1 + session);
+        }
+        assertEquals(0, tuned.overruns);
+        assertTrue(tuned.capacityBytes > fixedBytes);
+        assertTrue(tuned.blockBytes <= tuned.capacityBytes / 2);
+    }
+
+    @org.junit.Test
+    public void fastDeviceShrinksBlocksWithoutOverruns() {
+        BufferTuner tuner = new BufferTuner(FLAGSHIP.sampleRate, FLAGSHIP.minBufferBytes, FLAGSHIP.burstFrames);
+        int initialBlock = tuner.getBlockBytes();
+        BufferTuning tuned = replay(FLAGSHIP, tuner, 0, 7);
+        assertEquals(0, tuned.overruns);
+        // 10 ms blocks: one read per envelope frame
+        assertTrue(tuned.blockBytes < initialBlock);
+        assertEquals(10, tuned.getBlockDurationMs(), 0.01);
+        assertEquals(tuned.capacityBytes, tuned.nextCapacityBytes);
+    }
+
+    @org.junit.Test
+    public void wallClockBacklogDetectsOverrun() {
+        BufferTuner tuner = new BufferTuner(44100, 3584, 0);
+        int capacity = tuner.getCapacityBytes();
+        tuner.onRead(1000000000L, 3584, -1);
+        // half a second passes before the next read: far more than the buffer holds
+        tuner.onRead(1500000000L, 3584, -1);
+        BufferTuning tuning = tuner.endSession();
+        assertFalse(tuning.timestamped);
+        assertEquals(1, tuning.overruns);
+        assertEquals(22050 - 3584 / 2 - capacity / 2, tuning.lostFrames);
+        assertEquals(2 * capacity, tuning.nextCapacityBytes);
+    }
+}
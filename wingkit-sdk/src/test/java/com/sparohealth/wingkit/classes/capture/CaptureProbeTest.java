@@ -0,0 +1,139 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import com.sparohealth.wingkit.classes.analysis.PcmWavFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the capture path chosen by {@link CaptureProbe} and the metadata stored by {@link RecordingMetadata}
+ */
+public class CaptureProbeTest {
+    /**
+     * Capabilities of a pretend device that can open the listed source/rate pairs
+     */
+    private static class FakeCapabilities implements AudioCapabilities {
+        private final boolean unprocessed;
+        private final int nativeRate;
+        private final Set<String> openable = new HashSet<>();
+
+        FakeCapabilities(boolean unprocessed, int nativeRate, String... openable) {
+            this.unprocessed = unprocessed;
+            this.nativeRate = nativeRate;
+            this.openable.addAll(Arrays.asList(openable));
+        }
+
+        @Override
+        public boolean supportsUnprocessed() {
+            return unprocessed;
+        }
+
+        @Override
+        public int nativeSampleRate() {
+            return nativeRate;
+        }
+
+        @Override
+        public int nativeFramesPerBuffer() {
+            return nativeRate > 0 ? 192 : 0;
+        }
+
+        @Override
+        public boolean canOpen(AudioSourceType source, int sampleRate) {
+            return openable.contains(source + "@" + sampleRate);
+        }
+    }
+
+    @org.junit.Test
+    public void prefersUnprocessedAtNativeRate() {
+        CaptureConfiguration chosen = CaptureProbe.choose(new FakeCapabilities(true, 48000,
+                "unprocessed@48000", "voiceRecognition@48000", "mic@44100"));
+        assertEquals(AudioSourceType.unprocessed, chosen.source);
+        assertEquals(48000, chosen.sampleRate);
+        assertEquals(192, chosen.framesPerBuffer);
+        assertTrue(chosen.probed);
+    }
+
+    @org.junit.Test
+    public void skipsUnadvertisedUnprocessed() {
+        // opening would succeed, but a device that does not advertise the source may still process it
+        CaptureConfiguration chosen = CaptureProbe.choose(new FakeCapabilities(false, 48000,
+                "unprocessed@48000", "voiceRecognition@44100"));
+        assertEquals(AudioSourceType.voiceRecognition, chosen.source);
+        assertEquals(44100, chosen.sampleRate);
+        // the native buffer size does not apply away from the native rate
+        assertEquals(0, chosen.framesPerBuffer);
+    }
+
+    @org.junit.Test
+    public void fallsBackToLegacy() {
+        assertSame(CaptureConfiguration.LEGACY, CaptureProbe.choose(new FakeCapabilities(true, 0)));
+    }
+
+    @org.junit.Test
+    public void metadataRoundTripsWithoutChangingAudio() throws IOException {
+        short[] pcm = new short[1001];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (1000 * Math.sin(i * 0.1));
+        }
+        File wav = File.createTempFile("capture", ".wav");
+        try {
+            writeWav(wav, 48000, pcm);
+            CaptureConfiguration capture = new CaptureConfiguration(AudioSourceType.unprocessed, 48000, 192, true);
+            RecordingMetadata.append(wav, capture.toMetadata());
+
+            Map<String, String> metadata = RecordingMetadata.read(wav);
+            assertEquals(capture.toMetadata(), metadata);
+            assertEquals("48000", metadata.get("sample-rate"));
+
+            PcmWavFile read = PcmWavFile.read(wav);
+            assertEquals(48000, read.sampleRate);
+            assertArrayEquals(pcm, read.samples);
+
+            RandomAccessFile file = new RandomAccessFile(wav, "r");
+            try {
+                byte[] riff = new byte[8];
+                file.readFully(riff);
+                assertEquals(file.length() - 8, ByteBuffer.wrap(riff).order(ByteOrder.LITTLE_ENDIAN).getInt(4));
+                // the odd-sized data chunk was padded before the metadata
+                assertEquals(0, file.length() % 2);
+            } finally {
+                file.close();
+            }
+        } finally {
+            wav.delete();
+        }
+    }
+
+    @org.junit.Test
+    public void unreadableRecordingUploadsWithoutMetadata() {
+        assertTrue(RecordingMetadata.readForUpload(new File("/nonexistent/recording.wav")).isEmpty());
+    }
+
+    private static void writeWav(File file, int sampleRate, short[] pcm) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(44 + pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes("US-ASCII")).putInt(36 + pcm.length * 2).put("WAVE".getBytes("US-ASCII"));
+        buffer.put("fmt ".getBytes("US-ASCII")).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(sampleRate).putInt(sampleRate * 2).putShort((short) 2).putShort((short) 16);
+        buffer.put("data".getBytes("US-ASCII")).putInt(pcm.length * 2);
+        for (short sample : pcm) {
+            buffer.putShort(sample);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+    }
+}
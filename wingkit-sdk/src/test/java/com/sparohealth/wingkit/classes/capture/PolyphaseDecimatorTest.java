@@ -0,0 +1,155 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import com.sparohealth.wingkit.classes.Benchmark;
+
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the frequency response, streaming and alignment of {@link PolyphaseDecimator}, and reports its
+ * throughput on one core
+ */
+public class PolyphaseDecimatorTest {
+    private static final int[][] RATES = { {44100, 8000}, {44100, 11025}, {48000, 16000}, {44100, 22050} };
+    private static final double AMPLITUDE = 30000;
+
+    @org.junit.Test
+    public void passbandIsFlat() {
+        for (int[] rates : RATES) {
+            for (double fraction : new double[] {0.01, 0.25, 0.5, PolyphaseDecimator.PASSBAND_FRACTION}) {
+                double frequency = fraction * rates[1] / 2;
+                double gainDb = gainDb(rates[0], rates[1], frequency);
+                assertEquals(rates[0] + " -> " + rates[1] + " at " + frequency + " Hz", 0, gainDb, 0.1);
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void stopbandIsAttenuated() {
+        for (int[] rates : RATES) {
+            double worstDb = -200;
+            for (double frequency = rates[1] / 2.0; frequency < rates[0] / 2.0; frequency += rates[1] / 20.0) {
+                worstDb = Math.max(worstDb, gainDb(rates[0], rates[1], frequency));
+            }
+            // 80 dB by design, less the 16-bit rounding of the output
+            assertTrue(rates[0] + " -> " + rates[1] + ": " + worstDb + " dB", worstDb < -70);
+        }
+    }
+
+    @org.junit.Test
+    public void streamingMatchesOneShot() {
+        byte[] pcm = new byte[2 * 44100];
+        new Random(3).nextBytes(pcm);
+
+        PolyphaseDecimator decimator = new PolyphaseDecimator(44100, 8000);
+        byte[] expected = new byte[decimator.getMaximumOutputBytes(pcm.length)];
+        int expectedLength = decimator.process(pcm, 0, pcm.length, expected, 0);
+        expectedLength += decimator.flush(expected, expectedLength);
+
+        decimator.reset();
+        Random random = new Random(4);
+        byte[] actual = new byte[expected.length];
+        byte[] chunk = new byte[decimator.getMaximumOutputBytes(1001)];
+        int actualLength = 0;
+        // odd lengths split samples across calls, as a short AudioRecord read could
+        for (int offset = 0; offset < pcm.length; ) {
+            int length = Math.min(pcm.length - offset, 1 + random.nextInt(1001));
+            int written = decimator.process(pcm, offset, length, chunk, 0);
+            System.arraycopy(chunk, 0, actual, actualLength, written);
+            actualLength += written;
+            offset += length;
+        }
+        actualLength += decimator.flush(actual, actualLength);
+
+        assertEquals(expectedLength, actualLength);
+        for (int i = 0; i < expectedLength; i++) {
+            assertEquals("byte " + i, expected[i], actual[i]);
+        }
+    }
+
+    @org.junit.Test
+    public void outputIsAlignedWithInput() {
+        for (int[] rates : RATES) {
+            int seconds = 2;
+            short[] input = new short[rates[0] * seconds];
+            // a click at 0.5 s
+            input[rates[0] / 2] = 30000;
+
+            short[] output = decimateWithFlush(rates[0], rates[1], input);
+            assertEquals(rates[1] * seconds, output.length, 1);
+            int peak = 0;
+            for (int i = 1; i < output.length; i++) {
+                if (Math.abs(output[i]) > Math.abs(output[peak])) {
+                    peak = i;
+                }
+            }
+            assertEquals(rates[0] + " -> " + rates[1], rates[1] / 2, peak, 1);
+        }
+    }
+
+    @Category(Benchmark.class)
+    @org.junit.Test
+    public void throughputOnOneCore() {
+        short[] input = new short[44100 * 6];
+        Random random = new Random(5);
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) (random.nextGaussian() * 3000);
+        }
+        for (int[] rates : RATES) {
+            PolyphaseDecimator decimator = new PolyphaseDecimator(rates[0], rates[1]);
+            short[] output = new short[decimator.getMaximumOutputBytes(input.length * 2) / 2];
+            // warm up, then time whole 6 s recordings
+            for (int i = 0; i < 5; i++) {
+                decimator.reset();
+                decimator.process(input, 0, input.length, output, 0);
+            }
+            int runs = 20;
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                decimator.reset();
+                decimator.process(input, 0, input.length, output, 0);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double samplesPerSecond = (double) runs * input.length / seconds;
+            System.out.println(String.format("%d -> %d Hz (%d taps): %.1f M input samples/s, %.0fx real time",
+                    rates[0], rates[1], decimator.getTaps(), samplesPerSecond / 1e6, samplesPerSecond / rates[0]));
+            assertTrue(samplesPerSecond > rates[0]);
+        }
+    }
+
+    /**
+     * Return the gain of a sine through the decimator, measured away from the start and end
+     */
+    private static double gainDb(int inputRate, int outputRate, double frequency) {
+        short[] input = new short[inputRate / 2];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / inputRate));
+        }
+        short[] output = decimateWithFlush(inputRate, outputRate, input);
+        double sumSquares = 0;
+        int from = output.length / 4;
+        int to = output.length * 3 / 4;
+        for (int i = from; i < to; i++) {
+            sumSquares += (double) output[i] * output[i];
+        }
+        double rms = Math.sqrt(sumSquares / (to - from));
+        return 20 * Math.log10(Math.max(rms, 1e-3) / (AMPLITUDE / Math.sqrt(2)));
+    }
+
+    private static short[] decimateWithFlush(int inputRate, int outputRate, short[] input) {
+        PolyphaseDecimator decimator = new PolyphaseDecimator(inputRate, outputRate);
+        short[] output = new short[decimator.getMaximumOutputBytes(input.length * 2) / 2];
+        int length = decimator.process(input, 0, input.length, output, 0);
+        byte[] tail = new byte[decimator.getMaximumOutputBytes(0)];
+        int tailLength = decimator.flush(tail, 0) / 2;
+        short[] result = new short[length + tailLength];
+        System.arraycopy(output, 0, result, 0, length);
+        for (int i = 0; i < tailLength; i++) {
+            result[length + i] = (short) ((tail[2 * i] & 0xff) | (tail[2 * i + 1] << 8));
+        }
+        return result;
+    }
+}
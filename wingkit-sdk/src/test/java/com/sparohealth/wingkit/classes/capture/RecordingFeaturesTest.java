@@ -0,0 +1,210 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import com.sparohealth.wingkit.classes.Benchmark;
+import com.sparohealth.wingkit.classes.analysis.EnvelopeExtractor;
+import com.sparohealth.wingkit.classes.analysis.FlowEnvelope;
+import com.sparohealth.wingkit.classes.analysis.PcmWavFile;
+import com.sparohealth.wingkit.classes.analysis.ValidityConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link RecordingFeaturesWriter} and {@link RecordingFeatures}, and the cost of reading a
+ * sidecar compared with decoding the recording
+ */
+public class RecordingFeaturesTest {
+    private static final int SAMPLE_RATE = 8000;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("recordings").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void sidecarHoldsWhatWasCaptured() throws IOException {
+        // half a second of silence, a second of blow, a clipped burst, then silence
+        short[] samples = blow(SAMPLE_RATE * 3);
+        RecordingStore store = new RecordingStore(directory, new RecordingStoreConfiguration());
+        File partial = store.create();
+        FlowEnvelope envelope = record(partial, samples);
+        File recording = store.commit(partial);
+
+        assertFalse(RecordingFeatures.fileFor(partial).exists());
+        RecordingFeatures features = RecordingFeatures.open(RecordingFeatures.fileFor(recording));
+        assertEquals(SAMPLE_RATE, features.getSampleRate());
+        assertEquals(3000, features.getDurationMs());
+        assertEquals(RecordingFeatures.FLAG_CAPTURED, features.getFlags());
+        assertEquals(envelope.size(), features.getEnvelopeSize());
+        for (int i = 0; i < envelope.size(); i++) {
+            assertEquals(envelope.get(i), features.getEnvelope(i), 0);
+        }
+        assertEquals(envelope.getPeakIndex(), features.getEnvelopePeakIndex());
+
+        // 50 ms blocks: silence, the blow and the clipped burst
+        assertEquals(60, features.getBlockCount());
+        assertEquals(0, features.getBlockPeak(0), 0);
+        assertEquals(0.25, features.getBlockPeak(20), 0.001);
+        assertEquals(0.25 / Math.sqrt(2), features.getBlockRms(20), 0.001);
+        assertEquals(32767 / 32768.0, features.getBlockPeak(32), 0.001);
+
+        assertEquals(4, features.getCrossingCount());
+        assertEquals(ThresholdCrossing.signalStart, features.getCrossing(0));
+        assertEquals(500, features.getCrossingTimeMs(0));
+        assertEquals(ThresholdCrossing.saturationStart, features.getCrossing(1));
+        assertEquals(1500, features.getCrossingTimeMs(1));
+        assertEquals(ThresholdCrossing.saturationEnd, features.getCrossing(2));
+        assertEquals(ThresholdCrossing.signalEnd, features.getCrossing(3));
+        assertEquals(2000, features.firstCrossingMs(ThresholdCrossing.signalEnd));
+        assertEquals(12, features.getReads());
+
+        // evicted with its recording
+        store.remove(recording);
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void damagedSidecarIsRejectedAndRecoveredRecordingGetsANewOne() throws IOException {
+        RecordingStore store = new RecordingStore(directory, new RecordingStoreConfiguration());
+        File partial = store.create();
+        short[] samples = blow(SAMPLE_RATE * 3);
+        byte[] pcm = bytes(samples);
+        // killed two seconds in, before the sidecar was written
+        RecordingWriter writer = new RecordingWriter(partial, SAMPLE_RATE, pcm.length, CaptureConfiguration.LEGACY.toMetadata());
+        writer.write(pcm, 0, 2 * 2 * SAMPLE_RATE);
+
+        List<File> recordings = new RecordingStore(directory, new RecordingStoreConfiguration()).list();
+        assertEquals(1, recordings.size());
+        File features = RecordingFeatures.fileFor(recordings.get(0));
+        RecordingFeatures rebuilt = RecordingFeatures.open(features);
+        assertEquals(0, rebuilt.getFlags());
+        assertEquals(2000, rebuilt.getDurationMs());
+        assertEquals(40, rebuilt.getBlockCount());
+        assertEquals(500, rebuilt.firstCrossingMs(ThresholdCrossing.signalStart));
+
+        // cut short: the sections no longer fit
+        RandomAccessFile access = new RandomAccessFile(features, "rw");
+        access.setLength(features.length() - 1);
+        access.close();
+        try {
+            RecordingFeatures.open(features);
+            fail("expected a truncated sidecar to be rejected");
+        } catch (IOException expected) {
+            // the reader checks every section against the file length
+        }
+    }
+
+    @Category(Benchmark.class)
+    @Test
+    public void scanningSidecarsAgainstDecodingRecordings() throws IOException {
+        int count = 50;
+        RecordingStoreConfiguration configuration = new RecordingStoreConfiguration();
+        configuration.maximumBytes = Long.MAX_VALUE;
+        RecordingStore store = new RecordingStore(directory, configuration);
+        short[] samples = blow(SAMPLE_RATE * 6);
+        for (int i = 0; i < count; i++) {
+            File partial = store.create();
+            record(partial, samples);
+            store.commit(partial);
+        }
+        List<File> recordings = store.list();
+
+        // the question a QA tool asks of every recording: when did the blow start, and how loud was it
+        long start = System.nanoTime();
+        double featurePeaks = 0;
+        for (File recording : recordings) {
+            RecordingFeatures features = RecordingFeatures.open(RecordingFeatures.fileFor(recording));
+            featurePeaks += features.getEnvelopePeak() + features.firstCrossingMs(ThresholdCrossing.signalStart);
+        }
+        long featureNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        double decodedPeaks = 0;
+        for (File recording : recordings) {
+            PcmWavFile wav = PcmWavFile.read(recording);
+            EnvelopeExtractor extractor = EnvelopeExtractor.create(wav.sampleRate, EnvelopeExtractor.DEFAULT_RATE_HZ, wav.getDurationMs());
+            extractor.process(wav.samples, 0, wav.samples.length);
+            decodedPeaks += extractor.getEnvelope().getPeak();
+            FlowEnvelope envelope = extractor.getEnvelope();
+            for (int i = 0; i < envelope.size(); i++) {
+                if (20 * Math.log10(envelope.get(i)) > new ValidityConfiguration().minimumSignalDbfs) {
+                    decodedPeaks += i * 1000 / envelope.getRateHz();
+                    break;
+                }
+            }
+        }
+        long decodeNanos = System.nanoTime() - start;
+
+        assertEquals(decodedPeaks, featurePeaks, 0.01);
+        System.out.println(String.format("%d recordings of 6 s at %d Hz: sidecars %.1f ms, decoding %.1f ms (%.0fx)",
+                count, SAMPLE_RATE, featureNanos / 1e6, decodeNanos / 1e6, (double) decodeNanos / featureNanos));
+    }
+
+    /**
+     * Write a recording and its sidecar as the recorder does, in odd-sized reads that split samples
+     */
+    private static FlowEnvelope record(File file, short[] samples) throws IOException {
+        byte[] pcm = bytes(samples);
+        RecordingWriter writer = new RecordingWriter(file, SAMPLE_RATE, pcm.length, Collections.<String, String>emptyMap());
+        EnvelopeExtractor extractor = EnvelopeExtractor.create(SAMPLE_RATE, EnvelopeExtractor.DEFAULT_RATE_HZ, samples.length * 1000L / SAMPLE_RATE);
+        RecordingFeaturesWriter features = new RecordingFeaturesWriter(SAMPLE_RATE, new ValidityConfiguration());
+        for (int offset = 0; offset < pcm.length; offset += 2001) {
+            int length = Math.min(2001, pcm.length - offset);
+            writer.write(pcm, offset, length);
+            features.process(pcm, offset, length);
+            extractor.process(pcm, offset, length);
+        }
+        RecordingChecksum checksum = writer.finish();
+        new RecordingManifest(checksum, writer.getDurationMs(), SAMPLE_RATE, SAMPLE_RATE, null).write(file);
+        BufferTuning tuning = new BufferTuning(SAMPLE_RATE, 4096, 2001, 4096, 12, 0, 0, false, 10, new int[1], 1);
+        features.write(file, extractor.getEnvelope(), SAMPLE_RATE, SAMPLE_RATE, writer.getDurationMs(), tuning);
+        return extractor.getEnvelope();
+    }
+
+    /**
+     * Silence until 0.5 s, a 400 Hz tone at a quarter of full scale until 1.5 s, a clipped square wave
+     * until 1.75 s, the tone again until 2 s, then silence
+     */
+    private static short[] blow(int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            int ms = i * 1000 / SAMPLE_RATE;
+            if (ms >= 1500 && ms < 1750) {
+                samples[i] = (short) ((i / 10) % 2 == 0 ? 32767 : -32767);
+            } else if (ms >= 500 && ms < 2000) {
+                samples[i] = (short) Math.round(8192 * Math.sin(2 * Math.PI * 400 * i / SAMPLE_RATE));
+            }
+        }
+        return samples;
+    }
+
+    private static byte[] bytes(short[] samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(samples);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,149 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link RecordingStore}
+ */
+public class RecordingStoreTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("recordings").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void finishedRecordingIsRenamedIntoPlace() throws IOException {
+        RecordingStore store = new RecordingStore(directory, new RecordingStoreConfiguration());
+        File first = store.create();
+        File second = store.create();
+        assertNotEquals(first, second);
+        assertTrue(store.isPartial(first));
+
+        write(first, 1000, true);
+        File recording = store.commit(first);
+
+        assertFalse(first.exists());
+        assertFalse(RecordingManifest.fileFor(first).exists());
+        assertTrue(recording.getName().endsWith(RecordingStore.RECORDING_SUFFIX));
+        assertNotNull(RecordingManifest.readForUpload(recording));
+        assertEquals(Arrays.asList(recording), store.list());
+
+        // the index outlives the store
+        assertEquals(Arrays.asList(recording), new RecordingStore(directory, new RecordingStoreConfiguration()).list());
+    }
+
+    @Test
+    public void oldestAndExpiredRecordingsAreEvicted() throws IOException {
+        RecordingStoreConfiguration configuration = new RecordingStoreConfiguration();
+        configuration.maximumBytes = 2500;
+        configuration.maximumAgeMs = DAY_MS;
+        RecordingStore store = new RecordingStore(directory, configuration);
+
+        File[] recordings = new File[4];
+        for (int i = 0; i < 3; i++) {
+            File partial = store.create();
+            write(partial, 1000, false);
+            recordings[i] = store.commit(partial, i * 1000);
+        }
+        // three recordings do not fit the budget; the oldest goes
+        assertFalse(recordings[0].exists());
+        assertEquals(Arrays.asList(recordings[1], recordings[2]), store.list());
+
+        // a day later the others have expired, but the one just finished stays even though it is over budget on its own
+        File partial = store.create();
+        write(partial, 3000, false);
+        recordings[3] = store.commit(partial, 2 * DAY_MS);
+        assertEquals(Arrays.asList(recordings[3]), store.list());
+        assertEquals(3000, store.getSizeBytes());
+    }
+
+    @Test
+    public void orphansAreCleanedUpAtStartup() throws IOException {
+        RecordingStore store = new RecordingStore(directory, new RecordingStoreConfiguration());
+        File kept = store.commit(written(store.create()));
+        File moved = store.commit(written(store.create()));
+        // uploaded: the upload journal moved it away
+        assertTrue(moved.delete());
+        assertTrue(RecordingManifest.fileFor(moved).delete());
+
+        // the app was killed mid-capture, and after a rename before the index was saved
+        File partial = written(store.create());
+        File renamed = new File(directory, "test-1-1.wav");
+        write(renamed, 800, true);
+        File unfinished = new File(directory, "test-1-2.wav");
+        write(unfinished, 800, false);
+        File strayManifest = RecordingManifest.fileFor(new File(directory, "test-1-3.wav"));
+        assertTrue(strayManifest.createNewFile());
+        assertTrue(new File(directory, "index.json.tmp").createNewFile());
+
+        List<File> recordings = new RecordingStore(directory, new RecordingStoreConfiguration()).list();
+
+        assertEquals(Arrays.asList(kept, renamed), recordings);
+        assertFalse(partial.exists());
+        assertFalse(RecordingManifest.fileFor(partial).exists());
+        assertFalse(unfinished.exists());
+        assertFalse(strayManifest.exists());
+        assertFalse(new File(directory, "index.json.tmp").exists());
+    }
+
+    @Test
+    public void recordersShareTheirDirectorysStore() throws IOException {
+        RecordingStore first = RecordingStore.forDirectory(directory, new RecordingStoreConfiguration());
+        File live = first.create();
+        RecordingWriter writer = new RecordingWriter(live, 8000, 8000 * 2 * 5, Collections.<String, String>emptyMap());
+        writer.write(new byte[8000 * 2 * 2], 0, 8000 * 2 * 2);
+
+        // a second recorder on the same directory, named another way, gets the same store, so the
+        // recording still being written is not recovered from under the first
+        RecordingStore second = RecordingStore.forDirectory(new File(directory, "../" + directory.getName()), new RecordingStoreConfiguration());
+        assertSame(first, second);
+        File other = second.commit(written(second.create()));
+        assertTrue(live.exists());
+        assertEquals(Arrays.asList(other), second.list());
+
+        writer.write(new byte[8000 * 2 * 3], 0, 8000 * 2 * 3);
+        writer.finish();
+        File recording = first.commit(live);
+        assertEquals(Arrays.asList(other, recording), first.list());
+        assertFalse(first.isRecovered(recording));
+    }
+
+    private static File written(File partial) throws IOException {
+        write(partial, 1000, true);
+        return partial;
+    }
+
+    private static void write(File file, int length, boolean manifest) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[length]);
+        out.close();
+        if (manifest) {
+            new RecordingManifest(RecordingChecksum.compute(file), 1000, 44100, 44100, null).write(file);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.sparohealth.wingkit.classes.capture;
+
+import com.sparohealth.wingkit.classes.Benchmark;
+import com.sparohealth.wingkit.classes.analysis.PcmWavFile;
+
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link RecordingWriter} checksums match the finished file and that a recording cut off
+ * midway is recovered, and reports the hashing and fsync costs per capture buffer
+ */
+public class RecordingWriterTest {
+    private static final Map<String, String> METADATA = CaptureConfiguration.LEGACY.toMetadata();
+
+    @org.junit.Test
+    public void crc32cMatchesKnownValues() {
+        Crc32c crc = new Crc32c();
+        byte[] check = "123456789".getBytes();
+        crc.update(check, 0, check.length);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        // the eight-byte steps agree with byte at a time, at any alignment
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        Crc32c bytewise = new Crc32c();
+        for (byte b : data) {
+            bytewise.update(b);
+        }
+        crc.reset();
+        crc.update(data, 0, 3);
+        crc.update(data, 3, data.length - 3);
+        assertEquals(bytewise.getValue(), crc.getValue());
+    }
+
+    @org.junit.Test
+    public void completeRecordingIsHashedAsWritten() throws IOException {
+        File file = File.createTempFile("recording", ".wav");
+        try {
+            byte[] pcm = pcm(44100);
+            RecordingWriter writer = new RecordingWriter(file, 22050, 2 * 22050, METADATA);
+            for (int offset = 0; offset < pcm.length && !writer.isComplete(); offset += 3584) {
+                writer.write(pcm, offset, Math.min(3584, pcm.length - offset));
+            }
+            assertTrue(writer.isComplete());
+            RecordingChecksum checksum = writer.finish();
+
+            assertChecksumOf(file, checksum);
+            assertEquals(1000, writer.getDurationMs());
+            assertEquals(METADATA, RecordingMetadata.read(file));
+            PcmWavFile wav = PcmWavFile.read(file);
+            assertEquals(22050, wav.sampleRate);
+            assertEquals(22050, wav.samples.length);
+            assertEquals(file.length() - 8, intAt(file, 4));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @org.junit.Test
+    public void shortRecordingGetsItsHeaderFixed() throws IOException {
+        File file = File.createTempFile("recording", ".wav");
+        try {
+            byte[] pcm = pcm(1000);
+            RecordingWriter writer = new RecordingWriter(file, 44100, 44100 * 2, METADATA);
+            writer.write(pcm, 0, pcm.length);
+            assertFalse(writer.isComplete());
+            RecordingChecksum checksum = writer.finish();
+
+            assertChecksumOf(file, checksum);
+            assertEquals(pcm.length, intAt(file, 40));
+            assertEquals(file.length() - 8, intAt(file, 4));
+            assertEquals(pcm.length / 2, PcmWavFile.read(file).samples.length);
+            assertEquals(METADATA, RecordingMetadata.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @org.junit.Test
+    public void manifestIsOnlyUsedForItsOwnRecording() throws IOException {
+        File file = File.createTempFile("recording", ".wav");
+        File manifestFile = RecordingManifest.fileFor(file);
+        try {
+            RecordingWriter writer = new RecordingWriter(file, 8000, 16000, METADATA);
+            writer.write(pcm(8000), 0, 16000);
+            RecordingChecksum checksum = writer.finish();
+            new RecordingManifest(checksum, writer.getDurationMs(), 8000, 44100, null).write(file);
+
+            RecordingManifest manifest = RecordingManifest.readForUpload(file);
+            assertEquals(checksum.getContentMd5(), manifest.contentMd5);
+            assertEquals("1000", manifest.toMetadata().get("duration-ms"));
+            assertEquals(checksum.getCrc32cBase64(), manifest.toMetadata().get("crc32c"));
+
+            // a new recording removes the old manifest before it writes anything
+            new RecordingWriter(file, 8000, 16000, Collections.<String, String>emptyMap()).abort();
+            assertFalse(manifestFile.exists());
+            assertNull(RecordingManifest.readForUpload(file));
+        } finally {
+            file.delete();
+            manifestFile.delete();
+        }
+    }
+
+    @Category(Benchmark.class)
+    @org.junit.Test
+    public void hashingCostPerBuffer() throws Exception {
+        byte[] buffer = pcm(1792);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        Crc32c crc = new Crc32c();
+        int buffers = 20000;
+        for (int i = 0; i < buffers; i++) {
+            md5.update(buffer, 0, buffer.length);
+            crc.update(buffer, 0, buffer.length);
+        }
+        long md5Nanos = 0;
+        long crcNanos = 0;
+        for (int i = 0; i < buffers; i++) {
+            long start = System.nanoTime();
+            md5.update(buffer, 0, buffer.length);
+            long middle = System.nanoTime();
+            crc.update(buffer, 0, buffer.length);
+            md5Nanos += middle - start;
+            crcNanos += System.nanoTime() - middle;
+        }
+        double bufferMs = buffer.length / 2 * 1000.0 / 44100;
+        System.out.println(String.format("hashing a %d-byte (%.0f ms) buffer: MD5 %.1f us, CRC-32C %.1f us (%.0f / %.0f MB/s)",
+                buffer.length, bufferMs, md5Nanos / 1e3 / buffers, crcNanos / 1e3 / buffers,
+                (double) buffer.length * buffers / md5Nanos * 1e3, (double) buffer.length * buffers / crcNanos * 1e3));
+        // well under 1% of the audio the buffer holds
+        assertTrue((md5Nanos + crcNanos) / buffers < bufferMs * 1e6 / 100);
+    }
+
+    @org.junit.Test
+    public void recordingCutOffIsRecovered() throws IOException {
+        File directory = Files.createTempDirectory("recordings").toFile();
+        try {
+            RecordingStore store = new RecordingStore(directory, new RecordingStoreConfiguration());
+            File partial = store.create();
+            byte[] pcm = pcm(44100 * 3 / 2);
+            RecordingWriter writer = new RecordingWriter(partial, 44100, 6 * 44100 * 2, METADATA);
+            writer.setSyncPolicy(SyncPolicy.checkpoint, 250);
+            for (int offset = 0; offset < pcm.length; offset += 3584) {
+                writer.write(pcm, offset, Math.min(3584, pcm.length - offset));
+            }
+            // killed here: the file is already a valid WAV up to the last checkpoint, under 250 ms back
+            long checkpointed = intAt(partial, 40);
+            assertTrue(checkpointed <= pcm.length && checkpointed > pcm.length - 250 * 44100 / 1000 * 2);
+            assertEquals(checkpointed / 2, PcmWavFile.read(partial).samples.length);
+            File tooShort = store.create();
+            new RecordingWriter(tooShort, 44100, 6 * 44100 * 2, METADATA).write(pcm, 0, 44100);
+
+            // the next start
+            RecordingStore restarted = new RecordingStore(directory, new RecordingStoreConfiguration());
+            List<File> recordings = restarted.list();
+
+            assertEquals(1, recordings.size());
+            File recovered = recordings.get(0);
+            assertTrue(restarted.isRecovered(recovered));
+            assertEquals(pcm.length / 2, PcmWavFile.read(recovered).samples.length);
+            Map<String, String> metadata = RecordingMetadata.read(recovered);
+            assertEquals("true", metadata.remove(RecordingWriter.RECOVERED_KEY));
+            assertEquals(METADATA, metadata);
+            RecordingManifest manifest = RecordingManifest.readForUpload(recovered);
+            assertEquals(RecordingChecksum.compute(recovered).getContentMd5(), manifest.contentMd5);
+            assertEquals(1500, manifest.durationMs);
+            assertFalse(tooShort.exists());
+            // the recording, its manifest, the feature sidecar rebuilt from its audio and the index
+            assertTrue(RecordingFeatures.fileFor(recovered).exists());
+            assertEquals(4, directory.list().length);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Category(Benchmark.class)
+    @org.junit.Test
+    public void syncPolicyWriteLatency() throws IOException {
+        byte[] pcm = pcm(6 * 44100);
+        Object[][] policies = {
+                { SyncPolicy.none, 500L }, { SyncPolicy.checkpoint, 1000L }, { SyncPolicy.checkpoint, 500L },
+                { SyncPolicy.checkpoint, 100L }, { SyncPolicy.everyWrite, 500L } };
+        for (Object[] policy : policies) {
+            File file = File.createTempFile("recording", ".wav");
+            try {
+                RecordingWriter writer = new RecordingWriter(file, 44100, pcm.length, METADATA);
+                writer.setSyncPolicy((SyncPolicy) policy[0], (Long) policy[1]);
+                long[] nanos = new long[(pcm.length + 3583) / 3584];
+                for (int i = 0, offset = 0; offset < pcm.length; i++, offset += 3584) {
+                    long start = System.nanoTime();
+                    writer.write(pcm, offset, Math.min(3584, pcm.length - offset));
+                    nanos[i] = System.nanoTime() - start;
+                }
+                long start = System.nanoTime();
+                writer.finish();
+                long finishNanos = System.nanoTime() - start;
+                Arrays.sort(nanos);
+                long total = 0;
+                for (long n : nanos) {
+                    total += n;
+                }
+                System.out.println(String.format("fsync %s every %d ms: write p50 %.0f us, p99 %.0f us, max %.1f ms, total %.1f ms, finish %.1f ms",
+                        policy[0], policy[1], nanos[nanos.length / 2] / 1e3, nanos[nanos.length * 99 / 100] / 1e3,
+                        nanos[nanos.length - 1] / 1e6, total / 1e6, finishNanos / 1e6));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static void assertChecksumOf(File file, RecordingChecksum checksum) throws IOException {
+        RecordingChecksum reread = RecordingChecksum.compute(file);
+        assertEquals(file.length(), checksum.length);
+        assertEquals(reread.getMd5Hex(), checksum.getMd5Hex());
+        assertEquals(reread.crc32c, checksum.crc32c);
+    }
+
+    private static byte[] pcm(int samples) {
+        byte[] pcm = new byte[2 * samples];
+        new Random(samples).nextBytes(pcm);
+        return pcm;
+    }
+
+    private static long intAt(File file, int offset) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[4];
+            access.seek(offset);
+            access.readFully(bytes);
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xffffffffL;
+        } finally {
+            access.close();
+        }
+    }
+}
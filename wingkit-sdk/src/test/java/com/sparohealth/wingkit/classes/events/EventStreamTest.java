@@ -0,0 +1,122 @@
+package com.sparohealth.wingkit.classes.events;
+
+import com.sparohealth.wingkit.classes.scheduling.VirtualTimeScheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the per-subscriber delivery policies of {@link EventStream}
+ */
+public class EventStreamTest {
+    private final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+    /// Holds deliveries until the test runs them, like a busy UI thread
+    private final QueuedExecutor executor = new QueuedExecutor();
+
+    @Test
+    public void latestConflatesWhileSubscriberIsBusy() {
+        EventStream<Integer> stream = new EventStream<>(scheduler, false);
+        List<Integer> received = new ArrayList<>();
+        Subscription subscription = stream.subscribe(collect(received), DeliveryPolicy.latest(), executor);
+
+        for (int i = 1; i <= 100; i++) {
+            stream.publish(i);
+        }
+        executor.runAll();
+
+        assertEquals("[100]", received.toString());
+        assertEquals(99, subscription.getDroppedCount());
+        assertEquals(1, executor.executed);
+    }
+
+    @Test
+    public void allBuffersUpToLimit() {
+        EventStream<Integer> stream = new EventStream<>(scheduler, false);
+        List<Integer> received = new ArrayList<>();
+        Subscription subscription = stream.subscribe(collect(received), DeliveryPolicy.all(3), executor);
+
+        for (int i = 1; i <= 5; i++) {
+            stream.publish(i);
+        }
+        executor.runAll();
+
+        assertEquals("[3, 4, 5]", received.toString());
+        assertEquals(2, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void fixedRateDeliversAtMostOncePerPeriod() {
+        EventStream<Integer> stream = new EventStream<>(scheduler, false);
+        List<Integer> received = new ArrayList<>();
+        stream.subscribe(collect(received), DeliveryPolicy.perFrame(), executor);
+
+        // about 90 capture buffers a second for one second, published every 11 ms
+        for (int i = 1; i <= 90; i++) {
+            stream.publish(i);
+            executor.runAll();
+            scheduler.advanceBy(11);
+            executor.runAll();
+        }
+
+        assertEquals(Integer.valueOf(1), received.get(0));
+        assertTrue(received.size() <= 990 / DeliveryPolicy.FRAME_INTERVAL_MS + 1);
+        // the clock moves in 11 ms steps, so deliveries land every 22 ms at worst
+        assertTrue(received.size() >= 990 / 22);
+        // the trailing delivery carries the newest value
+        scheduler.advanceBy(DeliveryPolicy.FRAME_INTERVAL_MS);
+        executor.runAll();
+        assertEquals(Integer.valueOf(90), received.get(received.size() - 1));
+    }
+
+    @Test
+    public void stateStreamReplaysLatestAndCancelStopsDelivery() {
+        EventStream<String> stream = new EventStream<>(scheduler, true);
+        stream.publish("ready");
+
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        Subscription subscription = stream.subscribe(collect(first), DeliveryPolicy.all(8), executor);
+        stream.subscribe(collect(second), DeliveryPolicy.latest(), executor);
+        executor.runAll();
+        assertEquals("[ready]", first.toString());
+        assertEquals("[ready]", second.toString());
+
+        subscription.cancel();
+        stream.publish("recording");
+        executor.runAll();
+        assertEquals("[ready]", first.toString());
+        assertEquals("[ready, recording]", second.toString());
+        assertEquals(1, stream.getSubscriberCount());
+    }
+
+    private static <T> EventListener<T> collect(final List<T> received) {
+        return new EventListener<T>() {
+            @Override
+            public void onEvent(T event) {
+                received.add(event);
+            }
+        };
+    }
+
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> queue = new ArrayList<>();
+        int executed = 0;
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll() {
+            while (!queue.isEmpty()) {
+                executed++;
+                queue.remove(0).run();
+            }
+        }
+    }
+}
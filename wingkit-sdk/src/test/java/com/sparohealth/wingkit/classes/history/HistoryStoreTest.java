@@ -0,0 +1,347 @@
+package com.sparohealth.wingkit.classes.history;
+
+import com.google.gson.Gson;
+import com.sparohealth.wingkit.classes.Benchmark;
+import com.sparohealth.wingkit.classes.TestSession;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link HistoryStore}, and the cost of opening a patient's history compared with parsing it
+ */
+public class HistoryStoreTest {
+    private static final String[] ZONES = { "greenZone", "yellowZone", "redZone" };
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final long EPOCH_MS = 1514764800000L;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("history").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void sessionsAreStoredAndReplaced() throws IOException {
+        HistoryStore store = new HistoryStore(directory);
+        TestSession session = session(new Random(1), "patient-1", 0);
+        session.bestTest = session.tests.get(1);
+        session.latitude = null;
+        session.tests.get(0).exhaleCurve[3][1] = null;
+        store.put(session);
+        store.close();
+
+        TestSession stored = new HistoryStore(directory).get(session.id);
+        assertEquals(session.id, stored.id);
+        assertEquals(session.patientId, stored.patientId);
+        assertEquals(session.startedAt, stored.startedAt);
+        assertNull(stored.endedAt);
+        assertEquals(session.lungFunctionZone, stored.lungFunctionZone);
+        assertEquals(session.pefPredicted, stored.pefPredicted);
+        assertNull(stored.latitude);
+        assertEquals(session.breathDuration, stored.breathDuration, 0);
+        assertEquals(session.tests.size(), stored.tests.size());
+        assertSame(stored.tests.get(1), stored.bestTest);
+        for (int i = 0; i < session.tests.size(); i++) {
+            com.sparohealth.wingkit.classes.Test expected = session.tests.get(i);
+            com.sparohealth.wingkit.classes.Test actual = stored.tests.get(i);
+            assertEquals(expected.id, actual.id);
+            assertEquals(expected.status, actual.status);
+            assertEquals(expected.takenAt, actual.takenAt);
+            assertEquals(expected.pef, actual.pef);
+            assertEquals(expected.fev1, actual.fev1);
+            assertEquals(expected.uploadTargetId, actual.uploadTargetId);
+            assertEquals(expected.exhaleCurve.length, actual.exhaleCurve.length);
+            for (int row = 0; row < expected.exhaleCurve.length; row++) {
+                for (int column = 0; column < 2; column++) {
+                    Double value = expected.exhaleCurve[row][column];
+                    // curves are kept as floats
+                    if (value == null) {
+                        assertNull(actual.exhaleCurve[row][column]);
+                    } else {
+                        assertEquals(value, actual.exhaleCurve[row][column], Math.abs(value) * 1e-6);
+                    }
+                }
+            }
+        }
+
+        TestSession processed = session(new Random(2), "patient-1", 0);
+        processed.id = session.id;
+        processed.lungFunctionZone = "redZone";
+        HistoryStore reopened = new HistoryStore(directory);
+        reopened.put(processed);
+        assertEquals("redZone", reopened.get(session.id).lungFunctionZone);
+        assertEquals(1, reopened.count(new HistoryQuery()));
+        HistoryQuery green = new HistoryQuery();
+        green.lungFunctionZone = session.lungFunctionZone.equals("redZone") ? "greenZone" : session.lungFunctionZone;
+        assertEquals(0, reopened.count(green));
+        assertNull(reopened.get("unknown"));
+    }
+
+    @Test
+    public void queriesMatchAFullScan() throws IOException {
+        HistoryStore store = new HistoryStore(directory);
+        Random random = new Random(3);
+        List<TestSession> sessions = new ArrayList<>();
+        // stored out of order, with a session without a start time and several sharing one
+        for (int i = 0; i < 600; i++) {
+            TestSession session = session(random, "patient-" + random.nextInt(4), random.nextInt(400));
+            if (i == 17) {
+                session.startedAt = null;
+            }
+            if (i % 50 == 0) {
+                session.startedAt = new Date(EPOCH_MS + 100 * DAY_MS);
+            }
+            sessions.add(session);
+            store.put(session);
+        }
+        // replaced with a new zone and start time
+        for (int i = 0; i < 600; i += 7) {
+            TestSession session = session(random, sessions.get(i).patientId, random.nextInt(400));
+            session.id = sessions.get(i).id;
+            sessions.set(i, session);
+            store.put(session);
+        }
+
+        for (int i = 0; i < 200; i++) {
+            HistoryQuery query = new HistoryQuery();
+            query.patientId = random.nextInt(6) != 0 ? "patient-" + random.nextInt(5) : null;
+            query.lungFunctionZone = random.nextInt(3) == 0 ? ZONES[random.nextInt(ZONES.length)] : null;
+            query.from = random.nextBoolean() ? new Date(EPOCH_MS + random.nextInt(400) * DAY_MS) : null;
+            query.to = random.nextBoolean() ? new Date(EPOCH_MS + random.nextInt(400) * DAY_MS) : null;
+            query.newestFirst = random.nextBoolean();
+            query.pageSize = 1 + random.nextInt(40);
+            query.includeCurves = false;
+
+            List<String> expected = scan(sessions, query);
+            List<String> paged = new ArrayList<>();
+            do {
+                HistoryPage page = store.query(query);
+                for (TestSession session : page.sessions) {
+                    assertNull(session.tests.get(0).exhaleCurve);
+                    paged.add(session.id);
+                }
+                assertTrue(page.sessions.size() <= query.pageSize);
+                query.cursor = page.nextCursor;
+            } while (query.cursor != null);
+            assertEquals(expected, paged);
+            assertEquals(expected.size(), store.count(query));
+
+            final List<String> streamed = new ArrayList<>();
+            store.forEach(query, new HistoryVisitor() {
+                @Override
+                public boolean visit(TestSession session) {
+                    streamed.add(session.id);
+                    return true;
+                }
+            });
+            assertEquals(expected, streamed);
+        }
+    }
+
+    @Test
+    public void lostWritesAreDroppedAndReplacedSessionsCompacted() throws IOException {
+        HistoryStore store = new HistoryStore(directory);
+        Random random = new Random(4);
+        List<TestSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            sessions.add(session(random, "patient-1", i));
+            store.put(sessions.get(i));
+        }
+        store.close();
+
+        // the app was killed while appending: half an index entry, and an entry whose record never reached the disk
+        RandomAccessFile index = new RandomAccessFile(new File(directory, "history-0.index"), "rw");
+        index.seek(index.length());
+        index.writeLong(new File(directory, "history-0.records").length());
+        index.writeInt(100);
+        index.write(new byte[20]);
+        index.write(new byte[12]);
+        index.close();
+
+        store = new HistoryStore(directory);
+        assertEquals(40, store.count(new HistoryQuery("patient-1")));
+        TestSession added = session(random, "patient-1", 50);
+        store.put(added);
+        assertEquals(added.id, store.query(new HistoryQuery("patient-1")).sessions.get(0).id);
+
+        // every session is processed again, several times over
+        for (int round = 0; round < 4; round++) {
+            for (TestSession session : sessions) {
+                store.put(session);
+            }
+        }
+        long grown = store.getSizeBytes();
+        store.close();
+
+        store = new HistoryStore(directory);
+        assertEquals(41, store.count(new HistoryQuery()));
+        assertTrue(store.getSizeBytes() < grown / 4);
+        assertTrue(new File(directory, "history-1.records").exists());
+        assertFalse(new File(directory, "history-0.records").exists());
+        assertEquals(sessions.get(3).tests.get(1).pef, store.get(sessions.get(3).id).tests.get(1).pef);
+    }
+
+    @Category(Benchmark.class)
+    @Test
+    public void openingAPatientsHistoryIsCheaperThanParsingIt() throws IOException {
+        int patients = 4;
+        int count = 5000;
+        HistoryStore store = new HistoryStore(directory);
+        Random random = new Random(5);
+        Gson gson = new Gson();
+        List<String> json = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            TestSession session = session(random, "patient-" + (i % patients), i / patients);
+            store.put(session);
+            json.add(gson.toJson(session));
+        }
+        long jsonBytes = 0;
+        for (String body : json) {
+            jsonBytes += body.length();
+        }
+        long storeBytes = store.getSizeBytes();
+        store.close();
+
+        // what a history screen does today: parse every session it fetched, then sort out one patient's
+        long start = System.nanoTime();
+        List<TestSession> parsed = new ArrayList<>();
+        for (String body : json) {
+            TestSession session = gson.fromJson(body, TestSession.class);
+            if (session.patientId.equals("patient-2")) {
+                parsed.add(session);
+            }
+        }
+        long parseNanos = System.nanoTime() - start;
+
+        // open the store and show the first page
+        start = System.nanoTime();
+        HistoryStore reopened = new HistoryStore(directory);
+        HistoryQuery query = new HistoryQuery("patient-2");
+        query.pageSize = 20;
+        HistoryPage page = reopened.query(query);
+        long firstPageNanos = System.nanoTime() - start;
+
+        // chart every result of the patient's
+        start = System.nanoTime();
+        query.includeCurves = false;
+        final double[] pefs = new double[1];
+        final int[] streamed = new int[1];
+        reopened.forEach(query, new HistoryVisitor() {
+            @Override
+            public boolean visit(TestSession session) {
+                pefs[0] += session.tests.get(0).pef;
+                streamed[0]++;
+                return true;
+            }
+        });
+        long streamNanos = System.nanoTime() - start;
+
+        assertEquals(20, page.sessions.size());
+        assertEquals(parsed.size(), streamed[0]);
+        double parsedPefs = 0;
+        for (TestSession session : parsed) {
+            parsedPefs += session.tests.get(0).pef;
+        }
+        assertEquals(parsedPefs, pefs[0], 1e-6);
+        assertTrue(firstPageNanos < parseNanos);
+        System.out.println(String.format("%d sessions (%.1f MB JSON, %.1f MB stored): parsing %.1f ms, open and first page %.1f ms, streaming %d results %.1f ms",
+                count, jsonBytes / 1e6, storeBytes / 1e6, parseNanos / 1e6, firstPageNanos / 1e6, streamed[0], streamNanos / 1e6));
+    }
+
+    /**
+     * The ids of the sessions a query should return, by scanning them all. Sessions started at the same
+     * time are in the order they were first stored.
+     */
+    private static List<String> scan(final List<TestSession> sessions, HistoryQuery query) {
+        List<Integer> matching = new ArrayList<>();
+        for (int i = 0; i < sessions.size(); i++) {
+            TestSession session = sessions.get(i);
+            long started = startedMs(session);
+            if ((query.patientId == null || query.patientId.equals(session.patientId))
+                    && (query.lungFunctionZone == null || query.lungFunctionZone.equals(session.lungFunctionZone))
+                    && (query.from == null || started >= query.from.getTime())
+                    && (query.to == null || started < query.to.getTime())) {
+                matching.add(i);
+            }
+        }
+        Collections.sort(matching, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                int byStart = Long.compare(startedMs(sessions.get(first)), startedMs(sessions.get(second)));
+                return byStart != 0 ? byStart : first.compareTo(second);
+            }
+        });
+        if (query.newestFirst) {
+            Collections.reverse(matching);
+        }
+        List<String> ids = new ArrayList<>();
+        for (int i : matching) {
+            ids.add(sessions.get(i).id);
+        }
+        return ids;
+    }
+
+    private static long startedMs(TestSession session) {
+        return session.startedAt != null ? session.startedAt.getTime() : Long.MIN_VALUE;
+    }
+
+    private static TestSession session(Random random, String patientId, int day) {
+        TestSession session = new TestSession();
+        session.id = Long.toHexString(random.nextLong()) + "-" + Long.toHexString(random.nextLong());
+        session.patientId = patientId;
+        session.startedAt = new Date(EPOCH_MS + day * DAY_MS + random.nextInt(3600) * 1000L);
+        session.lungFunctionZone = ZONES[random.nextInt(ZONES.length)];
+        session.respiratoryState = "greenZone";
+        session.referenceMetric = "pef";
+        session.bestTestChoice = "highestReproducible";
+        session.pefPredicted = 400.0 + random.nextInt(200);
+        session.fev1Predicted = 3.0 + random.nextDouble();
+        session.latitude = 40 + random.nextDouble();
+        session.longitude = -74 + random.nextDouble();
+        session.breathDuration = 6;
+        session.tests = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            com.sparohealth.wingkit.classes.Test test = new com.sparohealth.wingkit.classes.Test();
+            test.id = Long.toHexString(random.nextLong());
+            test.status = "complete";
+            test.takenAt = new Date(session.startedAt.getTime() + i * 60000L);
+            test.breathDuration = 1 + random.nextDouble() * 4;
+            test.totalVolume = 3 + random.nextDouble() * 2;
+            test.pef = 300 + random.nextDouble() * 300;
+            test.fev1 = 2 + random.nextDouble() * 2;
+            test.uploadTargetId = "target";
+            test.exhaleCurve = new Double[120][];
+            for (int point = 0; point < test.exhaleCurve.length; point++) {
+                test.exhaleCurve[point] = new Double[] { point * test.totalVolume / 120, test.pef * Math.exp(-point / 30.0) };
+            }
+            session.tests.add(test);
+        }
+        return session;
+    }
+}
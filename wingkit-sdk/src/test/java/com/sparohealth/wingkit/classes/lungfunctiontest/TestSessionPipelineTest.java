@@ -0,0 +1,269 @@
+package com.sparohealth.wingkit.classes.lungfunctiontest;
+
+import com.google.gson.Gson;
+import com.sparohealth.wingkit.classes.Client;
+import com.sparohealth.wingkit.classes.ClientConfiguration;
+import com.sparohealth.wingkit.classes.TestSession;
+import com.sparohealth.wingkit.classes.TestSession.TestSessionState;
+import com.sparohealth.wingkit.classes.UploadTarget;
+import com.sparohealth.wingkit.classes.async.WingFuture;
+import com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionManager.TestSessionManagerError;
+import com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionPipeline.PipelinedTest;
+import com.sparohealth.wingkit.classes.lungfunctiontest.TestSessionPipeline.Stage;
+import com.sparohealth.wingkit.classes.scheduling.VirtualTimeScheduler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link TestSessionPipeline} on a {@link VirtualTimeScheduler} with a client whose requests
+ * are answered by hand, so uploads and polls can finish in any order
+ */
+public class TestSessionPipelineTest {
+    private VirtualTimeScheduler scheduler;
+    private StubClient client;
+    private TestSessionPipeline pipeline;
+    private final List<String> events = new ArrayList<>();
+    private final List<String> lockedCalls = new ArrayList<>();
+
+    /**
+     * A client that hands out upload targets at once and keeps uploads and polls open until the test finishes them
+     */
+    private static class StubClient extends Client {
+        final Map<String, WingApiCallback> uploads = new HashMap<>();
+        final Queue<WingFuture<TestSession>> polls = new LinkedList<>();
+        int uploadTargets = 0;
+
+        StubClient(ClientConfiguration configuration) {
+            super(null, "client-id", "client-secret", configuration);
+        }
+
+        @Override
+        public void createUploadTarget(String testSessionId, String patientId, WingApiCallback callback) {
+            UploadTarget target = new UploadTarget("target-" + uploadTargets++, "key", "bucket");
+            try {
+                callback.onSuccessResponse(new JSONObject(new Gson().toJson(target)));
+            } catch (JSONException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public void uploadFile(String filePath, UploadTarget target, WingApiCallback callback) {
+            uploads.put(filePath, callback);
+        }
+
+        @Override
+        public WingFuture<TestSession> retrieveTestSession(String sessionId, String patientId) {
+            WingFuture<TestSession> poll = new WingFuture<>();
+            polls.add(poll);
+            return poll;
+        }
+
+        void finishUpload(String filePath) throws JSONException {
+            uploads.remove(filePath).onSuccessResponse(new JSONObject().put("Upload Callback", "Success"));
+        }
+
+        WingFuture<TestSession> nextPoll() {
+            WingFuture<TestSession> poll = polls.poll();
+            assertNotNull("No poll was made", poll);
+            return poll;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualTimeScheduler();
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.useSharedHttpStack = true;
+        configuration.uploaderType = ClientConfiguration.UploaderType.lightweight;
+        configuration.scheduler = scheduler;
+        configuration.callbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        client = new StubClient(configuration);
+
+        TestSession session = new TestSession();
+        session.id = "session";
+        session.patientId = "patient";
+        pipeline = new TestSessionPipeline(client, session);
+        pipeline.setDelegate(new TestSessionPipeline.TestSessionPipelineDelegate() {
+            @Override
+            public void testStageChanged(PipelinedTest test, Stage stage) {
+                record("test " + test.order + " " + stage);
+            }
+
+            @Override
+            public void stateChanged(TestSessionState state) {
+                record("state " + state);
+            }
+
+            @Override
+            public void testFailed(PipelinedTest test, TestSessionManagerError error) {
+                record("failed " + test.order + " " + error);
+            }
+        });
+    }
+
+    @Test
+    public void uploadsFinishingOutOfOrder() throws JSONException {
+        PipelinedTest first = pipeline.submitRecording("first.wav");
+        PipelinedTest second = pipeline.submitRecording("second.wav");
+        assertEquals(Stage.uploading, first.stage);
+        assertEquals(Stage.uploading, second.stage);
+
+        // the second upload finishes first, and its result arrives while the first is still uploading
+        client.finishUpload("second.wav");
+        scheduler.runPending();
+        client.nextPoll().complete(session(result(second, "complete")));
+        assertEquals(Stage.complete, second.stage);
+        assertEquals(Stage.uploading, first.stage);
+        assertEquals(TestSessionState.goodTestFirst, pipeline.getState());
+        assertEquals(0, scheduler.getPendingCount());
+
+        client.finishUpload("first.wav");
+        scheduler.runPending();
+        client.nextPoll().complete(session(result(second, "complete"), result(first, "complete")));
+        assertEquals(Stage.complete, first.stage);
+        assertFalse(pipeline.isBusy());
+        assertTrue(client.polls.isEmpty());
+        assertEquals(0, scheduler.getPendingCount());
+
+        // the first test's late result does not replace the latest test's status
+        assertEquals(TestSessionState.notReproducibleTestFirst, pipeline.getState());
+        assertEquals("state " + TestSessionState.notReproducibleTestFirst, events.get(events.size() - 1));
+        assertTrue(lockedCalls.toString(), lockedCalls.isEmpty());
+    }
+
+    @Test
+    public void pollTimeout() throws JSONException {
+        PipelinedTest test = pipeline.submitRecording("first.wav");
+        client.finishUpload("first.wav");
+        scheduler.runPending();
+
+        for (int poll = 1; poll <= pipeline.processingTimeoutThreshold; poll++) {
+            assertEquals(Stage.processing, test.stage);
+            client.nextPoll().complete(session(result(test, "processing")));
+            scheduler.advanceBy(pipeline.processingPollingInterval);
+        }
+
+        assertEquals(Stage.error, test.stage);
+        assertEquals(TestSessionManagerError.processingTimeout, test.error);
+        assertTrue(events.contains("failed 0 " + TestSessionManagerError.processingTimeout));
+        // once nothing is waiting for a result, polling stops
+        assertTrue(client.polls.isEmpty());
+        assertEquals(0, scheduler.getPendingCount());
+        assertTrue(lockedCalls.toString(), lockedCalls.isEmpty());
+    }
+
+    @Test
+    public void failedPollIsRetried() throws JSONException {
+        PipelinedTest first = pipeline.submitRecording("first.wav");
+        PipelinedTest second = pipeline.submitRecording("second.wav");
+        client.finishUpload("first.wav");
+        client.finishUpload("second.wav");
+        scheduler.runPending();
+
+        client.nextPoll().fail(new Exception("The connection dropped"));
+        assertEquals(Stage.processing, first.stage);
+        assertEquals(Stage.processing, second.stage);
+        assertTrue(client.polls.isEmpty());
+
+        // the poll is made again after the polling interval, and both tests still get their results
+        scheduler.advanceBy(pipeline.processingPollingInterval);
+        client.nextPoll().complete(session(result(first, "complete"), result(second, "error")));
+        assertEquals(Stage.complete, first.stage);
+        assertEquals(Stage.error, second.stage);
+        assertNull(second.error);
+        assertFalse(pipeline.isBusy());
+        for (String event : events) {
+            assertFalse(event, event.startsWith("failed"));
+        }
+
+        // polls that keep failing end in a timeout rather than retrying forever
+        PipelinedTest third = pipeline.submitRecording("third.wav");
+        client.finishUpload("third.wav");
+        scheduler.runPending();
+        for (int poll = 1; poll <= pipeline.processingTimeoutThreshold; poll++) {
+            client.nextPoll().fail(new Exception("The connection dropped"));
+            scheduler.advanceBy(pipeline.processingPollingInterval);
+        }
+        assertEquals(Stage.error, third.stage);
+        assertEquals(TestSessionManagerError.retrieveTestSessionFailed, third.error);
+        assertEquals(0, scheduler.getPendingCount());
+        assertTrue(lockedCalls.toString(), lockedCalls.isEmpty());
+    }
+
+    @Test
+    public void delegateMayCallBackIn() throws JSONException {
+        final List<PipelinedTest> resubmitted = new ArrayList<>();
+        pipeline.setDelegate(new TestSessionPipeline.TestSessionPipelineDelegate() {
+            @Override
+            public void testStageChanged(PipelinedTest test, Stage stage) {
+                record("test " + test.order + " " + stage);
+            }
+
+            @Override
+            public void stateChanged(TestSessionState state) {
+                record("state " + state);
+            }
+
+            @Override
+            public void testFailed(PipelinedTest test, TestSessionManagerError error) {
+                record("failed " + test.order + " " + error);
+                resubmitted.add(pipeline.submitRecording(test.filePath));
+            }
+        });
+        pipeline.submitRecording("first.wav");
+        client.uploads.remove("first.wav").onErrorResponse(new Exception("Upload failed"));
+
+        assertEquals(1, resubmitted.size());
+        assertEquals(Stage.uploading, resubmitted.get(0).stage);
+        assertEquals("failed 0 " + TestSessionManagerError.testUploadFailed, events.get(events.size() - 3));
+        assertEquals("test 1 " + Stage.creatingUploadTarget, events.get(events.size() - 2));
+        assertEquals("test 1 " + Stage.uploading, events.get(events.size() - 1));
+        assertTrue(lockedCalls.toString(), lockedCalls.isEmpty());
+    }
+
+    private void record(String event) {
+        events.add(event);
+        // if the pipeline IS locked during a delegate call, a delegate waiting on another thread could deadlock
+        if (Thread.holdsLock(pipeline)) {
+            lockedCalls.add(event);
+        }
+    }
+
+    private static com.sparohealth.wingkit.classes.Test result(PipelinedTest test, String status) {
+        com.sparohealth.wingkit.classes.Test result = new com.sparohealth.wingkit.classes.Test();
+        result.id = "test-" + test.order;
+        result.uploadTargetId = test.uploadTarget.id;
+        result.status = status;
+        return result;
+    }
+
+    private static TestSession session(com.sparohealth.wingkit.classes.Test... tests) {
+        TestSession session = new TestSession();
+        session.id = "session";
+        session.patientId = "patient";
+        session.tests = new ArrayList<>();
+        for (com.sparohealth.wingkit.classes.Test test : tests) {
+            session.tests.add(test);
+        }
+        return session;
+    }
+}
@@ -0,0 +1,42 @@
+package com.sparohealth.wingkit.classes.lungfunctiontest;
+
+import com.sparohealth.wingkit.classes.Test.TestStatus;
+import com.sparohealth.wingkit.classes.TestSession.TestSessionState;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link TestSessionStateTracker} reaches the same states as the sequential session flow,
+ * including when results arrive out of order
+ */
+public class TestSessionStateTrackerTest {
+    @Test
+    public void sequentialResults() {
+        TestSessionStateTracker tracker = new TestSessionStateTracker(2);
+        assertEquals(TestSessionState.noTest, tracker.getState());
+        assertEquals(TestSessionState.goodTestFirst, tracker.testProcessed(0, TestStatus.complete));
+        assertEquals(TestSessionState.notReproducibleTestFirst, tracker.testProcessed(1, TestStatus.complete));
+        assertEquals(TestSessionState.reproducibleTestFinal, tracker.bestTestChoiceChanged(TestSessionManager.BestTestChoice.reproducible));
+    }
+
+    @Test
+    public void failuresReachThreshold() {
+        TestSessionStateTracker tracker = new TestSessionStateTracker(2);
+        assertEquals(TestSessionState.notProcessedTestFirst, tracker.testProcessed(0, TestStatus.error));
+        assertEquals(TestSessionState.notProcessedTestFinal, tracker.testProcessed(1, TestStatus.error));
+    }
+
+    @Test
+    public void outOfOrderResultsUseLatestTest() {
+        TestSessionStateTracker tracker = new TestSessionStateTracker(2);
+        tracker.testProcessed(1, TestStatus.complete);
+        // the earlier test's failure arrives late and does not replace the latest test's status
+        assertEquals(TestSessionState.goodTestFirst, tracker.testProcessed(0, TestStatus.error));
+
+        tracker.reset();
+        assertEquals(TestSessionState.noTest, tracker.getState());
+        assertEquals(TestSessionState.noTest, tracker.testProcessed(0, TestStatus.processing));
+    }
+}
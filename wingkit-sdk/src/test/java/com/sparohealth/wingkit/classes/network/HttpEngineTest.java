@@ -0,0 +1,177 @@
+package com.sparohealth.wingkit.classes.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a full test session's worth of traffic (REST calls and a recording upload) through one
+ * {@link HttpEngine} against a local stand-in server.
+ */
+public class HttpEngineTest {
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger peakConcurrentRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int current = concurrentRequests.incrementAndGet();
+                peakConcurrentRequests.set(Math.max(peakConcurrentRequests.get(), current));
+                try {
+                    InputStream in = exchange.getRequestBody();
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        body.write(buffer, 0, read);
+                    }
+                    if ("PUT".equals(exchange.getRequestMethod())) {
+                        uploadedBytes.addAndGet(body.size());
+                    }
+
+                    byte[] response = "{\"id\":\"abc\"}".getBytes("UTF-8");
+                    int status = exchange.getRequestURI().getPath().startsWith("/missing") ? 404 : 200;
+                    exchange.sendResponseHeaders(status, response.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(response);
+                    out.close();
+                } finally {
+                    concurrentRequests.decrementAndGet();
+                }
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void executeReturnsStatusAndBody() throws IOException {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+
+        HttpResponse response = engine.execute(new HttpRequest("POST", baseUrl + "/test-sessions").body("{}"));
+        assertEquals(200, response.statusCode);
+        assertEquals("{\"id\":\"abc\"}", response.bodyString());
+
+        HttpResponse missing = engine.execute(new HttpRequest("GET", baseUrl + "/missing"));
+        assertEquals(404, missing.statusCode);
+        assertFalse(missing.isSuccessful());
+
+        engine.shutdown();
+    }
+
+    @Test
+    public void fullSessionStaysWithinThreadPool() throws Exception {
+        final int poolSize = 2;
+        HttpEngine engine = new HttpEngine(poolSize, 5000, 5000);
+
+        // a 6 second 44.1 kHz mono 16-bit recording
+        File recording = File.createTempFile("session", ".wav");
+        recording.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(recording);
+        out.write(new byte[44 + 6 * 44100 * 2]);
+        out.close();
+
+        // create session, one upload target per blow, three uploads and ten polls
+        final int requestCount = 1 + 3 + 3 + 10;
+        final CountDownLatch done = new CountDownLatch(requestCount);
+        final AtomicInteger failures = new AtomicInteger();
+        HttpEngine.Callback callback = new HttpEngine.Callback() {
+            @Override
+            public void onResponse(HttpResponse response) {
+                if (!response.isSuccessful()) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(IOException error) {
+                failures.incrementAndGet();
+                done.countDown();
+            }
+        };
+
+        engine.enqueue(new HttpRequest("POST", baseUrl + "/test-sessions").body("{}"), callback);
+        for (int i = 0; i < 3; i++) {
+            engine.enqueue(new HttpRequest("GET", baseUrl + "/upload"), callback);
+            engine.enqueue(new HttpRequest("PUT", baseUrl + "/bucket/key" + i).body(recording), callback);
+        }
+        for (int i = 0; i < 10; i++) {
+            engine.enqueue(new HttpRequest("GET", baseUrl + "/test-sessions/abc"), callback);
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        assertEquals(0, failures.get());
+        assertEquals(3 * recording.length(), uploadedBytes.get());
+        assertTrue(engine.getActiveThreadCount() <= poolSize);
+        assertTrue(peakConcurrentRequests.get() <= poolSize);
+        engine.shutdown();
+    }
+
+    @Test
+    public void cancelledCallDoesNotInvokeCallback() throws Exception {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+        final AtomicInteger invocations = new AtomicInteger();
+        final CountDownLatch blocker = new CountDownLatch(1);
+
+        // occupy the only pool thread so the next call is still queued when cancelled
+        engine.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        HttpEngine.Call call = engine.enqueue(new HttpRequest("GET", baseUrl + "/test-sessions/abc"), new HttpEngine.Callback() {
+            @Override
+            public void onResponse(HttpResponse response) {
+                invocations.incrementAndGet();
+            }
+
+            @Override
+            public void onFailure(IOException error) {
+                invocations.incrementAndGet();
+            }
+        });
+        call.cancel();
+        blocker.countDown();
+
+        Thread.sleep(200);
+        assertTrue(call.isCancelled());
+        assertEquals(0, invocations.get());
+        engine.shutdown();
+    }
+}
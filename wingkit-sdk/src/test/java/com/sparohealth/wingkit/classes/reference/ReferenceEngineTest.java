@@ -0,0 +1,152 @@
+package com.sparohealth.wingkit.classes.reference;
+
+import com.sparohealth.wingkit.classes.Benchmark;
+import com.sparohealth.wingkit.classes.PatientData;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ReferenceEngine} against the published NHANES III equations, and the cost of
+ * predicting for many patients
+ */
+public class ReferenceEngineTest {
+    private static final String[] ETHNICITIES = {
+            PatientData.Ethnicity.whiteNonHispanic.getText(), PatientData.Ethnicity.black.getText(),
+            PatientData.Ethnicity.whiteHispanic.getText(), PatientData.Ethnicity.Asian.getText(), null };
+
+    @Test
+    public void bandsMeetAtTheAdultAge() {
+        // a transcription error in a coefficient shows up as a step between a population's two rows
+        for (double[] table : new double[][] { Nhanes3.FEV1, Nhanes3.PEF }) {
+            for (int row = 0; row < table.length; row += 8) {
+                int age = (row / 4) % 4 == 0 ? Nhanes3.MALE_ADULT_AGE : Nhanes3.FEMALE_ADULT_AGE;
+                if (Double.isNaN(table[row])) {
+                    continue;
+                }
+                double younger = table[row] + table[row + 1] * age + table[row + 2] * age * age;
+                double older = table[row + 4] + table[row + 5] * age + table[row + 6] * age * age;
+                assertEquals(table[row + 3], table[row + 7], 0);
+                assertEquals("Row " + row / 4, younger, older, 5e-4);
+            }
+        }
+    }
+
+    @Test
+    public void predictionsFollowThePublishedEquations() {
+        ReferenceEngine engine = ReferenceEngine.nhanes3();
+
+        // worked through by hand from table 4
+        ReferenceValues adult = engine.predict(new PatientData("1", PatientData.BiologicalSex.male, ETHNICITIES[0], 70, 30));
+        assertEquals(ReferencePopulation.caucasian, adult.population);
+        assertEquals(4.4647, adult.fev1Predicted, 1e-4);
+        assertEquals(615.25, adult.pefPredicted, 1e-2);
+        ReferenceValues child = engine.predict(PatientData.BiologicalSex.female, ETHNICITIES[0], 60, 12);
+        assertEquals(2.5835, child.fev1Predicted, 1e-4);
+        assertEquals(333.52, child.pefPredicted, 1e-2);
+        ReferenceValues woman = engine.predict(PatientData.BiologicalSex.female, ETHNICITIES[0], 64, 30);
+        assertEquals(419.93, woman.pefPredicted, 1e-2);
+        ReferenceValues africanAmerican = engine.predict(PatientData.BiologicalSex.female, ETHNICITIES[1], 64, 45);
+        assertEquals(ReferencePopulation.africanAmerican, africanAmerican.population);
+        assertEquals(ReferencePopulation.africanAmerican, africanAmerican.pefPopulation);
+        assertEquals(2.4357, africanAmerican.fev1Predicted, 1e-4);
+        assertEquals(385.12, africanAmerican.pefPredicted, 1e-2);
+        ReferenceValues teenager = engine.predict(PatientData.BiologicalSex.male, ETHNICITIES[2], 66, 16);
+        assertEquals(ReferencePopulation.mexicanAmerican, teenager.population);
+        assertEquals(3.8417, teenager.fev1Predicted, 1e-4);
+
+        // without a PEF equation of its own, a population gets no PEF unless the Caucasian one is asked for
+        assertNull(teenager.pefPredicted);
+        assertNull(teenager.pefPopulation);
+        ReferenceValues fallback = ReferenceEngine.nhanes3(true).predict(PatientData.BiologicalSex.male, ETHNICITIES[2], 66, 16);
+        assertEquals(ReferencePopulation.caucasian, fallback.pefPopulation);
+        assertEquals(engine.predict(PatientData.BiologicalSex.male, ETHNICITIES[0], 66, 16).pefPredicted, fallback.pefPredicted);
+        assertEquals(teenager.fev1Predicted, fallback.fev1Predicted);
+        assertEquals(ReferencePopulation.africanAmerican, ReferenceEngine.nhanes3(true).predict(PatientData.BiologicalSex.female, ETHNICITIES[1], 64, 45).pefPopulation);
+
+        // the ethnicities without equations of their own use the Caucasian ones
+        assertEquals(adult.fev1Predicted, engine.predict(PatientData.BiologicalSex.male, ETHNICITIES[3], 70, 30).fev1Predicted);
+        assertEquals(adult.fev1Predicted, engine.predict(PatientData.BiologicalSex.male, ETHNICITIES[4], 70, 30).fev1Predicted);
+
+        // outside the equations' range, or while details are missing
+        assertNull(engine.predict(PatientData.BiologicalSex.male, ETHNICITIES[0], 50, 7).fev1Predicted);
+        assertNull(engine.predict(PatientData.BiologicalSex.male, ETHNICITIES[0], 70, 81).pefPredicted);
+        assertNull(engine.predict(null, ETHNICITIES[0], 70, 30).fev1Predicted);
+        assertNull(engine.predict(PatientData.BiologicalSex.male, ETHNICITIES[0], 0, 30).fev1Predicted);
+    }
+
+    @Test
+    public void batchesMatchSinglePredictions() {
+        ReferenceEngine engine = ReferenceEngine.nhanes3();
+        List<PatientData> patients = patients(new Random(5), 2000);
+        double[] pef = new double[patients.size()];
+        double[] fev1 = new double[patients.size()];
+        engine.predict(patients, pef, fev1);
+        for (int i = 0; i < patients.size(); i++) {
+            ReferenceValues single = engine.predict(patients.get(i));
+            assertEquals(single.pefPredicted != null ? single.pefPredicted : Double.NaN, pef[i], 0);
+            assertEquals(single.fev1Predicted != null ? single.fev1Predicted : Double.NaN, fev1[i], 0);
+        }
+    }
+
+    @Category(Benchmark.class)
+    @Test
+    public void batchCosts() {
+        ReferenceEngine engine = ReferenceEngine.nhanes3();
+        List<PatientData> patients = patients(new Random(9), 1000000);
+        double[] pef = new double[patients.size()];
+        double[] fev1 = new double[patients.size()];
+
+        long batchNanos = Long.MAX_VALUE;
+        long singleNanos = Long.MAX_VALUE;
+        long formulaNanos = Long.MAX_VALUE;
+        double sum = 0;
+        for (int round = 0; round < 8; round++) {
+            long start = System.nanoTime();
+            engine.predict(patients, pef, fev1);
+            batchNanos = Math.min(batchNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (PatientData patient : patients) {
+                ReferenceValues values = engine.predict(patient);
+                sum += values.fev1Predicted != null ? values.fev1Predicted : 0;
+            }
+            singleNanos = Math.min(singleNanos, System.nanoTime() - start);
+
+            // the equations worked out in full for each patient, with a row picked per patient
+            start = System.nanoTime();
+            for (PatientData patient : patients) {
+                int group = ReferencePopulation.forEthnicity(patient.ethnicity).ordinal() * 2
+                        + (patient.biologicalSex == PatientData.BiologicalSex.male ? 0 : 1);
+                int adultAge = group % 2 == 0 ? Nhanes3.MALE_ADULT_AGE : Nhanes3.FEMALE_ADULT_AGE;
+                int row = (group * 2 + (patient.age < adultAge ? 0 : 1)) * 4;
+                double height = patient.height * 2.54;
+                sum -= Nhanes3.FEV1[row] + Nhanes3.FEV1[row + 1] * patient.age + Nhanes3.FEV1[row + 2] * patient.age * patient.age
+                        + Nhanes3.FEV1[row + 3] * height * height;
+            }
+            formulaNanos = Math.min(formulaNanos, System.nanoTime() - start);
+        }
+
+        assertEquals(0, sum, 1e-3);
+        System.out.println(String.format("%d patients: %.1f ns a patient in a batch, %.1f ns one at a time, %.1f ns working out the equation (FEV1 only)",
+                patients.size(), batchNanos / (double) patients.size(), singleNanos / (double) patients.size(),
+                formulaNanos / (double) patients.size()));
+    }
+
+    private static List<PatientData> patients(Random random, int count) {
+        List<PatientData> patients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            PatientData.BiologicalSex sex = random.nextBoolean() ? PatientData.BiologicalSex.male : PatientData.BiologicalSex.female;
+            int age = Nhanes3.MIN_AGE + random.nextInt(Nhanes3.MAX_AGE - Nhanes3.MIN_AGE + 1);
+            int height = age < 16 ? 48 + random.nextInt(20) : 58 + random.nextInt(18);
+            patients.add(new PatientData("patient-" + i, sex, ETHNICITIES[random.nextInt(ETHNICITIES.length)], height, age));
+        }
+        return patients;
+    }
+}
@@ -0,0 +1,58 @@
+package com.sparohealth.wingkit.classes.scheduling;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link PooledScheduler} keeps many periodic tasks on its bounded pool
+ */
+public class PooledSchedulerTest {
+    @Test
+    public void periodicTasksShareBoundedPool() throws InterruptedException {
+        PooledScheduler scheduler = new PooledScheduler(2);
+        int taskCount = 20;
+        final CountDownLatch runs = new CountDownLatch(taskCount * 3);
+        List<ScheduledTask> tasks = new ArrayList<>();
+
+        // twenty monitors' worth of periodic checks, which used to mean twenty Timer threads
+        for (int i = 0; i < taskCount; i++) {
+            tasks.add(scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    runs.countDown();
+                }
+            }, 0, 10));
+        }
+
+        assertTrue(runs.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.getActiveThreadCount() <= 2);
+
+        for (ScheduledTask task : tasks) {
+            task.cancel();
+            assertTrue(task.isCancelled());
+        }
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void delayedTaskCanBeCancelled() throws InterruptedException {
+        PooledScheduler scheduler = new PooledScheduler(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        ScheduledTask task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 200);
+        task.cancel();
+
+        assertFalse(ran.await(400, TimeUnit.MILLISECONDS));
+        scheduler.shutdown();
+    }
+}
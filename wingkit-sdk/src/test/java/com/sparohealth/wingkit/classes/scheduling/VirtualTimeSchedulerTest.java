@@ -0,0 +1,73 @@
+package com.sparohealth.wingkit.classes.scheduling;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks ordering, periodic runs and cancellation in {@link VirtualTimeScheduler}
+ */
+public class VirtualTimeSchedulerTest {
+    @Test
+    public void runsTasksInTimeOrder() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        final List<String> runs = new ArrayList<>();
+        scheduler.schedule(record(runs, "b"), 200);
+        scheduler.schedule(record(runs, "a"), 100);
+        scheduler.schedule(record(runs, "c"), 200);
+
+        assertEquals(0, scheduler.advanceBy(99));
+        assertEquals(3, scheduler.advanceBy(101));
+        assertEquals("[a, b, c]", runs.toString());
+        assertEquals(200, scheduler.uptimeMillis());
+    }
+
+    @Test
+    public void periodicTaskRunsUntilCancelled() {
+        final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        final List<Long> runs = new ArrayList<>();
+        ScheduledTask task = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.add(scheduler.uptimeMillis());
+            }
+        }, 0, 250);
+
+        assertEquals(5, scheduler.advanceBy(1000));
+        assertEquals("[0, 250, 500, 750, 1000]", runs.toString());
+
+        task.cancel();
+        assertEquals(0, scheduler.advanceBy(1000));
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void tasksCanScheduleFollowUps() {
+        final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        final List<String> runs = new ArrayList<>();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.add("poll");
+                scheduler.schedule(record(runs, "retry"), 800);
+            }
+        }, 0);
+
+        assertEquals(1, scheduler.runPending());
+        assertEquals(1, scheduler.getPendingCount());
+        scheduler.advanceBy(800);
+        assertEquals("[poll, retry]", runs.toString());
+    }
+
+    private static Runnable record(final List<String> runs, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runs.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,397 @@
+package com.sparohealth.wingkit.classes.trends;
+
+import com.sparohealth.wingkit.classes.Benchmark;
+import com.sparohealth.wingkit.classes.TestSession;
+import com.sparohealth.wingkit.classes.history.HistoryStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TrendEngine} against trends computed from the whole history, and the cost of a
+ * trends query compared with going through the history
+ */
+public class TrendEngineTest {
+    private static final String[] ZONES = { "greenZone", "yellowZone", "redZone" };
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final long EPOCH_MS = 1514764800000L;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("trends").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].isDirectory()) {
+                for (File file : files[i].listFiles()) {
+                    file.delete();
+                }
+            }
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void trendsMatchTheWholeHistory() throws IOException {
+        List<TestSession> history = history(new Random(7), "patient-1", 600, 3);
+        // a few sessions arrive late, some of them older than the rolling windows
+        Random random = new Random(8);
+        for (int i = 0; i < 20; i++) {
+            history.add(history.remove(history.size() - 1 - random.nextInt(300)));
+        }
+        TrendEngine engine = new TrendEngine(null, UTC);
+        for (TestSession session : history) {
+            engine.add(session, null);
+        }
+        Date now = new Date(EPOCH_MS + 299 * DAY_MS + 20 * 60 * 60 * 1000L);
+        assertMatches(history, engine.get("patient-1"), now);
+        assertNull(engine.get("patient-2"));
+    }
+
+    @Test
+    public void testsAreCountedOnce() throws IOException {
+        TestSession[] states = new TestSession[3];
+        for (int finished = 1; finished <= 3; finished++) {
+            TestSession session = history(new Random(3), "patient-1", 1, 3).get(0);
+            for (int i = finished; i < 3; i++) {
+                session.tests.get(i).status = "processing";
+                session.tests.get(i).pef = null;
+            }
+            session.lungFunctionZone = finished == 3 ? "yellowZone" : null;
+            states[finished - 1] = session;
+        }
+        TrendEngine engine = new TrendEngine(null, UTC);
+        engine.add(states[0], null);
+        assertEquals(1, engine.get("patient-1").getTestCount());
+        engine.add(states[1], states[0]);
+        engine.add(states[1], states[1]);
+        engine.add(states[2], states[1]);
+        engine.add(states[2], states[2]);
+        PatientTrends trends = engine.get("patient-1");
+        assertEquals(3, trends.getTestCount());
+        assertEquals(3, trends.getPef().getCount());
+        assertEquals("yellowZone", trends.getLungFunctionZone());
+        assertEquals(0, trends.getZoneChanges());
+
+        // the copy handed out does not change
+        TestSession next = history(new Random(4), "patient-1", 1, 3).get(0);
+        next.startedAt = new Date(states[2].startedAt.getTime() + DAY_MS);
+        next.lungFunctionZone = "greenZone";
+        engine.add(next, null);
+        assertEquals(3, trends.getTestCount());
+        assertEquals(1, engine.get("patient-1").getZoneChanges());
+        assertEquals(next.startedAt, engine.get("patient-1").getZoneSince());
+    }
+
+    @Test
+    public void savedTrendsAreLoadedOrRebuilt() throws IOException {
+        List<TestSession> history = new ArrayList<>();
+        history.addAll(history(new Random(11), "patient-1", 200, 3));
+        history.addAll(history(new Random(12), "patient-2", 50, 2));
+        File file = new File(directory, "trends");
+        TrendEngine engine = new TrendEngine(file, UTC);
+        HistoryStore store = new HistoryStore(new File(directory, "history"));
+        for (TestSession session : history) {
+            engine.add(session, null);
+            store.put(session);
+        }
+        engine.save();
+
+        Date now = new Date(history.get(199).startedAt.getTime() + DAY_MS);
+        TrendEngine loaded = new TrendEngine(file, UTC);
+        assertEquals(2, loaded.getPatientIds().size());
+        assertSameTrends(engine.get("patient-1"), loaded.get("patient-1"), now);
+        assertSameTrends(engine.get("patient-2"), loaded.get("patient-2"), now);
+
+        RandomAccessFile damaged = new RandomAccessFile(file, "rw");
+        damaged.seek(40);
+        damaged.write(damaged.read() ^ 1);
+        damaged.close();
+        try {
+            new TrendEngine(file, UTC).get("patient-1");
+            fail("The damaged file was read");
+        } catch (IOException expected) {
+        }
+
+        TrendEngine rebuilt = new TrendEngine(file, UTC);
+        rebuilt.rebuild(store);
+        rebuilt.save();
+        store.close();
+        assertSameTrends(engine.get("patient-1"), new TrendEngine(file, UTC).get("patient-1"), now);
+    }
+
+    @Category(Benchmark.class)
+    @Test
+    public void trendCosts() throws IOException {
+        // 100,000 tests: 10 patients with 3 tests a session, twice a day for about 4.5 years
+        List<TestSession> history = new ArrayList<>();
+        for (int patient = 0; patient < 10; patient++) {
+            history.addAll(history(new Random(patient), "patient-" + patient, 3334, 3));
+        }
+        int tests = 0;
+        for (TestSession session : history) {
+            tests += session.tests.size();
+        }
+        File file = new File(directory, "trends");
+        Date now = new Date(history.get(3333).startedAt.getTime() + DAY_MS);
+
+        long addNanos = Long.MAX_VALUE;
+        TrendEngine engine = null;
+        for (int round = 0; round < 5; round++) {
+            engine = new TrendEngine(file, UTC);
+            long start = System.nanoTime();
+            for (TestSession session : history) {
+                engine.add(session, null);
+            }
+            addNanos = Math.min(addNanos, System.nanoTime() - start);
+        }
+        long start = System.nanoTime();
+        engine.save();
+        long saveNanos = System.nanoTime() - start;
+
+        long queryNanos = Long.MAX_VALUE;
+        long loadNanos = Long.MAX_VALUE;
+        long scanNanos = Long.MAX_VALUE;
+        double[] fromEngine = null;
+        double[] fromSessions = null;
+        for (int round = 0; round < 20; round++) {
+            start = System.nanoTime();
+            TrendEngine loaded = new TrendEngine(file, UTC);
+            loaded.getPatientIds();
+            loadNanos = Math.min(loadNanos, System.nanoTime() - start);
+
+            // what a trends screen shows: rolling averages, bests and where the latest result ranks
+            start = System.nanoTime();
+            PatientTrends trends = loaded.get("patient-3");
+            fromEngine = new double[] { trends.getPef().getRollingMean(now, 7), trends.getPef().getRollingMean(now, 30),
+                    trends.getPef().getBest(), trends.getFev1().getRollingMean(now, 7), trends.getFev1().getBest(),
+                    trends.getZoneChanges(), trends.getPef().getPercentile(50), trends.getPef().getPercentileRank(400) };
+            queryNanos = Math.min(queryNanos, System.nanoTime() - start);
+
+            // the same from the sessions held in memory, as apps do now
+            start = System.nanoTime();
+            fromSessions = scan(history, "patient-3", now);
+            scanNanos = Math.min(scanNanos, System.nanoTime() - start);
+        }
+
+        for (int i = 0; i < fromEngine.length; i++) {
+            // the median and rank are to within a bin
+            assertEquals(fromSessions[i], fromEngine[i], i < 6 ? 1e-9 : 5);
+        }
+        assertTrue(queryNanos < scanNanos);
+        System.out.println(String.format("%d tests of 10 patients: %.0f ns a test added, trends file %.1f KB (saved in %.2f ms, loaded in %.2f ms); "
+                        + "a patient's trends %.1f us from the engine, %.2f ms going through the sessions",
+                tests, addNanos / (double) tests, file.length() / 1024.0, saveNanos / 1e6, loadNanos / 1e6,
+                queryNanos / 1e3, scanNanos / 1e6));
+    }
+
+    /**
+     * Compute what the trends query in {@link #trendCosts()} reads by going through the sessions
+     */
+    private static double[] scan(List<TestSession> history, String patientId, Date now) {
+        long today = Math.floorDiv(now.getTime(), DAY_MS);
+        double[] pef = new double[history.size() * 3];
+        int count = 0;
+        int below = 0;
+        double week = 0;
+        int weekCount = 0;
+        double month = 0;
+        int monthCount = 0;
+        double best = Double.NaN;
+        double fev1Week = 0;
+        int fev1WeekCount = 0;
+        double fev1Best = Double.NaN;
+        String zone = null;
+        int changes = 0;
+        for (TestSession session : history) {
+            if (!session.patientId.equals(patientId)) {
+                continue;
+            }
+            if (session.lungFunctionZone != null) {
+                changes += zone != null && !zone.equals(session.lungFunctionZone) ? 1 : 0;
+                zone = session.lungFunctionZone;
+            }
+            for (com.sparohealth.wingkit.classes.Test test : session.tests) {
+                long age = today - Math.floorDiv(test.takenAt.getTime(), DAY_MS);
+                pef[count++] = test.pef;
+                below += test.pef < 400 ? 1 : 0;
+                best = Double.isNaN(best) ? test.pef : Math.max(best, test.pef);
+                fev1Best = Double.isNaN(fev1Best) ? test.fev1 : Math.max(fev1Best, test.fev1);
+                if (age >= 0 && age < 7) {
+                    week += test.pef;
+                    weekCount++;
+                    fev1Week += test.fev1;
+                    fev1WeekCount++;
+                }
+                if (age >= 0 && age < 30) {
+                    month += test.pef;
+                    monthCount++;
+                }
+            }
+        }
+        Arrays.sort(pef, 0, count);
+        return new double[] { week / weekCount, month / monthCount, best, fev1Week / fev1WeekCount, fev1Best, changes,
+                pef[(count - 1) / 2], below * 100.0 / count };
+    }
+
+    private static void assertMatches(List<TestSession> history, PatientTrends trends, Date now) {
+        List<Double> pef = new ArrayList<>();
+        List<Double> fev1 = new ArrayList<>();
+        double bestPef = Double.NaN;
+        Date bestPefAt = null;
+        long today = Math.floorDiv(now.getTime(), DAY_MS);
+        for (TestSession session : history) {
+            for (com.sparohealth.wingkit.classes.Test test : session.tests) {
+                pef.add(test.pef);
+                fev1.add(test.fev1);
+                if (Double.isNaN(bestPef) || test.pef > bestPef || (test.pef == bestPef && test.takenAt.before(bestPefAt))) {
+                    bestPef = test.pef;
+                    bestPefAt = test.takenAt;
+                }
+            }
+        }
+        assertEquals(pef.size(), trends.getTestCount());
+        assertEquals(pef.size(), trends.getPef().getCount());
+        assertEquals(mean(pef), trends.getPef().getMean(), 1e-9);
+        assertEquals(mean(fev1), trends.getFev1().getMean(), 1e-9);
+        double variance = 0;
+        for (double value : pef) {
+            variance += (value - mean(pef)) * (value - mean(pef));
+        }
+        assertEquals(Math.sqrt(variance / pef.size()), trends.getPef().getStandardDeviation(), 1e-6);
+        assertEquals(bestPef, trends.getPef().getBest(), 0);
+        assertEquals(bestPefAt, trends.getPef().getBestAt());
+
+        for (int days : new int[] { 1, 7, 30 }) {
+            double sum = 0;
+            int count = 0;
+            double best = Double.NaN;
+            for (TestSession session : history) {
+                for (com.sparohealth.wingkit.classes.Test test : session.tests) {
+                    long age = today - Math.floorDiv(test.takenAt.getTime(), DAY_MS);
+                    if (age >= 0 && age < days) {
+                        sum += test.pef;
+                        count++;
+                        best = Double.isNaN(best) ? test.pef : Math.max(best, test.pef);
+                    }
+                }
+            }
+            assertTrue(count > 0);
+            assertEquals(count, trends.getPef().getRollingCount(now, days));
+            assertEquals(sum / count, trends.getPef().getRollingMean(now, days), 1e-9);
+            assertEquals(best, trends.getPef().getRollingBest(now, days), 0);
+        }
+
+        List<Double> sorted = new ArrayList<>(pef);
+        java.util.Collections.sort(sorted);
+        for (double percent : new double[] { 5, 25, 50, 75, 95 }) {
+            double exact = sorted.get((int) Math.ceil(percent / 100 * sorted.size()) - 1);
+            assertEquals(exact, trends.getPef().getPercentile(percent), 5);
+        }
+        for (double value : new double[] { 300, 420, 510 }) {
+            int below = 0;
+            for (double result : pef) {
+                below += result < value ? 1 : 0;
+            }
+            // a bin holds under 5% of the results here
+            assertEquals(below * 100.0 / pef.size(), trends.getPef().getPercentileRank(value), 5);
+        }
+
+        String zone = null;
+        int changes = 0;
+        Date since = null;
+        long last = Long.MIN_VALUE;
+        for (TestSession session : history) {
+            // late sessions are not zone changes
+            if (session.startedAt.getTime() < last) {
+                continue;
+            }
+            last = session.startedAt.getTime();
+            if (!session.lungFunctionZone.equals(zone)) {
+                changes += zone != null ? 1 : 0;
+                zone = session.lungFunctionZone;
+                since = session.startedAt;
+            }
+        }
+        assertEquals(zone, trends.getLungFunctionZone());
+        assertEquals(changes, trends.getZoneChanges());
+        assertEquals(since, trends.getZoneSince());
+    }
+
+    private static void assertSameTrends(PatientTrends expected, PatientTrends actual, Date now) {
+        assertEquals(expected.getTestCount(), actual.getTestCount());
+        assertEquals(expected.getLastTestAt(), actual.getLastTestAt());
+        assertEquals(expected.getLungFunctionZone(), actual.getLungFunctionZone());
+        assertEquals(expected.getZoneSince(), actual.getZoneSince());
+        assertEquals(expected.getZoneChanges(), actual.getZoneChanges());
+        for (MetricTrend[] metrics : new MetricTrend[][] { { expected.getPef(), actual.getPef() }, { expected.getFev1(), actual.getFev1() } }) {
+            assertEquals(metrics[0].getCount(), metrics[1].getCount());
+            assertEquals(metrics[0].getMean(), metrics[1].getMean(), 1e-9);
+            assertEquals(metrics[0].getBest(), metrics[1].getBest(), 0);
+            assertEquals(metrics[0].getBestAt(), metrics[1].getBestAt());
+            assertEquals(metrics[0].getPercentile(50), metrics[1].getPercentile(50), 1e-9);
+            assertEquals(metrics[0].getRollingMean(now, 30), metrics[1].getRollingMean(now, 30), 1e-9);
+            assertEquals(metrics[0].getRollingBest(now, 7), metrics[1].getRollingBest(now, 7), 0);
+        }
+    }
+
+    private static double mean(List<Double> values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.size();
+    }
+
+    /**
+     * A patient's sessions, twice a day, in time order, with a zone that drifts between sessions
+     */
+    private static List<TestSession> history(Random random, String patientId, int sessions, int testsPerSession) {
+        List<TestSession> history = new ArrayList<>();
+        int zone = 0;
+        for (int i = 0; i < sessions; i++) {
+            TestSession session = new TestSession();
+            session.id = patientId + "-session-" + i;
+            session.patientId = patientId;
+            session.startedAt = new Date(EPOCH_MS + i * DAY_MS / 2 + random.nextInt(3600000));
+            if (random.nextInt(10) == 0) {
+                zone = random.nextInt(ZONES.length);
+            }
+            session.lungFunctionZone = ZONES[zone];
+            session.tests = new ArrayList<>();
+            for (int t = 0; t < testsPerSession; t++) {
+                com.sparohealth.wingkit.classes.Test test = new com.sparohealth.wingkit.classes.Test();
+                test.id = session.id + "-test-" + t;
+                test.status = "complete";
+                test.takenAt = new Date(session.startedAt.getTime() + t * 60000);
+                test.pef = (double) Math.round(420 + 60 * random.nextGaussian());
+                test.fev1 = Math.round((3.2 + 0.4 * random.nextGaussian()) * 100) / 100.0;
+                session.tests.add(test);
+            }
+            history.add(session);
+        }
+        return history;
+    }
+}
@@ -0,0 +1,209 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import com.sparohealth.wingkit.classes.UploadTarget;
+import com.sparohealth.wingkit.classes.capture.RecordingChecksum;
+import com.sparohealth.wingkit.classes.capture.RecordingManifest;
+import com.sparohealth.wingkit.classes.network.HttpEngine;
+import com.sparohealth.wingkit.classes.network.HttpStatusException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the {@link LightweightS3Uploader} against a local stand-in for Cognito Identity and S3
+ */
+public class LightweightS3UploaderTest {
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicInteger getIdCalls = new AtomicInteger();
+    private final AtomicInteger getCredentialsCalls = new AtomicInteger();
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, String> lastHeaders = new ConcurrentHashMap<>();
+    private volatile int s3Status = 200;
+    private final AtomicInteger s3Puts = new AtomicInteger();
+    private final AtomicInteger bodiesToDamage = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/cognito", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readBody(exchange);
+                String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+                String response;
+                if ("AWSCognitoIdentityService.GetId".equals(target)) {
+                    getIdCalls.incrementAndGet();
+                    response = "{\"IdentityId\":\"us-east-1:identity\"}";
+                } else {
+                    getCredentialsCalls.incrementAndGet();
+                    long expiration = System.currentTimeMillis() / 1000 + 3600;
+                    response = "{\"IdentityId\":\"us-east-1:identity\",\"Credentials\":{\"AccessKeyId\":\"ASIAEXAMPLE\","
+                            + "\"SecretKey\":\"secret\",\"SessionToken\":\"session-token\",\"Expiration\":" + expiration + "}}";
+                }
+                respond(exchange, 200, response);
+            }
+        });
+        server.createContext("/s3", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readBody(exchange);
+                s3Puts.incrementAndGet();
+                // if a body IS to be damaged on the way, flip a bit the way a bad link would
+                if (bodiesToDamage.getAndDecrement() > 0) {
+                    body[body.length / 2] ^= 1;
+                }
+                String contentMd5 = exchange.getRequestHeaders().getFirst("Content-MD5");
+                lastHeaders.put("content-md5", String.valueOf(contentMd5));
+                if (contentMd5 != null && !contentMd5.equals(md5(body))) {
+                    respond(exchange, 400, "<Error><Code>BadDigest</Code></Error>");
+                    return;
+                }
+                lastHeaders.put("authorization", String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+                lastHeaders.put("token", String.valueOf(exchange.getRequestHeaders().getFirst("x-amz-security-token")));
+                lastHeaders.put("sha256", String.valueOf(exchange.getRequestHeaders().getFirst("x-amz-content-sha256")));
+                if (s3Status == 200) {
+                    objects.put(exchange.getRequestURI().getRawPath(), body);
+                }
+                respond(exchange, s3Status, "");
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void uploadsSignedObjectAndCachesCredentials() throws IOException {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+        CognitoIdentityClient cognito = new CognitoIdentityClient(engine, "us-east-1", "us-east-1:pool", baseUrl + "/cognito");
+        LightweightS3Uploader uploader = new LightweightS3Uploader(engine, cognito, "us-east-1", baseUrl + "/s3");
+
+        File recording = recording(100000);
+        uploader.put(recording, new UploadTarget("1", "sessions/abc/test 1.wav", "wing-bucket"));
+        uploader.put(recording, new UploadTarget("2", "sessions/abc/test2.wav", "wing-bucket"));
+
+        assertEquals(1, getIdCalls.get());
+        assertEquals(1, getCredentialsCalls.get());
+        assertEquals(100000, objects.get("/s3/wing-bucket/sessions/abc/test%201.wav").length);
+        assertEquals(100000, objects.get("/s3/wing-bucket/sessions/abc/test2.wav").length);
+        assertTrue(lastHeaders.get("authorization").startsWith("AWS4-HMAC-SHA256 Credential=ASIAEXAMPLE/"));
+        assertTrue(lastHeaders.get("authorization").contains("/us-east-1/s3/aws4_request"));
+        assertEquals("session-token", lastHeaders.get("token"));
+        assertEquals(SigV4Signer.UNSIGNED_PAYLOAD, lastHeaders.get("sha256"));
+        engine.shutdown();
+    }
+
+    @Test
+    public void rejectedUploadRaisesStatus() throws IOException {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+        CognitoIdentityClient cognito = new CognitoIdentityClient(engine, "us-east-1", "us-east-1:pool", baseUrl + "/cognito");
+        LightweightS3Uploader uploader = new LightweightS3Uploader(engine, cognito, "us-east-1", baseUrl + "/s3");
+        s3Status = 403;
+
+        try {
+            uploader.put(recording(10), new UploadTarget("1", "key.wav", "wing-bucket"));
+            fail("expected the upload to be rejected");
+        } catch (HttpStatusException ex) {
+            assertEquals(403, ex.getStatusCode());
+        }
+        engine.shutdown();
+    }
+
+    @Test
+    public void damagedUploadIsSentOnceMore() throws IOException {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+        CognitoIdentityClient cognito = new CognitoIdentityClient(engine, "us-east-1", "us-east-1:pool", baseUrl + "/cognito");
+        LightweightS3Uploader uploader = new LightweightS3Uploader(engine, cognito, "us-east-1", baseUrl + "/s3");
+        File recording = recordingWithManifest(50000);
+
+        bodiesToDamage.set(1);
+        uploader.put(recording, new UploadTarget("1", "key.wav", "wing-bucket"));
+        assertEquals(2, s3Puts.get());
+        assertEquals(RecordingChecksum.compute(recording).getContentMd5(), lastHeaders.get("content-md5"));
+        assertEquals(50000, objects.get("/s3/wing-bucket/key.wav").length);
+
+        // damaged twice in a row is reported rather than retried forever
+        bodiesToDamage.set(2);
+        try {
+            uploader.put(recording, new UploadTarget("2", "key2.wav", "wing-bucket"));
+            fail("expected the upload to be rejected");
+        } catch (HttpStatusException ex) {
+            assertEquals(400, ex.getStatusCode());
+        }
+        assertEquals(4, s3Puts.get());
+        engine.shutdown();
+    }
+
+    private static File recordingWithManifest(int length) throws IOException {
+        File file = recording(length);
+        RecordingManifest.fileFor(file).deleteOnExit();
+        new RecordingManifest(RecordingChecksum.compute(file), 1000, 44100, 44100, null).write(file);
+        return file;
+    }
+
+    private static String md5(byte[] body) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(body));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static File recording(int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(7).nextBytes(data);
+        File file = File.createTempFile("recording", ".wav");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,340 @@
+package com.sparohealth.wingkit.classes.upload;
+
+import com.sparohealth.wingkit.classes.UploadTarget;
+import com.sparohealth.wingkit.classes.network.HttpEngine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the {@link LightweightS3Uploader} with an {@link UploadJournal} against a local S3 stand-in
+ * that supports multipart uploads and can drop connections partway through a request body
+ */
+public class ResumableUploadTest {
+    private static final int PART_SIZE = 128 * 1024;
+    private static final int LENGTH = 1000000;
+    private static final UploadTarget TARGET = new UploadTarget("1", "sessions/abc/test1.wav", "wing-bucket");
+
+    private HttpServer server;
+    private String baseUrl;
+    private File journalDirectory;
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    /// Part requests received (including dropped ones), by part number.
+    private final Map<Integer, AtomicInteger> partRequests = new ConcurrentHashMap<>();
+    /// Part numbers whose next request is dropped halfway through its body.
+    private final Map<Integer, Boolean> partsToDrop = new ConcurrentHashMap<>();
+    /// Stored parts after which every request is dropped, as in a lost network; -1 for none.
+    private volatile int outageAfterParts = -1;
+    private final AtomicInteger storedParts = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        journalDirectory = Files.createTempDirectory("uploads").toFile();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/cognito", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readBody(exchange, -1);
+                long expiration = System.currentTimeMillis() / 1000 + 3600;
+                respond(exchange, 200, "{\"IdentityId\":\"us-east-1:identity\",\"Credentials\":{\"AccessKeyId\":\"ASIAEXAMPLE\","
+                        + "\"SecretKey\":\"secret\",\"SessionToken\":\"session-token\",\"Expiration\":" + expiration + "}}");
+            }
+        });
+        server.createContext("/s3", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleS3(exchange);
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = journalDirectory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        journalDirectory.delete();
+    }
+
+    @Test
+    public void droppedPartIsSentAgainAlone() throws IOException {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+        byte[] data = data(LENGTH);
+        partsToDrop.put(3, true);
+        List<Long> progress = new ArrayList<>();
+
+        uploader(engine, new UploadJournal(journalDirectory)).put(recording(data), TARGET, recorder(progress));
+
+        assertArrayEquals(data, objects.get("/s3/wing-bucket/sessions/abc/test1.wav"));
+        assertEquals(8, partRequests.size());
+        for (Map.Entry<Integer, AtomicInteger> part : partRequests.entrySet()) {
+            assertEquals("part " + part.getKey(), part.getKey() == 3 ? 2 : 1, part.getValue().get());
+        }
+        assertEquals(LENGTH, (long) progress.get(progress.size() - 1));
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) > progress.get(i - 1));
+        }
+        // the journal is emptied once the object is stored
+        assertEquals(0, journalDirectory.list().length);
+        engine.shutdown();
+    }
+
+    @Test
+    public void interruptedUploadResumesAfterRestart() throws IOException {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+        byte[] data = data(LENGTH);
+        File recording = recording(data);
+        outageAfterParts = 4;
+
+        try {
+            uploader(engine, new UploadJournal(journalDirectory)).put(recording, TARGET, null);
+            fail("expected the upload to fail while the network is down");
+        } catch (IOException expected) {
+            // the connection keeps dropping
+        }
+        // the journal has its own copy and the recording is left in place, so the next test can reuse the recorder's file
+        assertTrue(recording.exists());
+        FileOutputStream nextTest = new FileOutputStream(recording);
+        nextTest.write(data(1000));
+        nextTest.close();
+        recording.deleteOnExit();
+
+        // as after the app is killed: a new journal and uploader on the same directory
+        outageAfterParts = -1;
+        UploadJournal journal = new UploadJournal(journalDirectory);
+        List<UploadJournal.Entry> pending = journal.pending();
+        assertEquals(1, pending.size());
+        assertEquals(TARGET.key, pending.get(0).target.key);
+        assertEquals(4, pending.get(0).parts.size());
+
+        List<Long> progress = new ArrayList<>();
+        uploader(engine, journal).put(null, pending.get(0).target, recorder(progress));
+
+        assertArrayEquals(data, objects.get("/s3/wing-bucket/sessions/abc/test1.wav"));
+        for (int part = 1; part <= 4; part++) {
+            assertEquals("part " + part, 1, partRequests.get(part).get());
+        }
+        assertEquals(8, storedParts.get());
+        // progress resumes from the stored parts rather than from zero
+        assertTrue(progress.get(0) > 4 * PART_SIZE);
+        assertEquals(LENGTH, (long) progress.get(progress.size() - 1));
+        assertTrue(journal.pending().isEmpty());
+        engine.shutdown();
+    }
+
+    @Test
+    public void retriesAreLimited() throws IOException, InterruptedException {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+        byte[] data = data(LENGTH);
+        File recording = recording(data);
+        UploadJournal journal = new UploadJournal(journalDirectory, UploadJournal.DEFAULT_MAX_AGE_MS, 3);
+        outageAfterParts = 2;
+
+        // retrying with the same file resumes the journal's copy rather than starting over
+        for (int attempt = 1; attempt <= 2; attempt++) {
+            try {
+                uploader(engine, journal).put(recording, TARGET, null);
+                fail("expected the upload to fail while the network is down");
+            } catch (IOException expected) {
+                // the connection keeps dropping
+            }
+            assertEquals(attempt, journal.pending().get(0).attempts);
+        }
+        assertEquals(1, partRequests.get(1).get());
+
+        // the third attempt is the last; once it fails the upload is given up and its copy deleted
+        try {
+            uploader(engine, journal).put(null, TARGET, null);
+            fail("expected the upload to fail while the network is down");
+        } catch (IOException expected) {
+            // the connection keeps dropping
+        }
+        assertTrue(journal.pending().isEmpty());
+        assertEquals(0, journalDirectory.list().length);
+        try {
+            uploader(engine, journal).put(null, TARGET, null);
+            fail("expected nothing to resume");
+        } catch (FileNotFoundException expected) {
+            // the journal no longer has the recording
+        }
+        assertTrue(recording.exists());
+
+        // an upload left for too long is given up as well
+        outageAfterParts = 0;
+        try {
+            uploader(engine, journal).put(recording, TARGET, null);
+            fail("expected the upload to fail while the network is down");
+        } catch (IOException expected) {
+            // the connection keeps dropping
+        }
+        Thread.sleep(5);
+        assertTrue(new UploadJournal(journalDirectory, 1, 3).pending().isEmpty());
+        assertEquals(0, journalDirectory.list().length);
+        engine.shutdown();
+    }
+
+    @Test
+    public void smallRecordingIsSentWhole() throws IOException {
+        HttpEngine engine = new HttpEngine(1, 5000, 5000);
+        byte[] data = data(PART_SIZE / 2);
+        File recording = recording(data);
+
+        uploader(engine, new UploadJournal(journalDirectory)).put(recording, TARGET, null);
+
+        assertArrayEquals(data, objects.get("/s3/wing-bucket/sessions/abc/test1.wav"));
+        assertTrue(partRequests.isEmpty());
+        assertArrayEquals(data, Files.readAllBytes(recording.toPath()));
+        assertEquals(0, journalDirectory.list().length);
+        engine.shutdown();
+    }
+
+    @Test
+    public void progressIsThrottled() {
+        final List<Long> delivered = new ArrayList<>();
+        ProgressThrottle throttle = new ProgressThrottle(recorder(delivered), 250);
+
+        // a report every 10 ms for a second, with one step backwards as a dropped part is sent again
+        for (int ms = 0; ms < 1000; ms += 10) {
+            throttle.report(ms == 500 ? 100 : ms, 1000, ms * 1000000L);
+        }
+        throttle.report(1000, 1000, 1000 * 1000000L);
+
+        assertEquals(Arrays.asList(0L, 250L, 510L, 760L, 1000L), delivered);
+    }
+
+    private LightweightS3Uploader uploader(HttpEngine engine, UploadJournal journal) {
+        CognitoIdentityClient cognito = new CognitoIdentityClient(engine, "us-east-1", "us-east-1:pool", baseUrl + "/cognito");
+        return new LightweightS3Uploader(engine, cognito, "us-east-1", baseUrl + "/s3", journal, PART_SIZE);
+    }
+
+    private static UploadProgressListener recorder(final List<Long> progress) {
+        return new UploadProgressListener() {
+            @Override
+            public void onProgress(long bytesSent, long bytesTotal) {
+                progress.add(bytesSent);
+            }
+        };
+    }
+
+    private void handleS3(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getRawPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        query = query == null ? "" : query;
+        int part = query.contains("partNumber=") ? Integer.parseInt(parameter(query, "partNumber")) : 0;
+        if (part > 0) {
+            partRequests.putIfAbsent(part, new AtomicInteger());
+            partRequests.get(part).incrementAndGet();
+        }
+        // if the network IS down, or this part IS to be cut off, drop the connection halfway through the body
+        if ((outageAfterParts >= 0 && storedParts.get() >= outageAfterParts) || (part > 0 && partsToDrop.remove(part) != null)) {
+            readBody(exchange, PART_SIZE / 2);
+            throw new IOException("connection dropped");
+        }
+        byte[] body = readBody(exchange, -1);
+
+        if (exchange.getRequestMethod().equals("POST") && query.startsWith("uploads")) {
+            String uploadId = "upload-" + uploads.size();
+            uploads.put(uploadId, new ConcurrentHashMap<Integer, byte[]>());
+            respond(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if (part > 0) {
+            Map<Integer, byte[]> parts = uploads.get(parameter(query, "uploadId"));
+            if (parts == null) {
+                respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                return;
+            }
+            parts.put(part, body);
+            storedParts.incrementAndGet();
+            exchange.getResponseHeaders().add("ETag", "\"etag-" + part + "\"");
+            respond(exchange, 200, "");
+        } else if (exchange.getRequestMethod().equals("POST")) {
+            Map<Integer, byte[]> parts = uploads.remove(parameter(query, "uploadId"));
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            Matcher listed = Pattern.compile("<PartNumber>(\\d+)</PartNumber><ETag>\"etag-(\\d+)\"</ETag>")
+                    .matcher(new String(body, "UTF-8"));
+            while (listed.find()) {
+                assertEquals(listed.group(1), listed.group(2));
+                object.write(parts.get(Integer.parseInt(listed.group(1))));
+            }
+            objects.put(path, object.toByteArray());
+            respond(exchange, 200, "<CompleteMultipartUploadResult></CompleteMultipartUploadResult>");
+        } else {
+            objects.put(path, body);
+            respond(exchange, 200, "");
+        }
+    }
+
+    private static String parameter(String query, String name) {
+        for (String pair : query.split("&")) {
+            if (pair.startsWith(name + "=")) {
+                return pair.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static File recording(byte[] data) throws IOException {
+        File file = File.createTempFile("recording", ".wav");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private static byte[] readBody(HttpExchange exchange, int limit) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((limit < 0 || body.size() < limit) && (read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,176 @@
+package com.sparohealth.wingkit.tools;
+
+import com.sparohealth.wingkit.classes.analysis.EffortClassification;
+import com.sparohealth.wingkit.classes.analysis.EffortClassifier;
+import com.sparohealth.wingkit.classes.analysis.EnvelopeExtractor;
+import com.sparohealth.wingkit.classes.analysis.FlowEnvelope;
+import com.sparohealth.wingkit.classes.analysis.FlowEstimate;
+import com.sparohealth.wingkit.classes.analysis.FlowEstimator;
+import com.sparohealth.wingkit.classes.analysis.RecordingValidator;
+import com.sparohealth.wingkit.classes.analysis.RecordingValidity;
+import com.sparohealth.wingkit.classes.capture.RecordingFeatures;
+import com.sparohealth.wingkit.classes.capture.RecordingFeaturesWriter;
+import com.sparohealth.wingkit.classes.capture.ThresholdCrossing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * {@link BatchReanalyzer} runs the recorder's analysis over archived recordings: the envelope, the
+ * effort classification fed buffer by buffer as during capture, the validity check, the preliminary
+ * estimate and the feature sidecar's block levels and threshold crossings. The SDK classes are used
+ * as they are, so a report matches what the recorder decides for the same audio. The recorder
+ * analyses audio at the capture rate; a recording stored at a lower rate is analysed at its own.
+ *
+ * Recordings are independent, so {@link #analyzeAll(List, ForkJoinPool)} splits the list across a
+ * fork-join pool and lets idle threads steal ranges from busy ones. Each recording is read through a
+ * memory mapping and analysed by one thread, so nothing is shared but the configuration.
+ */
+public class BatchReanalyzer {
+    /// Ranges of at most this many recordings are analysed without splitting further.
+    private static final int SEQUENTIAL_RECORDINGS = 4;
+
+    /// The thresholds in use.
+    private final ReanalysisConfiguration configuration;
+
+    /**
+     * Initialize the {@link BatchReanalyzer}
+     * @param configuration The thresholds to use
+     */
+    public BatchReanalyzer(ReanalysisConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Return the WAV files under the given files and directories, in path order
+     * @param roots Files and directories to search
+     * @return recordings
+     */
+    public static List<File> findRecordings(List<File> roots) {
+        List<File> recordings = new ArrayList<>();
+        for (File root : roots) {
+            collect(root, recordings);
+        }
+        Collections.sort(recordings);
+        return recordings;
+    }
+
+    /**
+     * Analyse recordings in parallel
+     * @param recordings The recordings
+     * @param pool The pool to run on; its parallelism sets the number of threads used
+     * @return a report per recording, in the order given
+     */
+    public RecordingReport[] analyzeAll(List<File> recordings, ForkJoinPool pool) {
+        File[] files = recordings.toArray(new File[recordings.size()]);
+        RecordingReport[] reports = new RecordingReport[files.length];
+        pool.invoke(new AnalyzeRange(this, files, reports, 0, files.length));
+        return reports;
+    }
+
+    /**
+     * Analyse one recording
+     * @param file The recording
+     * @return report; a recording that cannot be read gets a report with its error rather than an exception
+     */
+    public RecordingReport analyze(File file) {
+        try {
+            MappedWavFile wav = MappedWavFile.open(file);
+            EnvelopeExtractor extractor = EnvelopeExtractor.create(wav.sampleRate, EnvelopeExtractor.DEFAULT_RATE_HZ, wav.getDurationMs());
+            FlowEnvelope envelope = extractor.getEnvelope();
+            EffortClassifier classifier = new EffortClassifier(configuration.effort, configuration.calibration);
+            RecordingFeaturesWriter featuresWriter = new RecordingFeaturesWriter(wav.sampleRate, configuration.validity);
+
+            short[] buffer = new short[configuration.bufferFrames];
+            for (int frame = 0; frame < wav.frames; frame += buffer.length) {
+                int count = Math.min(buffer.length, wav.frames - frame);
+                wav.read(frame, buffer, 0, count);
+                featuresWriter.process(buffer, 0, count);
+                // if the buffer completed any envelope frames...
+                if (extractor.process(buffer, 0, count) > 0) {
+                    classifier.consume(envelope);
+                }
+            }
+
+            RecordingValidity validity = new RecordingValidator(configuration.validity).validate(envelope, configuration.noiseBaselineDb);
+            EffortClassification effort = classifier.classify();
+            FlowEstimate estimate = new FlowEstimator(configuration.calibration).estimate(envelope);
+            if (configuration.writeFeatures) {
+                featuresWriter.write(file, envelope, wav.sampleRate, wav.sampleRate, wav.getDurationMs(), null);
+            }
+            RecordingFeatures features = featuresWriter.toFeatures(envelope, wav.sampleRate, wav.sampleRate, wav.getDurationMs(), null);
+            return new RecordingReport(file, wav.sampleRate, wav.getDurationMs(), validity, effort, estimate,
+                    features.firstCrossingMs(ThresholdCrossing.signalStart), saturatedMs(features, wav.getDurationMs()));
+        } catch (IOException | RuntimeException ex) {
+            return new RecordingReport(file, String.valueOf(ex.getMessage()));
+        }
+    }
+
+    /**
+     * Return the total time the envelope spent above the saturation level
+     */
+    private static long saturatedMs(RecordingFeatures features, long durationMs) {
+        long total = 0;
+        long since = -1;
+        for (int i = 0; i < features.getCrossingCount(); i++) {
+            if (features.getCrossing(i) == ThresholdCrossing.saturationStart) {
+                since = features.getCrossingTimeMs(i);
+            } else if (features.getCrossing(i) == ThresholdCrossing.saturationEnd && since >= 0) {
+                total += features.getCrossingTimeMs(i) - since;
+                since = -1;
+            }
+        }
+        // if the recording ENDED while saturated...
+        return since >= 0 ? total + durationMs - since : total;
+    }
+
+    private static void collect(File file, List<File> recordings) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            for (int i = 0; children != null && i < children.length; i++) {
+                collect(children[i], recordings);
+            }
+        } else if (file.getName().toLowerCase().endsWith(".wav")) {
+            recordings.add(file);
+        }
+    }
+
+    /**
+     * Analyses a range of recordings, splitting it in half until it is small enough to run in place
+     */
+    private static class AnalyzeRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BatchReanalyzer reanalyzer;
+        private final File[] files;
+        private final RecordingReport[] reports;
+        private final int from;
+        private final int to;
+
+        AnalyzeRange(BatchReanalyzer reanalyzer, File[] files, RecordingReport[] reports, int from, int to) {
+            this.reanalyzer = reanalyzer;
+            this.files = files;
+            this.reports = reports;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            // if the range IS small, splitting it further would cost more than it could balance
+            if (to - from <= SEQUENTIAL_RECORDINGS) {
+                for (int i = from; i < to; i++) {
+                    reports[i] = reanalyzer.analyze(files[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new AnalyzeRange(reanalyzer, files, reports, from, middle), new AnalyzeRange(reanalyzer, files, reports, middle, to));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.sparohealth.wingkit.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link MappedWavFile} reads a 16-bit PCM WAV file through a memory mapping, so archives can be
+ * scanned without copying each recording onto the heap. It accepts the same files as
+ * {@link com.sparohealth.wingkit.classes.analysis.PcmWavFile}, including recordings whose header was
+ * never finalized. Only the first channel is read.
+ */
+public class MappedWavFile {
+    /// The sample rate (Hz).
+    public final int sampleRate;
+    /// The number of channels in the file.
+    public final int channels;
+    /// The number of samples per channel.
+    public final int frames;
+
+    /// The interleaved samples of every channel.
+    private final ShortBuffer samples;
+
+    private MappedWavFile(int sampleRate, int channels, ShortBuffer samples) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.frames = samples.capacity() / channels;
+        this.samples = samples;
+    }
+
+    /**
+     * Map a WAV file
+     * @param file The file
+     * @return the mapped file
+     * @throws IOException The file cannot be mapped or is not 16-bit PCM
+     */
+    public static MappedWavFile open(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapped;
+        try {
+            mapped = access.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, access.length());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            access.close();
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < 12 || buffer.getInt(0) != 0x46464952 /* RIFF */ || buffer.getInt(8) != 0x45564157 /* WAVE */) {
+            throw new IOException(file + " is not a WAVE file");
+        }
+
+        int channels = 0;
+        int sampleRate = 0;
+        long position = 12;
+        while (position + 8 <= buffer.capacity()) {
+            int tag = buffer.getInt((int) position);
+            long size = buffer.getInt((int) position + 4) & 0xffffffffL;
+            position += 8;
+            // if this IS the format chunk...
+            if (tag == 0x20746d66 /* fmt  */) {
+                if (position + 16 > buffer.capacity()) {
+                    break;
+                }
+                int format = buffer.getShort((int) position);
+                channels = buffer.getShort((int) position + 2);
+                sampleRate = buffer.getInt((int) position + 4);
+                int bitDepth = buffer.getShort((int) position + 14);
+                if (format != 1 || bitDepth != 16 || channels < 1) {
+                    throw new IOException(file + " is not 16-bit PCM");
+                }
+            }
+            // if this IS the data chunk...
+            else if (tag == 0x61746164 /* data */) {
+                if (sampleRate == 0) {
+                    throw new IOException(file + " has no format chunk");
+                }
+                // a recording that was never finalized has a zero size; read to the end instead
+                long available = buffer.capacity() - position;
+                long bytes = size == 0 || size > available ? available : size;
+                long frames = bytes / (2 * channels);
+                buffer.position((int) position);
+                buffer.limit((int) (position + frames * 2 * channels));
+                return new MappedWavFile(sampleRate, channels, buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+            }
+            position += size + (size & 1);
+        }
+        throw new IOException(file + " has no data chunk");
+    }
+
+    /**
+     * Return the length of the recording
+     * @return duration (ms)
+     */
+    public long getDurationMs() {
+        return frames * 1000L / sampleRate;
+    }
+
+    /**
+     * Copy samples of the first channel, for the analysis that takes arrays
+     * @param frame The first frame to copy
+     * @param destination The array to copy into
+     * @param offset The first index of the array to fill
+     * @param count The number of frames to copy
+     */
+    public void read(int frame, short[] destination, int offset, int count) {
+        if (channels == 1) {
+            ShortBuffer view = samples.duplicate();
+            view.position(frame);
+            view.get(destination, offset, count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            destination[offset + i] = samples.get((frame + i) * channels);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.sparohealth.wingkit.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reanalyzes a synthetic corpus at 1, 2, 4, ... threads up to the number of cores and prints the
+ * throughput and speedup of each. The corpus is written once and reused; one untimed pass at full
+ * parallelism first warms the page cache and the JIT, so the timed passes measure the analysis
+ * rather than the disk.
+ *
+ * <pre>
+ * benchmark [COUNT [DURATION_MS [SAMPLE_RATE [DIRECTORY]]]]     defaults: 10000 6000 8000 build/corpus
+ * </pre>
+ */
+public class ReanalysisBenchmark {
+    private ReanalysisBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int durationMs = args.length > 1 ? Integer.parseInt(args[1]) : 6000;
+        int sampleRate = args.length > 2 ? Integer.parseInt(args[2]) : 8000;
+        File directory = new File(args.length > 3 ? args[3] : "build/corpus");
+
+        long start = System.nanoTime();
+        SyntheticCorpus.write(directory, count, durationMs, sampleRate);
+        List<File> recordings = BatchReanalyzer.findRecordings(Collections.singletonList(directory));
+        System.out.println(String.format(Locale.US, "corpus: %d recordings of %d ms at %d Hz (%.0f MB), ready in %.1f s",
+                recordings.size(), durationMs, sampleRate, recordings.size() * (44 + 2.0 * durationMs * sampleRate / 1000) / 1e6,
+                (System.nanoTime() - start) / 1e9));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+
+        BatchReanalyzer reanalyzer = new BatchReanalyzer(new ReanalysisConfiguration());
+        run(reanalyzer, recordings, cores);
+        double single = 0;
+        for (int threads : threadCounts) {
+            long nanos = run(reanalyzer, recordings, threads);
+            double perSecond = recordings.size() / (nanos / 1e9);
+            single = threads == 1 ? perSecond : single;
+            System.out.println(String.format(Locale.US, "%2d threads: %.2f s, %.0f recordings/s, %.1f x audio real time, speedup %.2f (%.0f%% efficiency)",
+                    threads, nanos / 1e9, perSecond, perSecond * durationMs / 1000,
+                    perSecond / single, 100 * perSecond / single / threads));
+        }
+    }
+
+    private static long run(BatchReanalyzer reanalyzer, List<File> recordings, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            RecordingReport[] reports = reanalyzer.analyzeAll(recordings, pool);
+            long nanos = System.nanoTime() - start;
+            for (RecordingReport report : reports) {
+                if (report.error != null) {
+                    throw new IllegalStateException(report.file + ": " + report.error);
+                }
+            }
+            return nanos;
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
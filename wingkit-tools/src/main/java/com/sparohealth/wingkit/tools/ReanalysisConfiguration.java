@@ -0,0 +1,29 @@
+package com.sparohealth.wingkit.tools;
+
+import com.sparohealth.wingkit.classes.analysis.EffortConfiguration;
+import com.sparohealth.wingkit.classes.analysis.FlowCalibration;
+import com.sparohealth.wingkit.classes.analysis.ValidityConfiguration;
+
+/**
+ * Settings used by {@link BatchReanalyzer}. The defaults are the recorder's, so a report shows what
+ * the SDK would have decided; change them to see what a new threshold would do to an archive.
+ */
+public class ReanalysisConfiguration {
+    /// The validity thresholds, also the levels threshold crossings are reported for.
+    public ValidityConfiguration validity = new ValidityConfiguration();
+
+    /// The effort thresholds.
+    public EffortConfiguration effort = new EffortConfiguration();
+
+    /// The envelope to flow mapping used for the effort classification and the estimate.
+    public FlowCalibration calibration = FlowCalibration.UNCALIBRATED;
+
+    /// The ambient baseline (dB) the recordings are compared against, or NaN to use only their own noise.
+    public double noiseBaselineDb = Double.NaN;
+
+    /// Write a {@link com.sparohealth.wingkit.classes.capture.RecordingFeatures} sidecar next to each recording.
+    public boolean writeFeatures = false;
+
+    /// The number of samples fed to the analysis at a time, about one capture buffer.
+    public int bufferFrames = 4096;
+}
@@ -0,0 +1,101 @@
+package com.sparohealth.wingkit.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Command-line entry point: reanalyze the WAV recordings under the given paths and write a report.
+ *
+ * <pre>
+ * reanalyze [--threads N] [--format csv|json] [--output FILE] [--features] [--baseline DB]
+ *           [--min-signal DBFS] [--max-signal DBFS] [--min-snr DB] PATH...
+ * </pre>
+ */
+public class Reanalyze {
+    private static final String USAGE = "usage: reanalyze [--threads N] [--format csv|json] [--output FILE] [--features]"
+            + " [--baseline DB] [--min-signal DBFS] [--max-signal DBFS] [--min-snr DB] PATH...";
+
+    private Reanalyze() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        ReanalysisConfiguration configuration = new ReanalysisConfiguration();
+        int threads = Runtime.getRuntime().availableProcessors();
+        String format = "csv";
+        File output = null;
+        List<File> roots = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--format")) {
+                    format = args[++i];
+                } else if (arg.equals("--output")) {
+                    output = new File(args[++i]);
+                } else if (arg.equals("--features")) {
+                    configuration.writeFeatures = true;
+                } else if (arg.equals("--baseline")) {
+                    configuration.noiseBaselineDb = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--min-signal")) {
+                    configuration.validity.minimumSignalDbfs = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--max-signal")) {
+                    configuration.validity.maximumSignalDbfs = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--min-snr")) {
+                    configuration.validity.minimumSnrDb = Double.parseDouble(args[++i]);
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                } else {
+                    roots.add(new File(arg));
+                }
+            }
+            if (roots.isEmpty() || threads < 1 || !(format.equals("csv") || format.equals("json"))) {
+                throw new IllegalArgumentException("invalid arguments");
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        List<File> recordings = BatchReanalyzer.findRecordings(roots);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        RecordingReport[] reports = new BatchReanalyzer(configuration).analyzeAll(recordings, pool);
+        long elapsedNanos = System.nanoTime() - start;
+        pool.shutdown();
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                output == null ? System.out : new FileOutputStream(output), Charset.forName("UTF-8")));
+        try {
+            if (format.equals("json")) {
+                ReportWriter.writeJson(reports, out);
+            } else {
+                ReportWriter.writeCsv(reports, out);
+            }
+        } finally {
+            out.flush();
+            if (output != null) {
+                out.close();
+            }
+        }
+
+        int acceptable = 0;
+        int errors = 0;
+        for (RecordingReport report : reports) {
+            acceptable += report.isAcceptable() ? 1 : 0;
+            errors += report.error != null ? 1 : 0;
+        }
+        System.err.println(String.format(Locale.US, "%d recordings (%d acceptable, %d unreadable) in %.1f s on %d threads, %.0f recordings/s",
+                reports.length, acceptable, errors, elapsedNanos / 1e9, threads, reports.length / (elapsedNanos / 1e9)));
+    }
+}
@@ -0,0 +1,146 @@
+package com.sparohealth.wingkit.tools;
+
+import com.sparohealth.wingkit.classes.analysis.EffortClassification;
+import com.sparohealth.wingkit.classes.analysis.FlowEstimate;
+import com.sparohealth.wingkit.classes.analysis.RecordingValidity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * The outcome of reanalyzing one recording: what the recorder would have decided about it, and the
+ * features it is filtered on. A recording that cannot be read has only its file and {@link #error}.
+ */
+public class RecordingReport {
+    /// The CSV column names, in the order of {@link #toCsv()}.
+    public static final String CSV_HEADER = "file,sample_rate,duration_ms,verdict,reason,snr_db,signal_dbfs,noise_dbfs,"
+            + "effort_acceptable,effort_issues,pef,fev1,signal_start_ms,saturated_ms,error";
+
+    /// The recording.
+    public final File file;
+    /// The sample rate of the recording (Hz).
+    public final int sampleRate;
+    /// The length of the audio (ms).
+    public final long durationMs;
+    /// The validity verdict, or null if the recording could not be read.
+    public final RecordingValidity validity;
+    /// The effort classification, or null if the recording could not be read.
+    public final EffortClassification effort;
+    /// The preliminary estimate, or null if the recording could not be read.
+    public final FlowEstimate estimate;
+    /// When the envelope first rose above the minimum signal level (ms), or -1.
+    public final long signalStartMs;
+    /// How long the envelope stayed above the maximum signal level in total (ms).
+    public final long saturatedMs;
+    /// Why the recording could not be read, or null.
+    public final String error;
+
+    RecordingReport(File file, int sampleRate, long durationMs, RecordingValidity validity, EffortClassification effort,
+                    FlowEstimate estimate, long signalStartMs, long saturatedMs) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.durationMs = durationMs;
+        this.validity = validity;
+        this.effort = effort;
+        this.estimate = estimate;
+        this.signalStartMs = signalStartMs;
+        this.saturatedMs = saturatedMs;
+        this.error = null;
+    }
+
+    RecordingReport(File file, String error) {
+        this.file = file;
+        this.sampleRate = 0;
+        this.durationMs = 0;
+        this.validity = null;
+        this.effort = null;
+        this.estimate = null;
+        this.signalStartMs = -1;
+        this.saturatedMs = 0;
+        this.error = error;
+    }
+
+    /**
+     * Indicate if the recorder would have accepted the recording for upload
+     * @return acceptable status
+     */
+    public boolean isAcceptable() {
+        return validity != null && validity.isAcceptable() && effort != null && effort.isAcceptable();
+    }
+
+    /**
+     * Return the report as a CSV line matching {@link #CSV_HEADER}
+     * @return CSV line, without a line break
+     */
+    public String toCsv() {
+        StringBuilder line = new StringBuilder(160).append(quote(file.getPath())).append(',');
+        if (error != null) {
+            return line.append(",,,,,,,,,,,,,").append(quote(error)).toString();
+        }
+        line.append(sampleRate).append(',').append(durationMs).append(',')
+                .append(validity.verdict).append(',').append(validity.reason).append(',')
+                .append(format(validity.snrDb)).append(',').append(format(validity.signalDbfs)).append(',')
+                .append(format(validity.noiseDbfs)).append(',')
+                .append(effort.isAcceptable()).append(',').append(issues()).append(',')
+                .append(estimate.pef == null ? "" : format(estimate.pef)).append(',')
+                .append(estimate.fev1 == null ? "" : format(estimate.fev1)).append(',')
+                .append(signalStartMs < 0 ? "" : String.valueOf(signalStartMs)).append(',')
+                .append(saturatedMs).append(',');
+        return line.toString();
+    }
+
+    /**
+     * Return the report as JSON
+     * @return JSON object
+     * @throws JSONException if a value cannot be represented
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject().put("file", file.getPath());
+        if (error != null) {
+            return json.put("error", error);
+        }
+        json.put("sampleRate", sampleRate)
+                .put("durationMs", durationMs)
+                .put("verdict", validity.verdict.name())
+                .put("reason", validity.reason.name())
+                .put("snrDb", round(validity.snrDb))
+                .put("signalDbfs", round(validity.signalDbfs))
+                .put("noiseDbfs", round(validity.noiseDbfs))
+                .put("effortAcceptable", effort.isAcceptable())
+                .put("effortIssues", issues())
+                .put("pef", estimate.pef == null ? null : round(estimate.pef))
+                .put("fev1", estimate.fev1 == null ? null : round(estimate.fev1))
+                .put("saturatedMs", saturatedMs);
+        if (signalStartMs >= 0) {
+            json.put("signalStartMs", signalStartMs);
+        }
+        return json;
+    }
+
+    private String issues() {
+        StringBuilder issues = new StringBuilder();
+        for (EffortClassification.Issue issue : effort.issues) {
+            issues.append(issues.length() == 0 ? "" : " ").append(issue.name());
+        }
+        return issues.toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private static String quote(String value) {
+        // if the value HAS a separator, quote or line break, quote it as RFC 4180 says
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
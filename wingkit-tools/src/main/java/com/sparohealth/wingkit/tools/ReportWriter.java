@@ -0,0 +1,49 @@
+package com.sparohealth.wingkit.tools;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes {@link RecordingReport}s as CSV or JSON, one recording per line either way, so large reports
+ * can be streamed and diffed
+ */
+public class ReportWriter {
+    private ReportWriter() {
+    }
+
+    /**
+     * Write a CSV report with a header line
+     * @param reports The reports
+     * @param out Where to write
+     * @throws IOException An exception occurring while writing
+     */
+    public static void writeCsv(RecordingReport[] reports, Writer out) throws IOException {
+        out.write(RecordingReport.CSV_HEADER);
+        out.write('\n');
+        for (RecordingReport report : reports) {
+            out.write(report.toCsv());
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Write a JSON array report
+     * @param reports The reports
+     * @param out Where to write
+     * @throws IOException An exception occurring while writing
+     */
+    public static void writeJson(RecordingReport[] reports, Writer out) throws IOException {
+        out.write("[\n");
+        try {
+            for (int i = 0; i < reports.length; i++) {
+                out.write(reports[i].toJson().toString());
+                out.write(i < reports.length - 1 ? ",\n" : "\n");
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+        out.write("]\n");
+    }
+}
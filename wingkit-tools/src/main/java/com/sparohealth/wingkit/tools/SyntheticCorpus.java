@@ -0,0 +1,96 @@
+package com.sparohealth.wingkit.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * {@link SyntheticCorpus} writes reproducible WAV recordings that look like the recorder's: background
+ * noise, then a blow whose turbulence noise rises to a peak and decays. Blows vary in loudness (from
+ * too quiet to clipped), in onset, rise time and length, and some have a cough, so every verdict and
+ * effort issue appears in a large enough corpus.
+ */
+public class SyntheticCorpus {
+    private SyntheticCorpus() {
+    }
+
+    /**
+     * Write a corpus, reusing the files already there
+     * @param directory The directory to write to
+     * @param count The number of recordings
+     * @param durationMs The length of each recording (ms)
+     * @param sampleRate The sample rate (Hz)
+     * @return the directory
+     * @throws IOException An exception occurring while writing
+     */
+    public static File write(File directory, int count, int durationMs, int sampleRate) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        short[] samples = new short[(int) ((long) durationMs * sampleRate / 1000)];
+        for (int i = 0; i < count; i++) {
+            File file = new File(directory, String.format(Locale.US, "%03d/synthetic-%06d.wav", i / 1000, i));
+            if (file.length() == 44 + 2L * samples.length) {
+                continue;
+            }
+            file.getParentFile().mkdirs();
+            generate(new Random(i), samples, sampleRate);
+            writeWav(file, samples, sampleRate);
+        }
+        return directory;
+    }
+
+    /**
+     * Fill the buffer with one synthetic recording
+     * @param random The source of variation
+     * @param samples The buffer to fill
+     * @param sampleRate The sample rate (Hz)
+     */
+    static void generate(Random random, short[] samples, int sampleRate) {
+        double noise = 20 + random.nextDouble() * 300;
+        // peak turbulence level: from well under the signal threshold to several times full scale
+        double peak = 32768 * Math.pow(10, (random.nextDouble() * 60 - 48) / 20);
+        double onset = 0.2 + random.nextDouble() * 1.2;
+        double rise = 0.02 + random.nextDouble() * (random.nextInt(4) == 0 ? 0.4 : 0.08);
+        double decay = 0.3 + random.nextDouble() * 1.2;
+        double stop = onset + 0.4 + random.nextDouble() * 4;
+        double cough = random.nextInt(8) == 0 ? onset + rise + 0.2 + random.nextDouble() * 0.3 : -1;
+
+        for (int i = 0; i < samples.length; i++) {
+            double t = (double) i / sampleRate;
+            double level = 0;
+            // if the blow IS under way...
+            if (t >= onset && t < stop) {
+                double since = t - onset;
+                level = since < rise ? peak * since / rise : peak * Math.exp(-(since - rise) / decay);
+                if (cough > 0 && Math.abs(t - cough) < 0.06) {
+                    level += peak * 0.6 * (1 - Math.abs(t - cough) / 0.06);
+                }
+            }
+            double value = random.nextGaussian() * (noise + level);
+            samples[i] = (short) Math.max(-32768, Math.min(32767, Math.round(value)));
+        }
+    }
+
+    private static void writeWav(File file, short[] samples, int sampleRate) throws IOException {
+        ByteBuffer wav = ByteBuffer.allocate(44 + 2 * samples.length).order(ByteOrder.LITTLE_ENDIAN)
+                .put(new byte[] { 'R', 'I', 'F', 'F' }).putInt(36 + 2 * samples.length)
+                .put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' }).putInt(16)
+                .putShort((short) 1).putShort((short) 1).putInt(sampleRate).putInt(2 * sampleRate)
+                .putShort((short) 2).putShort((short) 16)
+                .put(new byte[] { 'd', 'a', 't', 'a' }).putInt(2 * samples.length);
+        wav.asShortBuffer().put(samples);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(wav.array());
+        } finally {
+            out.close();
+        }
+    }
+}
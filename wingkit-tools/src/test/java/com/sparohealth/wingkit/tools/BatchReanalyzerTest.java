@@ -0,0 +1,160 @@
+package com.sparohealth.wingkit.tools;
+
+import com.sparohealth.wingkit.classes.analysis.EffortClassification;
+import com.sparohealth.wingkit.classes.analysis.EffortClassifier;
+import com.sparohealth.wingkit.classes.analysis.EffortConfiguration;
+import com.sparohealth.wingkit.classes.analysis.EnvelopeExtractor;
+import com.sparohealth.wingkit.classes.analysis.FlowCalibration;
+import com.sparohealth.wingkit.classes.analysis.PcmWavFile;
+import com.sparohealth.wingkit.classes.analysis.RecordingValidator;
+import com.sparohealth.wingkit.classes.analysis.RecordingValidity;
+import com.sparohealth.wingkit.classes.analysis.ValidityConfiguration;
+import com.sparohealth.wingkit.classes.capture.RecordingFeatures;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link BatchReanalyzer} and {@link MappedWavFile}
+ */
+public class BatchReanalyzerTest {
+    private static final int SAMPLE_RATE = 8000;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("corpus").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void mappedFileMatchesDecodedFile() throws IOException {
+        SyntheticCorpus.write(directory, 1, 1000, SAMPLE_RATE);
+        File file = BatchReanalyzer.findRecordings(Collections.singletonList(directory)).get(0);
+        // as left by a recording that was cut off: the sizes were never filled in
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        access.seek(40);
+        access.writeInt(0);
+        access.close();
+
+        MappedWavFile mapped = MappedWavFile.open(file);
+        PcmWavFile decoded = PcmWavFile.read(file);
+        assertEquals(decoded.sampleRate, mapped.sampleRate);
+        assertEquals(decoded.samples.length, mapped.frames);
+        short[] samples = new short[mapped.frames];
+        mapped.read(0, samples, 0, 100);
+        mapped.read(100, samples, 100, mapped.frames - 100);
+        assertArrayEquals(decoded.samples, samples);
+    }
+
+    @Test
+    public void reportMatchesTheRecorder() throws IOException {
+        SyntheticCorpus.write(directory, 40, 3000, SAMPLE_RATE);
+        ReanalysisConfiguration configuration = new ReanalysisConfiguration();
+        configuration.writeFeatures = true;
+        BatchReanalyzer reanalyzer = new BatchReanalyzer(configuration);
+        Set<RecordingValidity.Verdict> verdicts = new HashSet<>();
+
+        for (File file : BatchReanalyzer.findRecordings(Collections.singletonList(directory))) {
+            RecordingReport report = reanalyzer.analyze(file);
+            // the recorder: every capture buffer goes to the extractor, then the classifier sees the new frames
+            PcmWavFile wav = PcmWavFile.read(file);
+            EnvelopeExtractor extractor = EnvelopeExtractor.create(wav.sampleRate, EnvelopeExtractor.DEFAULT_RATE_HZ, 3000);
+            EffortClassifier classifier = new EffortClassifier(new EffortConfiguration(), FlowCalibration.UNCALIBRATED);
+            for (int offset = 0; offset < wav.samples.length; offset += 1792) {
+                extractor.process(wav.samples, offset, Math.min(1792, wav.samples.length - offset));
+                classifier.consume(extractor.getEnvelope());
+            }
+            RecordingValidity validity = new RecordingValidator(new ValidityConfiguration()).validate(extractor.getEnvelope(), Double.NaN);
+            EffortClassification effort = classifier.classify();
+
+            assertNull(report.error);
+            assertEquals(validity.verdict, report.validity.verdict);
+            assertEquals(validity.snrDb, report.validity.snrDb, 1e-9);
+            assertEquals(effort.issues, report.effort.issues);
+            RecordingFeatures features = RecordingFeatures.open(RecordingFeatures.fileFor(file));
+            assertEquals(features.getEnvelopeSize(), extractor.getEnvelope().size());
+            assertEquals(report.signalStartMs, features.getCrossingCount() == 0 ? -1 : features.getCrossingTimeMs(0));
+            verdicts.add(report.validity.verdict);
+        }
+        // the corpus covers the verdicts the tool is used to look for
+        assertTrue(verdicts.contains(RecordingValidity.Verdict.valid));
+        assertTrue(verdicts.contains(RecordingValidity.Verdict.rejected));
+    }
+
+    @Test
+    public void parallelReportIsTheSameAsSequential() throws Exception {
+        SyntheticCorpus.write(directory, 60, 2000, SAMPLE_RATE);
+        FileOutputStream broken = new FileOutputStream(new File(directory, "broken, truncated.wav"));
+        broken.write(new byte[] { 'R', 'I', 'F', 'F' });
+        broken.close();
+        List<File> recordings = BatchReanalyzer.findRecordings(Collections.singletonList(directory));
+        BatchReanalyzer reanalyzer = new BatchReanalyzer(new ReanalysisConfiguration());
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool parallel = new ForkJoinPool(4);
+        StringWriter sequentialCsv = new StringWriter();
+        ReportWriter.writeCsv(reanalyzer.analyzeAll(recordings, single), sequentialCsv);
+        RecordingReport[] reports = reanalyzer.analyzeAll(recordings, parallel);
+        StringWriter parallelCsv = new StringWriter();
+        ReportWriter.writeCsv(reports, parallelCsv);
+        single.shutdown();
+        parallel.shutdown();
+
+        assertEquals(sequentialCsv.toString(), parallelCsv.toString());
+        String[] lines = parallelCsv.toString().split("\n");
+        assertEquals(62, lines.length);
+        assertEquals(RecordingReport.CSV_HEADER, lines[0]);
+        // the unreadable recording is reported rather than stopping the run, and its name is quoted
+        assertTrue(lines[61].startsWith("\"" + new File(directory, "broken, truncated.wav").getPath() + "\","));
+        assertNotNull(reports[60].error);
+        for (String line : lines) {
+            assertEquals(line, 15, line.replaceAll("\"[^\"]*\"", "").split(",", -1).length);
+        }
+
+        StringWriter json = new StringWriter();
+        ReportWriter.writeJson(reports, json);
+        JSONArray parsed = new JSONArray(json.toString());
+        assertEquals(61, parsed.length());
+        assertEquals(reports[1].validity.verdict.name(), parsed.getJSONObject(1).getString("verdict"));
+    }
+
+    @Test
+    public void synthesizedCorpusIsReproducible() {
+        short[] first = new short[SAMPLE_RATE];
+        short[] second = new short[SAMPLE_RATE];
+        SyntheticCorpus.generate(new Random(7), first, SAMPLE_RATE);
+        SyntheticCorpus.generate(new Random(7), second, SAMPLE_RATE);
+        assertArrayEquals(first, second);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            delete(children[i]);
+        }
+        file.delete();
+    }
+}